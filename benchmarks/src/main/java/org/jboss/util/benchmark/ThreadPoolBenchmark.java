@@ -0,0 +1,162 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.benchmark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.BlockingMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The submission overhead of {@link BasicThreadPool} compared with a plain
+ * {@link ThreadPoolExecutor} configured the same way: the same number of
+ * threads, a bounded queue of the same size and the submitting thread
+ * running the task when the queue is full.
+ * <p>
+ * The submit benchmarks measure handing off tasks that do nothing, with
+ * one and four submitting threads. The round trip benchmark measures the
+ * time from submitting a task until it has run.
+ * </p>
+ *
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ThreadPoolBenchmark
+{
+   /** The size of the queues */
+   private static final int QUEUE_SIZE = 1024;
+
+   /** The pool, basic for BasicThreadPool or executor for ThreadPoolExecutor */
+   @Param({"basic", "executor"})
+   public String pool;
+
+   /** The number of pool threads */
+   @Param({"1", "4", "16"})
+   public int poolSize;
+
+   private BasicThreadPool basicThreadPool;
+
+   private ThreadPoolExecutor threadPoolExecutor;
+
+   private Executor executor;
+
+   private final AtomicLong counter = new AtomicLong();
+
+   private final Runnable task = new Runnable()
+   {
+      public void run()
+      {
+         counter.incrementAndGet();
+      }
+   };
+
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      if ("basic".equals(pool))
+      {
+         basicThreadPool = new BasicThreadPool("Benchmark");
+         basicThreadPool.setMaximumPoolSize(poolSize);
+         basicThreadPool.setMaximumQueueSize(QUEUE_SIZE);
+         basicThreadPool.setBlockingMode(BlockingMode.RUN);
+         executor = new Executor()
+         {
+            public void execute(Runnable runnable)
+            {
+               basicThreadPool.run(runnable);
+            }
+         };
+      }
+      else if ("executor".equals(pool))
+      {
+         threadPoolExecutor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+         threadPoolExecutor.prestartAllCoreThreads();
+         executor = threadPoolExecutor;
+      }
+      else
+      {
+         throw new IllegalArgumentException("Unknown pool " + pool);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws InterruptedException
+   {
+      if (basicThreadPool != null)
+         basicThreadPool.stop(false);
+      if (threadPoolExecutor != null)
+      {
+         threadPoolExecutor.shutdown();
+         threadPoolExecutor.awaitTermination(10, TimeUnit.SECONDS);
+      }
+   }
+
+   @Benchmark
+   @Threads(1)
+   public void submit()
+   {
+      executor.execute(task);
+   }
+
+   @Benchmark
+   @Threads(4)
+   public void submit4()
+   {
+      executor.execute(task);
+   }
+
+   @Benchmark
+   @Threads(1)
+   public void roundTrip() throws InterruptedException
+   {
+      final CountDownLatch done = new CountDownLatch(1);
+      executor.execute(new Runnable()
+      {
+         public void run()
+         {
+            done.countDown();
+         }
+      });
+      done.await();
+   }
+}
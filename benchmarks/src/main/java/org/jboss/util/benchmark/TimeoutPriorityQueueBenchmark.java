@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.util.timeout.Timeout;
+import org.jboss.util.timeout.TimeoutExt;
+import org.jboss.util.timeout.TimeoutPriorityQueue;
+import org.jboss.util.timeout.TimeoutTarget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the {@link TimeoutPriorityQueue} implementations.
+ * <p>
+ * The queue is filled with timeouts far in the future before measuring, as
+ * a server holding many pending timeouts would be. The offer and cancel
+ * benchmark is the common case of timeouts that never fire, the offer and
+ * poll benchmark the case of timeouts that do. Both run with one, four and
+ * sixteen threads sharing the queue.
+ * </p>
+ *
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimeoutPriorityQueueBenchmark
+{
+   /** An hour in MS */
+   private static final long HOUR = 3600000;
+
+   private static final TimeoutTarget TARGET = new TimeoutTarget()
+   {
+      public void timedOut(Timeout timeout)
+      {
+      }
+   };
+
+   /** The queue implementation */
+   @Param({"org.jboss.util.timeout.TimeoutPriorityQueueImpl",
+           "org.jboss.util.timeout.HashedTimeoutPriorityQueueImpl",
+           "org.jboss.util.timeout.TimingWheelTimeoutPriorityQueueImpl"})
+   public String queueClass;
+
+   /** The number of pending timeouts */
+   @Param({"1000", "100000"})
+   public int pending;
+
+   private TimeoutPriorityQueue queue;
+
+   private long base;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      queue = (TimeoutPriorityQueue) Class.forName(queueClass).newInstance();
+      base = System.currentTimeMillis() + HOUR;
+      for (int i = 0; i < pending; ++i)
+         queue.offer(base + i % HOUR, TARGET);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      queue.cancel();
+   }
+
+   @Benchmark
+   @Threads(1)
+   public boolean offerCancel()
+   {
+      return offerAndCancel();
+   }
+
+   @Benchmark
+   @Threads(4)
+   public boolean offerCancel4()
+   {
+      return offerAndCancel();
+   }
+
+   @Benchmark
+   @Threads(16)
+   public boolean offerCancel16()
+   {
+      return offerAndCancel();
+   }
+
+   @Benchmark
+   @Threads(1)
+   public TimeoutExt offerPoll()
+   {
+      return offerAndPoll();
+   }
+
+   @Benchmark
+   @Threads(4)
+   public TimeoutExt offerPoll4()
+   {
+      return offerAndPoll();
+   }
+
+   @Benchmark
+   @Threads(16)
+   public TimeoutExt offerPoll16()
+   {
+      return offerAndPoll();
+   }
+
+   /**
+    * Schedule a timeout among the pending ones and cancel it
+    */
+   private boolean offerAndCancel()
+   {
+      long time = base + (System.nanoTime() & 0xFFFFF);
+      return queue.offer(time, TARGET).cancel();
+   }
+
+   /**
+    * Schedule a timeout that is due and take a due timeout, with several
+    * threads another thread may take it
+    */
+   private TimeoutExt offerAndPoll()
+   {
+      queue.offer(0, TARGET);
+      TimeoutExt timeout = queue.poll();
+      if (timeout != null)
+         timeout.done();
+      return timeout;
+   }
+}
@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+/**
+ * The statistics of a cache.
+ * <p>
+ * The counters are striped: each thread adds to one of several cells,
+ * spread over separate cache lines, and reading a counter sums them, so
+ * threads reading a concurrent cache do not contend on the counters.
+ * Evictions are counted by cause: capacity, expiry and explicit removal.
+ * The load time is recorded by the {@link LoadingCache}.
+ * </p>
+ * <p>
+ * The statistics can be registered as a standard MBean.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class CacheStatistics implements CacheStatisticsMBean
+{
+   // Attributes ----------------------------------------------------
+
+   /** The hits */
+   private final StripedCounter hits = new StripedCounter();
+
+   /** The misses */
+   private final StripedCounter misses = new StripedCounter();
+
+   /** The inserts */
+   private final StripedCounter inserts = new StripedCounter();
+
+   /** The capacity evictions */
+   private final StripedCounter evictions = new StripedCounter();
+
+   /** The expirations */
+   private final StripedCounter expirations = new StripedCounter();
+
+   /** The explicit removals */
+   private final StripedCounter removals = new StripedCounter();
+
+   /** The load time */
+   private final Histogram loadTime = new Histogram();
+
+   // CacheStatisticsMBean implementation ---------------------------
+
+   public long getHitCount()
+   {
+      return hits.get();
+   }
+
+   public long getMissCount()
+   {
+      return misses.get();
+   }
+
+   public double getHitRatio()
+   {
+      long hit = getHitCount();
+      long total = hit + getMissCount();
+      return total == 0 ? 0 : (double) hit / total;
+   }
+
+   public long getInsertCount()
+   {
+      return inserts.get();
+   }
+
+   public long getEvictionCount()
+   {
+      return evictions.get();
+   }
+
+   public long getExpiryCount()
+   {
+      return expirations.get();
+   }
+
+   public long getRemovalCount()
+   {
+      return removals.get();
+   }
+
+   public long getLoadCount()
+   {
+      return loadTime.getCount();
+   }
+
+   public double getAverageLoadTime()
+   {
+      return loadTime.getAverage();
+   }
+
+   public long getMaximumLoadTime()
+   {
+      return loadTime.getMaximum();
+   }
+
+   public long getLoadTimePercentile(double percentile)
+   {
+      return loadTime.getPercentile(percentile);
+   }
+
+   public long[] getLoadTimeHistogram()
+   {
+      return loadTime.getBuckets();
+   }
+
+   public void reset()
+   {
+      hits.reset();
+      misses.reset();
+      inserts.reset();
+      evictions.reset();
+      expirations.reset();
+      removals.reset();
+      loadTime.reset();
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Record a get that found the object
+    */
+   public void recordHit()
+   {
+      hits.increment();
+   }
+
+   /**
+    * Record a get that did not find the object
+    */
+   public void recordMiss()
+   {
+      misses.increment();
+   }
+
+   /**
+    * Record an insert
+    */
+   public void recordInsert()
+   {
+      inserts.increment();
+   }
+
+   /**
+    * Record an object aged out to make room for others
+    */
+   public void recordEviction()
+   {
+      evictions.increment();
+   }
+
+   /**
+    * Record an object removed because it expired
+    */
+   public void recordExpiry()
+   {
+      expirations.increment();
+   }
+
+   /**
+    * Record an object removed or flushed by a user of the cache
+    */
+   public void recordRemoval()
+   {
+      removals.increment();
+   }
+
+   /**
+    * Record the load of an object
+    *
+    * @param nanos the load time in nanos
+    */
+   public void recordLoad(long nanos)
+   {
+      loadTime.record(nanos);
+   }
+
+   /**
+    * @return the load time
+    */
+   public Histogram getLoadTime()
+   {
+      return loadTime;
+   }
+
+   public String toString()
+   {
+      return "hits=" + getHitCount() + " misses=" + getMissCount() + " inserts=" + getInsertCount()
+         + " evictions=" + getEvictionCount() + " expirations=" + getExpiryCount()
+         + " removals=" + getRemovalCount() + " loadTime=" + loadTime;
+   }
+}
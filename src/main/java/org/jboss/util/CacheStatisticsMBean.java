@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+/**
+ * Management interface for the statistics of a cache.
+ *
+ * @version $Revision$
+ */
+public interface CacheStatisticsMBean
+{
+   /**
+    * Get the number of gets that found the object
+    *
+    * @return the number of hits
+    */
+   long getHitCount();
+
+   /**
+    * Get the number of gets that did not find the object
+    *
+    * @return the number of misses
+    */
+   long getMissCount();
+
+   /**
+    * Get the share of the gets that found the object
+    *
+    * @return the ratio between 0 and 1
+    */
+   double getHitRatio();
+
+   /**
+    * Get the number of objects inserted
+    *
+    * @return the number of inserts
+    */
+   long getInsertCount();
+
+   /**
+    * Get the number of objects aged out to make room for others
+    *
+    * @return the number of capacity evictions
+    */
+   long getEvictionCount();
+
+   /**
+    * Get the number of objects removed because they expired
+    *
+    * @return the number of expirations
+    */
+   long getExpiryCount();
+
+   /**
+    * Get the number of objects removed or flushed by the users of the cache
+    *
+    * @return the number of explicit removals
+    */
+   long getRemovalCount();
+
+   /**
+    * Get the number of objects loaded on a miss
+    *
+    * @return the number of loads
+    */
+   long getLoadCount();
+
+   /**
+    * Get the average time to load an object
+    *
+    * @return the average load time in micros
+    */
+   double getAverageLoadTime();
+
+   /**
+    * Get the maximum time to load an object
+    *
+    * @return the maximum load time in micros
+    */
+   long getMaximumLoadTime();
+
+   /**
+    * Get the load time below which the given percentage of the loads
+    * completed, approximate to a factor of two
+    *
+    * @param percentile the percentile between 0 and 100
+    * @return the load time in micros
+    */
+   long getLoadTimePercentile(double percentile);
+
+   /**
+    * Get the log2 histogram of the load time
+    *
+    * @return the counts of the buckets, bucket i holding the load times of
+    *    less than 2^i micros
+    */
+   long[] getLoadTimeHistogram();
+
+   /**
+    * Reset the statistics
+    */
+   void reset();
+}
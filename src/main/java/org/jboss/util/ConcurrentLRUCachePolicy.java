@@ -0,0 +1,579 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe Least Recently Used cache policy.
+ * <p>
+ * Unlike an {@link LRUCachePolicy} wrapped in a {@link SynchronizedCachePolicy},
+ * a get takes no lock. The cached objects are kept in a concurrent map and
+ * a get only records the access in one of several read buffers, chosen by
+ * the thread. The recency list is kept under a single lock, the buffered
+ * accesses are applied to it when a buffer fills up, by whichever thread
+ * gets the lock first, and before every insert. When a buffer is full and
+ * the lock is busy the access is dropped, so the order is approximate
+ * under heavy concurrent reads, which hardly changes what gets evicted.
+ * </p>
+ * <p>
+ * Inserts, removes and evictions take the lock. The {@link #ageOut} and
+ * {@link #cacheMiss} callbacks are the same as those of the
+ * {@link LRUCachePolicy}, ageOut is called with the lock held.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class ConcurrentLRUCachePolicy
+   implements StatisticsCachePolicy
+{
+   // Constants -----------------------------------------------------
+
+   /** The number of accesses a read buffer holds */
+   private static final int BUFFER_SIZE = 32;
+
+   /** The number of buffered accesses that triggers applying them */
+   private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+   /** The maximum number of read buffers */
+   private static final int MAXIMUM_BUFFERS = 64;
+
+   // Attributes ----------------------------------------------------
+
+   /** The maximum number of cached objects */
+   private final int maxCapacity;
+
+   /** The cached objects */
+   private ConcurrentHashMap<Object, CacheEntry> map;
+
+   /** The read buffers */
+   private ReadBuffer[] buffers;
+
+   /** The lock of the recency list */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /** The most recently used entry */
+   private CacheEntry head;
+
+   /** The least recently used entry */
+   private CacheEntry tail;
+
+   /** The number of entries in the list */
+   private int count;
+
+   /** The statistics */
+   private final CacheStatistics statistics = new CacheStatistics();
+
+   /** Whether an entry is being aged out, guarded by the lock */
+   private boolean agingOut;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Creates a concurrent LRU cache policy object with the specified
+    * maximum capacity.
+    *
+    * @param max the maximum number of cached objects
+    * @see #create
+    */
+   public ConcurrentLRUCachePolicy(int max)
+   {
+      if (max < 1)
+         throw new IllegalArgumentException("Illegal cache capacity: " + max);
+      maxCapacity = max;
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the maximum number of cached objects
+    */
+   public int getMaxCapacity()
+   {
+      return maxCapacity;
+   }
+
+   public CacheStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   // Service implementation ----------------------------------------
+
+   /**
+    * Initializes the cache, creating all required objects.
+    *
+    * @see #start
+    * @see #destroy
+    */
+   public void create()
+   {
+      map = new ConcurrentHashMap<Object, CacheEntry>();
+      int size = 1;
+      while (size < Runtime.getRuntime().availableProcessors() && size < MAXIMUM_BUFFERS)
+         size <<= 1;
+      buffers = new ReadBuffer[size];
+      for (int i = 0; i < size; ++i)
+         buffers[i] = new ReadBuffer();
+   }
+
+   /**
+    * Starts this cache that is now ready to be used.
+    *
+    * @see #create
+    * @see #stop
+    */
+   public void start()
+   {
+   }
+
+   /**
+    * Stops this cache thus {@link #flush}ing all cached objects. <br>
+    * After this method is called, a call to {@link #start} will restart the cache.
+    *
+    * @see #start
+    * @see #destroy
+    */
+   public void stop()
+   {
+      if (map != null)
+         flush();
+   }
+
+   /**
+    * Destroys the cache that is now unusable. <br>
+    * To have it working again it must be re-{@link #create}ed and
+    * re-{@link #start}ed.
+    *
+    * @see #create
+    */
+   public void destroy()
+   {
+      if (map == null)
+         return;
+      lock.lock();
+      try
+      {
+         map.clear();
+         for (int i = 0; i < buffers.length; ++i)
+            buffers[i].clear();
+         head = tail = null;
+         count = 0;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   // CachePolicy implementation ------------------------------------
+
+   public Object get(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      CacheEntry entry = map.get(key);
+      if (entry == null)
+      {
+         statistics.recordMiss();
+         cacheMiss();
+         return null;
+      }
+      statistics.recordHit();
+      Object object = entry.object;
+      ReadBuffer buffer = buffers[(int) Thread.currentThread().getId() & (buffers.length - 1)];
+      if (buffer.offer(entry) == false || buffer.pending() >= DRAIN_THRESHOLD)
+         tryDrain();
+      return object;
+   }
+
+   public Object peek(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      CacheEntry entry = map.get(key);
+      return entry == null ? null : entry.object;
+   }
+
+   public void insert(Object key, Object object)
+   {
+      if (object == null)
+         throw new IllegalArgumentException("Cannot insert a null object in the cache");
+      if (key == null)
+         throw new IllegalArgumentException("Cannot insert an object in the cache with null key");
+
+      CacheEntry entry = createCacheEntry(key, object);
+      if (map.putIfAbsent(key, entry) != null)
+         throw new IllegalStateException("Attempt to put in the cache an object that is already there");
+      statistics.recordInsert();
+
+      lock.lock();
+      try
+      {
+         drain();
+         // A concurrent remove may have taken it out already
+         if (map.get(key) == entry)
+         {
+            link(entry);
+            evict();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   public void remove(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Removing an object using a null key");
+
+      CacheEntry entry = map.remove(key);
+      if (entry != null)
+      {
+         lock.lock();
+         try
+         {
+            unlink(entry);
+            // Counted by the caller of ageOut
+            if (agingOut == false)
+               statistics.recordRemoval();
+         }
+         finally
+         {
+            lock.unlock();
+         }
+      }
+   }
+
+   public void flush()
+   {
+      lock.lock();
+      try
+      {
+         drain();
+         CacheEntry entry;
+         while ((entry = tail) != null)
+         {
+            if (ageOut(entry, false) == false)
+               break;
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   public int size()
+   {
+      return map.size();
+   }
+
+   // Protected -----------------------------------------------------
+
+   /**
+    * Callback method called when the cache algorithm ages out of the cache
+    * the given entry, with the lock of the recency list held. <br>
+    * The implementation here is removing the given entry from the cache,
+    * an entry that is not removed stays at the end of the list.
+    *
+    * @param entry the least recently used entry
+    */
+   protected void ageOut(CacheEntry entry)
+   {
+      if (map.remove(entry.key, entry))
+         unlink(entry);
+   }
+
+   /**
+    * Callback method called when a cache miss happens.
+    */
+   protected void cacheMiss()
+   {
+   }
+
+   /**
+    * Factory method for cache entries
+    *
+    * @param key the key
+    * @param value the cached object
+    * @return the entry
+    */
+   protected CacheEntry createCacheEntry(Object key, Object value)
+   {
+      return new CacheEntry(key, value);
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Apply the buffered accesses unless another thread holds the lock
+    */
+   private void tryDrain()
+   {
+      if (lock.tryLock())
+      {
+         try
+         {
+            drain();
+         }
+         finally
+         {
+            lock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Apply the buffered accesses, the caller holds the lock
+    */
+   private void drain()
+   {
+      for (int i = 0; i < buffers.length; ++i)
+         buffers[i].drain(this);
+   }
+
+   /**
+    * Age out the least recently used entries over the capacity, the caller
+    * holds the lock
+    */
+   private void evict()
+   {
+      while (count > maxCapacity)
+      {
+         if (ageOut(tail, true) == false)
+            break;
+      }
+   }
+
+   /**
+    * Age out an entry and count it, the caller holds the lock
+    *
+    * @param entry the entry
+    * @param evicting whether it makes room for another
+    * @return false when the callback kept it
+    */
+   private boolean ageOut(CacheEntry entry, boolean evicting)
+   {
+      agingOut = true;
+      try
+      {
+         ageOut(entry);
+      }
+      finally
+      {
+         agingOut = false;
+      }
+      if (entry.linked)
+         return false;
+      if (evicting)
+         statistics.recordEviction();
+      else
+         statistics.recordRemoval();
+      return true;
+   }
+
+   /**
+    * Make an entry the most recently used one, the caller holds the lock
+    *
+    * @param entry the entry
+    */
+   private void promote(CacheEntry entry)
+   {
+      if (entry.linked == false || head == entry)
+         return;
+      unlink(entry);
+      link(entry);
+   }
+
+   /**
+    * Add an entry at the head of the list, the caller holds the lock
+    *
+    * @param entry the entry
+    */
+   private void link(CacheEntry entry)
+   {
+      entry.prev = null;
+      entry.next = head;
+      if (head != null)
+         head.prev = entry;
+      head = entry;
+      if (tail == null)
+         tail = entry;
+      entry.linked = true;
+      ++count;
+   }
+
+   /**
+    * Remove an entry from the list, the caller holds the lock
+    *
+    * @param entry the entry
+    */
+   private void unlink(CacheEntry entry)
+   {
+      if (entry.linked == false)
+         return;
+      if (entry.prev == null)
+         head = entry.next;
+      else
+         entry.prev.next = entry.next;
+      if (entry.next == null)
+         tail = entry.prev;
+      else
+         entry.next.prev = entry.prev;
+      entry.prev = entry.next = null;
+      entry.linked = false;
+      --count;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * An entry of the cache.
+    */
+   public static class CacheEntry
+   {
+      /** The key */
+      final Object key;
+
+      /** The cached object */
+      final Object object;
+
+      /** The more recently used entry, guarded by the lock */
+      CacheEntry prev;
+
+      /** The less recently used entry, guarded by the lock */
+      CacheEntry next;
+
+      /** Whether the entry is in the list, guarded by the lock */
+      boolean linked;
+
+      /**
+       * Create a new entry
+       *
+       * @param key the key
+       * @param object the cached object
+       */
+      protected CacheEntry(Object key, Object object)
+      {
+         this.key = key;
+         this.object = object;
+      }
+
+      /**
+       * @return the key
+       */
+      public Object getKey()
+      {
+         return key;
+      }
+
+      /**
+       * @return the cached object
+       */
+      public Object getObject()
+      {
+         return object;
+      }
+
+      public String toString()
+      {
+         return "key: " + key + ", object: " + (object == null ? "null" : Integer.toHexString(object.hashCode()));
+      }
+   }
+
+   /**
+    * A bounded buffer of accesses, written without locks and drained
+    * with the lock held. Accesses offered to a full buffer are dropped.
+    */
+   private static class ReadBuffer
+   {
+      /** The buffered entries */
+      private final AtomicReferenceArray<CacheEntry> slots = new AtomicReferenceArray<CacheEntry>(BUFFER_SIZE);
+
+      /** The number of accesses written */
+      private final AtomicLong writes = new AtomicLong();
+
+      /** The number of accesses drained */
+      private volatile long reads;
+
+      /**
+       * Buffer an access
+       *
+       * @param entry the entry accessed
+       * @return false when the buffer is full or contended
+       */
+      boolean offer(CacheEntry entry)
+      {
+         long write = writes.get();
+         if (write - reads >= BUFFER_SIZE)
+            return false;
+         if (writes.compareAndSet(write, write + 1) == false)
+            return false;
+         slots.lazySet((int) write & (BUFFER_SIZE - 1), entry);
+         return true;
+      }
+
+      /**
+       * @return the number of buffered accesses
+       */
+      long pending()
+      {
+         return writes.get() - reads;
+      }
+
+      /**
+       * Apply the buffered accesses to the list, the caller holds the lock
+       *
+       * @param policy the cache
+       */
+      void drain(ConcurrentLRUCachePolicy policy)
+      {
+         long read = reads;
+         long write = writes.get();
+         for (; read < write; ++read)
+         {
+            int index = (int) read & (BUFFER_SIZE - 1);
+            CacheEntry entry = slots.get(index);
+            // Not written yet
+            if (entry == null)
+               break;
+            slots.lazySet(index, null);
+            policy.promote(entry);
+         }
+         reads = read;
+      }
+
+      /**
+       * Forget the buffered accesses, the caller holds the lock
+       */
+      void clear()
+      {
+         for (int i = 0; i < BUFFER_SIZE; ++i)
+            slots.lazySet(i, null);
+         reads = writes.get();
+      }
+   }
+}
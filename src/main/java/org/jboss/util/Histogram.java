@@ -0,0 +1,175 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log2 histogram of durations. Bucket i counts the samples of at least
+ * 2^(i-1) and less than 2^i microseconds, bucket 0 those below one
+ * microsecond.
+ * <p>
+ * Everything is kept in atomic counters so recording a sample never blocks.
+ * Like the {@link StripedCounter} the counts are split into cells chosen by
+ * thread, each on its own cache lines, so the threads recording samples
+ * concurrently do not contend. Reading sums the cells. Percentiles are
+ * approximate to a factor of two.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class Histogram
+{
+   /** The number of buckets, the last one holds everything above 2^38 micros */
+   public static final int BUCKETS = 40;
+
+   /** The index of the total in a cell, after the buckets */
+   private static final int TOTAL = BUCKETS;
+
+   /** The longs between two cells, the buckets and the total rounded up to cache lines */
+   private static final int SPACING = (BUCKETS + 1 + StripedCounter.SPACING - 1) / StripedCounter.SPACING * StripedCounter.SPACING;
+
+   /** The cells, each holding the bucket counts then the total, with the padding */
+   private final AtomicLongArray cells = new AtomicLongArray((StripedCounter.CELLS + 1) * SPACING);
+
+   /** The maximum, only written when it grows */
+   private final AtomicLong maximum = new AtomicLong();
+
+   /**
+    * Record a sample
+    *
+    * @param nanos the duration in nanos
+    */
+   public void record(long nanos)
+   {
+      long micros = nanos / 1000;
+      if (micros < 0)
+         micros = 0;
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      if (bucket >= BUCKETS)
+         bucket = BUCKETS - 1;
+      int cell = (StripedCounter.cell() + 1) * SPACING;
+      cells.incrementAndGet(cell + bucket);
+      cells.addAndGet(cell + TOTAL, micros);
+      long max = maximum.get();
+      while (micros > max && maximum.compareAndSet(max, micros) == false)
+         max = maximum.get();
+   }
+
+   /**
+    * @return the number of samples
+    */
+   public long getCount()
+   {
+      long n = 0;
+      for (int i = 0; i < BUCKETS; ++i)
+         n += sum(i);
+      return n;
+   }
+
+   /**
+    * @return the average duration in micros
+    */
+   public double getAverage()
+   {
+      long n = getCount();
+      return n == 0 ? 0 : (double) getTotal() / n;
+   }
+
+   /**
+    * @return the sum of the durations in micros
+    */
+   public long getTotal()
+   {
+      return sum(TOTAL);
+   }
+
+   /**
+    * @return the maximum duration in micros
+    */
+   public long getMaximum()
+   {
+      return maximum.get();
+   }
+
+   /**
+    * Get the upper bound of the bucket holding the given percentile
+    *
+    * @param percentile the percentile between 0 and 100
+    * @return the duration in micros
+    */
+   public long getPercentile(double percentile)
+   {
+      long[] snapshot = getBuckets();
+      long n = 0;
+      for (int i = 0; i < snapshot.length; ++i)
+         n += snapshot[i];
+      if (n == 0)
+         return 0;
+      long rank = (long) Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; ++i)
+      {
+         seen += snapshot[i];
+         if (seen >= rank)
+            return Math.min(1L << i, getMaximum());
+      }
+      return getMaximum();
+   }
+
+   /**
+    * @return a copy of the bucket counts
+    */
+   public long[] getBuckets()
+   {
+      long[] result = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; ++i)
+         result[i] = sum(i);
+      return result;
+   }
+
+   /**
+    * Forget the samples
+    */
+   public void reset()
+   {
+      for (int i = SPACING; i < cells.length(); ++i)
+         cells.set(i, 0);
+      maximum.set(0);
+   }
+
+   public String toString()
+   {
+      return "{count=" + getCount() + " avg=" + getAverage() + "us max=" + getMaximum() + "us}";
+   }
+
+   /**
+    * Sum a slot over the cells
+    *
+    * @param index the index of the slot in a cell
+    * @return the sum
+    */
+   private long sum(int index)
+   {
+      long sum = 0;
+      for (int i = 1; i <= StripedCounter.CELLS; ++i)
+         sum += cells.get(i * SPACING + index);
+      return sum;
+   }
+}
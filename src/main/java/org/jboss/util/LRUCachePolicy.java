@@ -22,13 +22,20 @@ import java.util.Map;
 
 /**
  * Implementation of a Least Recently Used cache policy.
+ * <p>
+ * The cache is bounded by the number of cached objects. With a
+ * {@link Weigher} it is also bounded by the total weight of the cached
+ * objects, for instance their size in bytes: inserting an object ages out
+ * the least recently used objects until it fits. An object heavier than
+ * the maximum weight ages out all the others and is cached alone.
+ * </p>
  *
  * @author <a href="mailto:simone.bordet@compaq.com">Simone Bordet</a>
  * @version $Revision$
  */
 @SuppressWarnings("unchecked")
 public class LRUCachePolicy
-   implements CachePolicy
+   implements StatisticsCachePolicy
 {
    // Constants -----------------------------------------------------
 
@@ -49,6 +56,22 @@ public class LRUCachePolicy
     * The minimum capacity of this cache
     */
    protected int m_minCapacity;
+   /**
+    * The statistics of this cache
+    */
+   private final CacheStatistics m_statistics = new CacheStatistics();
+   /**
+    * Whether the entry removed is aged out to make room
+    */
+   private boolean m_evicting;
+   /**
+    * The weigher of the cached objects, null to not weigh them
+    */
+   protected Weigher m_weigher;
+   /**
+    * The maximum total weight of this cache
+    */
+   protected long m_maxWeight = Long.MAX_VALUE;
 
    // Static --------------------------------------------------------
 
@@ -75,6 +98,25 @@ public class LRUCachePolicy
       m_minCapacity = min;
       m_maxCapacity = max;
    }
+   /**
+    * Creates a LRU cache policy object with the specified minimum
+    * and maximum capacity, also bounded by the total weight of the
+    * cached objects.
+    * @param min 
+    * @param max 
+    * @param weigher the weigher of the cached objects
+    * @param maxWeight the maximum total weight
+    *
+    * @see #create
+    */
+   public LRUCachePolicy(int min, int max, Weigher weigher, long maxWeight)
+   {
+      this(min, max);
+      if (weigher == null) {throw new IllegalArgumentException("Null weigher");}
+      if (maxWeight < 1) {throw new IllegalArgumentException("Illegal cache weight: " + maxWeight);}
+      m_weigher = weigher;
+      m_maxWeight = maxWeight;
+   }
 
    /**
     * Create map holding entries.
@@ -88,6 +130,35 @@ public class LRUCachePolicy
 
    // Public --------------------------------------------------------
 
+   public CacheStatistics getStatistics()
+   {
+      return m_statistics;
+   }
+
+   /**
+    * @return the weigher of the cached objects or null
+    */
+   public Weigher getWeigher()
+   {
+      return m_weigher;
+   }
+
+   /**
+    * @return the maximum total weight of the cached objects
+    */
+   public long getMaxWeight()
+   {
+      return m_maxWeight;
+   }
+
+   /**
+    * @return the total weight of the cached objects
+    */
+   public long getWeight()
+   {
+      return m_list == null ? 0 : m_list.m_weight;
+   }
+
    // Service implementation ----------------------------------------------
    /**
     * Initializes the cache, creating all required objects and initializing their
@@ -149,11 +220,13 @@ public class LRUCachePolicy
       LRUCacheEntry value = (LRUCacheEntry)m_map.get(key);
       if (value != null)
       {
+         m_statistics.recordHit();
          m_list.promote(value);
          return value.m_object;
       }
       else
       {
+         m_statistics.recordMiss();
          cacheMiss();
          return null;
       }
@@ -183,10 +256,19 @@ public class LRUCachePolicy
       {
          throw new IllegalStateException("Attempt to put in the cache an object that is already there");
       }
+      long weight = 0;
+      if (m_weigher != null)
+      {
+         weight = m_weigher.weigh(key, o);
+         if (weight < 0) {throw new IllegalArgumentException("Negative weight " + weight + " for " + key);}
+         m_list.demote(weight);
+      }
       m_list.demote();
       LRUCacheEntry entry = createCacheEntry(key, o);
+      entry.m_weight = weight;
       m_map.put(key, entry);
       m_list.promote(entry);
+      m_statistics.recordInsert();
    }
    public void remove(Object key)
    {
@@ -196,6 +278,10 @@ public class LRUCachePolicy
       if (value != null)
       {
          m_list.remove((LRUCacheEntry)value);
+         if (m_evicting)
+            m_statistics.recordEviction();
+         else
+            m_statistics.recordRemoval();
       }
       //else Do nothing, the object isn't in the cache list
    }
@@ -273,6 +359,8 @@ public class LRUCachePolicy
       public LRUCacheEntry m_tail;
       /** The cache misses happened */
       public int m_cacheMiss;
+      /** The total weight of the cached objects */
+      public long m_weight;
       /**
        * Creates a new double queued list.
        */
@@ -308,6 +396,7 @@ public class LRUCachePolicy
                   m_head = entry;
                   m_tail = entry;
                   ++m_count;
+                  m_weight += entry.m_weight;
                   entryAdded(entry);
                }
                else if (m_count == 1 && m_head == entry) {} // there is only the head and I want to promote it, do nothing
@@ -318,6 +407,7 @@ public class LRUCachePolicy
                   m_head.m_prev = entry;
                   m_head = entry;
                   ++m_count;
+                  m_weight += entry.m_weight;
                   entryAdded(entry);
                }
                else if (m_count < m_maxCapacity)
@@ -327,6 +417,7 @@ public class LRUCachePolicy
                   m_head.m_prev = entry;
                   m_head = entry;
                   ++m_count;
+                  m_weight += entry.m_weight;
                   int oldCapacity = m_capacity;
                   ++m_capacity;
                   entryAdded(entry);
@@ -374,10 +465,44 @@ public class LRUCachePolicy
             LRUCacheEntry entry = m_tail;
 
             // the entry will be removed by ageOut
-            ageOut(entry);
+            m_evicting = true;
+            try
+            {
+               ageOut(entry);
+            }
+            finally
+            {
+               m_evicting = false;
+            }
          }
          else {} // cache is not full, do nothing
       }
+      /**
+       * Demotes from the cache the least used entries until an entry of
+       * the given weight fits. <br>
+       * Stops when an entry is not removed by ageOut.
+       * @param weight the weight of the entry to add
+       * @see #demote()
+       */
+      protected void demote(long weight)
+      {
+         while (m_tail != null && m_weight + weight > m_maxWeight)
+         {
+            LRUCacheEntry entry = m_tail;
+
+            // the entry will be removed by ageOut
+            m_evicting = true;
+            try
+            {
+               ageOut(entry);
+            }
+            finally
+            {
+               m_evicting = false;
+            }
+            if (m_tail == entry) {break;}
+         }
+      }
       /**
        * Removes from the cache list the specified entry.
        * @param entry 
@@ -388,6 +513,7 @@ public class LRUCachePolicy
          if (m_count < 1) {throw new IllegalStateException("Trying to remove an entry from an empty cache");}
 
          entry.m_key = entry.m_object = null;
+         m_weight -= entry.m_weight;
          if (m_count == 1)
          {
             m_head = m_tail = null;
@@ -444,6 +570,7 @@ public class LRUCachePolicy
          m_head = null;
          m_tail = null;
          m_count = 0;
+         m_weight = 0;
          for (; entry != null; entry = entry.m_next)
             entryRemoved(entry);
       }
@@ -460,6 +587,20 @@ public class LRUCachePolicy
       }
    }
 
+   /**
+    * Computes the weight of the cached objects.
+    */
+   public interface Weigher
+   {
+      /**
+       * Weigh a cached object, the weight must not change while cached.
+       * @param key the key
+       * @param object the cached object
+       * @return the weight, zero or more
+       */
+      long weigh(Object key, Object object);
+   }
+
    /**
     * Double linked cell used as entry in the cache list.
     */
@@ -475,6 +616,8 @@ public class LRUCachePolicy
       public Object m_object;
       /** The timestamp of the creation */
       public long m_time;
+      /** The weight of the cached object */
+      public long m_weight;
       /**
        * Creates a new double linked cell, storing the object we
        * want to cache and the key that is used to retrieve it.
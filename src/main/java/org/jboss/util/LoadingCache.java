@@ -0,0 +1,372 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache that loads the objects it misses.
+ * <p>
+ * Instead of the get, load on a miss and insert sequence every caller of a
+ * {@link CachePolicy} repeats, {@link #get} loads a missing object with the
+ * {@link Loader} and inserts it into the policy. At most one load per key is
+ * in progress at a time: the threads that miss the same key while it is
+ * loading wait for that load and get its result, so a cold key is loaded
+ * once and the policy never sees duplicate inserts. A loader that gets a
+ * key it is loading, directly or through the loads of other keys, gets an
+ * IllegalStateException instead of waiting for itself.
+ * </p>
+ * <p>
+ * A failed load is not cached by default, the next get loads again. With a
+ * failure lifetime the failure is remembered for that long and the gets of
+ * the key report it without loading.
+ * </p>
+ * <p>
+ * An invalidation while a key is loading keeps that load from caching what
+ * it loaded, the gets that follow load the key again.
+ * </p>
+ * <p>
+ * The policy must be thread safe, a hit only calls its get. A policy that
+ * is not such as the {@link LRUCachePolicy} has to be wrapped in a
+ * {@link SynchronizedCachePolicy}. The policy must be created and started
+ * by the caller. The load times are recorded in the statistics of a
+ * {@link StatisticsCachePolicy}.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class LoadingCache
+{
+   /**
+    * Loads the objects missing from the cache.
+    */
+   public interface Loader
+   {
+      /**
+       * Load an object
+       *
+       * @param key the key
+       * @return the object or null when there is none, which is not cached
+       * @throws Exception for any error
+       */
+      Object load(Object key) throws Exception;
+   }
+
+   /** The purge threshold of the remembered failures */
+   private static final int FAILURE_PURGE_THRESHOLD = 1024;
+
+   /** The cache */
+   private final CachePolicy policy;
+
+   /** The loader */
+   private final Loader loader;
+
+   /** How long failures are remembered in ms */
+   private final long failureLifetime;
+
+   /** The loads in progress */
+   private final ConcurrentHashMap<Object, Load> loads = new ConcurrentHashMap<Object, Load>();
+
+   /** The remembered failures */
+   private final ConcurrentHashMap<Object, Failure> failures = new ConcurrentHashMap<Object, Failure>();
+
+   /** The number of remembered failures above which expired ones are purged */
+   private volatile int purgeThreshold = FAILURE_PURGE_THRESHOLD;
+
+   /**
+    * Create a loading cache that does not remember failures
+    *
+    * @param policy the thread safe cache
+    * @param loader the loader
+    */
+   public LoadingCache(CachePolicy policy, Loader loader)
+   {
+      this(policy, loader, 0);
+   }
+
+   /**
+    * Create a loading cache
+    *
+    * @param policy the thread safe cache
+    * @param loader the loader
+    * @param failureLifetime how long in ms a failed load is reported without
+    *        loading again, zero to not remember failures
+    */
+   public LoadingCache(CachePolicy policy, Loader loader, long failureLifetime)
+   {
+      if (policy == null)
+         throw new IllegalArgumentException("Null policy");
+      if (loader == null)
+         throw new IllegalArgumentException("Null loader");
+      if (failureLifetime < 0)
+         throw new IllegalArgumentException("Negative failure lifetime: " + failureLifetime);
+      this.policy = policy;
+      this.loader = loader;
+      this.failureLifetime = failureLifetime;
+   }
+
+   /**
+    * @return the cache
+    */
+   public CachePolicy getCachePolicy()
+   {
+      return policy;
+   }
+
+   /**
+    * @return how long in ms failures are remembered
+    */
+   public long getFailureLifetime()
+   {
+      return failureLifetime;
+   }
+
+   /**
+    * Get an object, loading it when it is not cached.
+    *
+    * @param key the key
+    * @return the object or null when the loader has none
+    * @throws ExecutionException when the load failed, with the loader's
+    *         exception as the cause
+    * @throws InterruptedException when interrupted waiting for the load of
+    *         another thread
+    * @throws IllegalStateException when called by the loader for a key it
+    *         is loading
+    */
+   public Object get(Object key) throws ExecutionException, InterruptedException
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      Object object = policy.get(key);
+      if (object != null)
+         return object;
+
+      Failure failure = failures.get(key);
+      if (failure != null)
+      {
+         if (failure.isCurrent())
+            throw new ExecutionException(failure.cause);
+         failures.remove(key, failure);
+      }
+
+      Load load = loads.get(key);
+      if (load == null)
+      {
+         Load created = new Load(key);
+         load = loads.putIfAbsent(key, created);
+         if (load == null)
+         {
+            load = created;
+            created.thread = Thread.currentThread();
+            try
+            {
+               created.task.run();
+            }
+            finally
+            {
+               created.thread = null;
+               loads.remove(key, created);
+            }
+         }
+      }
+      // Waiting for our own load would never return
+      if (load.thread == Thread.currentThread())
+         throw new IllegalStateException("Recursive load of " + key);
+      return load.task.get();
+   }
+
+   /**
+    * Get an object without loading it
+    *
+    * @param key the key
+    * @return the object or null when it is not cached
+    */
+   public Object peek(Object key)
+   {
+      return policy.peek(key);
+   }
+
+   /**
+    * Remove an object and any remembered failure to load it, so the next
+    * get loads it again. A load in progress does not cache its result.
+    *
+    * @param key the key
+    */
+   public void invalidate(Object key)
+   {
+      synchronized (policy)
+      {
+         loads.remove(key);
+         failures.remove(key);
+         policy.remove(key);
+      }
+   }
+
+   /**
+    * Remove all the objects and remembered failures. The loads in progress
+    * do not cache their result.
+    */
+   public void invalidateAll()
+   {
+      synchronized (policy)
+      {
+         loads.clear();
+         failures.clear();
+         policy.flush();
+      }
+   }
+
+   /**
+    * Load an object and cache it or remember the failure, called by the
+    * only thread loading the key
+    *
+    * @param key the key
+    * @param load the load
+    * @return the object
+    * @throws Exception for any error
+    */
+   private Object load(Object key, Load load) throws Exception
+   {
+      // Loaded by a thread that has just finished
+      Object object = policy.peek(key);
+      if (object != null)
+         return object;
+      // Or failed to
+      Failure failure = failures.get(key);
+      if (failure != null && failure.isCurrent())
+      {
+         if (failure.cause instanceof Error)
+            throw (Error) failure.cause;
+         throw (Exception) failure.cause;
+      }
+
+      long start = System.nanoTime();
+      try
+      {
+         object = loader.load(key);
+      }
+      catch (Exception e)
+      {
+         remember(key, load, e);
+         throw e;
+      }
+      catch (Error e)
+      {
+         remember(key, load, e);
+         throw e;
+      }
+      finally
+      {
+         if (policy instanceof StatisticsCachePolicy)
+            ((StatisticsCachePolicy) policy).getStatistics().recordLoad(System.nanoTime() - start);
+      }
+      if (object != null)
+      {
+         // Invalidations hold the lock, one since the load started removed it
+         synchronized (policy)
+         {
+            if (loads.get(key) == load && policy.peek(key) == null)
+               policy.insert(key, object);
+         }
+      }
+      return object;
+   }
+
+   /**
+    * Remember a failure unless the key was invalidated while loading
+    *
+    * @param key the key
+    * @param load the load
+    * @param cause the failure
+    */
+   private void remember(Object key, Load load, Throwable cause)
+   {
+      if (failureLifetime == 0)
+         return;
+      synchronized (policy)
+      {
+         if (loads.get(key) != load)
+            return;
+         failures.put(key, new Failure(cause, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(failureLifetime)));
+      }
+      if (failures.size() > purgeThreshold)
+      {
+         for (Iterator<Failure> i = failures.values().iterator(); i.hasNext();)
+         {
+            if (i.next().isCurrent() == false)
+               i.remove();
+         }
+         purgeThreshold = Math.max(FAILURE_PURGE_THRESHOLD, 2 * failures.size());
+      }
+   }
+
+   /**
+    * The load of a key
+    */
+   private class Load implements Callable<Object>
+   {
+      /** The key */
+      final Object key;
+
+      /** The task running the load */
+      final FutureTask<Object> task;
+
+      /** The thread running the load, null when it is not running */
+      volatile Thread thread;
+
+      Load(Object key)
+      {
+         this.key = key;
+         this.task = new FutureTask<Object>(this);
+      }
+
+      public Object call() throws Exception
+      {
+         return load(key, this);
+      }
+   }
+
+   /**
+    * A remembered failure
+    */
+   private static class Failure
+   {
+      /** The failure */
+      final Throwable cause;
+
+      /** When it expires, in System.nanoTime() terms */
+      final long expires;
+
+      Failure(Throwable cause, long expires)
+      {
+         this.cause = cause;
+         this.expires = expires;
+      }
+
+      boolean isCurrent()
+      {
+         return expires - System.nanoTime() > 0;
+      }
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter split into cells on separate cache lines, chosen by thread.
+ * <p>
+ * Each thread adds to one of several cells and reading the counter sums
+ * them, so threads counting concurrently do not contend on one cache line.
+ * Reading is not atomic with respect to the increments.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class StripedCounter
+{
+   /** The longs between two cells, a cache line */
+   static final int SPACING = 8;
+
+   /** The number of cells, a power of two */
+   static final int CELLS;
+
+   static
+   {
+      int cells = 1;
+      while (cells < Runtime.getRuntime().availableProcessors() && cells < 64)
+         cells <<= 1;
+      CELLS = cells;
+   }
+
+   /** The cells, with the padding */
+   private final AtomicLongArray cells = new AtomicLongArray((CELLS + 1) * SPACING);
+
+   /**
+    * Add one
+    */
+   public void increment()
+   {
+      cells.incrementAndGet((cell() + 1) * SPACING);
+   }
+
+   /**
+    * @return the sum of the cells
+    */
+   public long get()
+   {
+      long sum = 0;
+      for (int i = 1; i <= CELLS; ++i)
+         sum += cells.get(i * SPACING);
+      return sum;
+   }
+
+   /**
+    * Set the counter to zero
+    */
+   public void reset()
+   {
+      for (int i = 1; i <= CELLS; ++i)
+         cells.set(i * SPACING, 0);
+   }
+
+   public String toString()
+   {
+      return String.valueOf(get());
+   }
+
+   /**
+    * @return the cell of the current thread
+    */
+   static int cell()
+   {
+      return (int) Thread.currentThread().getId() & (CELLS - 1);
+   }
+}
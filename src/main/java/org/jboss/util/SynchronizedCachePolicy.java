@@ -26,39 +26,75 @@ package org.jboss.util;
  * @see CachePolicy
  */
 public final class SynchronizedCachePolicy
-   implements CachePolicy
+   implements StatisticsCachePolicy
 {
 
    // Attributes ----------------------------------------------------
 
    private final CachePolicy delegate;
 
+   /** The statistics, those of the delegate when it keeps them */
+   private final CacheStatistics statistics;
+
+   /** Whether the statistics are kept here */
+   private final boolean counting;
+
    // Constructors --------------------------------------------------
 
    public SynchronizedCachePolicy(CachePolicy delegate)
    {
       this.delegate = delegate;
+      if (delegate instanceof StatisticsCachePolicy)
+      {
+         statistics = ((StatisticsCachePolicy) delegate).getStatistics();
+         counting = false;
+      }
+      else
+      {
+         // Evictions are not visible from here
+         statistics = new CacheStatistics();
+         counting = true;
+      }
+   }
+
+   // StatisticsCachePolicy implementation --------------------------
+
+   public CacheStatistics getStatistics()
+   {
+      return statistics;
    }
 
    // CachePolicy implementation ------------------------------------
 
    synchronized public Object get(Object key)
    {
-      return delegate.get(key);
+      Object object = delegate.get(key);
+      if (counting)
+      {
+         if (object != null)
+            statistics.recordHit();
+         else
+            statistics.recordMiss();
+      }
+      return object;
    }
 
    synchronized public Object peek(Object key)
    {
-      return delegate.get(key);
+      return delegate.peek(key);
    }
 
    synchronized public void insert(Object key, Object object)
    {
       delegate.insert(key, object);
+      if (counting)
+         statistics.recordInsert();
    }
 
    synchronized public void remove(Object key)
    {
+      if (counting && delegate.peek(key) != null)
+         statistics.recordRemoval();
       delegate.remove(key);
    }
 
@@ -38,8 +38,13 @@ import org.jboss.util.loading.ContextClassLoaderSwitcher;
     be wrapped in a DefaultTimedEntry and will expire without the possibility of
     refresh after getDefaultLifetime() seconds.
 
-    This is a lazy cache policy in that objects are not checked for expiration
-    until they are accessed.
+    Objects are checked for expiration when they are accessed. Objects that
+    are not accessed are removed once they expire: the cache files each entry
+    in a timing wheel bucket by its expiration time, and every resolution tick
+    only checks the entries of the buckets that became due rather than the
+    whole store. In a thread safe cache the timer thread removes them, each
+    removal only briefly holding the store; otherwise, as the store must not
+    be touched by another thread, the next insert does.
 
     @author <a href="mailto:Scott.Stark@jboss.org">Scott Stark</a>.
     @version $Revision$
@@ -47,7 +52,7 @@ import org.jboss.util.loading.ContextClassLoaderSwitcher;
 @SuppressWarnings("unchecked")
 public class TimedCachePolicy
    extends TimerTask /* A legacy base class that is no longer used as this level */
-   implements CachePolicy
+   implements StatisticsCachePolicy
 {
    /** 
     * Name of system property that this class consults to determine what
@@ -173,6 +178,20 @@ public class TimedCachePolicy
    /** */
    protected ResolutionTimer theTimer;
 
+   /** The number of buckets of the expiration wheel */
+   private static final int WHEEL_SIZE = 512;
+
+   /** The expiration wheel, the list head of the entries to check in each tick */
+   private Expiry[] wheel;
+   /** The filed wheel entries by key */
+   private Map<Object, Expiry> expiries;
+   /** The length of a wheel tick in ms */
+   private long tickMillis;
+   /** The last tick checked */
+   private long lastTick;
+   /** The statistics of this cache */
+   private final CacheStatistics statistics = new CacheStatistics();
+
    /** Creates a new TimedCachePolicy with a default entry lifetime of 30 mins
        that does not synchronized access to its policy store and uses a 60
        second resolution.
@@ -222,6 +241,12 @@ public class TimedCachePolicy
       else
          entryMap = new HashMap();
       now = System.currentTimeMillis();
+      wheel = new Expiry[WHEEL_SIZE];
+      for (int i = 0; i < WHEEL_SIZE; ++i)
+         wheel[i] = new Expiry(null, null, 0);
+      expiries = new HashMap<Object, Expiry>();
+      tickMillis = 1000L * resolution;
+      lastTick = now / tickMillis;
    }
    /** Schedules this with the class resolutionTimer Timer object for
        execution every resolution seconds.
@@ -242,6 +267,7 @@ public class TimedCachePolicy
     */
    public void destroy() 
    {
+      clearWheel();
       entryMap.clear();
    }
 
@@ -255,7 +281,10 @@ public class TimedCachePolicy
    {
       TimedEntry entry = (TimedEntry) entryMap.get(key);
       if( entry == null )
+      {
+         statistics.recordMiss();
          return null;
+      }
 
       if( entry.isCurrent(now) == false )
       {   // Try to refresh the entry
@@ -263,9 +292,13 @@ public class TimedCachePolicy
          {   // Failed, remove the entry and return null
             entry.destroy();
             entryMap.remove(key);
+            unschedule(key, entry);
+            statistics.recordExpiry();
+            statistics.recordMiss();
             return null;
          }
       }
+      statistics.recordHit();
       Object value = entry.getValue();
       return value;
    }
@@ -305,6 +338,10 @@ public class TimedCachePolicy
       }
       entry.init(now);
       entryMap.put(key, entry);
+      schedule(new Expiry(key, entry, deadline(entry)));
+      statistics.recordInsert();
+      if( threadSafe == false )
+         expire();
    }
    /** Remove the entry associated with key and call destroy on the entry
     if found.
@@ -313,13 +350,19 @@ public class TimedCachePolicy
    {
       TimedEntry entry = (TimedEntry) entryMap.remove(key);
       if( entry != null )
+      {
+         unschedule(key, entry);
          entry.destroy();
+         statistics.recordRemoval();
+      }
    }
    /** Remove all entries from the cache.
     */
    public void flush() 
    {
       Map tmpMap = null;
+      // Entries inserted from now on are either flushed or filed again
+      clearWheel();
       synchronized( this )
       {
          tmpMap = entryMap;
@@ -335,6 +378,7 @@ public class TimedCachePolicy
       {
          TimedEntry entry = (TimedEntry) iter.next();
          entry.destroy();
+         statistics.recordRemoval();
       }
       tmpMap.clear();
    }
@@ -366,6 +410,14 @@ public class TimedCachePolicy
       return validKeys;
    }
 
+   /** Get the statistics of the cache.
+       @return the statistics
+    */
+   public CacheStatistics getStatistics()
+   {
+      return statistics;
+   }
+
    /** Get the default lifetime of cache entries.
     @return default lifetime in seconds of cache entries.
     */
@@ -410,11 +462,14 @@ public class TimedCachePolicy
    }
 
    /** The TimerTask run method. It updates the cache time to the
-       current system time.
+       current system time and, in a thread safe cache, removes the entries
+       that expired.
    */
    public void run()
    {
       now = System.currentTimeMillis();
+      if( threadSafe )
+         expire();
    }
 
    /** Get the cache time.
@@ -435,6 +490,193 @@ public class TimedCachePolicy
       return entry;
    }
 
+   /** Remove the entries of the wheel buckets due since the last check
+       that have expired.
+   */
+   private void expire()
+   {
+      if( wheel == null )
+         return;
+      long tick = now / tickMillis;
+      List<Expiry> due = null;
+      synchronized( wheel )
+      {
+         if( tick <= lastTick )
+            return;
+         // A full turn checks every bucket
+         long first = Math.max(lastTick + 1, tick - WHEEL_SIZE + 1);
+         for( long t = first; t <= tick; ++t )
+         {
+            Expiry bucket = wheel[(int) (t & (WHEEL_SIZE - 1))];
+            for( Expiry expiry = bucket.next; expiry != bucket; )
+            {
+               Expiry next = expiry.next;
+               if( expiry.tick <= tick )
+               {
+                  unlink(expiry);
+                  if( due == null )
+                     due = new ArrayList<Expiry>();
+                  due.add(expiry);
+               }
+               expiry = next;
+            }
+         }
+         lastTick = tick;
+      }
+      if( due == null )
+         return;
+
+      for( Expiry expiry : due )
+      {
+         Map map = entryMap;
+         TimedEntry entry = expiry.entry;
+         if( map.get(expiry.key) != entry )
+         {
+            forget(expiry);
+            continue;
+         }
+         // Try to refresh the entry as get() does
+         if( entry.isCurrent(now) || entry.refresh() )
+         {   // Refreshed or a lifetime we don't know, check it again later
+            expiry.deadline = deadline(entry);
+            schedule(expiry);
+            continue;
+         }
+         forget(expiry);
+         boolean removed = false;
+         synchronized( map )
+         {
+            if( map.get(expiry.key) == entry )
+            {
+               map.remove(expiry.key);
+               removed = true;
+            }
+         }
+         if( removed )
+         {
+            entry.destroy();
+            statistics.recordExpiry();
+         }
+      }
+   }
+
+   /** File an entry in the bucket of its expiration time, replacing the
+       entry filed for the same key.
+    * @param expiry the entry
+   */
+   private void schedule(Expiry expiry)
+   {
+      if( wheel == null )
+         return;
+      synchronized( wheel )
+      {
+         Expiry previous = expiries.put(expiry.key, expiry);
+         if( previous != null && previous != expiry )
+            unlink(previous);
+         expiry.tick = Math.max((expiry.deadline + tickMillis - 1) / tickMillis, lastTick + 1);
+         Expiry bucket = wheel[(int) (expiry.tick & (WHEEL_SIZE - 1))];
+         expiry.prev = bucket.prev;
+         expiry.next = bucket;
+         bucket.prev.next = expiry;
+         bucket.prev = expiry;
+      }
+   }
+
+   /** Take the entry of a removed key out of the wheel, so removing and
+       inserting keys does not grow it.
+    * @param key the key
+    * @param entry the removed entry
+   */
+   private void unschedule(Object key, TimedEntry entry)
+   {
+      if( wheel == null )
+         return;
+      synchronized( wheel )
+      {
+         Expiry expiry = expiries.get(key);
+         if( expiry != null && expiry.entry == entry )
+         {
+            expiries.remove(key);
+            unlink(expiry);
+         }
+      }
+   }
+
+   /** Drop an entry taken out of the wheel that is not filed again.
+    * @param expiry the entry
+   */
+   private void forget(Expiry expiry)
+   {
+      synchronized( wheel )
+      {
+         if( expiries.get(expiry.key) == expiry )
+            expiries.remove(expiry.key);
+      }
+   }
+
+   /** Unlink an entry from its bucket, the wheel must be locked.
+    * @param expiry the entry
+   */
+   private void unlink(Expiry expiry)
+   {
+      if( expiry.next == null )
+         return;
+      expiry.prev.next = expiry.next;
+      expiry.next.prev = expiry.prev;
+      expiry.prev = null;
+      expiry.next = null;
+   }
+
+   /** Remove all the entries from the wheel.
+   */
+   private void clearWheel()
+   {
+      if( wheel == null )
+         return;
+      synchronized( wheel )
+      {
+         for( int i = 0; i < WHEEL_SIZE; ++i )
+            wheel[i] = new Expiry(null, null, 0);
+         expiries.clear();
+      }
+   }
+
+   /** Get when to check an entry for expiration. The expiration time of
+       entries that are not a DefaultTimedEntry is unknown, they are checked
+       every default lifetime.
+    * @param entry the entry
+       @return the time to check the entry
+   */
+   private long deadline(TimedEntry entry)
+   {
+      if( entry instanceof DefaultTimedEntry )
+         return ((DefaultTimedEntry) entry).expirationTime;
+      return now + Math.max(1000L * defaultLifetime, tickMillis);
+   }
+
+   /** An entry of the expiration wheel. Each bucket is a circular list
+       whose head has no key.
+   */
+   private static class Expiry
+   {
+      final Object key;
+      final TimedEntry entry;
+      long deadline;
+      long tick;
+      /** The neighbours in the bucket, null when not filed */
+      Expiry prev;
+      Expiry next;
+
+      Expiry(Object key, TimedEntry entry, long deadline)
+      {
+         this.key = key;
+         this.entry = entry;
+         this.deadline = deadline;
+         if( key == null )
+            prev = next = this;
+      }
+   }
+
    /** The default implementation of TimedEntry used to wrap non-TimedEntry
        objects inserted into the cache.
    */
@@ -0,0 +1,703 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util;
+
+import java.util.HashMap;
+
+/**
+ * A Window TinyLFU cache policy.
+ * <p>
+ * New objects enter a small LRU window, about one percent of the capacity.
+ * The least recently used object of the window is then only admitted into
+ * the main cache if it has been used more often than the least recently
+ * used object of the main cache, which it would evict; otherwise it is
+ * aged out itself. How often keys have been used is estimated by a
+ * count-min sketch of four bit counters that are halved periodically, so
+ * old popularity fades. The main cache is a segmented LRU: objects used
+ * again move from its probation segment to its protected segment.
+ * </p>
+ * <p>
+ * A scan of objects used once then only ever evicts the window and the
+ * objects in probation, and leaves the frequently used ones cached, where
+ * the {@link LRUCachePolicy} would lose all of them.
+ * </p>
+ * <p>
+ * Like the {@link LRUCachePolicy} this policy is not thread safe, wrap it
+ * in a {@link SynchronizedCachePolicy} to share it between threads.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class TinyLFUCachePolicy
+   implements StatisticsCachePolicy
+{
+   // Constants -----------------------------------------------------
+
+   /** The default maximum capacity */
+   public static final int DEFAULT_CAPACITY = 1000;
+
+   /** The percentage of the capacity for the window */
+   private static final int WINDOW_PERCENT = 1;
+
+   /** The percentage of the main cache for the protected segment */
+   private static final int PROTECTED_PERCENT = 80;
+
+   /** The segment of new entries */
+   private static final int WINDOW = 0;
+
+   /** The segment of entries admitted into the main cache */
+   private static final int PROBATION = 1;
+
+   /** The segment of entries used again in the main cache */
+   private static final int PROTECTED = 2;
+
+   // Attributes ----------------------------------------------------
+
+   /** The maximum number of cached objects */
+   private int maxCapacity = DEFAULT_CAPACITY;
+
+   /** The cached objects */
+   private HashMap<Object, CacheEntry> map;
+
+   /** The window segment */
+   private Segment window;
+
+   /** The probation segment */
+   private Segment probation;
+
+   /** The protected segment */
+   private Segment protectedSegment;
+
+   /** The maximum size of the window */
+   private int maxWindow;
+
+   /** The maximum size of the protected segment */
+   private int maxProtected;
+
+   /** The frequencies of the keys */
+   private FrequencySketch sketch;
+
+   /** The statistics */
+   private final CacheStatistics statistics = new CacheStatistics();
+
+   /** Whether the entry removed is aged out to make room */
+   private boolean evicting;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Creates a TinyLFU cache policy object with the default capacity,
+    * for containers that create the policy by class name.
+    *
+    * @see #setMaxCapacity
+    * @see #create
+    */
+   public TinyLFUCachePolicy()
+   {
+   }
+
+   /**
+    * Creates a TinyLFU cache policy object with the specified maximum
+    * capacity.
+    *
+    * @param max the maximum number of cached objects
+    * @see #create
+    */
+   public TinyLFUCachePolicy(int max)
+   {
+      setMaxCapacity(max);
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the maximum number of cached objects
+    */
+   public int getMaxCapacity()
+   {
+      return maxCapacity;
+   }
+
+   /**
+    * Set the maximum number of cached objects, takes effect when the
+    * cache is {@link #create}d.
+    *
+    * @param max the maximum number of cached objects
+    */
+   public void setMaxCapacity(int max)
+   {
+      if (max < 1)
+         throw new IllegalArgumentException("Illegal cache capacity: " + max);
+      maxCapacity = max;
+   }
+
+   public CacheStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   /**
+    * Estimate how often a key has been used recently
+    *
+    * @param key the key
+    * @return the estimated frequency, up to 15
+    */
+   public int frequency(Object key)
+   {
+      return sketch.frequency(key);
+   }
+
+   // Service implementation ----------------------------------------
+
+   /**
+    * Initializes the cache, creating all required objects.
+    *
+    * @see #start
+    * @see #destroy
+    */
+   public void create()
+   {
+      map = new HashMap<Object, CacheEntry>();
+      window = new Segment();
+      probation = new Segment();
+      protectedSegment = new Segment();
+      maxWindow = Math.max(1, maxCapacity * WINDOW_PERCENT / 100);
+      maxProtected = (maxCapacity - maxWindow) * PROTECTED_PERCENT / 100;
+      sketch = new FrequencySketch(maxCapacity);
+   }
+
+   /**
+    * Starts this cache that is now ready to be used.
+    *
+    * @see #create
+    * @see #stop
+    */
+   public void start()
+   {
+   }
+
+   /**
+    * Stops this cache thus {@link #flush}ing all cached objects. <br>
+    * After this method is called, a call to {@link #start} will restart the cache.
+    *
+    * @see #start
+    * @see #destroy
+    */
+   public void stop()
+   {
+      if (map != null)
+         flush();
+   }
+
+   /**
+    * Destroys the cache that is now unusable. <br>
+    * To have it working again it must be re-{@link #create}ed and
+    * re-{@link #start}ed.
+    *
+    * @see #create
+    */
+   public void destroy()
+   {
+      if (map == null)
+         return;
+      map.clear();
+      window.clear();
+      probation.clear();
+      protectedSegment.clear();
+      sketch.clear();
+   }
+
+   // CachePolicy implementation ------------------------------------
+
+   public Object get(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      sketch.increment(key);
+      CacheEntry entry = map.get(key);
+      if (entry == null)
+      {
+         statistics.recordMiss();
+         cacheMiss();
+         return null;
+      }
+      statistics.recordHit();
+      onHit(entry);
+      return entry.object;
+   }
+
+   public Object peek(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      CacheEntry entry = map.get(key);
+      return entry == null ? null : entry.object;
+   }
+
+   public void insert(Object key, Object object)
+   {
+      if (object == null)
+         throw new IllegalArgumentException("Cannot insert a null object in the cache");
+      if (key == null)
+         throw new IllegalArgumentException("Cannot insert an object in the cache with null key");
+      if (map.containsKey(key))
+         throw new IllegalStateException("Attempt to put in the cache an object that is already there");
+
+      sketch.increment(key);
+      CacheEntry entry = createCacheEntry(key, object);
+      map.put(key, entry);
+      window.addFirst(entry, WINDOW);
+      statistics.recordInsert();
+      evict();
+   }
+
+   public void remove(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Removing an object using a null key");
+
+      CacheEntry entry = map.remove(key);
+      if (entry != null)
+      {
+         segment(entry).remove(entry);
+         if (evicting)
+            statistics.recordEviction();
+         else
+            statistics.recordRemoval();
+      }
+   }
+
+   public void flush()
+   {
+      flush(window);
+      flush(probation);
+      flush(protectedSegment);
+   }
+
+   public int size()
+   {
+      return map.size();
+   }
+
+   // Protected -----------------------------------------------------
+
+   /**
+    * Callback method called when the cache algorithm ages out of the cache
+    * the given entry. <br>
+    * The implementation here is removing the given entry from the cache,
+    * an entry that is not removed is treated as used again.
+    *
+    * @param entry the entry evicted
+    */
+   protected void ageOut(CacheEntry entry)
+   {
+      remove(entry.key);
+   }
+
+   /**
+    * Callback method called when a cache miss happens.
+    */
+   protected void cacheMiss()
+   {
+   }
+
+   /**
+    * Factory method for cache entries
+    *
+    * @param key the key
+    * @param value the cached object
+    * @return the entry
+    */
+   protected CacheEntry createCacheEntry(Object key, Object value)
+   {
+      return new CacheEntry(key, value);
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Move an entry used again
+    *
+    * @param entry the entry
+    */
+   private void onHit(CacheEntry entry)
+   {
+      switch (entry.segment)
+      {
+         case WINDOW:
+            window.moveToFirst(entry);
+            break;
+         case PROBATION:
+            probation.remove(entry);
+            protectedSegment.addFirst(entry, PROTECTED);
+            // Demote the least recently used protected entries
+            while (protectedSegment.count > maxProtected)
+            {
+               CacheEntry demoted = protectedSegment.tail;
+               protectedSegment.remove(demoted);
+               probation.addFirst(demoted, PROBATION);
+            }
+            break;
+         default:
+            protectedSegment.moveToFirst(entry);
+      }
+   }
+
+   /**
+    * Move the entries overflowing the window into the main cache when they
+    * are used more often than the entries they evict, age them out otherwise
+    */
+   private void evict()
+   {
+      while (window.count > maxWindow)
+      {
+         CacheEntry candidate = window.tail;
+         window.remove(candidate);
+         if (map.size() <= maxCapacity)
+         {
+            probation.addFirst(candidate, PROBATION);
+            continue;
+         }
+
+         CacheEntry victim = probation.tail;
+         if (victim == null)
+            victim = protectedSegment.tail;
+         if (victim == null || sketch.frequency(candidate.key) > sketch.frequency(victim.key))
+         {
+            probation.addFirst(candidate, PROBATION);
+            if (victim != null)
+            {
+               ageOut(victim, true);
+               // The callback kept it, try another victim next time
+               if (map.get(victim.key) == victim)
+                  segment(victim).moveToFirst(victim);
+            }
+         }
+         else
+         {
+            // Keep it in probation if the callback does not remove it
+            probation.addFirst(candidate, PROBATION);
+            ageOut(candidate, true);
+         }
+      }
+   }
+
+   /**
+    * Age out an entry
+    *
+    * @param entry the entry
+    * @param evicting whether it makes room for another
+    */
+   private void ageOut(CacheEntry entry, boolean evicting)
+   {
+      this.evicting = evicting;
+      try
+      {
+         ageOut(entry);
+      }
+      finally
+      {
+         this.evicting = false;
+      }
+   }
+
+   /**
+    * Age out all the entries of a segment
+    *
+    * @param segment the segment
+    */
+   private void flush(Segment segment)
+   {
+      CacheEntry[] entries = new CacheEntry[segment.count];
+      int i = 0;
+      for (CacheEntry entry = segment.tail; entry != null; entry = entry.prev)
+         entries[i++] = entry;
+      for (i = 0; i < entries.length; ++i)
+      {
+         // An earlier callback may have removed it
+         if (map.get(entries[i].key) == entries[i])
+            ageOut(entries[i]);
+      }
+   }
+
+   /**
+    * @param entry the entry
+    * @return the segment of the entry
+    */
+   private Segment segment(CacheEntry entry)
+   {
+      switch (entry.segment)
+      {
+         case WINDOW:
+            return window;
+         case PROBATION:
+            return probation;
+         default:
+            return protectedSegment;
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * An entry of the cache.
+    */
+   public static class CacheEntry
+   {
+      /** The key */
+      final Object key;
+
+      /** The cached object */
+      final Object object;
+
+      /** The more recently used entry of the segment */
+      CacheEntry prev;
+
+      /** The less recently used entry of the segment */
+      CacheEntry next;
+
+      /** The segment */
+      int segment;
+
+      /**
+       * Create a new entry
+       *
+       * @param key the key
+       * @param object the cached object
+       */
+      protected CacheEntry(Object key, Object object)
+      {
+         this.key = key;
+         this.object = object;
+      }
+
+      /**
+       * @return the key
+       */
+      public Object getKey()
+      {
+         return key;
+      }
+
+      /**
+       * @return the cached object
+       */
+      public Object getObject()
+      {
+         return object;
+      }
+
+      public String toString()
+      {
+         return "key: " + key + ", object: " + (object == null ? "null" : Integer.toHexString(object.hashCode()));
+      }
+   }
+
+   /**
+    * A segment of entries in LRU order
+    */
+   private static class Segment
+   {
+      /** The most recently used entry */
+      CacheEntry head;
+
+      /** The least recently used entry */
+      CacheEntry tail;
+
+      /** The number of entries */
+      int count;
+
+      /**
+       * Add an entry as the most recently used one
+       *
+       * @param entry the entry
+       * @param segment the id of this segment
+       */
+      void addFirst(CacheEntry entry, int segment)
+      {
+         entry.segment = segment;
+         entry.prev = null;
+         entry.next = head;
+         if (head != null)
+            head.prev = entry;
+         head = entry;
+         if (tail == null)
+            tail = entry;
+         ++count;
+      }
+
+      /**
+       * Make an entry of this segment the most recently used one
+       *
+       * @param entry the entry
+       */
+      void moveToFirst(CacheEntry entry)
+      {
+         if (head == entry)
+            return;
+         remove(entry);
+         addFirst(entry, entry.segment);
+      }
+
+      /**
+       * Remove an entry of this segment
+       *
+       * @param entry the entry
+       */
+      void remove(CacheEntry entry)
+      {
+         if (entry.prev == null)
+            head = entry.next;
+         else
+            entry.prev.next = entry.next;
+         if (entry.next == null)
+            tail = entry.prev;
+         else
+            entry.next.prev = entry.prev;
+         entry.prev = entry.next = null;
+         --count;
+      }
+
+      void clear()
+      {
+         head = tail = null;
+         count = 0;
+      }
+   }
+
+   /**
+    * A count-min sketch of four bit counters. Each key increments one
+    * counter in each of four rows, its frequency is the smallest of them.
+    * Once there have been ten increments per cached object all the
+    * counters are halved.
+    */
+   private static class FrequencySketch
+   {
+      /** The seeds of the rows */
+      private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+      /** The four bit counters, sixteen per long */
+      private final long[] table;
+
+      /** The number of increments before aging */
+      private final int sampleSize;
+
+      /** The number of increments since aging */
+      private int size;
+
+      /**
+       * Create a sketch
+       *
+       * @param capacity the maximum number of cached objects
+       */
+      FrequencySketch(int capacity)
+      {
+         int length = 1;
+         while (length < capacity / 4 && length < (1 << 26))
+            length <<= 1;
+         table = new long[length];
+         sampleSize = 10 * capacity;
+      }
+
+      /**
+       * @param key the key
+       * @return the estimated frequency of the key
+       */
+      int frequency(Object key)
+      {
+         int hash = spread(key.hashCode());
+         int frequency = 15;
+         for (int i = 0; i < 4; ++i)
+         {
+            long h = index(hash, i);
+            int count = (int) ((table[(int) (h & (table.length - 1))] >>> offset(h)) & 0xfL);
+            frequency = Math.min(frequency, count);
+         }
+         return frequency;
+      }
+
+      /**
+       * Count a use of the key
+       *
+       * @param key the key
+       */
+      void increment(Object key)
+      {
+         int hash = spread(key.hashCode());
+         boolean added = false;
+         for (int i = 0; i < 4; ++i)
+         {
+            long h = index(hash, i);
+            int index = (int) (h & (table.length - 1));
+            int offset = offset(h);
+            if (((table[index] >>> offset) & 0xfL) != 0xfL)
+            {
+               table[index] += 1L << offset;
+               added = true;
+            }
+         }
+         if (added && ++size >= sampleSize)
+            age();
+      }
+
+      /**
+       * Halve all the counters
+       */
+      void age()
+      {
+         for (int i = 0; i < table.length; ++i)
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+         size /= 2;
+      }
+
+      void clear()
+      {
+         for (int i = 0; i < table.length; ++i)
+            table[i] = 0;
+         size = 0;
+      }
+
+      /**
+       * @param hash the spread hash of the key
+       * @param row the row
+       * @return the hash of the key for the row
+       */
+      private static long index(int hash, int row)
+      {
+         long h = (hash + SEEDS[row]) * SEEDS[row];
+         return h ^ (h >>> 32);
+      }
+
+      /**
+       * @param h the hash of the key for a row
+       * @return the bit offset of the counter in its long
+       */
+      private static int offset(long h)
+      {
+         return (int) ((h >>> 40) & 0xfL) << 2;
+      }
+
+      private static int spread(int hash)
+      {
+         hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+         return (hash >>> 16) ^ hash;
+      }
+   }
+}
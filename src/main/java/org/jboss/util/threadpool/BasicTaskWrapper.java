@@ -78,6 +78,15 @@ public class BasicTaskWrapper implements TaskWrapper
    /** The thread */
    private Thread runThread;
 
+   /** The statistics of the pool running the task */
+   private ThreadPoolStatistics statistics;
+
+   /** The nanoTime the task was queued */
+   private long queuedTime;
+
+   /** The fair share tenant that first queued the task */
+   private String tenant;
+
    /**
     * Create a task wrapper without a task
     */
@@ -223,6 +232,8 @@ public class BasicTaskWrapper implements TaskWrapper
       long runTime = getElapsedTime();
       if (startTimeout > 0l && runTime >= startTimeout)
       {
+         if (statistics != null)
+            statistics.startTimeout();
          taskRejected(new StartTimeoutException("Start Timeout exceeded for task " + taskString));
          return;
       }
@@ -248,6 +259,8 @@ public class BasicTaskWrapper implements TaskWrapper
          taskRejected(new TaskStoppedException("Task stopped for task " + taskString));
          return;
       }
+      if (statistics != null)
+         statistics.queueWait(System.nanoTime() - queuedTime);
 
       // Run the task
       Throwable throwable = null;
@@ -290,6 +303,56 @@ public class BasicTaskWrapper implements TaskWrapper
       this.completionTimeout = task.getCompletionTimeout();
    }
 
+   /**
+    * Set the statistics of the pool the task is queued to
+    *
+    * @param statistics the statistics
+    */
+   void setStatistics(ThreadPoolStatistics statistics)
+   {
+      this.statistics = statistics;
+      this.queuedTime = System.nanoTime();
+   }
+
+   /**
+    * @return the fair share tenant that first queued the task, null before
+    */
+   String getTenant()
+   {
+      return tenant;
+   }
+
+   /**
+    * Set the fair share tenant that first queued the task
+    *
+    * @param tenant the tenant
+    */
+   void setTenant(String tenant)
+   {
+      this.tenant = tenant;
+   }
+
+   /**
+    * @return the task
+    */
+   Task getTask()
+   {
+      return task;
+   }
+
+   /**
+    * Whether the task has been told to stop
+    *
+    * @return true when stopped
+    */
+   boolean isStopped()
+   {
+      synchronized (stateLock)
+      {
+         return state == TASK_STOPPED;
+      }
+   }
+
    /**
     * Notify the task it has been accepted
     *
@@ -17,15 +17,17 @@
  */
 package org.jboss.util.threadpool;
 
-import java.security.AccessController;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -33,9 +35,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.logging.Logger;
-import org.jboss.util.collection.WeakValueHashMap;
 import org.jboss.util.loading.ClassLoaderSource;
-import org.jboss.util.loading.ContextClassLoaderSwitcher;
 
 
 /**
@@ -54,9 +54,6 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
    /** The jboss thread group */
    private static final ThreadGroup JBOSS_THREAD_GROUP = new ThreadGroup("JBoss Pooled Threads");
 
-   /** The thread groups */
-   private static final Map threadGroups = Collections.synchronizedMap(new WeakValueHashMap());
-
    /** The internal pool number */
    private static final AtomicInteger lastPoolNumber = new AtomicInteger(0);
 
@@ -77,25 +74,61 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
    private ThreadPoolExecutor executor;
 
    /** The queue */
-   private LinkedBlockingQueue queue;
+   private BatchBlockingQueue<Runnable> queue;
 
-   /** The thread group */
-   private ThreadGroup threadGroup;
-   
-   /** Source for the thread contrext classloader to assign to threads */
-   private ClassLoaderSource classLoaderSource;
+   /** Whether the queue orders the tasks by priority */
+   private boolean priorityQueue;
 
-   private ContextClassLoaderSwitcher classLoaderSwitcher;
-   
-   /** The last thread number */
-   private AtomicInteger lastThreadNumber = new AtomicInteger(0);
+   /** The wait in MS that raises a queued task one priority level */
+   private long priorityAgingInterval;
+
+   /** Whether the queue shares the pool between tenants */
+   private boolean fairShareQueue;
+
+   /** The tenant settings of the fair share queue */
+   private final FairShareTaskQueue.Settings fairShareSettings = new FairShareTaskQueue.Settings();
+
+   /** The thread group, pool thread and context classloader management */
+   private final ThreadPoolSupport support;
 
    /** Has the pool been stopped? */
    private AtomicBoolean stopped = new AtomicBoolean(false);
-   /** The Heap<TimeoutInfo> of tasks ordered by their completion timeout */
-   private PriorityBlockingQueue<TimeoutInfo> tasksWithTimeouts = new PriorityBlockingQueue<TimeoutInfo>(13);
    /** The task completion timeout monitor runnable */
-   private TimeoutMonitor timeoutTask;
+   private CompletionTimeoutMonitor timeoutTask;
+   /** The resolution of the task completion timeout monitor in MS */
+   private long completionTimeoutResolution = CompletionTimeoutMonitor.DEFAULT_RESOLUTION;
+   /** The latency and saturation statistics */
+   private final ThreadPoolStatistics statistics = new ThreadPoolStatistics();
+   /** The nanoTime each pool thread started its current task */
+   private final ThreadLocal<long[]> executionStart = new ThreadLocal<long[]>()
+   {
+      protected long[] initialValue()
+      {
+         return new long[1];
+      }
+   };
+   /** The thread per task executor when running on virtual threads */
+   private volatile VirtualThreadExecutor virtualExecutor;
+   /** The maximum number of tasks running at once on virtual threads */
+   private volatile int virtualThreadConcurrency = 10000;
+   /** The adaptive pool size controller, null unless adaptive sizing is on */
+   private volatile PoolSizeController sizeController;
+   /** The smallest size adaptive sizing shrinks the pool to */
+   private volatile int adaptiveMinimumPoolSize = 1;
+   /** The largest size adaptive sizing grows the pool to */
+   private volatile int adaptiveMaximumPoolSize = 100;
+   /** The adaptive sizing sample interval in MS */
+   private volatile long adaptiveSampleInterval = 1000;
+   /** The queue wait time in MS above which adaptive sizing grows the pool */
+   private volatile long adaptiveTargetQueueWaitTime = 10;
+   /** The system load per processor above which adaptive sizing does not grow the pool */
+   private volatile double adaptiveMaximumCpuLoad = 0.9;
+   /** The task CPU time and allocation profiler, null unless task profiling is on */
+   private volatile TaskProfiler profiler;
+   /** The execution time in MS above which a profiled task is slow */
+   private volatile long slowTaskThreshold;
+   /** The number of task classes reported by the profiler */
+   private volatile int topTaskCount = 10;
    /** The trace level logging flag */
    private boolean trace;
 
@@ -134,16 +167,16 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
       trace = log.isTraceEnabled();
       ThreadFactory factory = new ThreadPoolThreadFactory();
 
-      queue = new LinkedBlockingQueue(1024);
+      queue = new BatchBlockingQueue<Runnable>(1024);
 
       
       executor = new RestoreTCCLThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS, queue);
       executor.setThreadFactory(factory);
-      executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+      executor.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy(), BlockingMode.ABORT));
       
       poolNumber = lastPoolNumber.incrementAndGet();
       setName(name);
-      this.threadGroup = threadGroup;
+      support = new ThreadPoolSupport(threadGroup, log);
    }
 
    // Public --------------------------------------------------------
@@ -154,19 +187,31 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
    {
       log.debug("stop, immediate="+immediate);
       stopped.set(true);
+      // The batches are queued directly, refuse them before the queue is drained
+      queue.close();
       if (immediate)
          executor.shutdownNow();
       else
          executor.shutdown();
+      VirtualThreadExecutor ve = virtualExecutor;
+      if (ve != null)
+         ve.shutdown(immediate);
+      PoolSizeController controller = sizeController;
+      if (controller != null)
+         controller.shutdown();
    }
 
    public void waitForTasks() throws InterruptedException
    {
-      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      waitForTasks(Long.MAX_VALUE);
    }
    public void waitForTasks(long maxWaitTime) throws InterruptedException
    {
-      executor.awaitTermination(maxWaitTime, TimeUnit.MILLISECONDS);
+      VirtualThreadExecutor ve = virtualExecutor;
+      if (ve != null)
+         ve.awaitTermination(maxWaitTime);
+      else
+         executor.awaitTermination(maxWaitTime, TimeUnit.MILLISECONDS);
    }
 
    public void runTaskWrapper(TaskWrapper wrapper)
@@ -180,15 +225,14 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
       }
 
       wrapper.acceptTask();
+      statistics.queued(wrapper);
 
       long completionTimeout = wrapper.getTaskCompletionTimeout();
-      TimeoutInfo info;
       if(completionTimeout > 0)
       {
          checkTimeoutMonitor();
-         // Install the task in the
-         info = new TimeoutInfo(wrapper, completionTimeout);
-         tasksWithTimeouts.add(info);
+         // Install the task in the timing wheel, the check is cancelled once it has run
+         wrapper = timeoutTask.add(wrapper, completionTimeout);
       }
       int waitType = wrapper.getTaskWaitType();
       switch (waitType)
@@ -223,9 +267,100 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
       runTaskWrapper(wrapper);      
    }
 
+   /**
+    * Submit a callable
+    *
+    * @param callable the callable
+    * @return the future of the callable's result
+    * @throws IllegalArgumentException for a null callable
+    */
+   public <V> TaskFuture<V> submit(Callable<V> callable)
+   {
+      return submit(callable, 0, 0);
+   }
+
+   /**
+    * Submit a callable with start and complete time out set explicitely.
+    * The future fails when the pool does not take the callable instead of
+    * an exception being thrown.
+    *
+    * @param callable the callable
+    * @param startTimeout the start timeout
+    * @param completeTimeout the complete timeout
+    * @return the future of the callable's result
+    * @throws IllegalArgumentException for a null callable
+    */
+   public <V> TaskFuture<V> submit(Callable<V> callable, long startTimeout, long completeTimeout)
+   {
+      CallableTask<V> task = new CallableTask<V>(callable, startTimeout, completeTimeout);
+      runTaskWrapper(task.getWrapper());
+      return task;
+   }
+
+   /**
+    * Submit a runnable
+    *
+    * @param runnable the runnable
+    * @return the future completing with null when the runnable has run
+    * @throws IllegalArgumentException for a null runnable
+    */
+   public TaskFuture<Void> submit(Runnable runnable)
+   {
+      return submit(runnable, 0, 0);
+   }
+
+   /**
+    * Submit a runnable with start and complete time out set explicitely
+    *
+    * @param runnable the runnable
+    * @param startTimeout the start timeout
+    * @param completeTimeout the complete timeout
+    * @return the future completing with null when the runnable has run
+    * @throws IllegalArgumentException for a null runnable
+    */
+   public TaskFuture<Void> submit(Runnable runnable, long startTimeout, long completeTimeout)
+   {
+      return submit(CallableTask.callable(runnable), startTimeout, completeTimeout);
+   }
+
+   /**
+    * Submit a task. The task gets its notifications as usual and its wait
+    * type still applies to the calling thread.
+    *
+    * @param task the task
+    * @return the future completing with null when the task has completed
+    * @throws IllegalArgumentException for a null task
+    */
+   public TaskFuture<Void> submitTask(Task task)
+   {
+      CallableTask<Void> future = new CallableTask<Void>(task);
+      runTaskWrapper(future.getWrapper());
+      return future;
+   }
+
+   public boolean[] runAll(Collection<? extends Runnable> runnables)
+   {
+      if (runnables == null)
+         throw new IllegalArgumentException("Null runnables");
+      List<TaskWrapper> wrappers = new ArrayList<TaskWrapper>(runnables.size());
+      for (Runnable runnable : runnables)
+         wrappers.add(new RunnableTaskWrapper(runnable, 0, 0));
+      return runTaskWrappers(wrappers);
+   }
+
+   public boolean[] runTasks(Collection<? extends Task> tasks)
+   {
+      if (tasks == null)
+         throw new IllegalArgumentException("Null tasks");
+      List<TaskWrapper> wrappers = new ArrayList<TaskWrapper>(tasks.size());
+      for (Task task : tasks)
+         wrappers.add(new BasicTaskWrapper(task));
+      return runTaskWrappers(wrappers);
+   }
+
    public ThreadGroup getThreadGroup()
    {
-      return threadGroup;
+      return support.getThreadGroup();
    }
 
    // ThreadPoolMBean implementation --------------------------------
@@ -247,22 +382,12 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
 
    public String getThreadGroupName()
    {
-      return threadGroup.getName();
+      return support.getThreadGroup().getName();
    }
 
    public void setThreadGroupName(String threadGroupName)
    {
-      ThreadGroup group;
-      synchronized(threadGroups)
-      {
-         group = (ThreadGroup) threadGroups.get(threadGroupName);
-         if (group == null)
-         {
-            group = new ThreadGroup(JBOSS_THREAD_GROUP, threadGroupName);
-            threadGroups.put(threadGroupName, group);
-         }
-      }
-      threadGroup = group;
+      support.setThreadGroupName(JBOSS_THREAD_GROUP, threadGroupName);
    }
 
    public int getQueueSize()
@@ -284,24 +409,165 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
     */
    public void setMaximumQueueSize(int size)
    {
-      // Reset the executor work queue
-      ArrayList tmp = new ArrayList();
-      queue.drainTo(tmp);
-      queue = new LinkedBlockingQueue(size);
-      queue.addAll(tmp);
+      resetQueue(size);
+   }
 
-      ThreadFactory tf = executor.getThreadFactory();
-      RejectedExecutionHandler handler = executor.getRejectedExecutionHandler();
-      long keepAlive = executor.getKeepAliveTime(TimeUnit.SECONDS);
-      int cs = executor.getCorePoolSize();
-      int mcs = executor.getMaximumPoolSize();
-      executor = new ThreadPoolExecutor(cs, mcs, keepAlive, TimeUnit.SECONDS, queue);
-      executor.setThreadFactory(tf);
-      executor.setRejectedExecutionHandler(handler);
+   public boolean isPriorityQueue()
+   {
+      return priorityQueue;
+   }
+
+   /**
+    * Switch between a FIFO queue and a queue ordered by task priority. Like
+    * {@link #setMaximumQueueSize(int)} this recreates the work queue, so
+    * this needs to be called before doing any work with the pool.
+    *
+    * @param priorityQueue whether to order the queue by task priority
+    */
+   public void setPriorityQueue(boolean priorityQueue)
+   {
+      this.priorityQueue = priorityQueue;
+      if (priorityQueue)
+         fairShareQueue = false;
+      resetQueue(getMaximumQueueSize());
+   }
+
+   public long getPriorityAgingInterval()
+   {
+      return priorityAgingInterval;
+   }
+
+   public void setPriorityAgingInterval(long interval)
+   {
+      if (interval < 0)
+         throw new IllegalArgumentException("Interval must not be negative: " + interval);
+      priorityAgingInterval = interval;
+      BatchBlockingQueue<Runnable> current = queue;
+      if (current instanceof PriorityTaskQueue)
+         ((PriorityTaskQueue) current).setAgingInterval(interval);
+   }
+
+   public boolean isFairShareQueue()
+   {
+      return fairShareQueue;
+   }
+
+   /**
+    * Switch between a single FIFO queue and a queue per tenant served by
+    * weighted round robin. Like {@link #setMaximumQueueSize(int)} this
+    * recreates the work queue, so this needs to be called before doing any
+    * work with the pool.
+    *
+    * @param fairShareQueue whether to share the queue between tenants
+    */
+   public void setFairShareQueue(boolean fairShareQueue)
+   {
+      this.fairShareQueue = fairShareQueue;
+      if (fairShareQueue)
+         priorityQueue = false;
+      resetQueue(getMaximumQueueSize());
+   }
+
+   public String getTenantSource()
+   {
+      return fairShareSettings.tenantSource;
+   }
+
+   public void setTenantSource(String source)
+   {
+      if (FairShareTaskQueue.TENANT_THREAD_GROUP.equals(source) == false
+          && FairShareTaskQueue.TENANT_CONTEXT_CLASSLOADER.equals(source) == false)
+         throw new IllegalArgumentException("Failed to recognize tenant source: " + source);
+      fairShareSettings.tenantSource = source;
+   }
+
+   public int getTenantMaximumQueueSize()
+   {
+      return fairShareSettings.maximumQueueSize;
+   }
+
+   public void setTenantMaximumQueueSize(int size)
+   {
+      if (size <= 0)
+         throw new IllegalArgumentException("Size must be positive: " + size);
+      fairShareSettings.maximumQueueSize = size;
+   }
+
+   public int getTenantQueueLimit(String tenant)
+   {
+      return fairShareSettings.getMaximumQueueSize(tenant);
+   }
+
+   public void setTenantQueueLimit(String tenant, int size)
+   {
+      if (tenant == null)
+         throw new IllegalArgumentException("Null tenant");
+      if (size < 0)
+         throw new IllegalArgumentException("Size must not be negative: " + size);
+      if (size == 0)
+         fairShareSettings.maximumQueueSizes.remove(tenant);
+      else
+         fairShareSettings.maximumQueueSizes.put(tenant, size);
+   }
+
+   public int getTenantWeight(String tenant)
+   {
+      return fairShareSettings.getWeight(tenant);
+   }
+
+   public void setTenantWeight(String tenant, int weight)
+   {
+      if (tenant == null)
+         throw new IllegalArgumentException("Null tenant");
+      if (weight <= 0)
+         throw new IllegalArgumentException("Weight must be positive: " + weight);
+      if (weight == 1)
+         fairShareSettings.weights.remove(tenant);
+      else
+         fairShareSettings.weights.put(tenant, weight);
+   }
+
+   public long getTenantIdleTimeout()
+   {
+      return fairShareSettings.idleTimeout;
+   }
+
+   public void setTenantIdleTimeout(long timeout)
+   {
+      if (timeout < 0)
+         throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
+      fairShareSettings.idleTimeout = timeout;
+   }
+
+   public String[] getTenants()
+   {
+      BatchBlockingQueue<Runnable> current = queue;
+      if (current instanceof FairShareTaskQueue)
+         return ((FairShareTaskQueue) current).getTenants();
+      return new String[0];
+   }
+
+   public int getTenantQueueSize(String tenant)
+   {
+      BatchBlockingQueue<Runnable> current = queue;
+      if (current instanceof FairShareTaskQueue)
+         return ((FairShareTaskQueue) current).getQueueSize(tenant);
+      return 0;
+   }
+
+   public long getTenantRejectionCount(String tenant)
+   {
+      BatchBlockingQueue<Runnable> current = queue;
+      if (current instanceof FairShareTaskQueue)
+         return ((FairShareTaskQueue) current).getRejectionCount(tenant);
+      return 0;
    }
 
    public int getPoolSize()
    {
+      VirtualThreadExecutor ve = virtualExecutor;
+      if (ve != null)
+         return ve.getActiveCount();
       return executor.getPoolSize();
    }
 
@@ -317,8 +583,8 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
          // Don't let the min size > max size
          if (executor.getMaximumPoolSize() < size)
          {
-            executor.setCorePoolSize(size);
             executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
          }
       }
    }
@@ -328,12 +594,45 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
       return executor.getMaximumPoolSize();
    }
    
+   /**
+    * Set the maximum pool size. An explicit size turns the adaptive sizing
+    * off, the controller would otherwise override it.
+    *
+    * @param size the maximum pool size
+    */
    public void setMaximumPoolSize(int size)
+   {
+      synchronized (this)
+      {
+         if (sizeController != null)
+         {
+            log.debug(this + " turning adaptive sizing off for the explicit maximum pool size " + size);
+            setAdaptiveSizing(false);
+         }
+         resize(size);
+      }
+   }
+
+   /**
+    * Set the maximum pool size, used by the adaptive size controller
+    *
+    * @param size the maximum pool size
+    */
+   void resize(int size)
    {
       synchronized (executor)
       {
-         executor.setCorePoolSize(size);
-         executor.setMaximumPoolSize(size);
+         // The core size may never exceed the maximum size
+         if (size > executor.getMaximumPoolSize())
+         {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+         }
+         else
+         {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+         }
       }
    }
 
@@ -356,30 +655,32 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
    {
       blockingMode = mode;
       
+      RejectedExecutionHandler handler;
       if( blockingMode == BlockingMode.RUN )
       {
-         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+         handler = new ThreadPoolExecutor.CallerRunsPolicy();
       }
       else if( blockingMode == BlockingMode.WAIT )
       {
-         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+         handler = new ThreadPoolExecutor.CallerRunsPolicy();
       }
       else if( blockingMode == BlockingMode.DISCARD )
       {
-         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+         handler = new DiscardPolicy();
       }
       else if( blockingMode == BlockingMode.DISCARD_OLDEST )
       {
-         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardOldestPolicy());
+         handler = new DiscardOldestPolicy();
       }
       else if( blockingMode == BlockingMode.ABORT )
       {
-         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+         handler = new ThreadPoolExecutor.AbortPolicy();
       }
       else
       {
          throw new IllegalArgumentException("Failed to recognize mode: "+mode);
       }
+      executor.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(handler, mode));
    }
 
    /**
@@ -406,154 +707,639 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
          blockingMode = BlockingMode.ABORT;
    }
 
-   public ClassLoaderSource getClassLoaderSource()
+   public long getCompletionTimeoutResolution()
    {
-      return classLoaderSource;
+      return completionTimeoutResolution;
    }
 
-   public void setClassLoaderSource(ClassLoaderSource classLoaderSource)
+   /**
+    * Set the resolution of the task completion timeout monitor. Like
+    * {@link #setMaximumQueueSize(int)} this needs to be called before doing
+    * any work with the pool, the monitor is created with the first task
+    * that has a completion timeout.
+    *
+    * @param resolution the resolution in MS
+    */
+   public void setCompletionTimeoutResolution(long resolution)
+   {
+      if (resolution <= 0)
+         throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+      completionTimeoutResolution = resolution;
+   }
+
+   public boolean isUseVirtualThreads()
+   {
+      return virtualExecutor != null;
+   }
+
+   /**
+    * Switch between the pooled platform threads and a virtual thread per
+    * task. Like {@link #setMaximumQueueSize(int)} this needs to be called
+    * before doing any work with the pool. When virtual threads are not
+    * supported by the runtime the pool keeps using platform threads.
+    *
+    * @param useVirtualThreads whether to run tasks on virtual threads
+    */
+   public void setUseVirtualThreads(boolean useVirtualThreads)
    {
-      if (classLoaderSource == null)
+      if (useVirtualThreads == false)
       {
-         this.classLoaderSource = null;
-         this.classLoaderSwitcher = null;
+         virtualExecutor = null;
       }
-      else if (classLoaderSwitcher == null)
+      else if (virtualExecutor == null)
       {
-         try
-         {
-            this.classLoaderSwitcher = (ContextClassLoaderSwitcher) AccessController.doPrivileged(ContextClassLoaderSwitcher.INSTANTIATOR);
-            this.classLoaderSource = classLoaderSource;
-         }
-         catch (SecurityException e)
+         if (VirtualThreads.isSupported())
+            virtualExecutor = new VirtualThreadExecutor(virtualThreadConcurrency);
+         else
+            log.warn("Virtual threads are not supported by this runtime, " + this + " keeps using platform threads");
+      }
+   }
+
+   public int getVirtualThreadConcurrency()
+   {
+      return virtualThreadConcurrency;
+   }
+
+   public void setVirtualThreadConcurrency(int concurrency)
+   {
+      if (concurrency <= 0)
+         throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+      virtualThreadConcurrency = concurrency;
+      VirtualThreadExecutor ve = virtualExecutor;
+      if (ve != null)
+         ve.setMaximumConcurrency(concurrency);
+   }
+
+   public boolean isAdaptiveSizing()
+   {
+      return sizeController != null;
+   }
+
+   /**
+    * Turn the adaptive pool size controller on or off. While it is on it
+    * sets the pool size within the adaptive bounds, turning it off leaves
+    * the pool at the size it chose last. Setting the maximum pool size
+    * turns it off.
+    *
+    * @param adaptiveSizing whether to resize the pool to follow the load
+    */
+   public synchronized void setAdaptiveSizing(boolean adaptiveSizing)
+   {
+      if (adaptiveSizing == false)
+      {
+         if (sizeController != null)
          {
-            log.error("Cannot manage context classloader for pool threads; " +
-                      "Do not have setContextClassLoader permission");
+            sizeController.shutdown();
+            sizeController = null;
          }
       }
-      else
+      else if (sizeController == null && stopped.get() == false)
       {
-         this.classLoaderSource = classLoaderSource;
+         sizeController = new PoolSizeController(this, stopped, log);
       }
    }
 
-   public ThreadPool getInstance()
+   public int getAdaptiveMinimumPoolSize()
    {
-      return this;
+      return adaptiveMinimumPoolSize;
    }
 
-   public void stop()
+   public void setAdaptiveMinimumPoolSize(int size)
    {
-      stop(false);
+      if (size <= 0)
+         throw new IllegalArgumentException("Size must be positive: " + size);
+      adaptiveMinimumPoolSize = size;
    }
 
-   // Object overrides ----------------------------------------------
+   public int getAdaptiveMaximumPoolSize()
+   {
+      return adaptiveMaximumPoolSize;
+   }
 
-   public String toString()
+   public void setAdaptiveMaximumPoolSize(int size)
    {
-      return name + '(' + poolNumber + ')';
+      if (size <= 0)
+         throw new IllegalArgumentException("Size must be positive: " + size);
+      adaptiveMaximumPoolSize = size;
    }
 
-   // Package protected ---------------------------------------------
+   public long getAdaptiveSampleInterval()
+   {
+      return adaptiveSampleInterval;
+   }
 
-   // Protected -----------------------------------------------------
+   public void setAdaptiveSampleInterval(long interval)
+   {
+      if (interval <= 0)
+         throw new IllegalArgumentException("Interval must be positive: " + interval);
+      adaptiveSampleInterval = interval;
+   }
 
-   /**
-    * Execute a task on the same thread
-    *
-    * @param wrapper the task wrapper
-    */
-   protected void executeOnThread(TaskWrapper wrapper)
+   public long getAdaptiveTargetQueueWaitTime()
    {
-      if( trace )
-         log.trace("executeOnThread, wrapper="+wrapper);
-      wrapper.run();
+      return adaptiveTargetQueueWaitTime;
    }
 
-   /**
-    * Execute a task
-    *
-    * @param wrapper the task wrapper
-    */
-   protected void execute(TaskWrapper wrapper)
+   public void setAdaptiveTargetQueueWaitTime(long time)
    {
-      if( trace )
-         log.trace("execute, wrapper="+wrapper);
-      try
-      {
-         executor.execute(wrapper);
-      }
-      catch (Throwable t)
-      {
-         wrapper.rejectTask(new ThreadPoolFullException("Error scheduling work: " + wrapper, t));
-      }
+      if (time < 0)
+         throw new IllegalArgumentException("Time must not be negative: " + time);
+      adaptiveTargetQueueWaitTime = time;
    }
 
-   /**
-    * Wait for a task
-    *
-    * @param wrapper the task wrapper
-    */
-   protected void waitForTask(TaskWrapper wrapper)
+   public double getAdaptiveMaximumCpuLoad()
    {
-      wrapper.waitForTask();
+      return adaptiveMaximumCpuLoad;
    }
 
-   /**
-    * Used to lazily create the task completion timeout thread and monitor
-    */ 
-   protected synchronized void checkTimeoutMonitor()
+   public void setAdaptiveMaximumCpuLoad(double load)
    {
-      if( timeoutTask == null )
-         timeoutTask = new TimeoutMonitor(name, log);      
+      if (load <= 0)
+         throw new IllegalArgumentException("Load must be positive: " + load);
+      adaptiveMaximumCpuLoad = load;
    }
-   protected TimeoutInfo getNextTimeout()
+
+   public long getAdaptiveResizeCount()
    {
-      return this.tasksWithTimeouts.poll();
+      PoolSizeController controller = sizeController;
+      return controller == null ? 0 : controller.getResizeCount();
    }
-   
-   protected void setDefaultThreadContextClassLoader(Thread thread)
+
+   public String getLastAdaptiveDecision()
    {
-      if (classLoaderSwitcher != null)
-      {
-         ClassLoader cl = classLoaderSource == null ? null : classLoaderSource.getClassLoader();
-         classLoaderSwitcher.setContextClassLoader(thread, cl);
-      }
+      PoolSizeController controller = sizeController;
+      return controller == null ? null : controller.getLastDecision();
    }
 
-   // Private -------------------------------------------------------
+   public String[] getAdaptiveDecisions()
+   {
+      PoolSizeController controller = sizeController;
+      return controller == null ? new String[0] : controller.getDecisions();
+   }
 
-   // Inner classes -------------------------------------------------
+   public boolean isTaskProfiling()
+   {
+      return profiler != null;
+   }
 
    /**
-    * A factory for threads
+    * Turn the task profiling on or off. Turning it on starts over with
+    * new measurements.
+    *
+    * @param profiling whether to profile the tasks
     */
-   private class ThreadPoolThreadFactory implements ThreadFactory
+   public synchronized void setTaskProfiling(boolean profiling)
    {
-      public Thread newThread(Runnable runnable)
-      {
-         String threadName = BasicThreadPool.this.toString() + "-" + lastThreadNumber.incrementAndGet();
-         Thread thread = new Thread(threadGroup, runnable, threadName);
-         thread.setDaemon(true);
-         BasicThreadPool.this.setDefaultThreadContextClassLoader(thread);
-         return thread;
-      }
+      if (profiling == false)
+         profiler = null;
+      else if (profiler == null)
+         profiler = new TaskProfiler(log, slowTaskThreshold);
    }
-   
-   private class RestoreTCCLThreadPoolExecutor extends ThreadPoolExecutor
-   {      
-      public RestoreTCCLThreadPoolExecutor(int corePoolSize, int maximumPoolSize, 
+
+   public long getSlowTaskThreshold()
+   {
+      return slowTaskThreshold;
+   }
+
+   public void setSlowTaskThreshold(long threshold)
+   {
+      if (threshold < 0)
+         throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+      slowTaskThreshold = threshold;
+      TaskProfiler current = profiler;
+      if (current != null)
+         current.setSlowTaskThreshold(threshold);
+   }
+
+   public int getTopTaskCount()
+   {
+      return topTaskCount;
+   }
+
+   public void setTopTaskCount(int count)
+   {
+      if (count <= 0)
+         throw new IllegalArgumentException("Count must be positive: " + count);
+      topTaskCount = count;
+   }
+
+   public String[] getTopTasks()
+   {
+      TaskProfiler current = profiler;
+      return current == null ? new String[0] : current.getTopTasks(topTaskCount);
+   }
+
+   public long getSlowTaskCount()
+   {
+      TaskProfiler current = profiler;
+      return current == null ? 0 : current.getSlowTaskCount();
+   }
+
+   public String[] getSlowTasks()
+   {
+      TaskProfiler current = profiler;
+      return current == null ? new String[0] : current.getSlowTasks();
+   }
+
+   /**
+    * @return the latency and saturation statistics
+    */
+   public ThreadPoolStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   public double getAverageQueueWaitTime()
+   {
+      return statistics.getQueueWaitTime().getAverage() / 1000;
+   }
+
+   public long getMaximumQueueWaitTime()
+   {
+      return statistics.getQueueWaitTime().getMaximum() / 1000;
+   }
+
+   public long[] getQueueWaitTimeHistogram()
+   {
+      return statistics.getQueueWaitTime().getBuckets();
+   }
+
+   public double getAverageExecutionTime()
+   {
+      return statistics.getExecutionTime().getAverage() / 1000;
+   }
+
+   public long getMaximumExecutionTime()
+   {
+      return statistics.getExecutionTime().getMaximum() / 1000;
+   }
+
+   public long[] getExecutionTimeHistogram()
+   {
+      return statistics.getExecutionTime().getBuckets();
+   }
+
+   public long getCompletedTaskCount()
+   {
+      return statistics.getExecutionTime().getCount();
+   }
+
+   public long getStartTimeoutCount()
+   {
+      return statistics.getStartTimeoutCount();
+   }
+
+   public long getCompletionTimeoutCount()
+   {
+      return statistics.getCompletionTimeoutCount();
+   }
+
+   public long getRejectionCount()
+   {
+      return statistics.getRejectionCount();
+   }
+
+   public long getRejectionCount(String mode)
+   {
+      BlockingMode blocking = BlockingMode.toBlockingMode(mode);
+      if (blocking == null)
+         throw new IllegalArgumentException("Failed to recognize mode: "+mode);
+      return statistics.getRejectionCount(blocking);
+   }
+
+   public void resetStatistics()
+   {
+      statistics.reset();
+      TaskProfiler currentProfiler = profiler;
+      if (currentProfiler != null)
+         currentProfiler.reset();
+      BatchBlockingQueue<Runnable> current = queue;
+      if (current instanceof FairShareTaskQueue)
+         ((FairShareTaskQueue) current).resetRejectionCounts();
+   }
+
+   public ClassLoaderSource getClassLoaderSource()
+   {
+      return support.getClassLoaderSource();
+   }
+
+   public void setClassLoaderSource(ClassLoaderSource classLoaderSource)
+   {
+      support.setClassLoaderSource(classLoaderSource);
+   }
+
+   public ThreadPool getInstance()
+   {
+      return this;
+   }
+
+   public void stop()
+   {
+      stop(false);
+   }
+
+   // Object overrides ----------------------------------------------
+
+   public String toString()
+   {
+      return name + '(' + poolNumber + ')';
+   }
+
+   // Package protected ---------------------------------------------
+
+   /**
+    * @return the number of threads running a task
+    */
+   int getActiveCount()
+   {
+      VirtualThreadExecutor ve = virtualExecutor;
+      if (ve != null)
+         return ve.getActiveCount();
+      return executor.getActiveCount();
+   }
+
+   // Protected -----------------------------------------------------
+
+   /**
+    * Execute a task on the same thread
+    *
+    * @param wrapper the task wrapper
+    */
+   protected void executeOnThread(TaskWrapper wrapper)
+   {
+      if( trace )
+         log.trace("executeOnThread, wrapper="+wrapper);
+      wrapper.run();
+   }
+
+   /**
+    * Execute a task
+    *
+    * @param wrapper the task wrapper
+    */
+   protected void execute(TaskWrapper wrapper)
+   {
+      if( trace )
+         log.trace("execute, wrapper="+wrapper);
+      try
+      {
+         VirtualThreadExecutor ve = virtualExecutor;
+         if (ve != null)
+            ve.execute(wrapper);
+         else
+            executor.execute(wrapper);
+      }
+      catch (Throwable t)
+      {
+         wrapper.rejectTask(new ThreadPoolFullException("Error scheduling work: " + wrapper, t));
+      }
+   }
+
+   /**
+    * Run a batch of task wrappers. The wrappers are prepared as
+    * {@link #runTaskWrapper(TaskWrapper)} does, those not waiting for
+    * completion are added to the queue under one lock and the blocking mode
+    * is applied to the ones that did not fit. The wrappers waiting for
+    * completion then run on the calling thread.
+    *
+    * @param wrappers the task wrappers
+    * @return whether each wrapper was accepted
+    */
+   protected boolean[] runTaskWrappers(List<TaskWrapper> wrappers)
+   {
+      if( trace )
+         log.trace("runTaskWrappers, size="+wrappers.size());
+      int size = wrappers.size();
+      boolean[] accepted = new boolean[size];
+      if (stopped.get())
+      {
+         for (int i = 0; i < size; ++i)
+            ThreadPoolSupport.rejectTask(wrappers.get(i), new ThreadPoolStoppedException("Thread pool has been stopped"));
+         return accepted;
+      }
+
+      TaskWrapper[] prepared = new TaskWrapper[size];
+      List<TaskWrapper> batch = new ArrayList<TaskWrapper>(size);
+      int[] indexes = new int[size];
+      for (int i = 0; i < size; ++i)
+      {
+         TaskWrapper wrapper = wrappers.get(i);
+         wrapper.acceptTask();
+         statistics.queued(wrapper);
+         long completionTimeout = wrapper.getTaskCompletionTimeout();
+         if(completionTimeout > 0)
+         {
+            checkTimeoutMonitor();
+            wrapper = timeoutTask.add(wrapper, completionTimeout);
+         }
+         prepared[i] = wrapper;
+         if (wrapper.getTaskWaitType() != Task.WAIT_FOR_COMPLETE)
+         {
+            indexes[batch.size()] = i;
+            batch.add(wrapper);
+         }
+      }
+
+      executeBatch(batch, indexes, accepted);
+
+      for (int i = 0; i < size; ++i)
+      {
+         if (prepared[i].getTaskWaitType() == Task.WAIT_FOR_COMPLETE)
+         {
+            executeOnThread(prepared[i]);
+            accepted[i] = true;
+         }
+      }
+      for (int i = 0; i < size; ++i)
+      {
+         if (accepted[i])
+            waitForTask(prepared[i]);
+      }
+      return accepted;
+   }
+
+   /**
+    * Execute a batch of tasks
+    *
+    * @param batch the task wrappers
+    * @param indexes the index of each wrapper in the result
+    * @param accepted the result
+    */
+   protected void executeBatch(List<TaskWrapper> batch, int[] indexes, boolean[] accepted)
+   {
+      if (batch.isEmpty())
+         return;
+      VirtualThreadExecutor ve = virtualExecutor;
+      int count;
+      if (ve != null)
+      {
+         count = ve.executeAll(batch);
+      }
+      else
+      {
+         // Queued directly, so make sure there are threads to take the tasks
+         executor.prestartAllCoreThreads();
+         count = queue.offerAll(batch);
+      }
+
+      BlockingMode mode = blockingMode;
+      if (count < batch.size() && mode == BlockingMode.DISCARD_OLDEST && queue.isClosed() == false)
+      {
+         // Make room for the rest of the batch
+         List<TaskWrapper> rest = batch.subList(count, batch.size());
+         List<Runnable> discarded = queue.discardOldest(rest.size());
+         count += ve != null ? ve.executeAll(rest) : queue.offerAll(rest);
+         discarded(discarded);
+      }
+      for (int i = 0; i < count; ++i)
+         accepted[indexes[i]] = true;
+      boolean closed = queue.isClosed();
+      for (int i = count; i < batch.size(); ++i)
+      {
+         TaskWrapper wrapper = batch.get(i);
+         if (closed)
+         {
+            ThreadPoolSupport.rejectTask(wrapper, new ThreadPoolStoppedException("Thread pool has been stopped"));
+            continue;
+         }
+         rejected(mode);
+         if (mode == BlockingMode.RUN || mode == BlockingMode.WAIT)
+         {
+            executeOnThread(wrapper);
+            accepted[indexes[i]] = true;
+         }
+         else
+         {
+            ThreadPoolSupport.rejectTask(wrapper, new ThreadPoolFullException("Error scheduling work: " + wrapper));
+         }
+      }
+   }
+
+   /**
+    * Wait for a task
+    *
+    * @param wrapper the task wrapper
+    */
+   protected void waitForTask(TaskWrapper wrapper)
+   {
+      wrapper.waitForTask();
+   }
+
+   /**
+    * Used to lazily create the task completion timeout thread and monitor
+    */ 
+   protected synchronized void checkTimeoutMonitor()
+   {
+      if( timeoutTask == null )
+         timeoutTask = new CompletionTimeoutMonitor(name, stopped, log, completionTimeoutResolution, statistics);
+   }
+   
+   protected void setDefaultThreadContextClassLoader(Thread thread)
+   {
+      support.setDefaultThreadContextClassLoader(thread);
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Recreate the work queue and ThreadPoolExecutor
+    *
+    * @param size the work queue capacity
+    */
+   private void resetQueue(int size)
+   {
+      // Reset the executor work queue
+      ArrayList tmp = new ArrayList();
+      queue.drainTo(tmp);
+      if (priorityQueue)
+         queue = new PriorityTaskQueue(size, priorityAgingInterval);
+      else if (fairShareQueue)
+         queue = new FairShareTaskQueue(size, fairShareSettings);
+      else
+         queue = new BatchBlockingQueue<Runnable>(size);
+      queue.addAll(tmp);
+
+      ThreadFactory tf = executor.getThreadFactory();
+      RejectedExecutionHandler handler = executor.getRejectedExecutionHandler();
+      long keepAlive = executor.getKeepAliveTime(TimeUnit.SECONDS);
+      int cs = executor.getCorePoolSize();
+      int mcs = executor.getMaximumPoolSize();
+      executor = new RestoreTCCLThreadPoolExecutor(cs, mcs, keepAlive, TimeUnit.SECONDS, queue);
+      executor.setThreadFactory(tf);
+      executor.setRejectedExecutionHandler(handler);
+   }
+
+   /**
+    * Count a rejection, against the submitting tenant too for a fair share
+    * queue
+    *
+    * @param mode the blocking mode applied
+    */
+   private void rejected(BlockingMode mode)
+   {
+      statistics.rejected(mode);
+      BatchBlockingQueue<Runnable> current = queue;
+      if (current instanceof FairShareTaskQueue)
+         ((FairShareTaskQueue) current).rejected();
+   }
+
+   /**
+    * Tell the tasks dropped by a discard blocking mode they were rejected,
+    * so their callers and a {@link KeyedThreadPool} do not wait for them
+    *
+    * @param runnables the dropped tasks
+    */
+   private void discarded(Collection<? extends Runnable> runnables)
+   {
+      for (Runnable runnable : runnables)
+      {
+         if (runnable instanceof TaskWrapper)
+            ThreadPoolSupport.discarded((TaskWrapper) runnable);
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A factory for threads
+    */
+   private class ThreadPoolThreadFactory implements ThreadFactory
+   {
+      public Thread newThread(Runnable runnable)
+      {
+         String threadName = BasicThreadPool.this.toString() + "-" + support.nextThreadNumber();
+         return support.initThread(new Thread(support.getThreadGroup(), runnable, threadName));
+      }
+   }
+   
+   private class RestoreTCCLThreadPoolExecutor extends ThreadPoolExecutor
+   {      
+      public RestoreTCCLThreadPoolExecutor(int corePoolSize, int maximumPoolSize, 
                                            long keepAliveTime, TimeUnit unit,
                                            BlockingQueue<Runnable> workQueue)
       {
          super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
       }
 
+      @Override
+      protected void beforeExecute(Thread t, Runnable r)
+      {
+         super.beforeExecute(t, r);
+         TaskProfiler current = profiler;
+         if (current != null)
+            current.begin();
+         executionStart.get()[0] = System.nanoTime();
+      }
+
       @Override
       protected void afterExecute(Runnable r, Throwable t)
       {
          try
          {
+            statistics.executed(System.nanoTime() - executionStart.get()[0]);
+            TaskProfiler current = profiler;
+            if (current != null)
+               current.end(r);
             super.afterExecute(r, t);
          }
          finally
@@ -562,152 +1348,296 @@ public class BasicThreadPool implements ThreadPool, BasicThreadPoolMBean
             BasicThreadPool.this.setDefaultThreadContextClassLoader(Thread.currentThread());
          }
       }
-      
-      
-      
    }
 
-   /** An encapsulation of a task and its completion timeout
-    */ 
-   private static class TimeoutInfo implements Comparable
+   /**
+    * Drops the task and tells it that it was rejected
+    */
+   private class DiscardPolicy implements RejectedExecutionHandler
    {
-      long start;
-      long timeoutMS;
-      TaskWrapper wrapper;
-      boolean firstStop;
-      TimeoutInfo(TaskWrapper wrapper, long timeout)
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor e)
       {
-         this.start = System.currentTimeMillis();
-         this.timeoutMS = start + timeout;
-         this.wrapper = wrapper;
+         discarded(Collections.singletonList(r));
       }
-      public void setTimeout(long timeout)
-      {
-         this.start = System.currentTimeMillis();
-         this.timeoutMS = start + timeout;         
-      }
-      /** Order TimeoutInfo based on the timestamp at which the task needs to
-       * be completed by.
-       * @param o a TimeoutInfo
-       * @return the diff between this timeoutMS and the argument timeoutMS
-       */ 
-      public int compareTo(Object o)
+   }
+
+   /**
+    * Drops the task the queue chooses to discard, the oldest for a FIFO
+    * queue, retries the execution and tells the dropped task that it was
+    * rejected
+    */
+   private class DiscardOldestPolicy implements RejectedExecutionHandler
+   {
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor e)
       {
-         TimeoutInfo ti = (TimeoutInfo) o;
-         long to0 = timeoutMS;
-         long to1 = ti.timeoutMS;
-         return (int) (to0 - to1);
+         if (e.isShutdown() == false)
+         {
+            List<Runnable> discarded = queue.discardOldest(1);
+            try
+            {
+               e.execute(r);
+            }
+            finally
+            {
+               discarded(discarded);
+            }
+         }
+         else
+         {
+            discarded(Collections.singletonList(r));
+         }
       }
-      TaskWrapper getTaskWrapper()
+   }
+
+   /**
+    * Counts the rejections of a blocking mode before applying it
+    */
+   private class CountingRejectedExecutionHandler implements RejectedExecutionHandler
+   {
+      private final RejectedExecutionHandler delegate;
+      private final BlockingMode mode;
+
+      CountingRejectedExecutionHandler(RejectedExecutionHandler delegate, BlockingMode mode)
       {
-         return wrapper;
+         this.delegate = delegate;
+         this.mode = mode;
       }
-      public long getTaskCompletionTimeout()
+
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
       {
-         return wrapper.getTaskCompletionTimeout();
+         rejected(mode);
+         delegate.rejectedExecution(r, executor);
       }
-      /** Get the time remaining to the complete timeout timestamp in MS.
-       * @param now - the current System.currentTimeMillis value
-       * @return the time remaining to the complete timeout timestamp in MS.
-       */ 
-      public long getTaskCompletionTimeout(long now)
+   }
+
+   /**
+    * Runs each task on its own virtual thread. A semaphore sized by the
+    * virtual thread concurrency caps the number of running tasks, the others
+    * wait in the pool queue and the blocking mode applies when that is full.
+    */
+   private class VirtualThreadExecutor
+   {
+      /** The virtual thread factory */
+      private final ThreadFactory factory;
+      /** The permits to run a task */
+      private final ResizableSemaphore permits;
+      /** The current number of permits */
+      private int maximumConcurrency;
+      /** The threads running a task */
+      private final Set<Thread> running = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+      /** The number of started tasks that have not finished */
+      private final AtomicInteger active = new AtomicInteger(0);
+
+      VirtualThreadExecutor(int maximumConcurrency)
       {
-         return timeoutMS - now;
+         this.factory = VirtualThreads.newFactory(BasicThreadPool.this.toString() + "-virtual-");
+         this.maximumConcurrency = maximumConcurrency;
+         this.permits = new ResizableSemaphore(maximumConcurrency);
       }
-      /** Invoke stopTask on the wrapper and indicate whether this was the first
-       * time the task has been notified to stop.
-       * @return true if this is the first stopTask, false on the second.
-       */ 
-      public boolean stopTask()
+
+      void execute(Runnable runnable)
       {
-         wrapper.stopTask();
-         boolean wasFirstStop = firstStop == false;
-         firstStop = true;
-         return wasFirstStop;
-      }
-   }
-   /**
-    * The monitor runnable which validates that threads are completing within
-    * the task completion timeout limits.
-    */ 
-   private class TimeoutMonitor implements Runnable
-   {
-      @SuppressWarnings("hiding")
-      final Logger log;
-      TimeoutMonitor(String name, Logger log)
-      {
-         this.log = log;
-         Thread t = new Thread(this, name+" TimeoutMonitor");
-         t.setDaemon(true);
-         t.start();
-      }
-      /** The monitor thread loops until the pool is shutdown. It waits for
-       * tasks with completion timeouts and sleeps until the next completion
-       * timeout and then interrupts the associated task thread, and invokes
-       * stopTask on the TaskWrapper. A new timeout check is then inserted with
-       * a 1 second timeout to validate that the TaskWrapper has exited the
-       * run method. If it has not, then the associated task thread is stopped
-       * using the deprecated Thread.stop method since this is the only way to
-       * abort a thread that is in spin loop for example.
-       * 
-       * @todo this is not responsive to new tasks with timeouts smaller than
-       * the current shortest completion expiration. We probably should interrupt
-       * the thread on each insertion into the timeout heap to ensure better
-       * responsiveness.
-       */ 
-      public void run()
-      {
-         boolean isStopped = stopped.get();
-         while( isStopped == false )
-         {
-            boolean trace = log.isTraceEnabled();
-            try
+         // Keep FIFO order, the queued tasks take the free permits first
+         if (queue.isEmpty() && permits.tryAcquire())
+         {
+            start(runnable);
+            return;
+         }
+         if (queue.offer(runnable) == false)
+         {
+            rejected(blockingMode);
+            if (blockingMode == BlockingMode.RUN || blockingMode == BlockingMode.WAIT)
             {
-               TimeoutInfo info = getNextTimeout();
-               if( info != null )
+               runnable.run();
+               return;
+            }
+            else if (blockingMode == BlockingMode.DISCARD)
+            {
+               discarded(Collections.singletonList(runnable));
+               return;
+            }
+            else if (blockingMode == BlockingMode.DISCARD_OLDEST)
+            {
+               List<Runnable> discarded = queue.discardOldest(1);
+               try
                {
-                  long now = System.currentTimeMillis();
-                  long timeToTimeout = info.getTaskCompletionTimeout(now);
-                  if( timeToTimeout > 0 )
-                  {
-                     if( trace )
-                     {
-                        log.trace("Will check wrapper="+info.getTaskWrapper()
-                           +" after "+timeToTimeout);
-                     }
-                     Thread.sleep(timeToTimeout);
-                  }
-                  // Check the status of the task
-                  TaskWrapper wrapper = info.getTaskWrapper();
-                  if( wrapper.isComplete() == false )
-                  {
-                     if( trace )
-                        log.trace("Failed completion check for wrapper="+wrapper);
-                     if( info.stopTask() == true )
-                     {
-                        // Requeue the TimeoutInfo to see that the task exits run
-                        info.setTimeout(1000);
-                        tasksWithTimeouts.add(info);
-                        if( trace )
-                           log.trace("Rescheduled completion check for wrapper="+wrapper);
-                     }
-                  }
+                  execute(runnable);
                }
-               else
+               finally
                {
-                  Thread.sleep(1000);
+                  discarded(discarded);
                }
+               return;
             }
-            catch(InterruptedException e)
+            throw new RejectedExecutionException("Task " + runnable + " rejected from " + BasicThreadPool.this);
+         }
+         // A task may have finished before we queued
+         startQueued();
+      }
+
+      /**
+       * Start the tasks there are permits for and queue the others
+       *
+       * @param batch the tasks
+       * @return the number of tasks started or queued, those at the start of the list
+       */
+      int executeAll(List<? extends Runnable> batch)
+      {
+         int started = 0;
+         while (started < batch.size() && queue.isEmpty() && permits.tryAcquire())
+            start(batch.get(started++));
+         int queued = queue.offerAll(batch.subList(started, batch.size()));
+         if (queued > 0)
+            startQueued();
+         return started + queued;
+      }
+
+      synchronized void setMaximumConcurrency(int size)
+      {
+         int delta = size - maximumConcurrency;
+         maximumConcurrency = size;
+         if (delta > 0)
+         {
+            permits.release(delta);
+            startQueued();
+         }
+         else if (delta < 0)
+         {
+            permits.reducePermits(-delta);
+         }
+      }
+
+      int getActiveCount()
+      {
+         return active.get();
+      }
+
+      void shutdown(boolean immediate)
+      {
+         if (immediate)
+         {
+            queue.clear();
+            for (Thread thread : running)
+               thread.interrupt();
+         }
+         synchronized (this)
+         {
+            notifyAll();
+         }
+      }
+
+      synchronized void awaitTermination(long maxWaitTime) throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + maxWaitTime;
+         if (end < 0)
+            end = Long.MAX_VALUE;
+         while (active.get() > 0 || queue.isEmpty() == false)
+         {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0)
+               return;
+            wait(wait);
+         }
+      }
+
+      /**
+       * Start queued tasks while there are permits
+       */
+      private void startQueued()
+      {
+         while (queue.isEmpty() == false && permits.tryAcquire())
+         {
+            Runnable next = queue.poll();
+            if (next == null)
+               permits.release();
+            else
+               start(next);
+         }
+      }
+
+      private void start(final Runnable runnable)
+      {
+         active.incrementAndGet();
+         try
+         {
+            Thread thread = factory.newThread(new Runnable()
             {
-               log.debug("Timeout monitor has been interrupted", e);
-            }
-            catch(Throwable e)
+               public void run()
+               {
+                  runTask(runnable);
+               }
+            });
+            setDefaultThreadContextClassLoader(thread);
+            thread.start();
+         }
+         catch (RuntimeException e)
+         {
+            finished();
+            throw e;
+         }
+         catch (Error e)
+         {
+            finished();
+            throw e;
+         }
+      }
+
+      private void runTask(Runnable runnable)
+      {
+         Thread current = Thread.currentThread();
+         running.add(current);
+         TaskProfiler taskProfiler = profiler;
+         if (taskProfiler != null)
+            taskProfiler.begin();
+         long start = System.nanoTime();
+         try
+         {
+            runnable.run();
+         }
+         catch (Throwable t)
+         {
+            log.warn("Unhandled throwable for wrapper: " + runnable, t);
+         }
+         finally
+         {
+            statistics.executed(System.nanoTime() - start);
+            if (taskProfiler != null)
+               taskProfiler.end(runnable);
+            running.remove(current);
+            finished();
+            startQueued();
+         }
+      }
+
+      private void finished()
+      {
+         permits.release();
+         if (active.decrementAndGet() == 0)
+         {
+            synchronized (this)
             {
-               log.debug("Timeout monitor saw unexpected error", e);               
+               notifyAll();
             }
-            isStopped = stopped.get();            
          }
       }
    }
+
+   /**
+    * A semaphore whose permits can be reduced
+    */
+   private static class ResizableSemaphore extends Semaphore
+   {
+      private static final long serialVersionUID = 1L;
+
+      ResizableSemaphore(int permits)
+      {
+         super(permits);
+      }
+
+      @Override
+      protected void reducePermits(int reduction)
+      {
+         super.reducePermits(reduction);
+      }
+   }
 }
@@ -52,6 +52,157 @@ public interface BasicThreadPoolMBean extends ThreadPoolMBean
     */
    void setMaximumQueueSize(int size);
 
+   /**
+    * Whether the queue orders the waiting tasks by priority
+    *
+    * @return true for a priority queue, false for a FIFO queue
+    */
+   boolean isPriorityQueue();
+
+   /**
+    * Order the waiting tasks by {@link Task#getPriority()}, the highest
+    * first and FIFO within a priority, instead of FIFO. This recreates the
+    * queue so it needs to be set before doing any work with the pool. The
+    * maximum queue size and the blocking mode apply as usual, the discard
+    * oldest mode drops the oldest task of the lowest priority.
+    *
+    * @param priorityQueue whether to order the queue by priority
+    */
+   void setPriorityQueue(boolean priorityQueue);
+
+   /**
+    * Get the wait that raises a queued task one priority level
+    *
+    * @return the aging interval in MS, 0 for no aging
+    */
+   long getPriorityAgingInterval();
+
+   /**
+    * Set the wait that raises a queued task one priority level, so low
+    * priority tasks are not starved by high priority ones
+    *
+    * @param interval the aging interval in MS, 0 for no aging
+    */
+   void setPriorityAgingInterval(long interval);
+
+   /**
+    * Whether the queue shares the pool between tenants
+    *
+    * @return true for a fair share queue
+    */
+   boolean isFairShareQueue();
+
+   /**
+    * Give each tenant submitting tasks its own queue and serve the tenants
+    * by weighted round robin, so one tenant filling the queue does not
+    * starve the others. This recreates the queue so it needs to be set
+    * before doing any work with the pool, and it replaces a priority queue.
+    * The maximum queue size still bounds all the waiting tasks, the
+    * blocking mode also applies when a tenant is at its own limit.
+    *
+    * @param fairShareQueue whether to share the queue between tenants
+    */
+   void setFairShareQueue(boolean fairShareQueue);
+
+   /**
+    * Get what identifies the tenant of a submitting thread
+    *
+    * @return threadGroup or contextClassLoader
+    */
+   String getTenantSource();
+
+   /**
+    * Set what identifies the tenant of a submitting thread, its thread group
+    * name or its context classloader
+    *
+    * @param source threadGroup or contextClassLoader
+    */
+   void setTenantSource(String source);
+
+   /**
+    * Get the default limit of waiting tasks per tenant
+    *
+    * @return the limit
+    */
+   int getTenantMaximumQueueSize();
+
+   /**
+    * Set the default limit of waiting tasks per tenant
+    *
+    * @param size the limit
+    */
+   void setTenantMaximumQueueSize(int size);
+
+   /**
+    * Get the limit of waiting tasks of a tenant
+    *
+    * @param tenant the tenant
+    * @return the limit
+    */
+   int getTenantQueueLimit(String tenant);
+
+   /**
+    * Set the limit of waiting tasks of a tenant
+    *
+    * @param tenant the tenant
+    * @param size the limit, 0 for the default limit
+    */
+   void setTenantQueueLimit(String tenant, int size);
+
+   /**
+    * Get the weight of a tenant
+    *
+    * @param tenant the tenant
+    * @return the number of tasks taken in a turn
+    */
+   int getTenantWeight(String tenant);
+
+   /**
+    * Set the weight of a tenant, the number of its tasks taken before the
+    * next tenant's turn
+    *
+    * @param tenant the tenant
+    * @param weight the weight, 1 by default
+    */
+   void setTenantWeight(String tenant, int weight);
+
+   /**
+    * Get how long a tenant without waiting tasks is remembered
+    *
+    * @return the idle timeout in ms
+    */
+   long getTenantIdleTimeout();
+
+   /**
+    * Set how long a tenant without waiting tasks is remembered, an idle
+    * tenant is forgotten along with its rejection count
+    *
+    * @param timeout the idle timeout in ms, 60000 by default
+    */
+   void setTenantIdleTimeout(long timeout);
+
+   /**
+    * @return the tenants that submitted tasks to the fair share queue
+    */
+   String[] getTenants();
+
+   /**
+    * Get the number of waiting tasks of a tenant
+    *
+    * @param tenant the tenant
+    * @return the number of tasks
+    */
+   int getTenantQueueSize(String tenant);
+
+   /**
+    * Get the number of times the blocking mode was applied to the tasks of
+    * a tenant
+    *
+    * @param tenant the tenant
+    * @return the rejection count
+    */
+   long getTenantRejectionCount(String tenant);
+
    /**
     * @return the blocking mode
     */
@@ -62,7 +213,7 @@ public interface BasicThreadPoolMBean extends ThreadPoolMBean
     * abort - a RuntimeException is thrown
     * run - the calling thread executes the task
     * wait - the calling thread blocks until the queue has room
-    * discard - the task is silently discarded without being run
+    * discard - the task is discarded without being run and is rejected
     * discardOldest - check to see if a task is about to complete and enque
     *    the new task if possible, else run the task in the calling thread
     * 
@@ -127,5 +278,315 @@ public interface BasicThreadPoolMBean extends ThreadPoolMBean
     */
    void setClassLoaderSource(ClassLoaderSource classLoaderSource);
 
+   /**
+    * Get the resolution of the task completion timeout monitor
+    *
+    * @return the resolution in MS
+    */
+   long getCompletionTimeoutResolution();
+
+   /**
+    * Set the resolution of the task completion timeout monitor. A task that
+    * exceeds its completion timeout is stopped at most this much later.
+    * Finer resolutions wake the monitor thread more often.
+    *
+    * @param resolution the resolution in MS
+    */
+   void setCompletionTimeoutResolution(long resolution);
+
+   /**
+    * Whether each task runs on its own virtual thread
+    *
+    * @return true when running on virtual threads
+    */
+   boolean isUseVirtualThreads();
+
+   /**
+    * Run each task on its own virtual thread instead of the pooled platform
+    * threads. The virtual thread concurrency then caps the number of
+    * concurrently running tasks and the others wait in the queue. This is
+    * ignored on a runtime without virtual threads.
+    *
+    * @param useVirtualThreads whether to run tasks on virtual threads
+    */
+   void setUseVirtualThreads(boolean useVirtualThreads);
+
+   /**
+    * Get the maximum number of tasks running at once on virtual threads
+    *
+    * @return the concurrency
+    */
+   int getVirtualThreadConcurrency();
+
+   /**
+    * Set the maximum number of tasks running at once on virtual threads,
+    * 10000 by default. Unlike the maximum pool size it does not cost a
+    * platform thread per task, so it can be as large as the blocking tasks
+    * need.
+    *
+    * @param concurrency the concurrency
+    */
+   void setVirtualThreadConcurrency(int concurrency);
+
+   /**
+    * Whether the adaptive pool size controller is on
+    *
+    * @return true when the pool is resized to follow the load
+    */
+   boolean isAdaptiveSizing();
+
+   /**
+    * Turn the adaptive pool size controller on or off. It samples the
+    * throughput, queue wait time and cpu load and sets the pool size within
+    * the adaptive bounds, overriding the minimum and maximum pool size.
+    * Setting the maximum pool size explicitly turns it off.
+    *
+    * @param adaptiveSizing whether to resize the pool to follow the load
+    */
+   void setAdaptiveSizing(boolean adaptiveSizing);
+
+   /**
+    * Get the smallest size adaptive sizing shrinks the pool to
+    *
+    * @return the size
+    */
+   int getAdaptiveMinimumPoolSize();
+
+   /**
+    * Set the smallest size adaptive sizing shrinks the pool to
+    *
+    * @param size the size
+    */
+   void setAdaptiveMinimumPoolSize(int size);
+
+   /**
+    * Get the largest size adaptive sizing grows the pool to
+    *
+    * @return the size
+    */
+   int getAdaptiveMaximumPoolSize();
+
+   /**
+    * Set the largest size adaptive sizing grows the pool to
+    *
+    * @param size the size
+    */
+   void setAdaptiveMaximumPoolSize(int size);
+
+   /**
+    * Get the interval between the samples of the adaptive sizing
+    *
+    * @return the interval in MS
+    */
+   long getAdaptiveSampleInterval();
+
+   /**
+    * Set the interval between the samples of the adaptive sizing
+    *
+    * @param interval the interval in MS
+    */
+   void setAdaptiveSampleInterval(long interval);
+
+   /**
+    * Get the queue wait time above which adaptive sizing grows the pool
+    *
+    * @return the time in MS
+    */
+   long getAdaptiveTargetQueueWaitTime();
+
+   /**
+    * Set the queue wait time above which adaptive sizing grows the pool
+    *
+    * @param time the time in MS
+    */
+   void setAdaptiveTargetQueueWaitTime(long time);
+
+   /**
+    * Get the system load per processor above which adaptive sizing does
+    * not grow the pool
+    *
+    * @return the load, 1.0 is one runnable thread per processor
+    */
+   double getAdaptiveMaximumCpuLoad();
+
+   /**
+    * Set the system load per processor above which adaptive sizing does
+    * not grow the pool
+    *
+    * @param load the load, 1.0 is one runnable thread per processor
+    */
+   void setAdaptiveMaximumCpuLoad(double load);
+
+   /**
+    * Get the number of times adaptive sizing resized the pool
+    *
+    * @return the resize count
+    */
+   long getAdaptiveResizeCount();
+
+   /**
+    * Get the latest decision of adaptive sizing, including the samples
+    * that kept the size
+    *
+    * @return the decision or null when adaptive sizing is off
+    */
+   String getLastAdaptiveDecision();
+
+   /**
+    * Get the latest resize decisions of adaptive sizing with the samples
+    * they were based on, the oldest first
+    *
+    * @return the decisions
+    */
+   String[] getAdaptiveDecisions();
+
+   /**
+    * Get the average time tasks waited in the queue
+    *
+    * @return the average queue wait time in MS
+    */
+   double getAverageQueueWaitTime();
+
+   /**
+    * Get the maximum time a task waited in the queue
+    *
+    * @return the maximum queue wait time in MS
+    */
+   long getMaximumQueueWaitTime();
+
+   /**
+    * Get the queue wait times as a log2 histogram, element i counting the
+    * waits of at least 2^(i-1) and less than 2^i microseconds.
+    *
+    * @return the histogram
+    */
+   long[] getQueueWaitTimeHistogram();
+
+   /**
+    * Get the average time tasks took to run
+    *
+    * @return the average execution time in MS
+    */
+   double getAverageExecutionTime();
+
+   /**
+    * Get the maximum time a task took to run
+    *
+    * @return the maximum execution time in MS
+    */
+   long getMaximumExecutionTime();
+
+   /**
+    * Get the execution times as a log2 histogram, element i counting the
+    * runs of at least 2^(i-1) and less than 2^i microseconds.
+    *
+    * @return the histogram
+    */
+   long[] getExecutionTimeHistogram();
+
+   /**
+    * Get the number of tasks that have run on the pool threads
+    *
+    * @return the completed task count
+    */
+   long getCompletedTaskCount();
+
+   /**
+    * Get the number of tasks rejected because they did not start within
+    * their start timeout
+    *
+    * @return the start timeout count
+    */
+   long getStartTimeoutCount();
+
+   /**
+    * Get the number of tasks stopped because they did not complete within
+    * their completion timeout
+    *
+    * @return the completion timeout count
+    */
+   long getCompletionTimeoutCount();
+
+   /**
+    * Get the number of times the blocking mode was applied because the
+    * pool was saturated
+    *
+    * @return the rejection count
+    */
+   long getRejectionCount();
+
+   /**
+    * Get the number of times the given blocking mode was applied because
+    * the pool was saturated
+    *
+    * @param mode one of run, wait, discard, discardOldest or abort
+    * @return the rejection count
+    */
+   long getRejectionCount(String mode);
+
+   /**
+    * Whether the CPU time and allocated bytes of the tasks are measured
+    *
+    * @return true when profiling the tasks
+    */
+   boolean isTaskProfiling();
+
+   /**
+    * Measure the thread CPU time and allocated bytes of each task and
+    * aggregate them by task class. When off this costs nothing.
+    *
+    * @param profiling whether to profile the tasks
+    */
+   void setTaskProfiling(boolean profiling);
+
+   /**
+    * Get the execution time above which a profiled task is reported as slow
+    *
+    * @return the threshold in MS, 0 for none
+    */
+   long getSlowTaskThreshold();
+
+   /**
+    * Set the execution time above which a profiled task is reported as slow
+    *
+    * @param threshold the threshold in MS, 0 for none
+    */
+   void setSlowTaskThreshold(long threshold);
+
+   /**
+    * @return the number of task classes reported by {@link #getTopTasks()}
+    */
+   int getTopTaskCount();
+
+   /**
+    * Set the number of task classes reported by {@link #getTopTasks()}
+    *
+    * @param count the number of task classes
+    */
+   void setTopTaskCount(int count);
+
+   /**
+    * Get the profiled task classes that used the most CPU time
+    *
+    * @return the count, time, CPU time and allocated bytes of each task
+    *    class, the most expensive first
+    */
+   String[] getTopTasks();
+
+   /**
+    * @return the number of profiled tasks slower than the threshold
+    */
+   long getSlowTaskCount();
+
+   /**
+    * @return the latest profiled tasks slower than the threshold
+    */
+   String[] getSlowTasks();
+
+   /**
+    * Reset the latency and saturation statistics and the task profiles
+    */
+   void resetStatistics();
+
    // Inner classes -------------------------------------------------
 }
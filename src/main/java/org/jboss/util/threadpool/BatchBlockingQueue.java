@@ -0,0 +1,753 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.lang.reflect.Array;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue that can take a batch of elements under one
+ * lock acquisition.
+ * <p>
+ * The elements are kept in FIFO order in linked nodes with separate put
+ * and take locks, the way LinkedBlockingQueue works, so the submitting
+ * threads do not contend with the pool threads taking tasks.
+ * {@link #offerAll(List)} checks the capacity and adds a whole batch under
+ * the put lock and wakes the consumers once. Iterators work on a snapshot.
+ * </p>
+ * <p>
+ * Subclasses can order the elements differently by overriding the storage
+ * methods. Their storage is not safe for a put and a take at the same
+ * time, so they are created ordered and the put and take locks are then
+ * the same lock, which is held whenever a storage method is called.
+ * </p>
+ * <p>
+ * Once closed the queue refuses new elements, so a pool that is stopping
+ * cannot strand the tasks that are added after it drained the queue.
+ * </p>
+ *
+ * @param <E> the element type
+ * @version $Revision$
+ */
+class BatchBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+   /** The capacity */
+   private final int capacity;
+
+   /** Whether a subclass orders the elements, with a single lock */
+   private final boolean ordered;
+
+   /** The number of elements */
+   private final AtomicInteger count = new AtomicInteger();
+
+   /** The node before the first element, its element is always null */
+   private Node<E> head;
+
+   /** The last node */
+   private Node<E> last;
+
+   /** Held to take elements */
+   private final ReentrantLock takeLock;
+
+   /** Signalled when an element is added */
+   private final Condition notEmpty;
+
+   /** Held to add elements, the take lock when ordered */
+   private final ReentrantLock putLock;
+
+   /** Signalled when an element is removed */
+   private final Condition notFull;
+
+   /** Whether new elements are refused */
+   private volatile boolean closed;
+
+   /**
+    * Create a new FIFO queue
+    *
+    * @param capacity the capacity
+    * @throws IllegalArgumentException for a capacity that is not positive
+    */
+   BatchBlockingQueue(int capacity)
+   {
+      this(capacity, false);
+   }
+
+   /**
+    * Create a new queue
+    *
+    * @param capacity the capacity
+    * @param ordered true when the subclass keeps the elements in its own
+    *    storage, which is then guarded by a single lock
+    * @throws IllegalArgumentException for a capacity that is not positive
+    */
+   BatchBlockingQueue(int capacity, boolean ordered)
+   {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      this.capacity = capacity;
+      this.ordered = ordered;
+      head = last = new Node<E>(null);
+      takeLock = new ReentrantLock();
+      notEmpty = takeLock.newCondition();
+      putLock = ordered ? takeLock : new ReentrantLock();
+      notFull = putLock.newCondition();
+   }
+
+   /**
+    * Add as many of the elements as there is room for, in list order
+    *
+    * @param batch the elements
+    * @return the number of elements added, those at the start of the list,
+    *    none once the queue is closed
+    */
+   int offerAll(List<? extends E> batch)
+   {
+      for (int i = 0; i < batch.size(); ++i)
+      {
+         if (batch.get(i) == null)
+            throw new NullPointerException("Null element at " + i);
+      }
+      int added = 0;
+      int before = -1;
+      putLock.lock();
+      try
+      {
+         if (closed)
+            return 0;
+         while (added < batch.size() && isFull(batch.get(added)) == false)
+         {
+            enqueue(batch.get(added++));
+            int c = count.getAndIncrement();
+            if (before < 0)
+               before = c;
+         }
+         if (added > 0 && before + added < capacity)
+            notFull.signal();
+      }
+      finally
+      {
+         putLock.unlock();
+      }
+      if (before == 0)
+         signalNotEmpty(added > 1);
+      return added;
+   }
+
+   /**
+    * Remove up to the given number of the oldest elements
+    *
+    * @param max the maximum number to remove
+    * @return the removed elements
+    */
+   List<E> discardOldest(int max)
+   {
+      List<E> removed = new ArrayList<E>();
+      int before;
+      takeLock.lock();
+      try
+      {
+         while (removed.size() < max && count.get() > 0)
+         {
+            E e = discardElement();
+            if (e == null)
+               break;
+            removed.add(e);
+         }
+         before = count.getAndAdd(-removed.size());
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+      if (removed.isEmpty() == false)
+         signalNotFull(before, true);
+      return removed;
+   }
+
+   /**
+    * Refuse any new elements, those already queued stay
+    */
+   void close()
+   {
+      putLock.lock();
+      try
+      {
+         closed = true;
+      }
+      finally
+      {
+         putLock.unlock();
+      }
+   }
+
+   /**
+    * @return whether the queue refuses new elements
+    */
+   boolean isClosed()
+   {
+      return closed;
+   }
+
+   public boolean offer(E e)
+   {
+      if (e == null)
+         throw new NullPointerException("Null element");
+      int c;
+      putLock.lock();
+      try
+      {
+         if (closed || isFull(e))
+            return false;
+         enqueue(e);
+         c = count.getAndIncrement();
+         if (c + 1 < capacity)
+            notFull.signal();
+      }
+      finally
+      {
+         putLock.unlock();
+      }
+      if (c == 0)
+         signalNotEmpty(false);
+      return true;
+   }
+
+   public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+   {
+      if (e == null)
+         throw new NullPointerException("Null element");
+      long nanos = unit.toNanos(timeout);
+      int c;
+      putLock.lockInterruptibly();
+      try
+      {
+         while (closed == false && isFull(e))
+         {
+            if (nanos <= 0)
+               return false;
+            nanos = notFull.awaitNanos(nanos);
+         }
+         if (closed)
+            return false;
+         enqueue(e);
+         c = count.getAndIncrement();
+         if (c + 1 < capacity)
+            notFull.signal();
+      }
+      finally
+      {
+         putLock.unlock();
+      }
+      if (c == 0)
+         signalNotEmpty(false);
+      return true;
+   }
+
+   public void put(E e) throws InterruptedException
+   {
+      if (e == null)
+         throw new NullPointerException("Null element");
+      int c;
+      putLock.lockInterruptibly();
+      try
+      {
+         while (isFull(e))
+            notFull.await();
+         enqueue(e);
+         c = count.getAndIncrement();
+         if (c + 1 < capacity)
+            notFull.signal();
+      }
+      finally
+      {
+         putLock.unlock();
+      }
+      if (c == 0)
+         signalNotEmpty(false);
+   }
+
+   public E poll()
+   {
+      if (count.get() == 0)
+         return null;
+      E e = null;
+      int c = -1;
+      takeLock.lock();
+      try
+      {
+         if (count.get() > 0)
+         {
+            e = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1)
+               notEmpty.signal();
+         }
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+      if (c > 0)
+         signalNotFull(c, false);
+      return e;
+   }
+
+   public E poll(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long nanos = unit.toNanos(timeout);
+      E e;
+      int c;
+      takeLock.lockInterruptibly();
+      try
+      {
+         while (count.get() == 0)
+         {
+            if (nanos <= 0)
+               return null;
+            nanos = notEmpty.awaitNanos(nanos);
+         }
+         e = dequeue();
+         c = count.getAndDecrement();
+         if (c > 1)
+            notEmpty.signal();
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+      signalNotFull(c, false);
+      return e;
+   }
+
+   public E take() throws InterruptedException
+   {
+      E e;
+      int c;
+      takeLock.lockInterruptibly();
+      try
+      {
+         while (count.get() == 0)
+            notEmpty.await();
+         e = dequeue();
+         c = count.getAndDecrement();
+         if (c > 1)
+            notEmpty.signal();
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+      signalNotFull(c, false);
+      return e;
+   }
+
+   public E peek()
+   {
+      if (count.get() == 0)
+         return null;
+      takeLock.lock();
+      try
+      {
+         return peekElement();
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+   }
+
+   public int size()
+   {
+      return count.get();
+   }
+
+   public int remainingCapacity()
+   {
+      return capacity - count.get();
+   }
+
+   public boolean remove(Object o)
+   {
+      if (o == null)
+         return false;
+      int c;
+      lock();
+      try
+      {
+         if (removeElement(o) == false)
+            return false;
+         c = count.getAndDecrement();
+      }
+      finally
+      {
+         unlock();
+      }
+      signalNotFull(c, false);
+      return true;
+   }
+
+   public boolean contains(Object o)
+   {
+      if (o == null)
+         return false;
+      lock();
+      try
+      {
+         return containsElement(o);
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   public void clear()
+   {
+      int c;
+      lock();
+      try
+      {
+         clearElements();
+         c = count.getAndSet(0);
+      }
+      finally
+      {
+         unlock();
+      }
+      if (c > 0)
+         signalNotFull(c, true);
+   }
+
+   public Object[] toArray()
+   {
+      lock();
+      try
+      {
+         return toElementArray();
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   public <T> T[] toArray(T[] a)
+   {
+      Object[] snapshot = toArray();
+      T[] result = a.length >= snapshot.length ? a
+         : (T[]) Array.newInstance(a.getClass().getComponentType(), snapshot.length);
+      System.arraycopy(snapshot, 0, result, 0, snapshot.length);
+      if (result.length > snapshot.length)
+         result[snapshot.length] = null;
+      return result;
+   }
+
+   public int drainTo(Collection<? super E> c)
+   {
+      return drainTo(c, Integer.MAX_VALUE);
+   }
+
+   public int drainTo(Collection<? super E> c, int maxElements)
+   {
+      if (c == null)
+         throw new NullPointerException("Null collection");
+      if (c == this)
+         throw new IllegalArgumentException("Cannot drain to self");
+      int drained = 0;
+      int before;
+      takeLock.lock();
+      try
+      {
+         int available = Math.min(maxElements, count.get());
+         while (drained < available)
+         {
+            c.add(dequeue());
+            ++drained;
+         }
+         before = count.getAndAdd(-drained);
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+      if (drained > 0)
+         signalNotFull(before, true);
+      return drained;
+   }
+
+   /**
+    * An iterator over a snapshot of the queue, removing through the queue
+    *
+    * @return the iterator
+    */
+   @SuppressWarnings("unchecked")
+   public Iterator<E> iterator()
+   {
+      final Object[] snapshot = toArray();
+      return new Iterator<E>()
+      {
+         private int next;
+         private int last = -1;
+
+         public boolean hasNext()
+         {
+            return next < snapshot.length;
+         }
+
+         public E next()
+         {
+            if (next >= snapshot.length)
+               throw new NoSuchElementException();
+            last = next++;
+            return (E) snapshot[last];
+         }
+
+         public void remove()
+         {
+            if (last < 0)
+               throw new IllegalStateException();
+            BatchBlockingQueue.this.remove(snapshot[last]);
+            last = -1;
+         }
+      };
+   }
+
+   /**
+    * Check whether an element may be added besides the capacity
+    *
+    * @param e the element
+    * @return true to add it
+    */
+   protected boolean accept(E e)
+   {
+      return true;
+   }
+
+   /**
+    * Add an element, the put lock is held
+    *
+    * @param e the element
+    */
+   protected void enqueue(E e)
+   {
+      Node<E> node = new Node<E>(e);
+      last.next = node;
+      last = node;
+   }
+
+   /**
+    * Remove the element to run next, the take lock is held and the queue
+    * is not empty
+    *
+    * @return the element
+    */
+   protected E dequeue()
+   {
+      Node<E> first = head.next;
+      head.next = head;
+      head = first;
+      E e = first.item;
+      first.item = null;
+      return e;
+   }
+
+   /**
+    * Get the element to run next without removing it, the take lock is held
+    *
+    * @return the element or null when empty
+    */
+   protected E peekElement()
+   {
+      Node<E> first = head.next;
+      return first == null ? null : first.item;
+   }
+
+   /**
+    * Remove the element the discard oldest blocking mode drops, the take
+    * lock is held and the queue is not empty
+    *
+    * @return the element or null when there is none to drop
+    */
+   protected E discardElement()
+   {
+      return dequeue();
+   }
+
+   /**
+    * Remove an element, both locks are held
+    *
+    * @param o the element
+    * @return true when it was removed
+    */
+   protected boolean removeElement(Object o)
+   {
+      for (Node<E> trail = head, p = trail.next; p != null; trail = p, p = p.next)
+      {
+         if (o.equals(p.item))
+         {
+            p.item = null;
+            trail.next = p.next;
+            if (last == p)
+               last = trail;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Check for an element, both locks are held
+    *
+    * @param o the element
+    * @return true when it is queued
+    */
+   protected boolean containsElement(Object o)
+   {
+      for (Node<E> p = head.next; p != null; p = p.next)
+      {
+         if (o.equals(p.item))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * Remove all elements, both locks are held
+    */
+   protected void clearElements()
+   {
+      head.next = null;
+      last = head;
+   }
+
+   /**
+    * Get the elements, both locks are held
+    *
+    * @return the elements in the order they run
+    */
+   protected Object[] toElementArray()
+   {
+      List<Object> result = new ArrayList<Object>(count.get());
+      for (Node<E> p = head.next; p != null; p = p.next)
+         result.add(p.item);
+      return result.toArray();
+   }
+
+   /**
+    * Acquire both locks, for subclasses keeping state with the elements
+    */
+   void lock()
+   {
+      putLock.lock();
+      takeLock.lock();
+   }
+
+   /**
+    * Release both locks
+    */
+   void unlock()
+   {
+      takeLock.unlock();
+      putLock.unlock();
+   }
+
+   /**
+    * Check whether there is no room for an element, the put lock must be held
+    *
+    * @param e the element
+    * @return true when full
+    */
+   private boolean isFull(E e)
+   {
+      return count.get() >= capacity || accept(e) == false;
+   }
+
+   /**
+    * Wake the consumers after adding to an empty queue
+    *
+    * @param all whether to wake them all
+    */
+   private void signalNotEmpty(boolean all)
+   {
+      takeLock.lock();
+      try
+      {
+         if (all)
+            notEmpty.signalAll();
+         else
+            notEmpty.signal();
+      }
+      finally
+      {
+         takeLock.unlock();
+      }
+   }
+
+   /**
+    * Wake the producers after removing elements. An ordered queue may
+    * refuse an element below the capacity, so it always wakes them.
+    *
+    * @param before the number of elements before the removal
+    * @param all whether to wake them all
+    */
+   private void signalNotFull(int before, boolean all)
+   {
+      if (before < capacity && ordered == false)
+         return;
+      putLock.lock();
+      try
+      {
+         if (all)
+            notFull.signalAll();
+         else
+            notFull.signal();
+      }
+      finally
+      {
+         putLock.unlock();
+      }
+   }
+
+   /**
+    * A node of the FIFO list
+    */
+   private static class Node<E>
+   {
+      /** The element, null for the head */
+      E item;
+
+      /** The next node, itself once dequeued */
+      Node<E> next;
+
+      Node(E item)
+      {
+         this.item = item;
+      }
+   }
+}
@@ -109,6 +109,14 @@ public class BlockingMode implements Serializable
       return name;
    }
 
+   /**
+    * @return the XXX_TYPE int of the mode
+    */
+   int getType()
+   {
+      return type;
+   }
+
    /**
     * Overriden to return the indentity instance of BlockingMode based on the
     * stream type int value. This ensures that BlockingMode enums can be
@@ -0,0 +1,418 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A task that completes a {@link TaskFuture}. It runs either a callable or
+ * another task and is run through a {@link BasicTaskWrapper}, whose
+ * notifications complete the future.
+ *
+ * @param <V> the result type
+ * @version $Revision$
+ */
+class CallableTask<V> implements Task, TaskFuture<V>
+{
+   // Constants -----------------------------------------------------
+
+   /** The log */
+   private static final Logger log = Logger.getLogger(CallableTask.class);
+
+   private static final int PENDING = 0;
+   private static final int SUCCEEDED = 1;
+   private static final int FAILED = 2;
+   private static final int CANCELLED = 3;
+
+   // Attributes ----------------------------------------------------
+
+   /** The callable, null when running a task */
+   private final Callable<V> callable;
+
+   /** The task, null when running a callable */
+   private final Task task;
+
+   /** The start timeout */
+   private final long startTimeout;
+
+   /** The completion timeout */
+   private final long completionTimeout;
+
+   /** The wrapper running this task */
+   private final BasicTaskWrapper wrapper;
+
+   /** The result of the callable, set by the running thread */
+   private V callResult;
+
+   /** The failure of the callable, set by the running thread */
+   private Exception callFailure;
+
+   /** The state of the future */
+   private int state = PENDING;
+
+   /** The result */
+   private V result;
+
+   /** The failure */
+   private Throwable failure;
+
+   /** The listeners waiting for completion with their executor */
+   private List<Object[]> listeners = new ArrayList<Object[]>();
+
+   // Static --------------------------------------------------------
+
+   /**
+    * Make a callable of a runnable
+    *
+    * @param runnable the runnable
+    * @return the callable
+    * @throws IllegalArgumentException for a null runnable
+    */
+   static Callable<Void> callable(final Runnable runnable)
+   {
+      if (runnable == null)
+         throw new IllegalArgumentException("Null runnable");
+      return new RunnableCallable(runnable);
+   }
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new task running a callable
+    *
+    * @param callable the callable
+    * @param startTimeout the start timeout
+    * @param completionTimeout the completion timeout
+    * @throws IllegalArgumentException for a null callable
+    */
+   CallableTask(Callable<V> callable, long startTimeout, long completionTimeout)
+   {
+      if (callable == null)
+         throw new IllegalArgumentException("Null callable");
+      this.callable = callable;
+      this.task = null;
+      this.startTimeout = startTimeout;
+      this.completionTimeout = completionTimeout;
+      this.wrapper = new BasicTaskWrapper(this);
+   }
+
+   /**
+    * Create a new task running another task, the future completes with null
+    *
+    * @param task the task
+    * @throws IllegalArgumentException for a null task
+    */
+   CallableTask(Task task)
+   {
+      if (task == null)
+         throw new IllegalArgumentException("Null task");
+      this.callable = null;
+      this.task = task;
+      this.startTimeout = task.getStartTimeout();
+      this.completionTimeout = task.getCompletionTimeout();
+      this.wrapper = new BasicTaskWrapper(this);
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the wrapper to hand to the pool
+    */
+   TaskWrapper getWrapper()
+   {
+      return wrapper;
+   }
+
+   /**
+    * @return the work this runs, the task, the callable or the runnable
+    *    made a callable
+    */
+   Object getTarget()
+   {
+      if (task != null)
+         return task;
+      if (callable instanceof RunnableCallable)
+         return ((RunnableCallable) callable).runnable;
+      return callable;
+   }
+
+   public String toString()
+   {
+      return task != null ? task.toString() : callable.toString();
+   }
+
+   // Task implementation -------------------------------------------
+
+   public int getWaitType()
+   {
+      return task != null ? task.getWaitType() : WAIT_NONE;
+   }
+
+   public int getPriority()
+   {
+      return task != null ? task.getPriority() : Thread.NORM_PRIORITY;
+   }
+
+   public long getStartTimeout()
+   {
+      return startTimeout;
+   }
+
+   public long getCompletionTimeout()
+   {
+      return completionTimeout;
+   }
+
+   public void execute()
+   {
+      if (isCancelled())
+         return;
+      if (task != null)
+      {
+         task.execute();
+         return;
+      }
+      try
+      {
+         callResult = callable.call();
+      }
+      catch (Exception e)
+      {
+         callFailure = e;
+      }
+   }
+
+   public void stop()
+   {
+      try
+      {
+         if (task != null)
+            task.stop();
+      }
+      finally
+      {
+         // Don't keep the callers waiting for the thread to give up
+         complete(FAILED, null, new TaskStoppedException("Task stopped for task " + this));
+      }
+   }
+
+   public void accepted(long time)
+   {
+      if (task != null)
+         task.accepted(time);
+   }
+
+   public void rejected(long time, Throwable t)
+   {
+      try
+      {
+         if (task != null)
+            task.rejected(time, t);
+      }
+      finally
+      {
+         complete(FAILED, null, t != null ? t : new TaskStoppedException("Task rejected: " + this));
+      }
+   }
+
+   public void started(long time)
+   {
+      if (task != null)
+         task.started(time);
+   }
+
+   public void completed(long time, Throwable t)
+   {
+      try
+      {
+         if (task != null)
+            task.completed(time, t);
+      }
+      finally
+      {
+         // The task may end before the pool tells it to stop
+         Throwable cause = t != null ? t : callFailure;
+         if (wrapper.isStopped())
+            complete(FAILED, null, new TaskStoppedException("Task stopped for task " + this));
+         else if (cause != null)
+         {
+            complete(FAILED, null, cause);
+         }
+         else
+         {
+            complete(SUCCEEDED, callResult, null);
+         }
+      }
+   }
+
+   // TaskFuture implementation -------------------------------------
+
+   public boolean cancel(boolean mayInterruptIfRunning)
+   {
+      if (complete(CANCELLED, null, null) == false)
+         return false;
+      if (mayInterruptIfRunning)
+         wrapper.stopTask();
+      return true;
+   }
+
+   public synchronized boolean isCancelled()
+   {
+      return state == CANCELLED;
+   }
+
+   public synchronized boolean isDone()
+   {
+      return state != PENDING;
+   }
+
+   public synchronized V get() throws InterruptedException, ExecutionException
+   {
+      while (state == PENDING)
+         wait();
+      return report();
+   }
+
+   public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+   {
+      long end = System.nanoTime() + unit.toNanos(timeout);
+      while (state == PENDING)
+      {
+         long remaining = end - System.nanoTime();
+         if (remaining <= 0)
+            throw new TimeoutException("Timed out waiting for " + this);
+         TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return report();
+   }
+
+   public void addListener(Runnable listener, Executor executor)
+   {
+      if (listener == null)
+         throw new IllegalArgumentException("Null listener");
+      synchronized (this)
+      {
+         if (state == PENDING)
+         {
+            listeners.add(new Object[] { listener, executor });
+            return;
+         }
+      }
+      notifyListener(listener, executor);
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Complete the future, the first completion wins
+    *
+    * @param newState the new state
+    * @param value the result
+    * @param t the failure
+    * @return true when this completed the future
+    */
+   private boolean complete(int newState, V value, Throwable t)
+   {
+      List<Object[]> waiting;
+      synchronized (this)
+      {
+         if (state != PENDING)
+            return false;
+         state = newState;
+         result = value;
+         failure = t;
+         waiting = listeners;
+         listeners = null;
+         notifyAll();
+      }
+      for (Object[] listener : waiting)
+         notifyListener((Runnable) listener[0], (Executor) listener[1]);
+      return true;
+   }
+
+   /**
+    * Get the result, the caller holds the lock of a complete future
+    *
+    * @return the result
+    * @throws ExecutionException for a failure
+    */
+   private V report() throws ExecutionException
+   {
+      if (state == CANCELLED)
+         throw new CancellationException("Task cancelled: " + this);
+      if (state == FAILED)
+         throw new ExecutionException(failure);
+      return result;
+   }
+
+   /**
+    * Run a listener
+    *
+    * @param listener the listener
+    * @param executor the executor, may be null
+    */
+   private void notifyListener(Runnable listener, Executor executor)
+   {
+      try
+      {
+         if (executor == null)
+            listener.run();
+         else
+            executor.execute(listener);
+      }
+      catch (Throwable t)
+      {
+         log.warn("Unexpected error notifying listener " + listener + " for task: " + this, t);
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A runnable made a callable
+    */
+   private static class RunnableCallable implements Callable<Void>
+   {
+      private final Runnable runnable;
+
+      RunnableCallable(Runnable runnable)
+      {
+         this.runnable = runnable;
+      }
+
+      public Void call()
+      {
+         runnable.run();
+         return null;
+      }
+
+      public String toString()
+      {
+         return runnable.toString();
+      }
+   }
+}
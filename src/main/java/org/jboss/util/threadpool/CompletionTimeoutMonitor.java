@@ -0,0 +1,424 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The monitor runnable which validates that threads are completing within
+ * the task completion timeout limits. Shared by the thread pool
+ * implementations of this package.
+ * <p>
+ * The pending checks are kept in a hashed timing wheel: scheduling and
+ * cancelling a check are queue operations that never contend with the
+ * monitor thread, and the monitor thread only visits the bucket of the
+ * current tick. A check fires up to one resolution late.
+ * </p>
+ *
+ * @author Scott.Stark@jboss.org
+ * @version $Revision$
+ */
+class CompletionTimeoutMonitor implements Runnable
+{
+   /** The default resolution in MS */
+   static final long DEFAULT_RESOLUTION = 100;
+
+   /** The number of buckets of the wheel */
+   private static final int WHEEL_SIZE = 512;
+
+   /** The time to wait for a stopped task to exit its run method */
+   private static final long STOP_CHECK_TIMEOUT = 1000;
+
+   /** The wheel */
+   private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+
+   /** Newly scheduled checks, moved to the wheel by the monitor thread */
+   private final ConcurrentLinkedQueue<TimeoutInfo> scheduled = new ConcurrentLinkedQueue<TimeoutInfo>();
+
+   /** Cancelled checks, removed from the wheel by the monitor thread */
+   private final ConcurrentLinkedQueue<TimeoutInfo> cancelled = new ConcurrentLinkedQueue<TimeoutInfo>();
+
+   /** The tick duration in nanos */
+   private final long tickNanos;
+
+   /** The nanoTime the wheel started at */
+   private final long startTime;
+
+   /** The current tick, only used by the monitor thread */
+   private long tick;
+
+   /** Whether the owning pool has been stopped */
+   private final AtomicBoolean stopped;
+
+   /** The log */
+   private final Logger log;
+
+   /** The statistics of the owning pool, may be null */
+   private final ThreadPoolStatistics statistics;
+
+   /**
+    * Create and start a new monitor thread
+    *
+    * @param name the pool name
+    * @param stopped the stopped flag of the owning pool
+    * @param log the log of the owning pool
+    * @param resolution the tick duration of the wheel in MS
+    * @param statistics the statistics of the owning pool, may be null
+    */
+   CompletionTimeoutMonitor(String name, AtomicBoolean stopped, Logger log, long resolution,
+                            ThreadPoolStatistics statistics)
+   {
+      if (resolution <= 0)
+         throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+      this.stopped = stopped;
+      this.log = log;
+      this.statistics = statistics;
+      this.tickNanos = TimeUnit.MILLISECONDS.toNanos(resolution);
+      for (int i = 0; i < wheel.length; ++i)
+         wheel[i] = new Bucket();
+      this.startTime = System.nanoTime();
+      Thread t = new Thread(this, name+" TimeoutMonitor");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Install a task completion check
+    *
+    * @param wrapper the task wrapper
+    * @param completionTimeout the completion timeout in MS
+    * @return the wrapper to execute, cancelling the check once the task has run
+    */
+   TaskWrapper add(TaskWrapper wrapper, long completionTimeout)
+   {
+      TimeoutInfo info = new TimeoutInfo(this, wrapper);
+      schedule(info, completionTimeout);
+      return info;
+   }
+
+   /** The monitor thread loops until the pool is shutdown. On every tick
+    * it checks the tasks whose completion timeout has passed, interrupts
+    * the associated task thread, and invokes stopTask on the TaskWrapper.
+    * A new timeout check is then inserted with a 1 second timeout to
+    * validate that the TaskWrapper has exited the run method. If it has not,
+    * then the associated task thread is stopped using the deprecated
+    * Thread.stop method since this is the only way to abort a thread that
+    * is in spin loop for example.
+    */
+   public void run()
+   {
+      boolean isStopped = stopped.get();
+      List<TimeoutInfo> expired = new ArrayList<TimeoutInfo>();
+      while( isStopped == false )
+      {
+         try
+         {
+            long now = waitForNextTick();
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & (wheel.length - 1))].expire(now, expired);
+            ++tick;
+            for (int i = 0; i < expired.size(); ++i)
+               checkTask(expired.get(i));
+         }
+         catch(InterruptedException e)
+         {
+            log.debug("Timeout monitor has been interrupted", e);
+         }
+         catch(Throwable e)
+         {
+            log.debug("Timeout monitor saw unexpected error", e);
+         }
+         finally
+         {
+            expired.clear();
+         }
+         isStopped = stopped.get();
+      }
+   }
+
+   /**
+    * Check the status of a task whose completion timeout has passed
+    *
+    * @param info the timeout info
+    */
+   private void checkTask(TimeoutInfo info)
+   {
+      boolean trace = log.isTraceEnabled();
+      TaskWrapper wrapper = info.getTaskWrapper();
+      if( wrapper.isComplete() == false )
+      {
+         if( trace )
+            log.trace("Failed completion check for wrapper="+wrapper);
+         if( info.stopWrappedTask() == true )
+         {
+            if (statistics != null)
+               statistics.completionTimeout();
+            // Requeue the TimeoutInfo to see that the task exits run
+            info.state = TimeoutInfo.ST_INIT;
+            schedule(info, STOP_CHECK_TIMEOUT);
+            if( trace )
+               log.trace("Rescheduled completion check for wrapper="+wrapper);
+         }
+      }
+   }
+
+   /**
+    * Schedule a check
+    *
+    * @param info the timeout info
+    * @param timeout the timeout in MS
+    */
+   private void schedule(TimeoutInfo info, long timeout)
+   {
+      info.deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(timeout);
+      scheduled.add(info);
+   }
+
+   /**
+    * Cancel a check
+    *
+    * @param info the timeout info
+    */
+   void cancel(TimeoutInfo info)
+   {
+      if (TimeoutInfo.stateUpdater.compareAndSet(info, TimeoutInfo.ST_INIT, TimeoutInfo.ST_CANCELLED))
+         cancelled.add(info);
+   }
+
+   /**
+    * Sleep until the start of the next tick
+    *
+    * @return the time relative to the start of the wheel
+    * @throws InterruptedException if interrupted
+    */
+   private long waitForNextTick() throws InterruptedException
+   {
+      long deadline = tickNanos * (tick + 1);
+      while (true)
+      {
+         long now = System.nanoTime() - startTime;
+         long sleepMS = (deadline - now + 999999) / 1000000;
+         if (sleepMS <= 0)
+            return now;
+         Thread.sleep(sleepMS);
+      }
+   }
+
+   /**
+    * Move the newly scheduled checks to their bucket
+    */
+   private void transferScheduled()
+   {
+      TimeoutInfo info;
+      while ((info = scheduled.poll()) != null)
+      {
+         if (info.state == TimeoutInfo.ST_CANCELLED)
+            continue;
+         long calculated = info.deadline / tickNanos;
+         info.remainingRounds = (calculated - tick) / wheel.length;
+         // Ensure we don't schedule for the past
+         long ticks = Math.max(calculated, tick);
+         wheel[(int) (ticks & (wheel.length - 1))].add(info);
+      }
+   }
+
+   /**
+    * Remove the cancelled checks from their bucket
+    */
+   private void removeCancelled()
+   {
+      TimeoutInfo info;
+      while ((info = cancelled.poll()) != null)
+      {
+         if (info.bucket != null)
+            info.bucket.remove(info);
+      }
+   }
+
+   /**
+    * A bucket of the wheel, a doubly linked list only used by the monitor thread
+    */
+   private static class Bucket
+   {
+      private TimeoutInfo head;
+      private TimeoutInfo tail;
+
+      void add(TimeoutInfo info)
+      {
+         info.bucket = this;
+         if (head == null)
+         {
+            head = tail = info;
+         }
+         else
+         {
+            tail.next = info;
+            info.prev = tail;
+            tail = info;
+         }
+      }
+
+      void remove(TimeoutInfo info)
+      {
+         TimeoutInfo next = info.next;
+         if (info.prev != null)
+            info.prev.next = next;
+         if (next != null)
+            next.prev = info.prev;
+         if (info == head)
+            head = next;
+         if (info == tail)
+            tail = info.prev;
+         info.prev = null;
+         info.next = null;
+         info.bucket = null;
+      }
+
+      /**
+       * Remove the checks that are due
+       *
+       * @param now the time relative to the start of the wheel
+       * @param expired the list the due checks are added to
+       */
+      void expire(long now, List<TimeoutInfo> expired)
+      {
+         TimeoutInfo info = head;
+         while (info != null)
+         {
+            TimeoutInfo next = info.next;
+            if (info.remainingRounds <= 0 && info.deadline <= now)
+            {
+               remove(info);
+               if (TimeoutInfo.stateUpdater.compareAndSet(info, TimeoutInfo.ST_INIT, TimeoutInfo.ST_EXPIRED))
+                  expired.add(info);
+            }
+            else
+            {
+               info.remainingRounds--;
+            }
+            info = next;
+         }
+      }
+   }
+
+   /** An encapsulation of a task and its completion timeout. It is the
+    * wrapper handed to the executor so the check is cancelled as soon as
+    * the task has run.
+    */
+   static class TimeoutInfo implements TaskWrapper
+   {
+      static final int ST_INIT = 0;
+      static final int ST_CANCELLED = 1;
+      static final int ST_EXPIRED = 2;
+
+      static final AtomicIntegerFieldUpdater<TimeoutInfo> stateUpdater =
+         AtomicIntegerFieldUpdater.newUpdater(TimeoutInfo.class, "state");
+
+      final CompletionTimeoutMonitor monitor;
+      final TaskWrapper wrapper;
+      volatile int state;
+      long deadline;
+      long remainingRounds;
+      Bucket bucket;
+      TimeoutInfo prev;
+      TimeoutInfo next;
+      boolean firstStop;
+
+      TimeoutInfo(CompletionTimeoutMonitor monitor, TaskWrapper wrapper)
+      {
+         this.monitor = monitor;
+         this.wrapper = wrapper;
+      }
+      TaskWrapper getTaskWrapper()
+      {
+         return wrapper;
+      }
+      /** Invoke stopTask on the wrapper and indicate whether this was the first
+       * time the task has been notified to stop.
+       * @return true if this is the first stopTask, false on the second.
+       */
+      boolean stopWrappedTask()
+      {
+         wrapper.stopTask();
+         boolean wasFirstStop = firstStop == false;
+         firstStop = true;
+         return wasFirstStop;
+      }
+
+      public void run()
+      {
+         try
+         {
+            wrapper.run();
+         }
+         finally
+         {
+            monitor.cancel(this);
+         }
+      }
+      public void rejectTask(RuntimeException e)
+      {
+         monitor.cancel(this);
+         wrapper.rejectTask(e);
+      }
+      public int getTaskWaitType()
+      {
+         return wrapper.getTaskWaitType();
+      }
+      public int getTaskPriority()
+      {
+         return wrapper.getTaskPriority();
+      }
+      public long getTaskStartTimeout()
+      {
+         return wrapper.getTaskStartTimeout();
+      }
+      public long getTaskCompletionTimeout()
+      {
+         return wrapper.getTaskCompletionTimeout();
+      }
+      public void waitForTask()
+      {
+         wrapper.waitForTask();
+      }
+      public void stopTask()
+      {
+         wrapper.stopTask();
+      }
+      public void acceptTask()
+      {
+         wrapper.acceptTask();
+      }
+      public boolean isComplete()
+      {
+         return wrapper.isComplete();
+      }
+      public String toString()
+      {
+         return wrapper.toString();
+      }
+   }
+}
@@ -0,0 +1,466 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded task queue that shares the pool threads fairly between tenants.
+ * <p>
+ * Every task is tagged with the tenant of the thread that first submits
+ * it, its thread group name or its context classloader, and waits in the
+ * FIFO of that tenant. The tag stays with the task wrapper, so the tasks
+ * moved to a recreated queue keep their tenant. The tenants with waiting tasks are served by weighted round
+ * robin: a tenant with weight n has up to n tasks taken before the next
+ * tenant's turn. Besides the overall capacity each tenant has a limit on
+ * its waiting tasks, so one tenant cannot fill the queue for the others.
+ * </p>
+ * <p>
+ * The discard oldest blocking mode drops the oldest task of the submitting
+ * tenant when it is at its limit, otherwise the oldest task of the tenant
+ * with the most waiting tasks.
+ * </p>
+ * <p>
+ * A tenant without waiting tasks is forgotten, along with its rejection
+ * count, once it has been idle for the idle timeout.
+ * </p>
+ *
+ * @version $Revision$
+ */
+class FairShareTaskQueue extends BatchBlockingQueue<Runnable>
+{
+   /** The tenant is the thread group name of the submitting thread */
+   static final String TENANT_THREAD_GROUP = "threadGroup";
+
+   /** The tenant is the context classloader of the submitting thread */
+   static final String TENANT_CONTEXT_CLASSLOADER = "contextClassLoader";
+
+   /** The settings */
+   private final Settings settings;
+
+   /** The tenants by name */
+   private final Map<String, Tenant> tenants = new LinkedHashMap<String, Tenant>();
+
+   /** The tenants waiting for their turn */
+   private final ArrayDeque<Tenant> rotation = new ArrayDeque<Tenant>();
+
+   /** The tenant being served */
+   private Tenant current;
+
+   /** When the idle tenants were last evicted */
+   private long lastEviction = System.currentTimeMillis();
+
+   /**
+    * Create a new fair share queue
+    *
+    * @param capacity the overall capacity
+    * @param settings the tenant settings
+    * @throws IllegalArgumentException for a capacity that is not positive
+    */
+   FairShareTaskQueue(int capacity, Settings settings)
+   {
+      super(capacity, true);
+      this.settings = settings;
+   }
+
+   /**
+    * Get the tenant of the current thread
+    *
+    * @return the tenant name
+    */
+   String currentTenant()
+   {
+      Thread thread = Thread.currentThread();
+      if (TENANT_CONTEXT_CLASSLOADER.equals(settings.tenantSource))
+      {
+         ClassLoader cl = thread.getContextClassLoader();
+         if (cl == null)
+            return "null";
+         return cl.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(cl));
+      }
+      ThreadGroup group = thread.getThreadGroup();
+      return group == null ? "null" : group.getName();
+   }
+
+   /**
+    * Count a rejection against the tenant of the current thread
+    */
+   void rejected()
+   {
+      String name = currentTenant();
+      lock();
+      try
+      {
+         tenant(name).rejections++;
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   /**
+    * @return the names of the known tenants
+    */
+   String[] getTenants()
+   {
+      lock();
+      try
+      {
+         return tenants.keySet().toArray(new String[tenants.size()]);
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   /**
+    * Get the number of waiting tasks of a tenant
+    *
+    * @param name the tenant
+    * @return the number of tasks
+    */
+   int getQueueSize(String name)
+   {
+      lock();
+      try
+      {
+         Tenant tenant = tenants.get(name);
+         return tenant == null ? 0 : tenant.tasks.size();
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   /**
+    * Get the number of rejected tasks of a tenant
+    *
+    * @param name the tenant
+    * @return the number of rejections
+    */
+   long getRejectionCount(String name)
+   {
+      lock();
+      try
+      {
+         Tenant tenant = tenants.get(name);
+         return tenant == null ? 0 : tenant.rejections;
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   /**
+    * Reset the rejection counters
+    */
+   void resetRejectionCounts()
+   {
+      lock();
+      try
+      {
+         for (Tenant tenant : tenants.values())
+            tenant.rejections = 0;
+      }
+      finally
+      {
+         unlock();
+      }
+   }
+
+   protected boolean accept(Runnable e)
+   {
+      Tenant tenant = tenants.get(tenantOf(e));
+      return tenant == null || tenant.tasks.size() < settings.getMaximumQueueSize(tenant.name);
+   }
+
+   protected void enqueue(Runnable e)
+   {
+      Tenant tenant = tenant(tenantOf(e));
+      tenant.tasks.addLast(e);
+      if (tenant.scheduled == false)
+      {
+         tenant.scheduled = true;
+         rotation.addLast(tenant);
+      }
+   }
+
+   protected Runnable dequeue()
+   {
+      Tenant tenant = next();
+      if (tenant == null)
+         return null;
+      if (tenant != current)
+      {
+         // The next tenant's turn
+         if (current != null)
+            rotation.addLast(current);
+         rotation.remove(tenant);
+         current = tenant;
+         tenant.credit = settings.getWeight(tenant.name);
+      }
+      --tenant.credit;
+      return remove(tenant, tenant.tasks.pollFirst());
+   }
+
+   protected Runnable peekElement()
+   {
+      Tenant tenant = next();
+      return tenant == null ? null : tenant.tasks.peekFirst();
+   }
+
+   protected Runnable discardElement()
+   {
+      // A tenant at its limit makes room among its own tasks
+      Tenant own = tenants.get(currentTenant());
+      if (own != null && own.tasks.isEmpty() == false
+          && own.tasks.size() >= settings.getMaximumQueueSize(own.name))
+         return remove(own, own.tasks.pollFirst());
+      Tenant largest = null;
+      for (Tenant tenant : tenants.values())
+      {
+         if (largest == null || tenant.tasks.size() > largest.tasks.size())
+            largest = tenant;
+      }
+      if (largest == null || largest.tasks.isEmpty())
+         return null;
+      return remove(largest, largest.tasks.pollFirst());
+   }
+
+   protected boolean removeElement(Object o)
+   {
+      for (Tenant tenant : tenants.values())
+      {
+         for (Iterator<Runnable> i = tenant.tasks.iterator(); i.hasNext();)
+         {
+            Runnable runnable = i.next();
+            if (runnable.equals(o))
+            {
+               i.remove();
+               remove(tenant, runnable);
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   protected boolean containsElement(Object o)
+   {
+      for (Tenant tenant : tenants.values())
+      {
+         if (tenant.tasks.contains(o))
+            return true;
+      }
+      return false;
+   }
+
+   protected void clearElements()
+   {
+      long now = System.currentTimeMillis();
+      for (Tenant tenant : tenants.values())
+      {
+         tenant.tasks.clear();
+         tenant.scheduled = false;
+         tenant.idleSince = now;
+      }
+      rotation.clear();
+      current = null;
+   }
+
+   protected Object[] toElementArray()
+   {
+      List<Runnable> result = new ArrayList<Runnable>(size());
+      for (Tenant tenant : tenants.values())
+         result.addAll(tenant.tasks);
+      return result.toArray();
+   }
+
+   /**
+    * Find the tenant to take the next task from
+    *
+    * @return the tenant or null when empty
+    */
+   private Tenant next()
+   {
+      if (current != null && current.credit > 0)
+         return current;
+      Tenant next = rotation.peekFirst();
+      return next != null ? next : current;
+   }
+
+   /**
+    * Get the tenant of a task, tagging the task wrapper with the tenant of
+    * the current thread the first time it is queued
+    *
+    * @param runnable the task
+    * @return the tenant name
+    */
+   private String tenantOf(Runnable runnable)
+   {
+      Runnable task = runnable;
+      while (true)
+      {
+         if (task instanceof CompletionTimeoutMonitor.TimeoutInfo)
+            task = ((CompletionTimeoutMonitor.TimeoutInfo) task).getTaskWrapper();
+         else if (task instanceof KeyedThreadPool.KeyedTaskWrapper)
+            task = ((KeyedThreadPool.KeyedTaskWrapper) task).getTaskWrapper();
+         else
+            break;
+      }
+      if (task instanceof BasicTaskWrapper)
+      {
+         BasicTaskWrapper wrapper = (BasicTaskWrapper) task;
+         if (wrapper.getTenant() == null)
+            wrapper.setTenant(currentTenant());
+         return wrapper.getTenant();
+      }
+      if (task instanceof RunnableTaskWrapper)
+      {
+         RunnableTaskWrapper wrapper = (RunnableTaskWrapper) task;
+         if (wrapper.getTenant() == null)
+            wrapper.setTenant(currentTenant());
+         return wrapper.getTenant();
+      }
+      return currentTenant();
+   }
+
+   /**
+    * Get or create a tenant
+    *
+    * @param name the name
+    * @return the tenant
+    */
+   private Tenant tenant(String name)
+   {
+      Tenant tenant = tenants.get(name);
+      if (tenant == null)
+      {
+         long now = System.currentTimeMillis();
+         if (now - lastEviction >= settings.idleTimeout)
+            evictIdle(now);
+         tenant = new Tenant(name, now);
+         tenants.put(name, tenant);
+      }
+      return tenant;
+   }
+
+   /**
+    * Forget the tenants without waiting tasks that have been idle for the
+    * idle timeout
+    *
+    * @param now the current time
+    */
+   private void evictIdle(long now)
+   {
+      lastEviction = now;
+      for (Iterator<Tenant> i = tenants.values().iterator(); i.hasNext();)
+      {
+         Tenant tenant = i.next();
+         if (tenant.tasks.isEmpty() && tenant != current && now - tenant.idleSince >= settings.idleTimeout)
+            i.remove();
+      }
+   }
+
+   /**
+    * Account for a removed task and take the tenant out of the rotation
+    * when it has no more tasks
+    *
+    * @param tenant the tenant
+    * @param runnable the removed task
+    * @return the task
+    */
+   private Runnable remove(Tenant tenant, Runnable runnable)
+   {
+      if (tenant.tasks.isEmpty())
+      {
+         tenant.idleSince = System.currentTimeMillis();
+         tenant.scheduled = false;
+         if (tenant == current)
+            current = null;
+         else
+            rotation.remove(tenant);
+      }
+      return runnable;
+   }
+
+   /**
+    * The tasks of a tenant
+    */
+   private static class Tenant
+   {
+      final String name;
+      final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+      /** Whether the tenant is being served or waiting for its turn */
+      boolean scheduled;
+      /** The tasks left in the current turn */
+      int credit;
+      long rejections;
+      /** When the tenant last ran out of waiting tasks */
+      long idleSince;
+
+      Tenant(String name, long idleSince)
+      {
+         this.name = name;
+         this.idleSince = idleSince;
+      }
+   }
+
+   /**
+    * The tenant settings, kept by the pool across queue changes
+    */
+   static class Settings
+   {
+      /** Where the tenant comes from */
+      volatile String tenantSource = TENANT_THREAD_GROUP;
+
+      /** The default limit of waiting tasks per tenant */
+      volatile int maximumQueueSize = Integer.MAX_VALUE;
+
+      /** The limits by tenant */
+      final ConcurrentHashMap<String, Integer> maximumQueueSizes = new ConcurrentHashMap<String, Integer>();
+
+      /** How long in ms a tenant without waiting tasks is kept */
+      volatile long idleTimeout = 60000;
+
+      /** The weights by tenant */
+      final ConcurrentHashMap<String, Integer> weights = new ConcurrentHashMap<String, Integer>();
+
+      int getMaximumQueueSize(String tenant)
+      {
+         Integer size = maximumQueueSizes.get(tenant);
+         return size == null ? maximumQueueSize : size.intValue();
+      }
+
+      int getWeight(String tenant)
+      {
+         Integer weight = weights.get(tenant);
+         return weight == null ? 1 : weight.intValue();
+      }
+   }
+}
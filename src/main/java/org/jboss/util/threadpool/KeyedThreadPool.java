@@ -0,0 +1,457 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A thread pool that runs the tasks submitted for the same key one after
+ * the other, in submission order, while tasks for different keys run in
+ * parallel.
+ * <p>
+ * A key never holds a pool thread while it has nothing to run: only the
+ * first task of a key is handed to the underlying pool, the others wait in
+ * a per key queue and the next one is handed over when the previous one
+ * completes or is rejected. Every task goes through
+ * {@link ThreadPool#runTaskWrapper(TaskWrapper)} of the underlying pool so
+ * the start and completion timeouts and the blocking mode apply as usual.
+ * Tasks submitted without a key are passed straight through.
+ * </p>
+ * <p>
+ * Keyed tasks always run on a pool thread, a task that waits for start or
+ * completion makes the submitting thread wait for its turn. A task dropped
+ * by a discard blocking mode of the underlying pool is rejected, so its key
+ * moves on to the next task.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class KeyedThreadPool implements ThreadPool
+{
+   // Constants -----------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(KeyedThreadPool.class);
+
+   // Attributes ----------------------------------------------------
+
+   /** The underlying pool */
+   private final ThreadPool pool;
+
+   /** The queues of the keys with a submitted task */
+   private final ConcurrentHashMap<Object, KeyQueue> keys = new ConcurrentHashMap<Object, KeyQueue>();
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new keyed thread pool on a new {@link BasicThreadPool}
+    */
+   public KeyedThreadPool()
+   {
+      this(new BasicThreadPool("KeyedThreadPool"));
+   }
+
+   /**
+    * Create a new keyed thread pool
+    *
+    * @param pool the underlying pool
+    * @throws IllegalArgumentException for a null pool
+    */
+   public KeyedThreadPool(ThreadPool pool)
+   {
+      if (pool == null)
+         throw new IllegalArgumentException("Null pool");
+      this.pool = pool;
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the underlying pool
+    */
+   public ThreadPool getThreadPool()
+   {
+      return pool;
+   }
+
+   /**
+    * Get the number of keys that have a task running or waiting
+    *
+    * @return the number of keys
+    */
+   public int getActiveKeyCount()
+   {
+      return keys.size();
+   }
+
+   /**
+    * Run a task wrapper after the tasks previously submitted for the key
+    *
+    * @param key the key
+    * @param wrapper the task wrapper
+    * @throws IllegalArgumentException for a null key
+    */
+   public void runTaskWrapper(Object key, TaskWrapper wrapper)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Null key");
+      KeyedTaskWrapper keyed = new KeyedTaskWrapper(wrapper);
+      while (true)
+      {
+         KeyQueue queue = keys.get(key);
+         if (queue == null)
+         {
+            queue = new KeyQueue(key);
+            KeyQueue previous = keys.putIfAbsent(key, queue);
+            if (previous != null)
+               queue = previous;
+         }
+         keyed.queue = queue;
+         synchronized (queue)
+         {
+            // Retry if the queue was retired after we looked it up
+            if (queue.retired)
+               continue;
+            if (queue.active)
+            {
+               queue.pending.add(keyed);
+               break;
+            }
+            queue.active = true;
+         }
+         pool.runTaskWrapper(keyed);
+         break;
+      }
+      keyed.waitForCaller();
+   }
+
+   /**
+    * Run a task after the tasks previously submitted for the key
+    *
+    * @param key the key
+    * @param task the task
+    * @throws IllegalArgumentException for a null key or task
+    */
+   public void runTask(Object key, Task task)
+   {
+      runTaskWrapper(key, new BasicTaskWrapper(task));
+   }
+
+   /**
+    * Run a runnable after the tasks previously submitted for the key
+    *
+    * @param key the key
+    * @param runnable the runnable
+    * @throws IllegalArgumentException for a null key or runnable
+    */
+   public void run(Object key, Runnable runnable)
+   {
+      run(key, runnable, 0, 0);
+   }
+
+   /**
+    * Run a runnable after the tasks previously submitted for the key with
+    * start and complete time out set explicitely.
+    *
+    * @param key the key
+    * @param runnable the runnable
+    * @param startTimeout the start timeout
+    * @param completeTimeout the complete timeout
+    * @throws IllegalArgumentException for a null key or runnable
+    */
+   public void run(Object key, Runnable runnable, long startTimeout, long completeTimeout)
+   {
+      runTaskWrapper(key, new RunnableTaskWrapper(runnable, startTimeout, completeTimeout));
+   }
+
+   // ThreadPool ----------------------------------------------------
+
+   public void stop(boolean immediate)
+   {
+      pool.stop(immediate);
+   }
+
+   public void waitForTasks() throws InterruptedException
+   {
+      pool.waitForTasks();
+   }
+
+   public void waitForTasks(long maxWaitTime) throws InterruptedException
+   {
+      pool.waitForTasks(maxWaitTime);
+   }
+
+   public void runTaskWrapper(TaskWrapper wrapper)
+   {
+      pool.runTaskWrapper(wrapper);
+   }
+
+   public void runTask(Task task)
+   {
+      pool.runTask(task);
+   }
+
+   public void run(Runnable runnable)
+   {
+      pool.run(runnable);
+   }
+
+   public void run(Runnable runnable, long startTimeout, long completeTimeout)
+   {
+      pool.run(runnable, startTimeout, completeTimeout);
+   }
+
+   public boolean[] runAll(Collection<? extends Runnable> runnables)
+   {
+      return pool.runAll(runnables);
+   }
+
+   public boolean[] runTasks(Collection<? extends Task> tasks)
+   {
+      return pool.runTasks(tasks);
+   }
+
+   // Object overrides ----------------------------------------------
+
+   public String toString()
+   {
+      return "Keyed" + pool;
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * The task of a key has completed or was rejected, hand the next one to
+    * the pool. Only one thread at a time hands over the tasks of a key, a
+    * task that completes or is rejected while it is being handed over is
+    * picked up by the loop of that thread instead of recursing.
+    *
+    * @param queue the queue of the key
+    */
+   private void taskFinished(KeyQueue queue)
+   {
+      synchronized (queue)
+      {
+         if (queue.submitting)
+         {
+            queue.finishedDuringSubmit = true;
+            return;
+         }
+      }
+      while (true)
+      {
+         KeyedTaskWrapper next;
+         synchronized (queue)
+         {
+            next = queue.pending.poll();
+            if (next == null)
+            {
+               queue.active = false;
+               queue.retired = true;
+               keys.remove(queue.key, queue);
+               return;
+            }
+            queue.submitting = true;
+            queue.finishedDuringSubmit = false;
+         }
+         try
+         {
+            pool.runTaskWrapper(next);
+         }
+         catch (RuntimeException e)
+         {
+            log.warn("Unable to run task for key " + queue.key + ": " + next, e);
+         }
+         synchronized (queue)
+         {
+            queue.submitting = false;
+            if (queue.finishedDuringSubmit == false)
+               return;
+         }
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * The waiting tasks of a key
+    */
+   private static class KeyQueue
+   {
+      final Object key;
+      final LinkedList<KeyedTaskWrapper> pending = new LinkedList<KeyedTaskWrapper>();
+      /** A task of the key has been handed to the pool */
+      boolean active;
+      /** The queue was removed from the keys */
+      boolean retired;
+      /** A thread is handing the next task to the pool */
+      boolean submitting;
+      /** That task finished before the hand over returned */
+      boolean finishedDuringSubmit;
+
+      KeyQueue(Object key)
+      {
+         this.key = key;
+      }
+   }
+
+   /**
+    * Hands the next task of the key over once the wrapped task has run or
+    * was rejected. The pool sees it as a task without wait, the submitting
+    * thread waits in {@link #waitForCaller()}.
+    */
+   class KeyedTaskWrapper implements TaskWrapper
+   {
+      final TaskWrapper wrapper;
+      KeyQueue queue;
+      boolean done;
+
+      KeyedTaskWrapper(TaskWrapper wrapper)
+      {
+         if (wrapper == null)
+            throw new IllegalArgumentException("Null wrapper");
+         this.wrapper = wrapper;
+      }
+
+      TaskWrapper getTaskWrapper()
+      {
+         return wrapper;
+      }
+
+      public void run()
+      {
+         try
+         {
+            wrapper.run();
+         }
+         finally
+         {
+            finished();
+         }
+      }
+
+      public void rejectTask(RuntimeException e)
+      {
+         try
+         {
+            wrapper.rejectTask(e);
+         }
+         finally
+         {
+            finished();
+         }
+      }
+
+      public int getTaskWaitType()
+      {
+         return Task.WAIT_NONE;
+      }
+
+      public int getTaskPriority()
+      {
+         return wrapper.getTaskPriority();
+      }
+
+      public long getTaskStartTimeout()
+      {
+         return wrapper.getTaskStartTimeout();
+      }
+
+      public long getTaskCompletionTimeout()
+      {
+         return wrapper.getTaskCompletionTimeout();
+      }
+
+      public void waitForTask()
+      {
+         // The submitting thread waits in waitForCaller
+      }
+
+      public void stopTask()
+      {
+         wrapper.stopTask();
+      }
+
+      public void acceptTask()
+      {
+         wrapper.acceptTask();
+      }
+
+      public boolean isComplete()
+      {
+         return wrapper.isComplete();
+      }
+
+      public String toString()
+      {
+         return wrapper.toString();
+      }
+
+      /**
+       * Wait according to the wait type of the wrapped task
+       */
+      void waitForCaller()
+      {
+         switch (wrapper.getTaskWaitType())
+         {
+            case Task.WAIT_FOR_START:
+            {
+               wrapper.waitForTask();
+               break;
+            }
+            case Task.WAIT_FOR_COMPLETE:
+            {
+               boolean interrupted = false;
+               synchronized (this)
+               {
+                  while (done == false)
+                  {
+                     try
+                     {
+                        wait();
+                     }
+                     catch (InterruptedException e)
+                     {
+                        interrupted = true;
+                     }
+                  }
+               }
+               if (interrupted)
+                  Thread.currentThread().interrupt();
+               break;
+            }
+            default:
+         }
+      }
+
+      private void finished()
+      {
+         synchronized (this)
+         {
+            if (done)
+               return;
+            done = true;
+            notifyAll();
+         }
+         taskFinished(queue);
+      }
+   }
+}
@@ -0,0 +1,395 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Resizes a {@link BasicThreadPool} to follow its load.
+ * <p>
+ * Every sample interval the controller looks at the tasks completed since
+ * the previous sample. When tasks wait longer than the target queue wait
+ * time, or wait while every thread is busy, the pool grows to the size
+ * Little's law asks for: the arrival rate times the average execution time,
+ * at a utilization of 80%, but at least one thread more and at most twice
+ * the current size. Growing is a hill climb, when the previous step did not
+ * raise the throughput by 5% the controller holds for a few samples instead
+ * of adding threads that only contend. It also holds while the system CPU
+ * load is above the configured maximum. The load is the recent CPU usage
+ * the com.sun.management extension of the operating system MXBean reports
+ * when the runtime has it, otherwise the load average per processor. When the queue is empty and less
+ * than half of the threads were busy the pool shrinks by up to a quarter,
+ * never below what Little's law asks for.
+ * </p>
+ * <p>
+ * The sizes stay within the adaptive bounds of the pool. Setting the
+ * maximum pool size of the pool turns the controller off. The resize
+ * decisions are kept for the management interface.
+ * </p>
+ *
+ * @version $Revision$
+ */
+class PoolSizeController implements Runnable
+{
+   /** The utilization Little's law sizes the pool for */
+   private static final double TARGET_UTILIZATION = 0.8;
+
+   /** The relative throughput gain a grow step has to bring */
+   private static final double MINIMUM_GAIN = 1.05;
+
+   /** The samples to hold after a grow step without gain */
+   private static final int HOLD_SAMPLES = 5;
+
+   /** The number of decisions kept */
+   private static final int HISTORY_SIZE = 20;
+
+   /** com.sun.management.OperatingSystemMXBean.getSystemCpuLoad(), null when not available */
+   private static final Method systemCpuLoad;
+
+   /** com.sun.management.OperatingSystemMXBean.getProcessCpuLoad(), null when not available */
+   private static final Method processCpuLoad;
+
+   static
+   {
+      Method system = null;
+      Method process = null;
+      try
+      {
+         Class<?> type = Class.forName("com.sun.management.OperatingSystemMXBean");
+         if (type.isInstance(ManagementFactory.getOperatingSystemMXBean()))
+         {
+            system = type.getMethod("getSystemCpuLoad");
+            process = type.getMethod("getProcessCpuLoad");
+         }
+      }
+      catch (Throwable t)
+      {
+         Logger.getLogger(PoolSizeController.class).debug("The cpu usage is not available, using the load average: " + t);
+         system = null;
+         process = null;
+      }
+      systemCpuLoad = system;
+      processCpuLoad = process;
+   }
+
+   /** The pool */
+   private final BasicThreadPool pool;
+
+   /** Whether the owning pool has been stopped */
+   private final AtomicBoolean stopped;
+
+   /** The log */
+   private final Logger log;
+
+   /** The controller thread */
+   private final Thread thread;
+
+   /** Whether the controller has been shut down */
+   private volatile boolean shutdown;
+
+   /** The number of resizes */
+   private final AtomicLong resizes = new AtomicLong();
+
+   /** The latest decisions, the oldest first */
+   private final LinkedList<String> history = new LinkedList<String>();
+
+   /** The latest decision, including holds */
+   private volatile String lastDecision = "none";
+
+   /** The counters at the previous sample */
+   private long lastCompleted;
+   private long lastExecutionTotal;
+   private long lastWaits;
+   private long lastWaitTotal;
+   private int lastQueued;
+
+   /** The throughput at the previous sample, tasks per second */
+   private double lastThroughput;
+
+   /** Whether the previous sample grew the pool */
+   private boolean lastGrew;
+
+   /** The samples left to hold */
+   private int hold;
+
+   /** The time format of the decisions, only used by the controller thread */
+   private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+
+   /**
+    * Create and start a new controller thread
+    *
+    * @param pool the pool
+    * @param stopped the stopped flag of the pool
+    * @param log the log of the pool
+    */
+   PoolSizeController(BasicThreadPool pool, AtomicBoolean stopped, Logger log)
+   {
+      this.pool = pool;
+      this.stopped = stopped;
+      this.log = log;
+      ThreadPoolStatistics statistics = pool.getStatistics();
+      lastCompleted = statistics.getExecutionTime().getCount();
+      lastExecutionTotal = statistics.getExecutionTime().getTotal();
+      lastWaits = statistics.getQueueWaitTime().getCount();
+      lastWaitTotal = statistics.getQueueWaitTime().getTotal();
+      lastQueued = pool.getQueueSize();
+      thread = new Thread(this, pool.getName() + " PoolSizeController");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Sample the pool every sample interval until the pool or the controller
+    * is stopped
+    */
+   public void run()
+   {
+      long last = System.nanoTime();
+      while (shutdown == false && stopped.get() == false)
+      {
+         try
+         {
+            Thread.sleep(pool.getAdaptiveSampleInterval());
+            long now = System.nanoTime();
+            if (shutdown == false)
+               sample(now - last);
+            last = now;
+         }
+         catch (InterruptedException e)
+         {
+            if (shutdown == false)
+               log.debug("Pool size controller has been interrupted", e);
+         }
+         catch (Throwable e)
+         {
+            log.debug("Pool size controller saw unexpected error", e);
+         }
+      }
+   }
+
+   /**
+    * Stop the controller thread
+    */
+   void shutdown()
+   {
+      shutdown = true;
+      thread.interrupt();
+   }
+
+   /**
+    * @return the number of resizes
+    */
+   long getResizeCount()
+   {
+      return resizes.get();
+   }
+
+   /**
+    * @return the latest decision
+    */
+   String getLastDecision()
+   {
+      return lastDecision;
+   }
+
+   /**
+    * @return the latest resize decisions, the oldest first
+    */
+   String[] getDecisions()
+   {
+      synchronized (history)
+      {
+         return history.toArray(new String[history.size()]);
+      }
+   }
+
+   /**
+    * Take a sample and resize the pool when needed
+    *
+    * @param elapsed the nanos since the previous sample
+    */
+   void sample(long elapsed)
+   {
+      ThreadPoolStatistics statistics = pool.getStatistics();
+      long completed = statistics.getExecutionTime().getCount();
+      long executionTotal = statistics.getExecutionTime().getTotal();
+      long waits = statistics.getQueueWaitTime().getCount();
+      long waitTotal = statistics.getQueueWaitTime().getTotal();
+      int queued = pool.getQueueSize();
+
+      long deltaCompleted = completed - lastCompleted;
+      long deltaExecution = executionTotal - lastExecutionTotal;
+      long deltaWaits = waits - lastWaits;
+      long deltaWait = waitTotal - lastWaitTotal;
+      int deltaQueued = queued - lastQueued;
+      lastCompleted = completed;
+      lastExecutionTotal = executionTotal;
+      lastWaits = waits;
+      lastWaitTotal = waitTotal;
+      lastQueued = queued;
+      // The statistics were reset
+      if (deltaCompleted < 0 || deltaExecution < 0 || deltaWaits < 0 || deltaWait < 0 || elapsed <= 0)
+         return;
+
+      double seconds = elapsed / 1000000000.0;
+      double throughput = deltaCompleted / seconds;
+      double executionTime = deltaCompleted == 0 ? 0 : (double) deltaExecution / deltaCompleted;
+      double waitTime = deltaWaits == 0 ? 0 : (double) deltaWait / deltaWaits;
+      // Little's law, the average number of busy threads is the throughput times the execution time
+      double busy = deltaExecution / (seconds * 1000000);
+      double arrivals = Math.max(0, (deltaCompleted + deltaQueued) / seconds);
+      int needed = (int) Math.ceil(arrivals * executionTime / 1000000 / TARGET_UTILIZATION);
+      double cpu = getCpuLoad();
+
+      int size = pool.getMaximumPoolSize();
+      int minimum = pool.getAdaptiveMinimumPoolSize();
+      int maximum = Math.max(minimum, pool.getAdaptiveMaximumPoolSize());
+      boolean saturated = waitTime > TimeUnit.MILLISECONDS.toMicros(pool.getAdaptiveTargetQueueWaitTime())
+         || (queued > 0 && pool.getActiveCount() >= size);
+
+      int target = size;
+      String reason;
+      if (size < minimum || size > maximum)
+      {
+         target = Math.min(maximum, Math.max(minimum, size));
+         reason = "outside the bounds " + minimum + "-" + maximum;
+      }
+      else if (saturated)
+      {
+         if (size >= maximum)
+         {
+            reason = "saturated at the maximum size";
+         }
+         else if (cpu >= pool.getAdaptiveMaximumCpuLoad())
+         {
+            reason = "saturated but the cpu load is too high";
+         }
+         else if (hold > 0)
+         {
+            --hold;
+            reason = "saturated, holding after a step without gain";
+         }
+         else if (lastGrew && throughput < lastThroughput * MINIMUM_GAIN)
+         {
+            hold = HOLD_SAMPLES;
+            reason = "saturated, the last step did not raise the throughput";
+         }
+         else
+         {
+            int limit = Math.min(maximum, size * 2);
+            target = Math.min(limit, Math.max(size + 1, needed));
+            reason = "saturated";
+         }
+      }
+      else if (queued == 0 && busy < size * 0.5 && size > minimum)
+      {
+         hold = 0;
+         int step = Math.max(1, size / 4);
+         target = Math.max(minimum, Math.max(needed, size - step));
+         reason = "under used";
+      }
+      else
+      {
+         reason = "steady";
+      }
+
+      StringBuilder buffer = new StringBuilder();
+      buffer.append(format.format(new Date())).append(' ');
+      if (target > size)
+         buffer.append("grow ").append(size).append("->").append(target);
+      else if (target < size)
+         buffer.append("shrink ").append(size).append("->").append(target);
+      else
+         buffer.append("hold ").append(size);
+      buffer.append(": ").append(reason);
+      buffer.append(" (throughput=").append(Math.round(throughput)).append("/s");
+      buffer.append(" queueWait=").append(Math.round(waitTime / 1000)).append("ms");
+      buffer.append(" execution=").append(Math.round(executionTime / 1000)).append("ms");
+      buffer.append(" busy=").append(Math.round(busy * 10) / 10.0);
+      buffer.append(" queued=").append(queued);
+      if (cpu >= 0)
+         buffer.append(" cpu=").append(Math.round(cpu * 100)).append('%');
+      buffer.append(')');
+      String decision = buffer.toString();
+      lastDecision = decision;
+
+      if (target != size)
+      {
+         // Not after an explicit maximum pool size turned the controller off
+         synchronized (pool)
+         {
+            if (shutdown)
+               return;
+            resizes.incrementAndGet();
+            synchronized (history)
+            {
+               history.add(decision);
+               if (history.size() > HISTORY_SIZE)
+                  history.removeFirst();
+            }
+            pool.resize(target);
+         }
+         log.debug(pool + " " + decision);
+      }
+      else if (log.isTraceEnabled())
+      {
+         log.trace(pool + " " + decision);
+      }
+      lastGrew = target > size;
+      lastThroughput = throughput;
+   }
+
+   /**
+    * Get the recent system CPU usage, or the process CPU usage when that is
+    * not known, falling back to the system load average per processor
+    *
+    * @return the load, or a negative value when it is not available
+    */
+   private static double getCpuLoad()
+   {
+      OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+      if (systemCpuLoad != null)
+      {
+         try
+         {
+            double load = ((Double) systemCpuLoad.invoke(os)).doubleValue();
+            if (load < 0)
+               load = ((Double) processCpuLoad.invoke(os)).doubleValue();
+            if (load >= 0)
+               return load;
+         }
+         catch (Exception ignored)
+         {
+         }
+      }
+      double load = os.getSystemLoadAverage();
+      if (load < 0)
+         return load;
+      return load / os.getAvailableProcessors();
+   }
+}
@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A bounded task queue ordered by {@link TaskWrapper#getTaskPriority()},
+ * the highest priority first and FIFO within a priority. Runnables that are
+ * not task wrappers have the normal thread priority.
+ * <p>
+ * With an aging interval a waiting task gains one priority level for every
+ * interval it waited, so low priority tasks are not starved by a steady
+ * stream of high priority ones. Each priority level is a FIFO so its head
+ * is its oldest task, taking a task only compares the heads of the levels.
+ * </p>
+ * <p>
+ * The discard oldest blocking mode drops the oldest task of the lowest
+ * priority instead of the task that would run next.
+ * </p>
+ *
+ * @version $Revision$
+ */
+class PriorityTaskQueue extends BatchBlockingQueue<Runnable>
+{
+   /** The levels by priority, the highest first */
+   private final TreeMap<Integer, ArrayDeque<Entry>> levels =
+      new TreeMap<Integer, ArrayDeque<Entry>>(Collections.<Integer>reverseOrder());
+
+   /** The aging interval in MS, 0 for no aging */
+   private volatile long agingInterval;
+
+   /**
+    * Create a new priority queue
+    *
+    * @param capacity the capacity
+    * @param agingInterval the wait in MS that raises a task one priority
+    *    level, 0 for no aging
+    * @throws IllegalArgumentException for a capacity that is not positive
+    *    or a negative aging interval
+    */
+   PriorityTaskQueue(int capacity, long agingInterval)
+   {
+      super(capacity, true);
+      setAgingInterval(agingInterval);
+   }
+
+   /**
+    * @return the aging interval in MS
+    */
+   long getAgingInterval()
+   {
+      return agingInterval;
+   }
+
+   /**
+    * Set the aging interval
+    *
+    * @param agingInterval the wait in MS that raises a task one priority
+    *    level, 0 for no aging
+    */
+   void setAgingInterval(long agingInterval)
+   {
+      if (agingInterval < 0)
+         throw new IllegalArgumentException("Aging interval must not be negative: " + agingInterval);
+      this.agingInterval = agingInterval;
+   }
+
+   protected void enqueue(Runnable e)
+   {
+      int priority = Thread.NORM_PRIORITY;
+      if (e instanceof TaskWrapper)
+         priority = ((TaskWrapper) e).getTaskPriority();
+      ArrayDeque<Entry> level = levels.get(priority);
+      if (level == null)
+      {
+         level = new ArrayDeque<Entry>();
+         levels.put(priority, level);
+      }
+      level.addLast(new Entry(e, priority, System.currentTimeMillis()));
+   }
+
+   protected Runnable dequeue()
+   {
+      ArrayDeque<Entry> level = next();
+      if (level == null)
+         return null;
+      return remove(level, level.pollFirst());
+   }
+
+   protected Runnable peekElement()
+   {
+      ArrayDeque<Entry> level = next();
+      return level == null ? null : level.peekFirst().runnable;
+   }
+
+   protected Runnable discardElement()
+   {
+      if (levels.isEmpty())
+         return null;
+      ArrayDeque<Entry> level = levels.lastEntry().getValue();
+      return remove(level, level.pollFirst());
+   }
+
+   protected boolean removeElement(Object o)
+   {
+      for (ArrayDeque<Entry> level : levels.values())
+      {
+         for (Iterator<Entry> i = level.iterator(); i.hasNext();)
+         {
+            Entry entry = i.next();
+            if (entry.runnable.equals(o))
+            {
+               i.remove();
+               remove(level, entry);
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   protected boolean containsElement(Object o)
+   {
+      for (ArrayDeque<Entry> level : levels.values())
+      {
+         for (Entry entry : level)
+         {
+            if (entry.runnable.equals(o))
+               return true;
+         }
+      }
+      return false;
+   }
+
+   protected void clearElements()
+   {
+      levels.clear();
+   }
+
+   protected Object[] toElementArray()
+   {
+      List<Runnable> result = new ArrayList<Runnable>(size());
+      for (ArrayDeque<Entry> level : levels.values())
+      {
+         for (Entry entry : level)
+            result.add(entry.runnable);
+      }
+      return result.toArray();
+   }
+
+   /**
+    * Find the level whose head runs next: the highest priority after aging,
+    * the oldest on a tie
+    *
+    * @return the level or null when empty
+    */
+   private ArrayDeque<Entry> next()
+   {
+      if (levels.isEmpty())
+         return null;
+      long aging = agingInterval;
+      if (aging == 0)
+         return levels.firstEntry().getValue();
+      long now = System.currentTimeMillis();
+      ArrayDeque<Entry> best = null;
+      long bestScore = 0;
+      long bestTime = 0;
+      for (Map.Entry<Integer, ArrayDeque<Entry>> entry : levels.entrySet())
+      {
+         Entry head = entry.getValue().peekFirst();
+         // One level per aging interval waited, kept in MS to avoid rounding
+         long score = head.priority * aging + (now - head.time);
+         if (best == null || score > bestScore || (score == bestScore && head.time < bestTime))
+         {
+            best = entry.getValue();
+            bestScore = score;
+            bestTime = head.time;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Account for a removed entry and drop its level when empty
+    *
+    * @param level the level
+    * @param entry the removed entry
+    * @return the runnable of the entry
+    */
+   private Runnable remove(ArrayDeque<Entry> level, Entry entry)
+   {
+      if (level.isEmpty())
+         levels.remove(entry.priority);
+      return entry.runnable;
+   }
+
+   /**
+    * A queued runnable
+    */
+   private static class Entry
+   {
+      final Runnable runnable;
+      final int priority;
+      final long time;
+
+      Entry(Runnable runnable, int priority, long time)
+      {
+         this.runnable = runnable;
+         this.priority = priority;
+         this.time = time;
+      }
+   }
+}
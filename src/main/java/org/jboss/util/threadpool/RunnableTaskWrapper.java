@@ -42,6 +42,12 @@ public class RunnableTaskWrapper implements TaskWrapper
    private long startTimeout;
    /** The completion timeout */
    private long completionTimeout;
+   /** The statistics of the pool running the task */
+   private ThreadPoolStatistics statistics;
+   /** The nanoTime the task was queued */
+   private long queuedTime;
+   /** The fair share tenant that first queued the task */
+   private String tenant;
 
    // Static --------------------------------------------------------
 
@@ -131,6 +137,43 @@ public class RunnableTaskWrapper implements TaskWrapper
       return started == true && runThread == null;
    }
 
+   /**
+    * Set the statistics of the pool the task is queued to
+    *
+    * @param statistics the statistics
+    */
+   void setStatistics(ThreadPoolStatistics statistics)
+   {
+      this.statistics = statistics;
+      this.queuedTime = System.nanoTime();
+   }
+
+   /**
+    * @return the fair share tenant that first queued the task, null before
+    */
+   String getTenant()
+   {
+      return tenant;
+   }
+
+   /**
+    * Set the fair share tenant that first queued the task
+    *
+    * @param tenant the tenant
+    */
+   void setTenant(String tenant)
+   {
+      this.tenant = tenant;
+   }
+
+   /**
+    * @return the runnable
+    */
+   Runnable getRunnable()
+   {
+      return runnable;
+   }
+
    public void run()
    {
       boolean trace = log.isTraceEnabled();
@@ -140,6 +183,8 @@ public class RunnableTaskWrapper implements TaskWrapper
             log.trace("Begin run, wrapper="+this);
          runThread = Thread.currentThread();
          started = true;
+         if (statistics != null)
+            statistics.queueWait(System.nanoTime() - queuedTime);
          runnable.run();
          runThread = null;
          if( trace )
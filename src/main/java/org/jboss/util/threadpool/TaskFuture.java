@@ -0,0 +1,54 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * The result of a task submitted to a thread pool.
+ * <p>
+ * The future is completed by the pool when the task ends. It completes
+ * with the task's failure when the task throws, with a
+ * {@link StartTimeoutException} or {@link TaskStoppedException} when the
+ * task was rejected or stopped for exceeding its start or completion timeout,
+ * and with a {@link ThreadPoolFullException} or
+ * {@link ThreadPoolStoppedException} when the pool did not take it. In every
+ * failure case {@link #get()} throws an ExecutionException with that cause.
+ * </p>
+ * <p>
+ * Listeners let follow up work run when the task ends without a thread
+ * waiting for it.
+ * </p>
+ *
+ * @param <V> the result type
+ * @version $Revision$
+ */
+public interface TaskFuture<V> extends Future<V>
+{
+   /**
+    * Register a listener that is run once the future is complete. When the
+    * future is already complete the listener is run straight away.
+    *
+    * @param listener the listener
+    * @param executor the executor to run the listener with, or null to run
+    *    it on the thread completing the future
+    * @throws IllegalArgumentException for a null listener
+    */
+   void addListener(Runnable listener, Executor executor);
+}
@@ -0,0 +1,446 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Measures the wall clock time, thread CPU time and allocated bytes of the
+ * tasks run by a pool, aggregated by task class.
+ * <p>
+ * The CPU time comes from the {@link ThreadMXBean}, the allocated bytes
+ * from the HotSpot extension of it when the runtime has one. Measurements
+ * the runtime does not support, like the CPU time of virtual threads, are
+ * left out. The number of task classes kept is bounded, the tasks of any
+ * further classes are added to an "other" entry.
+ * </p>
+ * <p>
+ * Tasks that run longer than the slow task threshold are logged and the
+ * latest of them kept for the management interface, along with their CPU
+ * time and allocated bytes to tell the tasks burning CPU from the tasks
+ * waiting.
+ * </p>
+ *
+ * @version $Revision$
+ */
+class TaskProfiler
+{
+   /** The maximum number of task classes kept */
+   static final int MAXIMUM_TASK_CLASSES = 1000;
+
+   /** The entry of the task classes over the maximum */
+   static final String OTHER = "other";
+
+   /** The number of slow tasks kept */
+   private static final int HISTORY_SIZE = 20;
+
+   /** The thread management */
+   private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+   /** com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), null when not available */
+   private static final Method allocatedBytes;
+
+   static
+   {
+      Method m = null;
+      try
+      {
+         Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+         if (type.isInstance(threads))
+         {
+            m = type.getMethod("getThreadAllocatedBytes", long.class);
+            Method supported = type.getMethod("isThreadAllocatedMemorySupported");
+            if (Boolean.TRUE.equals(supported.invoke(threads)) == false)
+               m = null;
+         }
+      }
+      catch (Throwable ignored)
+      {
+         m = null;
+      }
+      allocatedBytes = m;
+   }
+
+   /** The log */
+   private final Logger log;
+
+   /** The profiles by task class name */
+   private final ConcurrentHashMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+
+   /** The measurements at the start of the current task of each thread */
+   private final ThreadLocal<long[]> start = new ThreadLocal<long[]>()
+   {
+      protected long[] initialValue()
+      {
+         return new long[3];
+      }
+   };
+
+   /** Whether the thread CPU time is measured */
+   private final boolean cpuTime;
+
+   /** Whether the allocated bytes are measured */
+   private final boolean allocation;
+
+   /** The execution time in nanos above which a task is slow, 0 for none */
+   private volatile long slowTaskThreshold;
+
+   /** The number of slow tasks */
+   private final AtomicLong slowTasks = new AtomicLong();
+
+   /** The latest slow tasks, the oldest first */
+   private final LinkedList<String> history = new LinkedList<String>();
+
+   /**
+    * Create a new profiler, enabling the thread CPU time and allocation
+    * measurement of the runtime when they are supported but disabled
+    *
+    * @param log the log
+    * @param slowTaskThreshold the execution time in MS above which a task
+    *    is slow, 0 for none
+    */
+   TaskProfiler(Logger log, long slowTaskThreshold)
+   {
+      this.log = log;
+      setSlowTaskThreshold(slowTaskThreshold);
+      boolean cpu = false;
+      try
+      {
+         if (threads.isCurrentThreadCpuTimeSupported())
+         {
+            if (threads.isThreadCpuTimeEnabled() == false)
+               threads.setThreadCpuTimeEnabled(true);
+            cpu = true;
+         }
+      }
+      catch (Exception e)
+      {
+         log.debug("Unable to enable thread CPU time measurement: " + e);
+      }
+      cpuTime = cpu;
+      boolean alloc = false;
+      if (allocatedBytes != null)
+      {
+         try
+         {
+            Class<?> type = allocatedBytes.getDeclaringClass();
+            if (Boolean.TRUE.equals(type.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)) == false)
+               type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, Boolean.TRUE);
+            alloc = true;
+         }
+         catch (Exception e)
+         {
+            log.debug("Unable to enable thread allocation measurement: " + e);
+         }
+      }
+      allocation = alloc;
+   }
+
+   /**
+    * @return whether the thread CPU time is measured
+    */
+   boolean isCpuTimeMeasured()
+   {
+      return cpuTime;
+   }
+
+   /**
+    * @return whether the allocated bytes are measured
+    */
+   boolean isAllocationMeasured()
+   {
+      return allocation;
+   }
+
+   /**
+    * @return the execution time in MS above which a task is slow
+    */
+   long getSlowTaskThreshold()
+   {
+      return slowTaskThreshold / 1000000;
+   }
+
+   /**
+    * Set the slow task threshold
+    *
+    * @param threshold the execution time in MS above which a task is slow,
+    *    0 for none
+    */
+   void setSlowTaskThreshold(long threshold)
+   {
+      if (threshold < 0)
+         throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+      slowTaskThreshold = threshold * 1000000;
+   }
+
+   /**
+    * Take the measurements at the start of a task on the current thread
+    */
+   void begin()
+   {
+      long[] sample = start.get();
+      sample[1] = cpuTime ? threads.getCurrentThreadCpuTime() : -1;
+      sample[2] = allocation ? currentAllocatedBytes() : -1;
+      sample[0] = System.nanoTime();
+   }
+
+   /**
+    * Take the measurements at the end of a task on the current thread
+    *
+    * @param runnable the task
+    */
+   void end(Runnable runnable)
+   {
+      long[] sample = start.get();
+      // Profiling was turned on while the task ran
+      if (sample[0] == 0)
+         return;
+      long time = System.nanoTime() - sample[0];
+      sample[0] = 0;
+      long cpu = -1;
+      if (sample[1] >= 0)
+      {
+         long now = threads.getCurrentThreadCpuTime();
+         if (now >= 0)
+            cpu = now - sample[1];
+      }
+      long bytes = -1;
+      if (sample[2] >= 0)
+      {
+         long now = currentAllocatedBytes();
+         if (now >= 0)
+            bytes = now - sample[2];
+      }
+
+      String type = getTaskClass(runnable);
+      profile(type).record(time, cpu, bytes);
+
+      long threshold = slowTaskThreshold;
+      if (threshold > 0 && time > threshold)
+         slow(type, runnable, time, cpu, bytes);
+   }
+
+   /**
+    * Get the task classes that used the most CPU time, or execution time
+    * when the CPU time is not measured
+    *
+    * @param count the maximum number of task classes
+    * @return a description of each task class, the most expensive first
+    */
+   String[] getTopTasks(int count)
+   {
+      List<Profile> sorted = new ArrayList<Profile>(profiles.values());
+      Collections.sort(sorted, new Comparator<Profile>()
+      {
+         public int compare(Profile p1, Profile p2)
+         {
+            long c1 = p1.cpuTime.get() > 0 ? p1.cpuTime.get() : p1.time.get();
+            long c2 = p2.cpuTime.get() > 0 ? p2.cpuTime.get() : p2.time.get();
+            return c1 > c2 ? -1 : c1 < c2 ? 1 : 0;
+         }
+      });
+      int size = Math.min(count, sorted.size());
+      String[] result = new String[size];
+      for (int i = 0; i < size; ++i)
+         result[i] = sorted.get(i).toString();
+      return result;
+   }
+
+   /**
+    * @return the number of slow tasks
+    */
+   long getSlowTaskCount()
+   {
+      return slowTasks.get();
+   }
+
+   /**
+    * @return the latest slow tasks, the oldest first
+    */
+   String[] getSlowTasks()
+   {
+      synchronized (history)
+      {
+         return history.toArray(new String[history.size()]);
+      }
+   }
+
+   /**
+    * Forget the measurements
+    */
+   void reset()
+   {
+      profiles.clear();
+      slowTasks.set(0);
+      synchronized (history)
+      {
+         history.clear();
+      }
+   }
+
+   /**
+    * Get the class of the work a runnable of the pool runs, looking
+    * through the completion timeout and keyed wrappers
+    *
+    * @param runnable the runnable
+    * @return the class name
+    */
+   static String getTaskClass(Runnable runnable)
+   {
+      Object target = runnable;
+      while (true)
+      {
+         if (target instanceof CompletionTimeoutMonitor.TimeoutInfo)
+            target = ((CompletionTimeoutMonitor.TimeoutInfo) target).getTaskWrapper();
+         else if (target instanceof KeyedThreadPool.KeyedTaskWrapper)
+            target = ((KeyedThreadPool.KeyedTaskWrapper) target).getTaskWrapper();
+         else
+            break;
+      }
+      if (target instanceof BasicTaskWrapper)
+      {
+         target = ((BasicTaskWrapper) target).getTask();
+         if (target instanceof CallableTask)
+            target = ((CallableTask<?>) target).getTarget();
+      }
+      else if (target instanceof RunnableTaskWrapper)
+      {
+         target = ((RunnableTaskWrapper) target).getRunnable();
+      }
+      return target.getClass().getName();
+   }
+
+   /**
+    * Get or create the profile of a task class
+    *
+    * @param type the task class
+    * @return the profile
+    */
+   private Profile profile(String type)
+   {
+      Profile profile = profiles.get(type);
+      if (profile != null)
+         return profile;
+      if (profiles.size() >= MAXIMUM_TASK_CLASSES)
+         type = OTHER;
+      profile = new Profile(type);
+      Profile existing = profiles.putIfAbsent(type, profile);
+      return existing != null ? existing : profile;
+   }
+
+   /**
+    * Record a slow task
+    */
+   private void slow(String type, Runnable runnable, long time, long cpu, long bytes)
+   {
+      StringBuffer buffer = new StringBuffer();
+      buffer.append(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()));
+      buffer.append(' ').append(type).append(" took ").append(time / 1000000).append("ms");
+      if (cpu >= 0)
+         buffer.append(" cpu=").append(cpu / 1000000).append("ms");
+      if (bytes >= 0)
+         buffer.append(" allocated=").append(bytes);
+      buffer.append(" task=").append(runnable);
+      String message = buffer.toString();
+      log.warn("Slow task: " + message);
+      synchronized (history)
+      {
+         history.addLast(message);
+         if (history.size() > HISTORY_SIZE)
+            history.removeFirst();
+      }
+      // Counted once it is in the history, readers that see the count see the task
+      slowTasks.incrementAndGet();
+   }
+
+   /**
+    * @return the bytes allocated by the current thread or -1
+    */
+   private long currentAllocatedBytes()
+   {
+      try
+      {
+         return ((Long) allocatedBytes.invoke(threads, Long.valueOf(Thread.currentThread().getId()))).longValue();
+      }
+      catch (Exception e)
+      {
+         return -1;
+      }
+   }
+
+   /**
+    * The measurements of a task class
+    */
+   private static class Profile
+   {
+      final String type;
+      final AtomicLong count = new AtomicLong();
+      final AtomicLong time = new AtomicLong();
+      final AtomicLong maximumTime = new AtomicLong();
+      final AtomicLong cpuTime = new AtomicLong();
+      final AtomicLong allocatedBytes = new AtomicLong();
+
+      Profile(String type)
+      {
+         this.type = type;
+      }
+
+      void record(long nanos, long cpu, long bytes)
+      {
+         count.incrementAndGet();
+         time.addAndGet(nanos);
+         long max = maximumTime.get();
+         while (nanos > max && maximumTime.compareAndSet(max, nanos) == false)
+            max = maximumTime.get();
+         if (cpu > 0)
+            cpuTime.addAndGet(cpu);
+         if (bytes > 0)
+            allocatedBytes.addAndGet(bytes);
+      }
+
+      public String toString()
+      {
+         long n = count.get();
+         StringBuffer buffer = new StringBuffer(type);
+         buffer.append(" count=").append(n);
+         buffer.append(" time=").append(time.get() / 1000000).append("ms");
+         buffer.append(" maxTime=").append(maximumTime.get() / 1000000).append("ms");
+         buffer.append(" cpu=").append(cpuTime.get() / 1000000).append("ms");
+         buffer.append(" allocated=").append(allocatedBytes.get());
+         if (n > 0)
+         {
+            buffer.append(" avgCpu=").append(cpuTime.get() / n / 1000).append("us");
+            buffer.append(" avgAllocated=").append(allocatedBytes.get() / n);
+         }
+         return buffer.toString();
+      }
+   }
+}
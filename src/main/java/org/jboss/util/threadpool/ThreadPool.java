@@ -17,6 +17,8 @@
  */
 package org.jboss.util.threadpool;
 
+import java.util.Collection;
+
 /**
  * A thread pool.
  *
@@ -81,4 +83,28 @@ public interface ThreadPool
     * @throws IllegalArgumentException for a null runnable
     */
    public void run(Runnable runnable, long startTimeout, long completeTimeout);
+
+   /**
+    * Run a batch of runnables. The batch is queued in one go and the
+    * runnables that do not fit in the queue are handled together according
+    * to the blocking mode. A runnable that is not accepted is not run and
+    * no exception is thrown for it.
+    *
+    * @param runnables the runnables
+    * @return whether each runnable was accepted, in iteration order
+    * @throws IllegalArgumentException for a null collection or runnable
+    */
+   public boolean[] runAll(Collection<? extends Runnable> runnables);
+
+   /**
+    * Run a batch of tasks. The batch is queued in one go and the tasks
+    * that do not fit in the queue are handled together according to the
+    * blocking mode. A task that is not accepted is told through
+    * {@link Task#rejected(long, Throwable)}.
+    *
+    * @param tasks the tasks
+    * @return whether each task was accepted, in iteration order
+    * @throws IllegalArgumentException for a null collection or task
+    */
+   public boolean[] runTasks(Collection<? extends Task> tasks);
 }
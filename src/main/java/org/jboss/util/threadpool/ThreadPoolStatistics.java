@@ -0,0 +1,180 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import org.jboss.util.Histogram;
+import org.jboss.util.StripedCounter;
+
+/**
+ * Latency and saturation counters of a thread pool.
+ * <p>
+ * Everything is kept in striped atomic counters so recording a sample never
+ * blocks a pool thread and the pool threads do not contend on the counters.
+ * The times are kept in log2 histograms with microsecond resolution, so
+ * percentiles are approximate to a factor of two.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class ThreadPoolStatistics
+{
+   // Attributes ----------------------------------------------------
+
+   /** The time tasks wait between being queued and started */
+   private final Histogram queueWaitTime = new Histogram();
+
+   /** The time tasks take to run */
+   private final Histogram executionTime = new Histogram();
+
+   /** The number of tasks rejected for exceeding their start timeout */
+   private final StripedCounter startTimeouts = new StripedCounter();
+
+   /** The number of tasks stopped for exceeding their completion timeout */
+   private final StripedCounter completionTimeouts = new StripedCounter();
+
+   /** The rejections indexed by the blocking mode type */
+   private final StripedCounter[] rejections = new StripedCounter[BlockingMode.ABORT_TYPE + 1];
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create the statistics
+    */
+   public ThreadPoolStatistics()
+   {
+      for (int i = 0; i < rejections.length; ++i)
+         rejections[i] = new StripedCounter();
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the time tasks waited between being queued and started
+    */
+   public Histogram getQueueWaitTime()
+   {
+      return queueWaitTime;
+   }
+
+   /**
+    * @return the time tasks took to run
+    */
+   public Histogram getExecutionTime()
+   {
+      return executionTime;
+   }
+
+   /**
+    * @return the number of tasks rejected for exceeding their start timeout
+    */
+   public long getStartTimeoutCount()
+   {
+      return startTimeouts.get();
+   }
+
+   /**
+    * @return the number of tasks stopped for exceeding their completion timeout
+    */
+   public long getCompletionTimeoutCount()
+   {
+      return completionTimeouts.get();
+   }
+
+   /**
+    * Get the number of times the blocking mode was applied because the pool
+    * was saturated
+    *
+    * @param mode the blocking mode
+    * @return the number of rejections
+    */
+   public long getRejectionCount(BlockingMode mode)
+   {
+      return rejections[mode.getType()].get();
+   }
+
+   /**
+    * @return the number of rejections for all blocking modes
+    */
+   public long getRejectionCount()
+   {
+      long total = 0;
+      for (int i = 0; i < rejections.length; ++i)
+         total += rejections[i].get();
+      return total;
+   }
+
+   /**
+    * Reset all the counters
+    */
+   public void reset()
+   {
+      queueWaitTime.reset();
+      executionTime.reset();
+      startTimeouts.reset();
+      completionTimeouts.reset();
+      for (int i = 0; i < rejections.length; ++i)
+         rejections[i].reset();
+   }
+
+   public String toString()
+   {
+      return "queueWaitTime=" + queueWaitTime + " executionTime=" + executionTime
+         + " startTimeouts=" + startTimeouts + " completionTimeouts=" + completionTimeouts
+         + " rejections=" + getRejectionCount();
+   }
+
+   // Package protected ---------------------------------------------
+
+   void queueWait(long nanos)
+   {
+      queueWaitTime.record(nanos);
+   }
+
+   void executed(long nanos)
+   {
+      executionTime.record(nanos);
+   }
+
+   void startTimeout()
+   {
+      startTimeouts.increment();
+   }
+
+   void completionTimeout()
+   {
+      completionTimeouts.increment();
+   }
+
+   void rejected(BlockingMode mode)
+   {
+      rejections[mode.getType()].increment();
+   }
+
+   /**
+    * Attach the statistics to a task wrapper that is about to be queued
+    *
+    * @param wrapper the task wrapper
+    */
+   void queued(TaskWrapper wrapper)
+   {
+      if (wrapper instanceof BasicTaskWrapper)
+         ((BasicTaskWrapper) wrapper).setStatistics(this);
+      else if (wrapper instanceof RunnableTaskWrapper)
+         ((RunnableTaskWrapper) wrapper).setStatistics(this);
+   }
+}
@@ -0,0 +1,213 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.lang.reflect.Array;
+import java.security.AccessController;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.collection.WeakValueHashMap;
+import org.jboss.util.loading.ClassLoaderSource;
+import org.jboss.util.loading.ContextClassLoaderSwitcher;
+
+/**
+ * The thread group, pool thread and context classloader management shared by
+ * {@link BasicThreadPool} and {@link WorkStealingThreadPool}, each pool has
+ * its own instance.
+ *
+ * @version $Revision$
+ */
+class ThreadPoolSupport
+{
+   // Constants -----------------------------------------------------
+
+   /** The thread groups created by name */
+   private static final Map<String, ThreadGroup> threadGroups = Collections.synchronizedMap(new WeakValueHashMap<String, ThreadGroup>());
+
+   // Attributes ----------------------------------------------------
+
+   /** The log of the pool */
+   private final Logger log;
+
+   /** The thread group */
+   private volatile ThreadGroup threadGroup;
+
+   /** Source for the thread context classloader to assign to threads */
+   private volatile ClassLoaderSource classLoaderSource;
+
+   private volatile ContextClassLoaderSwitcher classLoaderSwitcher;
+
+   /** The last thread number */
+   private final AtomicInteger lastThreadNumber = new AtomicInteger(0);
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create the support of a pool
+    *
+    * @param threadGroup the thread group
+    * @param log the log of the pool
+    */
+   ThreadPoolSupport(ThreadGroup threadGroup, Logger log)
+   {
+      this.threadGroup = threadGroup;
+      this.log = log;
+   }
+
+   // Package protected ---------------------------------------------
+
+   ThreadGroup getThreadGroup()
+   {
+      return threadGroup;
+   }
+
+   /**
+    * Use the thread group of the given name, created under the parent the
+    * first time it is used
+    *
+    * @param parent the parent group
+    * @param threadGroupName the name
+    */
+   void setThreadGroupName(ThreadGroup parent, String threadGroupName)
+   {
+      ThreadGroup group;
+      synchronized(threadGroups)
+      {
+         group = threadGroups.get(threadGroupName);
+         if (group == null || group.getParent() != parent)
+         {
+            group = new ThreadGroup(parent, threadGroupName);
+            threadGroups.put(threadGroupName, group);
+         }
+      }
+      threadGroup = group;
+   }
+
+   /**
+    * @return the number of the next pool thread
+    */
+   int nextThreadNumber()
+   {
+      return lastThreadNumber.incrementAndGet();
+   }
+
+   /**
+    * Prepare a new pool thread, a daemon with the default context classloader
+    *
+    * @param thread the thread
+    * @return the thread
+    */
+   Thread initThread(Thread thread)
+   {
+      thread.setDaemon(true);
+      setDefaultThreadContextClassLoader(thread);
+      return thread;
+   }
+
+   ClassLoaderSource getClassLoaderSource()
+   {
+      return classLoaderSource;
+   }
+
+   @SuppressWarnings("unchecked")
+   void setClassLoaderSource(ClassLoaderSource classLoaderSource)
+   {
+      if (classLoaderSource == null)
+      {
+         this.classLoaderSource = null;
+         this.classLoaderSwitcher = null;
+      }
+      else if (classLoaderSwitcher == null)
+      {
+         try
+         {
+            this.classLoaderSwitcher = (ContextClassLoaderSwitcher) AccessController.doPrivileged(ContextClassLoaderSwitcher.INSTANTIATOR);
+            this.classLoaderSource = classLoaderSource;
+         }
+         catch (SecurityException e)
+         {
+            log.error("Cannot manage context classloader for pool threads; " +
+                      "Do not have setContextClassLoader permission");
+         }
+      }
+      else
+      {
+         this.classLoaderSource = classLoaderSource;
+      }
+   }
+
+   void setDefaultThreadContextClassLoader(Thread thread)
+   {
+      ContextClassLoaderSwitcher switcher = classLoaderSwitcher;
+      if (switcher != null)
+      {
+         ClassLoaderSource source = classLoaderSource;
+         ClassLoader cl = source == null ? null : source.getClassLoader();
+         switcher.setContextClassLoader(thread, cl);
+      }
+   }
+
+   /**
+    * Reject a task without throwing, the caller reports the rejection
+    * instead
+    *
+    * @param wrapper the task wrapper
+    * @param e the reason
+    */
+   static void rejectTask(TaskWrapper wrapper, RuntimeException e)
+   {
+      try
+      {
+         wrapper.rejectTask(e);
+      }
+      catch (RuntimeException ignored)
+      {
+         // A RunnableTaskWrapper rethrows the reason
+      }
+   }
+
+   /**
+    * Tell a task dropped by a discard blocking mode that it was rejected,
+    * so its caller and a {@link KeyedThreadPool} do not wait for it
+    *
+    * @param wrapper the dropped task wrapper
+    */
+   static void discarded(TaskWrapper wrapper)
+   {
+      rejectTask(wrapper, new ThreadPoolFullException("Discarded: " + wrapper));
+   }
+
+   /**
+    * Create an array of empty deques
+    *
+    * @param count the number of deques
+    * @return the deques
+    */
+   @SuppressWarnings("unchecked")
+   static <E> LinkedBlockingDeque<E>[] newDeques(int count)
+   {
+      LinkedBlockingDeque<E>[] deques = (LinkedBlockingDeque<E>[]) Array.newInstance(LinkedBlockingDeque.class, count);
+      for (int i = 0; i < count; ++i)
+         deques[i] = new LinkedBlockingDeque<E>();
+      return deques;
+   }
+}
@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Access to the virtual threads of Java 21 and later.
+ * <p>
+ * This library still targets older runtimes so the builder API is looked up
+ * reflectively once. On a runtime without virtual threads, or where they are
+ * only a preview feature that is not enabled, {@link #isSupported()} returns
+ * false.
+ * </p>
+ *
+ * @version $Revision$
+ */
+final class VirtualThreads
+{
+   private static final Logger log = Logger.getLogger(VirtualThreads.class);
+
+   /** Thread.ofVirtual() */
+   private static final Method ofVirtual;
+
+   /** Thread.Builder.name(String, long) */
+   private static final Method name;
+
+   /** Thread.Builder.factory() */
+   private static final Method factory;
+
+   static
+   {
+      Method ov = null;
+      Method n = null;
+      Method f = null;
+      try
+      {
+         Class<?> builder = Class.forName("java.lang.Thread$Builder");
+         ov = Thread.class.getMethod("ofVirtual");
+         n = builder.getMethod("name", String.class, long.class);
+         f = builder.getMethod("factory");
+         // Fails for a preview feature that is not enabled
+         ov.invoke(null);
+      }
+      catch (Throwable t)
+      {
+         log.debug("Virtual threads are not available: " + t);
+         ov = null;
+      }
+      ofVirtual = ov;
+      name = n;
+      factory = f;
+   }
+
+   private VirtualThreads()
+   {
+   }
+
+   /**
+    * @return true when the runtime supports virtual threads
+    */
+   static boolean isSupported()
+   {
+      return ofVirtual != null;
+   }
+
+   /**
+    * Create a factory for virtual threads
+    *
+    * @param prefix the thread name prefix, a counter is appended
+    * @return the factory
+    * @throws UnsupportedOperationException when virtual threads are not supported
+    */
+   static ThreadFactory newFactory(String prefix)
+   {
+      if (ofVirtual == null)
+         throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+      try
+      {
+         Object builder = ofVirtual.invoke(null);
+         builder = name.invoke(builder, prefix, Long.valueOf(1));
+         return (ThreadFactory) factory.invoke(builder);
+      }
+      catch (Exception e)
+      {
+         throw new UnsupportedOperationException("Unable to create virtual thread factory", e);
+      }
+   }
+}
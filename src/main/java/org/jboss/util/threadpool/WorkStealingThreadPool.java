@@ -0,0 +1,960 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.loading.ClassLoaderSource;
+
+/**
+ * A thread pool that avoids the single shared work queue of
+ * {@link BasicThreadPool}.
+ * <p>
+ * Tasks submitted from outside the pool are spread over a set of submission
+ * deques selected by the submitting thread, tasks submitted from a pool thread
+ * go to that thread's own deque. A pool thread first drains its own deque,
+ * then the submission deques and finally steals from the deques of the other
+ * pool threads, so the contention of a burst is spread over many locks
+ * instead of the head and tail of one queue. Tasks are taken from the head of
+ * every deque, so submission order is kept as far as possible.
+ * </p>
+ * <p>
+ * The management attributes match those of {@link BasicThreadPoolMBean} so
+ * the pool can be swapped in by configuration. The queue capacity bounds the
+ * total number of waiting tasks and the {@link BlockingMode} is applied when
+ * it is exceeded. As with {@link BasicThreadPool} the wait mode runs the task
+ * in the calling thread.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class WorkStealingThreadPool implements ThreadPool, WorkStealingThreadPoolMBean
+{
+   // Constants -----------------------------------------------------
+
+   /** The jboss thread group */
+   private static final ThreadGroup JBOSS_THREAD_GROUP = new ThreadGroup("JBoss Work Stealing Pooled Threads");
+
+   /** The internal pool number */
+   private static final AtomicInteger lastPoolNumber = new AtomicInteger(0);
+
+   /** The number of submission deques */
+   private static final int SUBMISSION_DEQUES;
+
+   private static Logger log = Logger.getLogger(WorkStealingThreadPool.class);
+
+   static
+   {
+      int n = 1;
+      int cpus = Runtime.getRuntime().availableProcessors();
+      while (n < cpus)
+         n <<= 1;
+      SUBMISSION_DEQUES = n;
+   }
+
+   // Attributes ----------------------------------------------------
+
+   /** The thread pool name */
+   private String name;
+
+   /** The internal pool number */
+   private int poolNumber;
+
+   /** The blocking mode */
+   private volatile BlockingMode blockingMode = BlockingMode.ABORT;
+
+   /** The thread group, pool thread and context classloader management */
+   private final ThreadPoolSupport support;
+
+   /** The deques for tasks submitted from outside the pool */
+   private final LinkedBlockingDeque<TaskWrapper>[] submissions;
+
+   /** The workers, copied on write under the worker lock */
+   private volatile Worker[] workers = new Worker[0];
+
+   /** The lock guarding changes to the workers */
+   private final Object workerLock = new Object();
+
+   /** The idle workers waiting to be signalled */
+   private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+
+   /** The number of tasks waiting in the deques */
+   private final AtomicInteger queued = new AtomicInteger(0);
+
+   /** The maximum number of waiting tasks */
+   private volatile int maximumQueueSize = 1024;
+
+   /** The minimum pool size */
+   private volatile int minimumPoolSize = 4;
+
+   /** The maximum pool size */
+   private volatile int maximumPoolSize = 4;
+
+   /** The keep alive time in millis */
+   private volatile long keepAliveTime = 60000;
+
+   /** Has the pool been stopped? */
+   private AtomicBoolean stopped = new AtomicBoolean(false);
+
+   /** The task completion timeout monitor runnable */
+   private CompletionTimeoutMonitor timeoutTask;
+   /** The resolution of the task completion timeout monitor in MS */
+   private long completionTimeoutResolution = CompletionTimeoutMonitor.DEFAULT_RESOLUTION;
+
+   /** The trace level logging flag */
+   private boolean trace;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new thread pool
+    */
+   public WorkStealingThreadPool()
+   {
+      this("WorkStealingThreadPool");
+   }
+
+   /**
+    * Create a new thread pool with a default queue size of 1024, max pool
+    * size of 4, min pool size of 4, and a keep alive of 60 seconds.
+    *
+    * @param name the pool name
+    */
+   public WorkStealingThreadPool(String name)
+   {
+      this(name, JBOSS_THREAD_GROUP);
+   }
+
+   /**
+    * Create a new thread pool with a default queue size of 1024, max pool
+    * size of 4, min pool size of 4, and a keep alive of 60 seconds.
+    *
+    * @param name the pool name
+    * @param threadGroup threadGroup
+    */
+   public WorkStealingThreadPool(String name, ThreadGroup threadGroup)
+   {
+      trace = log.isTraceEnabled();
+      submissions = ThreadPoolSupport.newDeques(SUBMISSION_DEQUES);
+      poolNumber = lastPoolNumber.incrementAndGet();
+      setName(name);
+      support = new ThreadPoolSupport(threadGroup, log);
+   }
+
+   // ThreadPool ----------------------------------------------------
+
+   public void stop(boolean immediate)
+   {
+      log.debug("stop, immediate="+immediate);
+      stopped.set(true);
+      if (immediate)
+      {
+         for (int i = 0; i < submissions.length; ++i)
+            queued.addAndGet(-submissions[i].drainTo(new ArrayList<TaskWrapper>()));
+         Worker[] current = workers;
+         for (int i = 0; i < current.length; ++i)
+         {
+            queued.addAndGet(-current[i].deque.drainTo(new ArrayList<TaskWrapper>()));
+            current[i].thread.interrupt();
+         }
+      }
+      signalAll();
+   }
+
+   public void waitForTasks() throws InterruptedException
+   {
+      waitForTasks(Long.MAX_VALUE);
+   }
+
+   public void waitForTasks(long maxWaitTime) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + maxWaitTime;
+      if (end < 0)
+         end = Long.MAX_VALUE;
+      synchronized (workerLock)
+      {
+         while (stopped.get() == false || workers.length > 0)
+         {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0)
+               return;
+            workerLock.wait(wait);
+         }
+      }
+   }
+
+   public void runTaskWrapper(TaskWrapper wrapper)
+   {
+      if( trace )
+         log.trace("runTaskWrapper, wrapper="+wrapper);
+      if (stopped.get())
+      {
+         wrapper.rejectTask(new ThreadPoolStoppedException("Thread pool has been stopped"));
+         return;
+      }
+
+      wrapper.acceptTask();
+
+      long completionTimeout = wrapper.getTaskCompletionTimeout();
+      if(completionTimeout > 0)
+      {
+         checkTimeoutMonitor();
+         // Install the task in the timing wheel, the check is cancelled once it has run
+         wrapper = timeoutTask.add(wrapper, completionTimeout);
+      }
+      int waitType = wrapper.getTaskWaitType();
+      switch (waitType)
+      {
+         case Task.WAIT_FOR_COMPLETE:
+         {
+            executeOnThread(wrapper);
+            break;
+         }
+         default:
+         {
+            execute(wrapper);
+         }
+      }
+      waitForTask(wrapper);
+   }
+
+   public void runTask(Task task)
+   {
+      BasicTaskWrapper wrapper = new BasicTaskWrapper(task);
+      runTaskWrapper(wrapper);
+   }
+
+   public void run(Runnable runnable)
+   {
+      run(runnable, 0, 0);
+   }
+
+   public void run(Runnable runnable, long startTimeout, long completeTimeout)
+   {
+      RunnableTaskWrapper wrapper = new RunnableTaskWrapper(runnable, startTimeout, completeTimeout);
+      runTaskWrapper(wrapper);
+   }
+
+   public boolean[] runAll(Collection<? extends Runnable> runnables)
+   {
+      if (runnables == null)
+         throw new IllegalArgumentException("Null runnables");
+      List<TaskWrapper> wrappers = new ArrayList<TaskWrapper>(runnables.size());
+      for (Runnable runnable : runnables)
+         wrappers.add(new RunnableTaskWrapper(runnable, 0, 0));
+      return runTaskWrappers(wrappers);
+   }
+
+   public boolean[] runTasks(Collection<? extends Task> tasks)
+   {
+      if (tasks == null)
+         throw new IllegalArgumentException("Null tasks");
+      List<TaskWrapper> wrappers = new ArrayList<TaskWrapper>(tasks.size());
+      for (Task task : tasks)
+         wrappers.add(new BasicTaskWrapper(task));
+      return runTaskWrappers(wrappers);
+   }
+
+   public ThreadGroup getThreadGroup()
+   {
+      return support.getThreadGroup();
+   }
+
+   // ThreadPoolMBean implementation --------------------------------
+
+   public String getName()
+   {
+      return name;
+   }
+
+   public void setName(String name)
+   {
+      this.name = name;
+   }
+
+   public int getPoolNumber()
+   {
+      return poolNumber;
+   }
+
+   public String getThreadGroupName()
+   {
+      return support.getThreadGroup().getName();
+   }
+
+   public void setThreadGroupName(String threadGroupName)
+   {
+      support.setThreadGroupName(JBOSS_THREAD_GROUP, threadGroupName);
+   }
+
+   public int getQueueSize()
+   {
+      return queued.get();
+   }
+
+   public int getMaximumQueueSize()
+   {
+      return maximumQueueSize;
+   }
+
+   public void setMaximumQueueSize(int size)
+   {
+      if (size <= 0)
+         throw new IllegalArgumentException("Maximum queue size must be positive: " + size);
+      maximumQueueSize = size;
+   }
+
+   public int getPoolSize()
+   {
+      return workers.length;
+   }
+
+   public int getMinimumPoolSize()
+   {
+      return minimumPoolSize;
+   }
+
+   public void setMinimumPoolSize(int size)
+   {
+      synchronized (workerLock)
+      {
+         // Don't let the min size > max size
+         if (maximumPoolSize < size)
+            maximumPoolSize = size;
+         minimumPoolSize = size;
+      }
+      // Let the idle workers notice they may retire
+      signalAll();
+   }
+
+   public int getMaximumPoolSize()
+   {
+      return maximumPoolSize;
+   }
+
+   public void setMaximumPoolSize(int size)
+   {
+      synchronized (workerLock)
+      {
+         minimumPoolSize = size;
+         maximumPoolSize = size;
+      }
+      // Let surplus workers notice the smaller size
+      signalAll();
+   }
+
+   public long getKeepAliveTime()
+   {
+      return keepAliveTime;
+   }
+
+   public void setKeepAliveTime(long time)
+   {
+      keepAliveTime = time;
+      // Let the idle workers wait for the new time
+      signalAll();
+   }
+
+   public BlockingMode getBlockingMode()
+   {
+      return blockingMode;
+   }
+
+   public void setBlockingMode(BlockingMode mode)
+   {
+      if (mode != BlockingMode.RUN && mode != BlockingMode.WAIT && mode != BlockingMode.DISCARD
+            && mode != BlockingMode.DISCARD_OLDEST && mode != BlockingMode.ABORT)
+         throw new IllegalArgumentException("Failed to recognize mode: "+mode);
+      blockingMode = mode;
+   }
+
+   /**
+    * For backward compatibility with the previous string based mode
+    * @param name - the string form of the mode enum
+    */
+   public void setBlockingMode(String name)
+   {
+      BlockingMode mode = BlockingMode.toBlockingMode(name);
+      blockingMode = mode == null ? BlockingMode.ABORT : mode;
+   }
+
+   /**
+    * For backward compatibility with the previous string based mode
+    * This is needed for microcontainer as it gets confused with overloaded
+    * setters.
+    * @param name - the string form of the mode enum
+    */
+   public void setBlockingModeString(String name)
+   {
+      setBlockingMode(name);
+   }
+
+   public long getCompletionTimeoutResolution()
+   {
+      return completionTimeoutResolution;
+   }
+
+   /**
+    * Set the resolution of the task completion timeout monitor. Like
+    * {@link #setMaximumQueueSize(int)} this needs to be called before doing
+    * any work with the pool, the monitor is created with the first task
+    * that has a completion timeout.
+    *
+    * @param resolution the resolution in MS
+    */
+   public void setCompletionTimeoutResolution(long resolution)
+   {
+      if (resolution <= 0)
+         throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+      completionTimeoutResolution = resolution;
+   }
+
+   public ClassLoaderSource getClassLoaderSource()
+   {
+      return support.getClassLoaderSource();
+   }
+
+   public void setClassLoaderSource(ClassLoaderSource classLoaderSource)
+   {
+      support.setClassLoaderSource(classLoaderSource);
+   }
+
+   public ThreadPool getInstance()
+   {
+      return this;
+   }
+
+   public void stop()
+   {
+      stop(false);
+   }
+
+   // Object overrides ----------------------------------------------
+
+   public String toString()
+   {
+      return name + '(' + poolNumber + ')';
+   }
+
+   // Protected -----------------------------------------------------
+
+   /**
+    * Execute a task on the same thread
+    *
+    * @param wrapper the task wrapper
+    */
+   protected void executeOnThread(TaskWrapper wrapper)
+   {
+      if( trace )
+         log.trace("executeOnThread, wrapper="+wrapper);
+      wrapper.run();
+   }
+
+   /**
+    * Execute a task
+    *
+    * @param wrapper the task wrapper
+    */
+   protected void execute(TaskWrapper wrapper)
+   {
+      if( trace )
+         log.trace("execute, wrapper="+wrapper);
+
+      LinkedBlockingDeque<TaskWrapper> deque = dequeFor(Thread.currentThread());
+      TaskWrapper discarded = null;
+      if (reserve() == false)
+      {
+         BlockingMode mode = blockingMode;
+         if (mode == BlockingMode.RUN || mode == BlockingMode.WAIT)
+         {
+            wrapper.run();
+            return;
+         }
+         else if (mode == BlockingMode.DISCARD)
+         {
+            ThreadPoolSupport.discarded(wrapper);
+            return;
+         }
+         else if (mode == BlockingMode.DISCARD_OLDEST && (discarded = discardOldest(deque)) != null)
+         {
+            // The discarded task freed the slot we now use
+         }
+         else
+         {
+            wrapper.rejectTask(new ThreadPoolFullException("Error scheduling work: " + wrapper));
+            return;
+         }
+      }
+      deque.offerLast(wrapper);
+      if (discarded != null)
+         ThreadPoolSupport.discarded(discarded);
+      signalWork();
+   }
+
+   /**
+    * Run a batch of task wrappers. The wrappers are prepared as
+    * {@link #runTaskWrapper(TaskWrapper)} does, those not waiting for
+    * completion reserve their queue slots at once and go to the deque of the
+    * calling thread, the blocking mode is applied to the ones that did not
+    * fit. The wrappers waiting for completion then run on the calling thread.
+    *
+    * @param wrappers the task wrappers
+    * @return whether each wrapper was accepted
+    */
+   protected boolean[] runTaskWrappers(List<TaskWrapper> wrappers)
+   {
+      if( trace )
+         log.trace("runTaskWrappers, size="+wrappers.size());
+      int size = wrappers.size();
+      boolean[] accepted = new boolean[size];
+      if (stopped.get())
+      {
+         for (int i = 0; i < size; ++i)
+            ThreadPoolSupport.rejectTask(wrappers.get(i), new ThreadPoolStoppedException("Thread pool has been stopped"));
+         return accepted;
+      }
+
+      TaskWrapper[] prepared = new TaskWrapper[size];
+      List<TaskWrapper> batch = new ArrayList<TaskWrapper>(size);
+      int[] indexes = new int[size];
+      for (int i = 0; i < size; ++i)
+      {
+         TaskWrapper wrapper = wrappers.get(i);
+         wrapper.acceptTask();
+         long completionTimeout = wrapper.getTaskCompletionTimeout();
+         if(completionTimeout > 0)
+         {
+            checkTimeoutMonitor();
+            wrapper = timeoutTask.add(wrapper, completionTimeout);
+         }
+         prepared[i] = wrapper;
+         if (wrapper.getTaskWaitType() != Task.WAIT_FOR_COMPLETE)
+         {
+            indexes[batch.size()] = i;
+            batch.add(wrapper);
+         }
+      }
+
+      executeBatch(batch, indexes, accepted);
+
+      for (int i = 0; i < size; ++i)
+      {
+         if (prepared[i].getTaskWaitType() == Task.WAIT_FOR_COMPLETE)
+         {
+            executeOnThread(prepared[i]);
+            accepted[i] = true;
+         }
+      }
+      for (int i = 0; i < size; ++i)
+      {
+         if (accepted[i])
+            waitForTask(prepared[i]);
+      }
+      return accepted;
+   }
+
+   /**
+    * Execute a batch of tasks
+    *
+    * @param batch the task wrappers
+    * @param indexes the index of each wrapper in the result
+    * @param accepted the result
+    */
+   protected void executeBatch(List<TaskWrapper> batch, int[] indexes, boolean[] accepted)
+   {
+      if (batch.isEmpty())
+         return;
+      LinkedBlockingDeque<TaskWrapper> deque = dequeFor(Thread.currentThread());
+      int count = reserve(batch.size());
+      for (int i = 0; i < count; ++i)
+         deque.offerLast(batch.get(i));
+
+      BlockingMode mode = blockingMode;
+      int queued = count;
+      for (int i = count; i < batch.size(); ++i)
+      {
+         TaskWrapper wrapper = batch.get(i);
+         TaskWrapper discarded = mode == BlockingMode.DISCARD_OLDEST ? discardOldest(deque) : null;
+         if (discarded != null)
+         {
+            // The discarded task freed the slot we now use
+            deque.offerLast(wrapper);
+            accepted[indexes[i]] = true;
+            ++queued;
+            ThreadPoolSupport.discarded(discarded);
+         }
+         else if (mode == BlockingMode.RUN || mode == BlockingMode.WAIT)
+         {
+            wrapper.run();
+            accepted[indexes[i]] = true;
+         }
+         else
+         {
+            ThreadPoolSupport.rejectTask(wrapper, new ThreadPoolFullException("Error scheduling work: " + wrapper));
+         }
+      }
+      for (int i = 0; i < count; ++i)
+         accepted[indexes[i]] = true;
+      for (int i = 0; i < queued && i < maximumPoolSize; ++i)
+         signalWork();
+   }
+
+   /**
+    * Wait for a task
+    *
+    * @param wrapper the task wrapper
+    */
+   protected void waitForTask(TaskWrapper wrapper)
+   {
+      wrapper.waitForTask();
+   }
+
+   /**
+    * Used to lazily create the task completion timeout thread and monitor
+    */
+   protected synchronized void checkTimeoutMonitor()
+   {
+      if( timeoutTask == null )
+         timeoutTask = new CompletionTimeoutMonitor(name, stopped, log, completionTimeoutResolution, null);
+   }
+
+   protected void setDefaultThreadContextClassLoader(Thread thread)
+   {
+      support.setDefaultThreadContextClassLoader(thread);
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Reserve a slot in the bounded queue capacity
+    *
+    * @return true when a slot was reserved
+    */
+   private boolean reserve()
+   {
+      while (true)
+      {
+         int current = queued.get();
+         if (current >= maximumQueueSize)
+            return false;
+         if (queued.compareAndSet(current, current + 1))
+            return true;
+      }
+   }
+
+   /**
+    * Reserve slots in the bounded queue capacity
+    *
+    * @param wanted the number of slots wanted
+    * @return the number of slots reserved
+    */
+   private int reserve(int wanted)
+   {
+      while (true)
+      {
+         int current = queued.get();
+         int count = Math.min(wanted, maximumQueueSize - current);
+         if (count <= 0)
+            return 0;
+         if (queued.compareAndSet(current, current + count))
+            return count;
+      }
+   }
+
+   /**
+    * Drop the oldest waiting task, preferring the given deque
+    *
+    * @param preferred the deque of the new task
+    * @return the dropped task or null when there was none
+    */
+   private TaskWrapper discardOldest(LinkedBlockingDeque<TaskWrapper> preferred)
+   {
+      TaskWrapper oldest = preferred.pollFirst();
+      for (int i = 0; oldest == null && i < submissions.length; ++i)
+         oldest = submissions[i].pollFirst();
+      Worker[] current = workers;
+      for (int i = 0; oldest == null && i < current.length; ++i)
+         oldest = current[i].deque.pollFirst();
+      if (oldest != null && trace)
+         log.trace("Discarded oldest wrapper="+oldest);
+      return oldest;
+   }
+
+   /**
+    * Get the deque for tasks submitted by the given thread
+    *
+    * @param thread the submitting thread
+    * @return the deque
+    */
+   private LinkedBlockingDeque<TaskWrapper> dequeFor(Thread thread)
+   {
+      if (thread instanceof WorkerThread && ((WorkerThread) thread).getPool() == this)
+         return ((WorkerThread) thread).worker.deque;
+      int hash = System.identityHashCode(thread);
+      hash ^= (hash >>> 16);
+      return submissions[hash & (submissions.length - 1)];
+   }
+
+   /**
+    * Wake an idle worker or start a new one for newly queued work
+    */
+   private void signalWork()
+   {
+      Worker idle = idleWorkers.poll();
+      if (idle != null)
+      {
+         LockSupport.unpark(idle.thread);
+         return;
+      }
+      if (workers.length < maximumPoolSize)
+         addWorker();
+   }
+
+   /**
+    * Wake all idle workers
+    */
+   private void signalAll()
+   {
+      Worker idle;
+      while ((idle = idleWorkers.poll()) != null)
+         LockSupport.unpark(idle.thread);
+   }
+
+   /**
+    * Start a new worker if the pool has room for it
+    */
+   private void addWorker()
+   {
+      Worker worker;
+      synchronized (workerLock)
+      {
+         if (stopped.get() || workers.length >= maximumPoolSize)
+            return;
+         worker = new Worker();
+         Worker[] current = workers;
+         Worker[] update = new Worker[current.length + 1];
+         System.arraycopy(current, 0, update, 0, current.length);
+         update[current.length] = worker;
+         workers = update;
+      }
+      worker.thread.start();
+   }
+
+   /**
+    * Remove a worker
+    *
+    * @param worker the worker
+    * @param force whether to remove the worker regardless of the pool size
+    * @return true when the worker was removed
+    */
+   private boolean removeWorker(Worker worker, boolean force)
+   {
+      synchronized (workerLock)
+      {
+         Worker[] current = workers;
+         if (force == false && current.length <= minimumPoolSize)
+            return false;
+         int index = -1;
+         for (int i = 0; i < current.length; ++i)
+         {
+            if (current[i] == worker)
+               index = i;
+         }
+         if (index < 0)
+            return true;
+         Worker[] update = new Worker[current.length - 1];
+         System.arraycopy(current, 0, update, 0, index);
+         System.arraycopy(current, index + 1, update, index, update.length - index);
+         workers = update;
+         workerLock.notifyAll();
+      }
+      idleWorkers.remove(worker);
+      // A task may have been queued while the pool looked big enough
+      if (stopped.get() == false && hasQueuedTasks())
+         signalWork();
+      return true;
+   }
+
+   /**
+    * @return whether any deque holds a task
+    */
+   private boolean hasQueuedTasks()
+   {
+      return queued.get() > 0;
+   }
+
+   /**
+    * Find the next task for a worker, own deque first, then the submission
+    * deques and finally the other workers
+    *
+    * @param worker the worker
+    * @return the task or null when there is none
+    */
+   private TaskWrapper findTask(Worker worker)
+   {
+      TaskWrapper wrapper = worker.deque.pollFirst();
+      if (wrapper == null)
+      {
+         int start = worker.index;
+         for (int i = 0; wrapper == null && i < submissions.length; ++i)
+            wrapper = submissions[(start + i) & (submissions.length - 1)].pollFirst();
+         Worker[] current = workers;
+         for (int i = 0; wrapper == null && i < current.length; ++i)
+         {
+            Worker victim = current[(start + i) % current.length];
+            if (victim != worker)
+               wrapper = victim.deque.pollFirst();
+         }
+      }
+      if (wrapper != null)
+         queued.decrementAndGet();
+      return wrapper;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A pool thread, used to find the deque of the current thread
+    */
+   private static class WorkerThread extends Thread
+   {
+      final Worker worker;
+
+      WorkerThread(ThreadGroup group, Worker worker, String name)
+      {
+         super(group, worker, name);
+         this.worker = worker;
+      }
+
+      WorkStealingThreadPool getPool()
+      {
+         return worker.getPool();
+      }
+   }
+
+   /**
+    * A worker owning a deque
+    */
+   private class Worker implements Runnable
+   {
+      /** The tasks submitted by this worker */
+      final LinkedBlockingDeque<TaskWrapper> deque = new LinkedBlockingDeque<TaskWrapper>();
+
+      /** The start index for scanning other deques */
+      final int index;
+
+      /** The thread */
+      final Thread thread;
+
+      Worker()
+      {
+         int number = support.nextThreadNumber();
+         index = number;
+         String threadName = WorkStealingThreadPool.this.toString() + "-" + number;
+         thread = support.initThread(new WorkerThread(support.getThreadGroup(), this, threadName));
+      }
+
+      WorkStealingThreadPool getPool()
+      {
+         return WorkStealingThreadPool.this;
+      }
+
+      public void run()
+      {
+         try
+         {
+            long idleSince = System.currentTimeMillis();
+            while (true)
+            {
+               if (stopped.get() && hasQueuedTasks() == false)
+                  break;
+               if (workers.length > maximumPoolSize && removeWorker(this, false))
+                  return;
+
+               TaskWrapper wrapper = findTask(this);
+               if (wrapper == null)
+               {
+                  idleWorkers.offer(this);
+                  // Check again now that we are visible as idle
+                  wrapper = findTask(this);
+                  if (wrapper == null && stopped.get() == false)
+                  {
+                     long keepAlive = keepAliveTime;
+                     // A worker that cannot retire waits for work without a timeout
+                     if (workers.length <= minimumPoolSize)
+                        LockSupport.park(this);
+                     else if (keepAlive > 0)
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(keepAlive));
+                     Thread.interrupted();
+                  }
+                  idleWorkers.remove(this);
+                  if (wrapper == null)
+                  {
+                     if (System.currentTimeMillis() - idleSince >= keepAliveTime && removeWorker(this, false))
+                        return;
+                     continue;
+                  }
+               }
+
+               runWrapper(wrapper);
+               idleSince = System.currentTimeMillis();
+            }
+         }
+         finally
+         {
+            // Hand any local tasks to the remaining workers
+            TaskWrapper wrapper;
+            while ((wrapper = deque.pollFirst()) != null)
+               submissions[index & (submissions.length - 1)].offerLast(wrapper);
+            removeWorker(this, true);
+         }
+      }
+
+      /**
+       * Run a task and restore the thread context classloader
+       *
+       * @param wrapper the task wrapper
+       */
+      private void runWrapper(TaskWrapper wrapper)
+      {
+         try
+         {
+            wrapper.run();
+         }
+         catch (Throwable t)
+         {
+            log.warn("Unhandled throwable for wrapper: " + wrapper, t);
+         }
+         finally
+         {
+            // Clear any interrupt meant for the task
+            Thread.interrupted();
+            setDefaultThreadContextClassLoader(thread);
+         }
+      }
+   }
+}
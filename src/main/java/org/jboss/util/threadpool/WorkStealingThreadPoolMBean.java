@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.threadpool;
+
+import org.jboss.util.loading.ClassLoaderSource;
+
+/**
+ * Management interface for the work stealing thread pool.
+ *
+ * @version $Revision$
+ */
+public interface WorkStealingThreadPoolMBean extends ThreadPoolMBean
+{
+   // Constants -----------------------------------------------------
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Get the number of tasks waiting in all the deques
+    *
+    * @return the queue size
+    */
+   int getQueueSize();
+
+   /**
+    * Get the maximum number of waiting tasks
+    *
+    * @return the maximum queue size
+    */
+   int getMaximumQueueSize();
+
+   /**
+    * Set the maximum number of waiting tasks
+    *
+    * @param size the new maximum queue size
+    */
+   void setMaximumQueueSize(int size);
+
+   /**
+    * @return the blocking mode
+    */
+   BlockingMode getBlockingMode();
+
+   /**
+    * Set the behavior of the pool when a task is added and the maximum
+    * number of waiting tasks is reached.
+    *
+    * @see BasicThreadPoolMBean#setBlockingMode(BlockingMode)
+    * @param mode the blocking mode
+    */
+   void setBlockingMode(BlockingMode mode);
+
+   /**
+    * Retrieve the thread group name
+    *
+    * @return the thread group name
+    */
+   String getThreadGroupName();
+
+   /**
+    * Set the thread group name
+    *
+    * @param threadGroupName - the thread group name
+    */
+   void setThreadGroupName(String threadGroupName);
+
+   /**
+    * Get the time an idle thread above the minimum pool size is kept
+    *
+    * @return the keep alive time
+    */
+   long getKeepAliveTime();
+
+   /**
+    * Set the keep alive time
+    *
+    * @param time the keep alive time
+    */
+   void setKeepAliveTime(long time);
+
+   /**
+    * Get the resolution of the task completion timeout monitor
+    *
+    * @return the resolution in MS
+    */
+   long getCompletionTimeoutResolution();
+
+   /**
+    * Set the resolution of the task completion timeout monitor. A task that
+    * exceeds its completion timeout is stopped at most this much later.
+    * Finer resolutions wake the monitor thread more often.
+    *
+    * @param resolution the resolution in MS
+    */
+   void setCompletionTimeoutResolution(long resolution);
+
+   /**
+    * Gets the source of the classloader that will be set as the
+    * {@link Thread#getContextClassLoader() thread context classloader}
+    * for pool threads.
+    *
+    * @return the {@link ClassLoaderSource}. May return <code>null</code>.
+    */
+   ClassLoaderSource getClassLoaderSource();
+
+   /**
+    * Sets the source of the classloader that will be set as the
+    * {@link Thread#getContextClassLoader() thread context classloader}
+    * for pool threads, both when they are created and after each task.
+    *
+    * @see BasicThreadPoolMBean#setClassLoaderSource(ClassLoaderSource)
+    * @param classLoaderSource the {@link ClassLoaderSource}. May be <code>null</code>.
+    */
+   void setClassLoaderSource(ClassLoaderSource classLoaderSource);
+
+   // Inner classes -------------------------------------------------
+}
@@ -18,6 +18,8 @@
 package org.jboss.util.timeout;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.jboss.util.JBossStringBuilder;
 
@@ -166,10 +168,26 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
    //  class.
    //
    //  Cancellation may race with the timeout.
-   //  To avoid problems with this, the TimeoutImpl index field is set to
-   //  TimeoutImpl.TIMEOUT when the TimeoutImpl is taken out of the queue.
-   //  Finally the index field is set to TimeoutImpl.DONE, and
-   //  the TimeoutImpl instance is discarded.
+   //  A repeating timeout goes back from FIRED to PENDING when requeued.
+   //  Cancelling takes no lock, it is a CAS of the TimeoutExtImpl state
+   //  from PENDING to CANCELLED. The cancelled timeout stays in its queue
+   //  as a tombstone. Taking a timeout is a CAS from PENDING to FIRED, so
+   //  only one of the two succeeds. Tombstones are dropped when they reach
+   //  the top, and all queues are compacted once the tombstones are more
+   //  than half of the timeouts.
+   //  When a timeout is taken out of the queue the TimeoutImpl index field
+   //  is set to TimeoutImpl.TIMEOUT. Finally the index field is set to
+   //  TimeoutImpl.DONE, and the TimeoutImpl instance is discarded.
+
+   /** The minimum number of tombstones before compacting */
+   private static final int COMPACTION_THRESHOLD = 1024;
+
+   /** The updater of the timeout state */
+   private static final AtomicIntegerFieldUpdater<TimeoutExtImpl> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(TimeoutExtImpl.class, "state");
+
+   /** The clock */
+   private final TimeoutClock clock;
 
    /** The lock object */
    private Object topLock = new Object();
@@ -181,12 +199,34 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
    private InternalPriorityQueue[] queues;
 
    private AtomicBoolean cancelled = new AtomicBoolean(false);
+
+   /** The number of timeouts in the queues, including the tombstones */
+   private AtomicInteger entries = new AtomicInteger();
+
+   /** The number of cancelled timeouts still in the queues */
+   private AtomicInteger tombstones = new AtomicInteger();
+
+   /** Whether a thread is compacting the queues */
+   private AtomicBoolean compacting = new AtomicBoolean(false);
    
    /**
     * Create a new TimeoutPriorityQueueImpl.
     */
    public HashedTimeoutPriorityQueueImpl()
    {
+      this(TimeoutClock.getSystemClock());
+   }
+
+   /**
+    * Create a new HashedTimeoutPriorityQueueImpl.
+    *
+    * @param clock the clock
+    */
+   public HashedTimeoutPriorityQueueImpl(TimeoutClock clock)
+   {
+      if (clock == null)
+         throw new IllegalArgumentException("Null clock");
+      this.clock = clock;
       queues = new InternalPriorityQueue[40];
       for (int i = 0; i < queues.length; ++ i)
          queues[i] = new InternalPriorityQueue();
@@ -204,8 +244,31 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
       TimeoutExtImpl timeout = new TimeoutExtImpl();
       timeout.time = time;
       timeout.target = target;
-      int index = timeout.hashCode() % queues.length;
-      return queues[index].offer(timeout);
+      int index = (timeout.hashCode() & Integer.MAX_VALUE) % queues.length;
+      entries.incrementAndGet();
+      queues[index].offer(timeout);
+      int dead = tombstones.get();
+      if (dead >= COMPACTION_THRESHOLD && dead * 2 > entries.get())
+         compact();
+      return timeout;
+   }
+
+   public boolean reschedule(TimeoutExt timeout, long time)
+   {
+      if (time < 0)
+         throw new IllegalArgumentException("Negative time");
+      if (timeout instanceof TimeoutExtImpl == false)
+         return false;
+      TimeoutExtImpl timeoutImpl = (TimeoutExtImpl) timeout;
+      if (cancelled.get() || timeoutImpl.owner() != this || timeoutImpl.index != TimeoutExtImpl.TIMEOUT)
+         return false;
+      timeoutImpl.time = time;
+      if (STATE.compareAndSet(timeoutImpl, TimeoutExtImpl.FIRED, TimeoutExtImpl.PENDING) == false)
+         return false;
+      int index = (timeoutImpl.hashCode() & Integer.MAX_VALUE) % queues.length;
+      entries.incrementAndGet();
+      queues[index].offer(timeoutImpl);
+      return true;
    }
 
    public TimeoutExt take()
@@ -215,27 +278,44 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
 
    public TimeoutExt poll()
    {
-      return poll(1);
+      synchronized (topLock)
+      {
+         while (cancelled.get() == false && peek() != null && top.time <= clock.currentTimeMillis())
+         {
+            TimeoutExtImpl result = fire();
+            if (result != null)
+               return result;
+         }
+      }
+      return null;
    }
    
    public TimeoutExt poll(long wait)
    {
       long endWait = -1;
       if (wait > 0)
-         endWait = System.currentTimeMillis() + wait;
+         endWait = clock.currentTimeMillis() + wait;
       // Look for work
       synchronized (topLock)
       {
-         while (cancelled.get() == false && (wait >= 0 || endWait == -1))
+         while (cancelled.get() == false && (wait > 0 || endWait == -1))
          {
+            if (top != null && top.state != TimeoutExtImpl.PENDING)
+            {
+               // Drop a tombstone
+               discard(top);
+               top = null;
+               recalculateTop(false);
+               continue;
+            }
             if (top == null)
             {
                try
                {
                   if (endWait == -1)
-                     topLock.wait();
+                     clock.waitFor(topLock, 0);
                   else
-                     topLock.wait(wait);
+                     clock.waitFor(topLock, wait);
                }
                catch (InterruptedException ex)
                {
@@ -243,7 +323,7 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
             }
             else
             {
-               long now = System.currentTimeMillis();
+               long now = clock.currentTimeMillis();
                if (top.time > now)
                {
                   long waitForFirst = top.time - now;
@@ -251,24 +331,21 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
                      waitForFirst = wait;
                   try
                   {
-                     topLock.wait(waitForFirst);
+                     clock.waitFor(topLock, waitForFirst);
                   }
                   catch (InterruptedException ex)
                   {
                   }
                }
-               if (cancelled.get() == false && top != null && top.time <= System.currentTimeMillis())
+               if (cancelled.get() == false && top != null && top.time <= clock.currentTimeMillis())
                {
-                  TimeoutExtImpl result = top;
-                  result.queue = null;
-                  result.index = TimeoutExtImpl.TIMEOUT;
-                  top = null;
-                  recalculateTop(false);
-                  return result;
+                  TimeoutExtImpl result = fire();
+                  if (result != null)
+                     return result;
                }
             }
             if (endWait != -1)
-               wait = endWait - System.currentTimeMillis();
+               wait = endWait - clock.currentTimeMillis();
          }
       }
       return null;
@@ -278,6 +355,12 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
    {
       synchronized (topLock)
       {
+         while (top != null && top.state != TimeoutExtImpl.PENDING)
+         {
+            discard(top);
+            top = null;
+            recalculateTop(false);
+         }
          return top;
       }
    }
@@ -285,30 +368,16 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
    public boolean remove(TimeoutExt timeout)
    {
       TimeoutExtImpl timeoutImpl = (TimeoutExtImpl) timeout;
-      
-      // Fast way of doing it
-      InternalPriorityQueue queue = timeoutImpl.queue;
-      if (queue != null && queue.remove(timeoutImpl))
-         return true;
-
-      synchronized (topLock)
+      if (STATE.compareAndSet(timeoutImpl, TimeoutExtImpl.PENDING, TimeoutExtImpl.CANCELLED) == false)
       {
-         // Check the top element
-         if (top == timeout)
-         {
-            top.done();
-            top = null;
-            recalculateTop(true);
-            return true;
-         }
-         
-         // Double check, it might have been the top then
-         // just got moved back into the queue
-         queue = timeoutImpl.queue;
-         if (queue != null)
-            return queue.remove(timeoutImpl);
+         // has already been executed (DONE),
+         // is currently executing (TIMEOUT) or cancelled
+         return false;
       }
-      return false;
+      // Left in its queue as a tombstone
+      timeoutImpl.target = null;
+      tombstones.incrementAndGet();
+      return true;
    }
 
    public void clear()
@@ -319,11 +388,13 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
             return;
          
          // cleanup queues
-         for (int i = 1; i < queues.length; ++i)
+         for (int i = 0; i < queues.length; ++i)
             queues[i].clear();
 
          // cleanup the top
-         top = cleanupTimeoutExtImpl(top);
+         if (top != null)
+            forget(top);
+         top = null;
       }
    }
 
@@ -335,6 +406,7 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
             return;
 
          clear();
+         cancelled.set(true);
          topLock.notifyAll();
       }
    }
@@ -346,7 +418,33 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
          size =1;
       for (int i = 0; i < queues.length; ++i)
          size += queues[i].size();
-      return size;
+      return Math.max(0, size - tombstones.get());
+   }
+
+   /**
+    * @return the number of cancelled timeouts still in the queues
+    */
+   public int getTombstoneCount()
+   {
+      return tombstones.get();
+   }
+
+   /**
+    * Remove the tombstones from all the queues, one queue at a time
+    */
+   public void compact()
+   {
+      if (compacting.compareAndSet(false, true) == false)
+         return;
+      try
+      {
+         for (int i = 0; i < queues.length; ++i)
+            queues[i].compact();
+      }
+      finally
+      {
+         compacting.set(false);
+      }
    }
    
    /**
@@ -366,17 +464,60 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
    }
 
    /**
-    * Recursive cleanup of a TimeoutImpl
-    * 
-    * @return null
+    * Take the top out of the queues to time out, the caller holds the
+    * top lock
+    *
+    * @return the top or null when it was cancelled
     */
-   private TimeoutExtImpl cleanupTimeoutExtImpl(TimeoutExtImpl timeout)
+   private TimeoutExtImpl fire()
    {
-      if (timeout != null)
-         timeout.target = null;
+      TimeoutExtImpl result = top;
+      top = null;
+      recalculateTop(false);
+      if (STATE.compareAndSet(result, TimeoutExtImpl.PENDING, TimeoutExtImpl.FIRED))
+      {
+         entries.decrementAndGet();
+         result.queue = null;
+         result.index = TimeoutExtImpl.TIMEOUT;
+         return result;
+      }
+      // Cancelled while we waited
+      discard(result);
       return null;
    }
 
+   /**
+    * Forget a tombstone taken out of the queues
+    *
+    * @param timeout the cancelled timeout
+    */
+   private void discard(TimeoutExtImpl timeout)
+   {
+      timeout.queue = null;
+      timeout.index = TimeoutExtImpl.DONE;
+      entries.decrementAndGet();
+      tombstones.decrementAndGet();
+   }
+
+   /**
+    * Forget a timeout cleared from the queues, it can no longer be cancelled
+    *
+    * @param timeout the timeout
+    */
+   private void forget(TimeoutExtImpl timeout)
+   {
+      if (STATE.compareAndSet(timeout, TimeoutExtImpl.PENDING, TimeoutExtImpl.CANCELLED))
+      {
+         entries.decrementAndGet();
+         timeout.target = null;
+         timeout.done();
+      }
+      else
+      {
+         discard(timeout);
+      }
+   }
+
    /**
     * Debugging helper.
     */
@@ -477,30 +618,32 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
          return false;
       }
       
-      boolean remove(TimeoutExt timeout)
+      /**
+       * Remove the tombstones and restore the heap
+       */
+      void compact()
       {
          synchronized (lock)
          {
-            TimeoutExtImpl timeoutImpl = (TimeoutExtImpl) timeout;
-            if (timeoutImpl.queue == this && timeoutImpl.index > 0)
-            {
-               // Active timeout, remove it.
-               // INV: assertExpr(queue[timeoutImpl.index] == timeout);
-               // INV: checkTree();
-               removeNode(timeoutImpl.index);
-               // INV: checkTree();
-               timeoutImpl.queue = null;
-               timeoutImpl.index = TimeoutExtImpl.DONE;
-
-               // execution cancelled
-               return true;
-            }
-            else
+            int live = 0;
+            for (int i = 1; i <= size; ++i)
             {
-               // has already been executed (DONE) or
-               // is currently executing (TIMEOUT)
-               return false;
+               TimeoutExtImpl timeout = queue[i];
+               queue[i] = null;
+               if (timeout.state == TimeoutExtImpl.PENDING)
+               {
+                  queue[++live] = timeout;
+                  timeout.index = live;
+               }
+               else
+               {
+                  discard(timeout);
+               }
             }
+            size = live;
+            for (int i = size >> 1; i > 0; --i)
+               normalizeDown(i);
+            // INV: checkTree();
          }
       }
 
@@ -513,7 +656,11 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
 
             // cleanup queue
             for (int i = 1; i <= size; ++i)
-               queue[i] = cleanupTimeoutExtImpl(queue[i]);
+            {
+               forget(queue[i]);
+               queue[i] = null;
+            }
+            size = 0;
          }
       }
 
@@ -687,6 +834,15 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
     */
    private class TimeoutExtImpl implements TimeoutExt
    {
+      /** Waiting to time out */
+      static final int PENDING = 0;
+
+      /** Cancelled */
+      static final int CANCELLED = 1;
+
+      /** Taken out to time out */
+      static final int FIRED = 2;
+
       /** Top */
       static final int TOP = 0;
 
@@ -702,6 +858,9 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
       /** Index in the queue */
       int index;
 
+      /** The state, updated by CAS */
+      volatile int state = PENDING;
+
       /** Time of the timeout */
       long time;
 
@@ -723,6 +882,11 @@ public class HashedTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
          queue = null;
          index = DONE;
       }
+
+      HashedTimeoutPriorityQueueImpl owner()
+      {
+         return HashedTimeoutPriorityQueueImpl.this;
+      }
       
       public boolean cancel()
       {
@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.timeout;
+
+/**
+ * The clock the timeout queues and factories run on.
+ * <p>
+ * The time of a timeout is an absolute time in milliseconds. The clock
+ * gives the current time on the same scale, but it must never go back.
+ * The {@link #getSystemClock() system clock} is anchored to the wall clock
+ * when it is first used and then advances with {@link System#nanoTime()},
+ * so corrections of the wall clock neither fire timeouts early nor hold
+ * them back. A {@link VirtualTimeoutClock} only advances when told to,
+ * for tests.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public abstract class TimeoutClock
+{
+   /** The system clock */
+   private static final TimeoutClock SYSTEM = new SystemClock();
+
+   /**
+    * @return the monotonic clock backed by {@link System#nanoTime()}
+    */
+   public static TimeoutClock getSystemClock()
+   {
+      return SYSTEM;
+   }
+
+   /**
+    * Get the current time of this clock, it never goes back
+    *
+    * @return the time in MS
+    */
+   public abstract long currentTimeMillis();
+
+   /**
+    * Convert an absolute time of the wall clock to this clock
+    *
+    * @param time the time in MS as given by {@link System#currentTimeMillis()}
+    * @return the time on this clock
+    */
+   public long fromWallClock(long time)
+   {
+      return time;
+   }
+
+   /**
+    * Wait on a monitor the caller holds until notified or this clock
+    * advances by the given time. Callers must check the time again when
+    * this returns.
+    *
+    * @param monitor the monitor
+    * @param millis the time to wait in MS, 0 to wait until notified
+    * @throws InterruptedException when interrupted
+    */
+   public void waitFor(Object monitor, long millis) throws InterruptedException
+   {
+      monitor.wait(millis);
+   }
+
+   /**
+    * The monotonic system clock
+    */
+   private static class SystemClock extends TimeoutClock
+   {
+      /** The wall clock time at the origin */
+      private final long origin = System.currentTimeMillis();
+
+      /** The nano time at the origin */
+      private final long originNanos = System.nanoTime();
+
+      public long currentTimeMillis()
+      {
+         return origin + (System.nanoTime() - originNanos) / 1000000;
+      }
+
+      public long fromWallClock(long time)
+      {
+         long offset = currentTimeMillis() - System.currentTimeMillis();
+         if (offset > 0 && time > Long.MAX_VALUE - offset)
+            return Long.MAX_VALUE;
+         return Math.max(0, time + offset);
+      }
+
+      public String toString()
+      {
+         return "SystemClock";
+      }
+   }
+}
@@ -17,16 +17,61 @@
  */
 package org.jboss.util.timeout;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.util.NestedRuntimeException;
 import org.jboss.util.ThrowableHandler;
 import org.jboss.util.threadpool.BasicThreadPool;
 import org.jboss.util.threadpool.BlockingMode;
 import org.jboss.util.threadpool.ThreadPool;
+import org.jboss.util.threadpool.ThreadPoolFullException;
 
 /**
  * The timeout factory.
+ * <p>
+ * The queue of the timeouts is chosen with the system property
+ * <code>org.jboss.util.timeout.TimeoutPriorityQueue</code>, the binary heap
+ * {@link TimeoutPriorityQueueImpl} by default, or
+ * {@link HashedTimeoutPriorityQueueImpl} or the timing wheel
+ * {@link TimingWheelTimeoutPriorityQueueImpl} for many timeouts that are
+ * mostly cancelled.
+ * </p>
+ * <p>
+ * A factory can shard its timeouts over several queues, each with its own
+ * worker thread, so an expiry storm is not handled by a single thread. The
+ * system property <code>org.jboss.util.timeout.TimeoutFactory.shards</code>
+ * sets the number of shards of the factories that do not give one, 0 for
+ * one per processor, 1 by default. A worker hands the timeouts that expired
+ * together to the thread pool in one batch.
+ * </p>
+ * <p>
+ * With a timer slack the time of each timeout is rounded up to a multiple
+ * of the slack, so the timeouts within the same slack window fire together
+ * in one wake up of the worker and one hand-off, at most the slack late.
+ * The system property <code>org.jboss.util.timeout.TimeoutFactory.slack</code>
+ * sets the default slack in milliseconds, 0 for none. The lateness in the
+ * statistics is measured from the rounded time.
+ * </p>
+ * <p>
+ * Repeating timeouts run at a fixed rate or with a fixed delay between
+ * the end of one run and the next. They keep their queue entry, which is
+ * put back in the queue after each run. A fixed rate is kept from the
+ * first time, so the delays of the runs do not add up.
+ * </p>
+ * <p>
+ * The factory and its queues run on a monotonic {@link TimeoutClock}, the
+ * absolute times given to {@link #schedule(long, TimeoutTarget)} are
+ * converted from the wall clock to it when scheduled. Tests can run a
+ * factory on a {@link VirtualTimeoutClock}.
+ * </p>
+ * <p>
+ * The lateness of the timeouts, the queue depth and the cancellations are
+ * kept in the {@link TimeoutStatistics} of the factory.
+ * </p>
  *
  * @author <a href="osh@sparre.dk">Ole Husgaard</a>
  * @author <a href="dimitris@jboss.org">Dimitris Andreadis</a>
@@ -42,6 +87,15 @@ public class TimeoutFactory
 
    /** The priority queue default */
    private static final String priorityQueueName = TimeoutPriorityQueueImpl.class.getName();
+
+   /** The number of shards property */
+   private static final String shardsProperty = TimeoutFactory.class.getName() + ".shards";
+
+   /** The timer slack property */
+   private static final String slackProperty = TimeoutFactory.class.getName() + ".slack";
+
+   /** The maximum number of timeouts handed to the thread pool at once */
+   private static final int BATCH_SIZE = 64;
    
    /** Our singleton instance */
    private static TimeoutFactory singleton;
@@ -51,6 +105,12 @@ public class TimeoutFactory
    
    /** The priority queue class */
    private static Class<?> priorityQueueClass;
+
+   /** The default number of shards */
+   private static int defaultShards = 1;
+
+   /** The default timer slack */
+   private static long defaultSlack = 0;
    
    /** The default threadpool used to execute timeouts */
    private static BasicThreadPool DEFAULT_TP = new BasicThreadPool("Timeouts");
@@ -77,20 +137,48 @@ public class TimeoutFactory
       {
          throw new NestedRuntimeException(e.toString(), e);
       }
+
+      try
+      {
+         String shards = System.getProperty(shardsProperty);
+         if (shards != null)
+            defaultShards = Integer.parseInt(shards.trim());
+      }
+      catch (Exception ignored)
+      {
+      }
+
+      try
+      {
+         String slack = System.getProperty(slackProperty);
+         if (slack != null)
+            defaultSlack = Math.max(0, Long.parseLong(slack.trim()));
+      }
+      catch (Exception ignored)
+      {
+      }
    }
 
    /** Used for graceful exiting */
    private AtomicBoolean cancelled = new AtomicBoolean(false);
    
-   /** The daemon thread that dequeues timeouts tasks and issues
-       them for execution to the thread pool */ 
-   private Thread workerThread;
-   
    /** Per TimeoutFactory thread pool used to execute timeouts */
    private ThreadPool threadPool;
    
-   /** The priority queue */
-   private TimeoutPriorityQueue queue;
+   /** The clock */
+   private final TimeoutClock clock;
+
+   /** The shards, each a priority queue with its worker thread */
+   private Shard[] shards;
+
+   /** The next shard to schedule to */
+   private AtomicInteger nextShard = new AtomicInteger();
+
+   /** The timer slack in MS, 0 for none */
+   private volatile long slack = defaultSlack;
+
+   /** The statistics */
+   private final TimeoutStatistics statistics = new TimeoutStatistics(this);
 
    public synchronized static TimeoutFactory getSingleton()
    {
@@ -118,26 +206,50 @@ public class TimeoutFactory
     */
    public TimeoutFactory(ThreadPool threadPool)
    {
+      this(threadPool, defaultShards);
+   }
+
+   /**
+    * Constructs a new TimeoutFactory that uses the provided ThreadPool and
+    * shards the timeouts over several worker threads
+    *
+    * @param threadPool the thread pool
+    * @param shards the number of shards, 0 for one per processor
+    */
+   public TimeoutFactory(ThreadPool threadPool, int shards)
+   {
+      this(threadPool, shards, TimeoutClock.getSystemClock());
+   }
+
+   /**
+    * Constructs a new TimeoutFactory that runs on the given clock, the
+    * priority queue class must have a constructor taking the clock
+    * unless it is the system clock
+    *
+    * @param threadPool the thread pool
+    * @param shards the number of shards, 0 for one per processor
+    * @param clock the clock
+    */
+   public TimeoutFactory(ThreadPool threadPool, int shards, TimeoutClock clock)
+   {
+      if (clock == null)
+         throw new IllegalArgumentException("Null clock");
       this.threadPool = threadPool;
-      try
-      {
-         queue = (TimeoutPriorityQueue) priorityQueueClass.newInstance(); 
-      }
-      catch (Exception e)
+      this.clock = clock;
+      if (shards <= 0)
+         shards = Runtime.getRuntime().availableProcessors();
+      this.shards = new Shard[shards];
+      for (int i = 0; i < shards; ++i)
+         this.shards[i] = new Shard(createQueue(clock));
+
+      // setup the worker threads
+      String name = "TimeoutFactory-" + timeoutFactoriesCount++;
+      for (int i = 0; i < shards; ++i)
       {
-         throw new RuntimeException("Cannot instantiate " + priorityQueueClass,e);
+         Thread workerThread = new Thread(this.shards[i], shards == 1 ? name : name + "-" + i);
+         workerThread.setDaemon(true);
+         workerThread.start();
       }
-      
-      // setup the workerThread
-      workerThread = new Thread("TimeoutFactory-" + timeoutFactoriesCount++)
-      {
-         public void run()
-         {
-            doWork();
-         }
-      };
-      workerThread.setDaemon(true);
-      workerThread.start();
    }
    
    /**
@@ -164,7 +276,9 @@ public class TimeoutFactory
       if (target == null)
          throw new IllegalArgumentException("Null timeout target");
 
-      return queue.offer(time, target);
+      Shard shard = nextShard();
+      shard.scheduled.incrementAndGet();
+      return shard.queue.offer(coalesce(toClock(time)), target);
    }
    
    /**
@@ -179,6 +293,63 @@ public class TimeoutFactory
       return schedule(time, new TimeoutTargetImpl(run));
    }
    
+   /**
+    * Schedules a timeout that repeats at a fixed rate. The times of the
+    * runs are the first time plus a multiple of the period, a run that is
+    * late is followed by the next one as soon as possible. The runs never
+    * overlap.
+    *
+    * @param time absolute time of the first run
+    * @param period the time between the starts of the runs in MS
+    * @param target target to fire
+    * @return the timeout, cancelling it stops the runs
+    */
+   public Timeout scheduleAtFixedRate(long time, long period, TimeoutTarget target)
+   {
+      return scheduleRepeating(time, period, true, target);
+   }
+
+   /**
+    * Schedules a timeout that repeats at a fixed rate.
+    *
+    * @param time absolute time of the first run
+    * @param period the time between the starts of the runs in MS
+    * @param run runnable to run
+    * @return the timeout, cancelling it stops the runs
+    */
+   public Timeout scheduleAtFixedRate(long time, long period, Runnable run)
+   {
+      return scheduleAtFixedRate(time, period, new TimeoutTargetImpl(run));
+   }
+
+   /**
+    * Schedules a timeout that repeats with a fixed delay between the end
+    * of a run and the start of the next one.
+    *
+    * @param time absolute time of the first run
+    * @param delay the delay between the runs in MS
+    * @param target target to fire
+    * @return the timeout, cancelling it stops the runs
+    */
+   public Timeout scheduleWithFixedDelay(long time, long delay, TimeoutTarget target)
+   {
+      return scheduleRepeating(time, delay, false, target);
+   }
+
+   /**
+    * Schedules a timeout that repeats with a fixed delay between the end
+    * of a run and the start of the next one.
+    *
+    * @param time absolute time of the first run
+    * @param delay the delay between the runs in MS
+    * @param run runnable to run
+    * @return the timeout, cancelling it stops the runs
+    */
+   public Timeout scheduleWithFixedDelay(long time, long delay, Runnable run)
+   {
+      return scheduleWithFixedDelay(time, delay, new TimeoutTargetImpl(run));
+   }
+
    /**
     * Cancels all submitted tasks, stops the worker
     * thread and clean-ups everything except for the
@@ -193,8 +364,9 @@ public class TimeoutFactory
       // let the worker thread cleanup
       if (cancelled.getAndSet(true) == false)
       {
-         // Cancel the priority queue
-         queue.cancel();
+         // Cancel the priority queues
+         for (int i = 0; i < shards.length; ++i)
+            shards[i].queue.cancel();
       }
    }
    
@@ -207,11 +379,228 @@ public class TimeoutFactory
       return cancelled.get();
    }
 
+   /**
+    * @return the number of shards
+    */
+   public int getShardCount()
+   {
+      return shards.length;
+   }
+
+   /**
+    * Get the number of timeouts a shard handed to the thread pool
+    *
+    * @param shard the shard index
+    * @return the number of timeouts
+    */
+   public long getDispatchCount(int shard)
+   {
+      return shards[shard].dispatched;
+   }
+
+   /**
+    * Get the average time between the time of the timeouts of a shard and
+    * their hand-off to the thread pool
+    *
+    * @param shard the shard index
+    * @return the average lateness in MS
+    */
+   public double getAverageLateness(int shard)
+   {
+      Shard s = shards[shard];
+      long count = s.dispatched;
+      return count == 0 ? 0 : (double) s.totalLateness / count;
+   }
+
+   /**
+    * Get the maximum time between the time of a timeout of a shard and its
+    * hand-off to the thread pool
+    *
+    * @param shard the shard index
+    * @return the maximum lateness in MS
+    */
+   public long getMaximumLateness(int shard)
+   {
+      return shards[shard].maximumLateness;
+   }
+
+   /**
+    * Get the timer slack
+    *
+    * @return the slack in MS, 0 for none
+    */
+   public long getTimerSlack()
+   {
+      return slack;
+   }
+
+   /**
+    * Set the timer slack, the timeouts scheduled afterwards within the same
+    * window of this size fire together
+    *
+    * @param slack the slack in MS, 0 for none
+    */
+   public void setTimerSlack(long slack)
+   {
+      if (slack < 0)
+         throw new IllegalArgumentException("Negative slack: " + slack);
+      this.slack = slack;
+   }
+
+   /**
+    * @return the clock of the timeouts
+    */
+   public TimeoutClock getClock()
+   {
+      return clock;
+   }
+
+   /**
+    * @return the lateness, queue depth and cancellation statistics
+    */
+   public TimeoutStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   /**
+    * @return the number of timeouts scheduled on all shards
+    */
+   long getScheduledCount()
+   {
+      long total = 0;
+      for (int i = 0; i < shards.length; ++i)
+         total += shards[i].scheduled.get();
+      return total;
+   }
+
+   /**
+    * @return the number of timeouts all shards handed to the thread pool
+    */
+   long getDispatchCount()
+   {
+      long total = 0;
+      for (int i = 0; i < shards.length; ++i)
+         total += shards[i].dispatched;
+      return total;
+   }
+
+   /**
+    * @return the number of timeouts waiting in all shards
+    */
+   int getQueueDepth()
+   {
+      int total = 0;
+      for (int i = 0; i < shards.length; ++i)
+         total += shards[i].queue.size();
+      return total;
+   }
+
+   /**
+    * Schedule a timeout that repeats at a fixed rate or with a fixed delay
+    *
+    * @param time the absolute time of the first run
+    * @param period the period or delay in MS
+    * @param fixedRate true for a fixed rate, false for a fixed delay
+    * @param target the target
+    * @return the timeout
+    */
+   private Timeout scheduleRepeating(long time, long period, boolean fixedRate, TimeoutTarget target)
+   {
+      if (cancelled.get())
+         throw new IllegalStateException("TimeoutFactory has been cancelled");      
+      if (time < 0)
+         throw new IllegalArgumentException("Negative time");
+      if (period <= 0)
+         throw new IllegalArgumentException("The period must be positive: " + period);
+      if (target == null)
+         throw new IllegalArgumentException("Null timeout target");
+
+      Shard shard = nextShard();
+      RepeatingTimeout timeout = new RepeatingTimeout(shard, toClock(time), period, fixedRate, target);
+      shard.scheduled.incrementAndGet();
+      timeout.entry = shard.queue.offer(coalesce(timeout.next), timeout);
+      return timeout;
+   }
+
+   /**
+    * @return the shard to schedule the next timeout to
+    */
+   private Shard nextShard()
+   {
+      if (shards.length == 1)
+         return shards[0];
+      return shards[(nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+   }
+
+   /**
+    * Convert the absolute time of a timeout to the clock, a time that
+    * passed is due now, which keeps the lateness meaningful
+    *
+    * @param time the time on the wall clock
+    * @return the time on the clock
+    */
+   private long toClock(long time)
+   {
+      long now = clock.currentTimeMillis();
+      time = clock.fromWallClock(time);
+      return time < now ? now : time;
+   }
+
+   /**
+    * Round a time up to the timer slack
+    *
+    * @param time the time on the clock
+    * @return the time of the slack window
+    */
+   private long coalesce(long time)
+   {
+      long slack = this.slack;
+      if (slack > 1 && time <= Long.MAX_VALUE - slack)
+         time = (time + slack - 1) / slack * slack;
+      return time;
+   }
+
+   /**
+    * Create a priority queue running on a clock
+    *
+    * @param clock the clock
+    * @return the priority queue
+    */
+   private static TimeoutPriorityQueue createQueue(TimeoutClock clock)
+   {
+      try
+      {
+         try
+         {
+            return (TimeoutPriorityQueue) priorityQueueClass.getConstructor(TimeoutClock.class).newInstance(clock);
+         }
+         catch (NoSuchMethodException e)
+         {
+            if (clock != TimeoutClock.getSystemClock())
+               throw new IllegalArgumentException(priorityQueueClass + " does not support the clock " + clock);
+            return (TimeoutPriorityQueue) priorityQueueClass.newInstance();
+         }
+      }
+      catch (IllegalArgumentException e)
+      {
+         throw e;
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Cannot instantiate " + priorityQueueClass,e);
+      }
+   }
+
    /**
     *  Timeout worker method.
+    *
+    *  @param shard the shard to work for
     */
-   private void doWork()
+   private void doWork(Shard shard)
    {
+      TimeoutPriorityQueue queue = shard.queue;
+      List<TimeoutWorker> batch = new ArrayList<TimeoutWorker>();
       while (cancelled.get() == false)
       {
          TimeoutExt work = queue.take();
@@ -219,26 +608,146 @@ public class TimeoutFactory
          if (work != null)
          {
             // Wrap the TimeoutExt with a runnable that invokes the target callback
-            TimeoutWorker worker = new TimeoutWorker(work);
-            try
-            {
-               threadPool.run(worker);
-            }
-            catch (Throwable t)
+            batch.add(new TimeoutWorker(work, statistics));
+
+            // Take the timeouts that expired with it
+            long now = clock.currentTimeMillis();
+            while (batch.size() < BATCH_SIZE)
             {
-               // protect the worker thread from pool enqueue errors
-               ThrowableHandler.add(ThrowableHandler.Type.ERROR, t);
+               TimeoutExt next = queue.peek();
+               if (next == null || next.getTime() > now)
+                  break;
+               next = queue.poll();
+               if (next == null)
+                  break;
+               batch.add(new TimeoutWorker(next, statistics));
             }
-            synchronized (work)
-            {
-               work.done();
-            }            
+
+            dispatch(shard, batch, now);
+            batch.clear();
          }
       }
       
       // TimeoutFactory was cancelled
       queue.cancel();
    }
+
+   /**
+    *  Hand timeouts to the thread pool
+    *
+    *  @param shard the shard of the timeouts
+    *  @param batch the timeouts
+    *  @param now the current time
+    */
+   private void dispatch(Shard shard, List<TimeoutWorker> batch, long now)
+   {
+      boolean detailed = statistics.isDetailed();
+      for (int i = 0; i < batch.size(); ++i)
+      {
+         TimeoutWorker worker = batch.get(i);
+         long lateness = Math.max(0, now - worker.work.getTime());
+         shard.dispatched(lateness);
+         statistics.dispatched(lateness);
+         if (detailed)
+            worker.handOff = System.nanoTime();
+      }
+
+      if (batch.size() == 1)
+      {
+         try
+         {
+            threadPool.run(batch.get(0));
+         }
+         catch (Throwable t)
+         {
+            // protect the worker thread from pool enqueue errors
+            rejected(batch.get(0).work, t);
+         }
+      }
+      else
+      {
+         try
+         {
+            boolean[] accepted = threadPool.runAll(batch);
+            for (int i = 0; i < accepted.length; ++i)
+            {
+               if (accepted[i] == false)
+               {
+                  TimeoutExt work = batch.get(i).work;
+                  rejected(work, new ThreadPoolFullException("Error scheduling timeout: " + work));
+               }
+            }
+         }
+         catch (Throwable t)
+         {
+            // protect the worker thread from pool enqueue errors
+            for (int i = 0; i < batch.size(); ++i)
+               rejected(batch.get(i).work, t);
+         }
+      }
+
+      for (int i = 0; i < batch.size(); ++i)
+         batch.get(i).done();
+   }
+
+   /**
+    *  Report a timeout the thread pool did not accept, a repeating timeout
+    *  skips this run
+    *
+    *  @param work the timeout
+    *  @param t the error
+    */
+   private void rejected(TimeoutExt work, Throwable t)
+   {
+      ThrowableHandler.add(ThrowableHandler.Type.ERROR, t);
+      TimeoutTarget target = work.getTimeoutTarget();
+      if (target instanceof RepeatingTimeout)
+         ((RepeatingTimeout) target).repeat(work);
+   }
+
+   /**
+    *  A priority queue with its worker thread
+    */
+   private class Shard implements Runnable
+   {
+      /** The priority queue */
+      final TimeoutPriorityQueue queue;
+
+      /** The number of timeouts scheduled */
+      final AtomicLong scheduled = new AtomicLong();
+
+      /** The number of timeouts handed to the thread pool */
+      volatile long dispatched;
+
+      /** The total lateness in MS */
+      volatile long totalLateness;
+
+      /** The maximum lateness in MS */
+      volatile long maximumLateness;
+
+      Shard(TimeoutPriorityQueue queue)
+      {
+         this.queue = queue;
+      }
+
+      public void run()
+      {
+         doWork(this);
+      }
+
+      /**
+       * Record a hand-off, only called by the worker thread
+       *
+       * @param lateness the lateness in MS
+       */
+      void dispatched(long lateness)
+      {
+         totalLateness += lateness;
+         if (lateness > maximumLateness)
+            maximumLateness = lateness;
+         ++dispatched;
+      }
+   }
    
    /**
     *  A runnable that fires the timeout callback
@@ -247,14 +756,26 @@ public class TimeoutFactory
    {
       private TimeoutExt work;
 
+      /** The statistics */
+      private TimeoutStatistics statistics;
+
+      /** The nano time of the hand-off, 0 when not measured */
+      long handOff;
+
+      /** Whether the timeout repeats */
+      private boolean repeating;
+
       /**
        *  Create a new instance.
        *
        *  @param work The timeout that should be fired.
+       *  @param statistics The statistics of the factory.
        */
-      TimeoutWorker(TimeoutExt work)
+      TimeoutWorker(TimeoutExt work, TimeoutStatistics statistics)
       {
          this.work = work;
+         this.statistics = statistics;
+         this.repeating = work.getTimeoutTarget() instanceof RepeatingTimeout;
       }
 
       /**
@@ -262,6 +783,8 @@ public class TimeoutFactory
        */
       public void run()
       {
+         if (handOff != 0)
+            statistics.started(System.nanoTime() - handOff);
          try
          {
             work.getTimeoutTarget().timedOut(work);
@@ -271,11 +794,132 @@ public class TimeoutFactory
             // protect the thread pool thread from receiving this error
             ThrowableHandler.add(ThrowableHandler.Type.ERROR, t);
          }
+         done();
+      }
+
+      /**
+       *  Mark the timeout as done unless it repeats, a repeating timeout
+       *  marks its queue entry itself when it stops.
+       */
+      void done()
+      {
+         if (repeating)
+            return;
+         synchronized (work)
+         {
+            work.done();
+         }
+      }
+   }
+
+   /**
+    *  A timeout that repeats, the target of its queue entry
+    */
+   private class RepeatingTimeout implements Timeout, TimeoutTarget
+   {
+      /** The shard */
+      private final Shard shard;
+
+      /** The period or delay in MS */
+      private final long period;
+
+      /** Whether the period is a fixed rate */
+      private final boolean fixedRate;
+
+      /** The target */
+      private final TimeoutTarget target;
+
+      /** The time of the next run before the slack */
+      long next;
+
+      /** The queue entry */
+      volatile TimeoutExt entry;
+
+      /** Whether cancelled */
+      private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+      RepeatingTimeout(Shard shard, long time, long period, boolean fixedRate, TimeoutTarget target)
+      {
+         this.shard = shard;
+         this.next = time;
+         this.period = period;
+         this.fixedRate = fixedRate;
+         this.target = target;
+      }
+
+      public boolean cancel()
+      {
+         if (stopped.getAndSet(true))
+            return false;
+         TimeoutExt current = entry;
+         if (current != null)
+            current.cancel();
+         return true;
+      }
+
+      public void timedOut(Timeout timeout)
+      {
+         TimeoutExt work = (TimeoutExt) timeout;
+         if (stopped.get() == false)
+         {
+            try
+            {
+               target.timedOut(this);
+            }
+            finally
+            {
+               repeat(work);
+            }
+         }
+         else
+         {
+            stop(work);
+         }
+      }
+
+      /**
+       * Put the queue entry back for the next run
+       *
+       * @param work the queue entry
+       */
+      void repeat(TimeoutExt work)
+      {
+         entry = work;
+         if (stopped.get() == false)
+         {
+            long now = clock.currentTimeMillis();
+            long base = fixedRate ? next : now;
+            next = base > Long.MAX_VALUE - period ? Long.MAX_VALUE : base + period;
+            shard.scheduled.incrementAndGet();
+            if (shard.queue.reschedule(work, coalesce(next)))
+            {
+               // Cancelled while requeued
+               if (stopped.get())
+                  work.cancel();
+               return;
+            }
+            shard.scheduled.decrementAndGet();
+         }
+         stop(work);
+      }
+
+      /**
+       * Mark the queue entry as done
+       *
+       * @param work the queue entry
+       */
+      private void stop(TimeoutExt work)
+      {
          synchronized (work)
          {
             work.done();
          }
       }
+
+      public String toString()
+      {
+         return "RepeatingTimeout[" + (fixedRate ? "rate=" : "delay=") + period + " target=" + target + "]";
+      }
    }
    
    /**
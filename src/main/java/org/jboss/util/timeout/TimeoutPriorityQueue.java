@@ -34,6 +34,18 @@ public interface TimeoutPriorityQueue
     */
    TimeoutExt offer(long time, TimeoutTarget target);
    
+   /**
+    * Put a timeout taken from this queue back with a new time, reusing its
+    * entry. This is how repeating timeouts are kept, the timeout must not
+    * be marked as done.
+    *
+    * @param timeout the timeout
+    * @param time the new time of the timeout
+    * @return true when requeued, false when the timeout is not one taken
+    *         from this queue or the queue is cancelled
+    */
+   boolean reschedule(TimeoutExt timeout, long time);
+
    /**
     * Take a timeout when it times out
     * 
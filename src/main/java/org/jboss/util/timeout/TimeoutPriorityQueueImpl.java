@@ -167,6 +167,9 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
    //  Finally the index field is set to TimeoutImpl.DONE, and
    //  the TimeoutImpl instance is discarded.
 
+   /** The clock */
+   private final TimeoutClock clock;
+
    /** The lock object */
    private Object lock = new Object();
 
@@ -181,6 +184,19 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
     */
    public TimeoutPriorityQueueImpl()
    {
+      this(TimeoutClock.getSystemClock());
+   }
+
+   /**
+    * Create a new TimeoutPriorityQueueImpl.
+    *
+    * @param clock the clock
+    */
+   public TimeoutPriorityQueueImpl(TimeoutClock clock)
+   {
+      if (clock == null)
+         throw new IllegalArgumentException("Null clock");
+      this.clock = clock;
       queue = new TimeoutExtImpl[16];
       size = 0;
    }
@@ -219,6 +235,34 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
       }
    }
 
+   public boolean reschedule(TimeoutExt timeout, long time)
+   {
+      if (time < 0)
+         throw new IllegalArgumentException("Negative time");
+      if (timeout instanceof TimeoutExtImpl == false)
+         return false;
+      TimeoutExtImpl timeoutImpl = (TimeoutExtImpl) timeout;
+      synchronized (lock)
+      {
+         if (queue == null || timeoutImpl.index != TimeoutExtImpl.TIMEOUT || timeoutImpl.owner() != this)
+            return false;
+         if (++size == queue.length)
+         {
+            TimeoutExtImpl[] newQ = new TimeoutExtImpl[2 * queue.length];
+            System.arraycopy(queue, 0, newQ, 0, queue.length);
+            queue = newQ;
+         }
+         queue[size] = timeoutImpl;
+         timeoutImpl.index = size;
+         timeoutImpl.time = time;
+         normalizeUp(size);
+         if (timeoutImpl.index == 1)
+            lock.notify();
+         // INV: checkTree();
+         return true;
+      }
+   }
+
    public TimeoutExt take()
    {
       return poll(-1);
@@ -226,27 +270,36 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
 
    public TimeoutExt poll()
    {
-      return poll(1);
+      synchronized (lock)
+      {
+         if (queue != null && size > 0 && queue[1].time <= clock.currentTimeMillis())
+         {
+            TimeoutExtImpl result = removeNode(1);
+            result.index = TimeoutExtImpl.TIMEOUT;
+            return result;
+         }
+      }
+      return null;
    }
 
    public TimeoutExt poll(long wait)
    {
       long endWait = -1;
       if (wait > 0)
-         endWait = System.currentTimeMillis() + wait;
+         endWait = clock.currentTimeMillis() + wait;
       // Look for work
       synchronized (lock)
       {
-         while (queue != null && (wait >= 0 || endWait == -1))
+         while (queue != null && (wait > 0 || endWait == -1))
          {
             if (size == 0)
             {
                try
                {
                   if (endWait == -1)
-                     lock.wait();
+                     clock.waitFor(lock, 0);
                   else
-                     lock.wait(wait);
+                     clock.waitFor(lock, wait);
                }
                catch (InterruptedException ex)
                {
@@ -254,7 +307,7 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
             }
             else
             {
-               long now = System.currentTimeMillis();
+               long now = clock.currentTimeMillis();
                if (queue[1].time > now)
                {
                   long waitForFirst = queue[1].time - now;
@@ -262,13 +315,13 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
                      waitForFirst = wait;
                   try
                   {
-                     lock.wait(waitForFirst);
+                     clock.waitFor(lock, waitForFirst);
                   }
                   catch (InterruptedException ex)
                   {
                   }
                }
-               if (size > 0 && queue != null && queue[1].time <= System.currentTimeMillis())
+               if (size > 0 && queue != null && queue[1].time <= clock.currentTimeMillis())
                {
                   TimeoutExtImpl result = removeNode(1);
                   result.index = TimeoutExtImpl.TIMEOUT;
@@ -276,7 +329,7 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
                }
             }
             if (endWait != -1)
-               wait = endWait - System.currentTimeMillis();
+               wait = endWait - clock.currentTimeMillis();
          }
       }
       return null;
@@ -556,6 +609,11 @@ public class TimeoutPriorityQueueImpl implements TimeoutPriorityQueue
       {
          index = DONE;
       }
+
+      TimeoutPriorityQueueImpl owner()
+      {
+         return TimeoutPriorityQueueImpl.this;
+      }
       
       public boolean cancel()
       {
@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.timeout;
+
+import org.jboss.util.Histogram;
+
+/**
+ * The statistics of a timeout factory.
+ * <p>
+ * By default only the counters the worker threads keep anyway and the
+ * lateness histogram are recorded, which is cheap enough to leave on.
+ * The number of cancelled timeouts is derived from the counters and the
+ * queue depth so cancelling a timeout costs nothing more. The detailed
+ * mode adds the delay between the hand-off of a timeout and the start of
+ * its target on a pool thread.
+ * </p>
+ * <p>
+ * The statistics can be registered as a standard MBean.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class TimeoutStatistics implements TimeoutStatisticsMBean
+{
+   // Attributes ----------------------------------------------------
+
+   /** The timeout factory */
+   private final TimeoutFactory factory;
+
+   /** The time between the time of the timeouts and their hand-off */
+   private final Histogram lateness = new Histogram();
+
+   /** The time between the hand-off of the timeouts and their start */
+   private final Histogram handOffDelay = new Histogram();
+
+   /** Whether the hand-off delay is measured */
+   private volatile boolean detailed;
+
+   /** The scheduled count at the last reset */
+   private volatile long scheduledBase;
+
+   /** The dispatch count at the last reset */
+   private volatile long dispatchedBase;
+
+   /** The queue depth at the last reset */
+   private volatile int depthBase;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create the statistics of a timeout factory
+    *
+    * @param factory the timeout factory
+    */
+   TimeoutStatistics(TimeoutFactory factory)
+   {
+      this.factory = factory;
+   }
+
+   // TimeoutStatisticsMBean implementation -------------------------
+
+   public boolean isDetailed()
+   {
+      return detailed;
+   }
+
+   public void setDetailed(boolean detailed)
+   {
+      this.detailed = detailed;
+   }
+
+   public long getScheduledCount()
+   {
+      return factory.getScheduledCount() - scheduledBase;
+   }
+
+   public long getDispatchCount()
+   {
+      return factory.getDispatchCount() - dispatchedBase;
+   }
+
+   public long getCancelledCount()
+   {
+      // Whatever was scheduled and neither fired nor waits was cancelled
+      long dispatched = getDispatchCount();
+      int depth = factory.getQueueDepth() - depthBase;
+      return Math.max(0, getScheduledCount() - dispatched - depth);
+   }
+
+   public double getCancellationRatio()
+   {
+      long scheduled = getScheduledCount();
+      return scheduled <= 0 ? 0 : Math.min(1, (double) getCancelledCount() / scheduled);
+   }
+
+   public int getQueueDepth()
+   {
+      return factory.getQueueDepth();
+   }
+
+   public double getAverageLateness()
+   {
+      return lateness.getAverage() / 1000;
+   }
+
+   public long getMaximumLateness()
+   {
+      return lateness.getMaximum() / 1000;
+   }
+
+   public long getLatenessPercentile(double percentile)
+   {
+      return lateness.getPercentile(percentile) / 1000;
+   }
+
+   public long[] getLatenessHistogram()
+   {
+      return lateness.getBuckets();
+   }
+
+   public double getAverageHandOffDelay()
+   {
+      return handOffDelay.getAverage();
+   }
+
+   public long getMaximumHandOffDelay()
+   {
+      return handOffDelay.getMaximum();
+   }
+
+   public long[] getHandOffDelayHistogram()
+   {
+      return handOffDelay.getBuckets();
+   }
+
+   public void reset()
+   {
+      lateness.reset();
+      handOffDelay.reset();
+      scheduledBase = factory.getScheduledCount();
+      dispatchedBase = factory.getDispatchCount();
+      depthBase = factory.getQueueDepth();
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the time between the time of the timeouts and their hand-off
+    */
+   public Histogram getLateness()
+   {
+      return lateness;
+   }
+
+   /**
+    * @return the time between the hand-off of the timeouts and their start
+    */
+   public Histogram getHandOffDelay()
+   {
+      return handOffDelay;
+   }
+
+   public String toString()
+   {
+      return "scheduled=" + getScheduledCount() + " dispatched=" + getDispatchCount()
+         + " cancelled=" + getCancelledCount() + " queueDepth=" + getQueueDepth()
+         + " lateness=" + lateness + " handOffDelay=" + handOffDelay;
+   }
+
+   // Package protected ---------------------------------------------
+
+   /**
+    * Record the hand-off of a timeout
+    *
+    * @param millis the lateness in MS
+    */
+   void dispatched(long millis)
+   {
+      lateness.record(millis * 1000000);
+   }
+
+   /**
+    * Record the start of a timeout target
+    *
+    * @param nanos the time since the hand-off in nanos
+    */
+   void started(long nanos)
+   {
+      handOffDelay.record(nanos);
+   }
+}
@@ -0,0 +1,140 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.timeout;
+
+/**
+ * Management interface for the statistics of a timeout factory.
+ *
+ * @version $Revision$
+ */
+public interface TimeoutStatisticsMBean
+{
+   /**
+    * Whether the detailed statistics are kept
+    *
+    * @return true when the hand-off delay is measured
+    */
+   boolean isDetailed();
+
+   /**
+    * Keep the detailed statistics. This measures the hand-off delay, which
+    * costs a clock read for each timeout on the worker and the pool thread.
+    * The other statistics are always kept.
+    *
+    * @param detailed whether to keep the detailed statistics
+    */
+   void setDetailed(boolean detailed);
+
+   /**
+    * Get the number of timeouts scheduled
+    *
+    * @return the number of timeouts
+    */
+   long getScheduledCount();
+
+   /**
+    * Get the number of timeouts handed to the thread pool
+    *
+    * @return the number of timeouts
+    */
+   long getDispatchCount();
+
+   /**
+    * Get the number of timeouts cancelled before they expired
+    *
+    * @return the number of timeouts
+    */
+   long getCancelledCount();
+
+   /**
+    * Get the share of the scheduled timeouts that were cancelled
+    *
+    * @return the ratio between 0 and 1
+    */
+   double getCancellationRatio();
+
+   /**
+    * Get the number of timeouts waiting in the queues
+    *
+    * @return the queue depth
+    */
+   int getQueueDepth();
+
+   /**
+    * Get the average time between the time of a timeout and its hand-off
+    * to the thread pool
+    *
+    * @return the average lateness in MS
+    */
+   double getAverageLateness();
+
+   /**
+    * Get the maximum time between the time of a timeout and its hand-off
+    * to the thread pool
+    *
+    * @return the maximum lateness in MS
+    */
+   long getMaximumLateness();
+
+   /**
+    * Get the lateness below which the given percentage of the timeouts
+    * were handed off, approximate to a factor of two
+    *
+    * @param percentile the percentile between 0 and 100
+    * @return the lateness in MS
+    */
+   long getLatenessPercentile(double percentile);
+
+   /**
+    * Get the log2 histogram of the lateness
+    *
+    * @return the counts of the buckets, bucket i holding the lateness of
+    *    less than 2^i micros
+    */
+   long[] getLatenessHistogram();
+
+   /**
+    * Get the average time between the hand-off of a timeout and the start
+    * of its target on a pool thread, only measured in detailed mode
+    *
+    * @return the average delay in micros
+    */
+   double getAverageHandOffDelay();
+
+   /**
+    * Get the maximum time between the hand-off of a timeout and the start
+    * of its target on a pool thread, only measured in detailed mode
+    *
+    * @return the maximum delay in micros
+    */
+   long getMaximumHandOffDelay();
+
+   /**
+    * Get the log2 histogram of the hand-off delay, only measured in
+    * detailed mode
+    *
+    * @return the counts of the buckets, bucket i holding the delays of
+    *    less than 2^i micros
+    */
+   long[] getHandOffDelayHistogram();
+
+   /**
+    * Reset the statistics
+    */
+   void reset();
+}
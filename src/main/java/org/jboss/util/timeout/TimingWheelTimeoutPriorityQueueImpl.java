@@ -0,0 +1,554 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.timeout;
+
+/**
+ * TimingWheelTimeoutPriorityQueueImpl.
+ *
+ *  A hierarchical timing wheel. Adding and removing a timeout take
+ *  constant time whatever the number of timeouts, which suits many short
+ *  timeouts that are mostly cancelled before they fire. Select it for
+ *  TimeoutFactory with the system property
+ *  <code>org.jboss.util.timeout.TimeoutPriorityQueue</code>.
+ *
+ *  The wheel has 11 levels of 64 slots covering the whole range of
+ *  millisecond times. <code>current</code> is the time the wheel has
+ *  advanced to. A timeout at time <code>T &gt; current</code> is kept at
+ *  the level of the highest group of 6 bits in which <code>T</code> differs
+ *  from <code>current</code>, in the slot given by that group of
+ *  <code>T</code>. So a slot of level 0 holds timeouts of exactly one
+ *  millisecond and a slot of level <code>L</code> a range of
+ *  <code>64^L</code> milliseconds. Timeouts at or before
+ *  <code>current</code> are in the expired list.
+ *
+ *  It follows that every timeout of a level fires before every timeout of
+ *  the levels above, and within a level the slots fire in index order. A
+ *  bitmap per level finds the first occupied slot, the earliest slot of
+ *  all is the first occupied slot of the lowest occupied level.
+ *
+ *  Advancing the wheel to the current time takes the earliest slot while
+ *  its range has started, moves <code>current</code> to the start of that
+ *  range and adds its timeouts again, which moves them to a lower level
+ *  or to the expired list. A timeout moves down at most once per level.
+ *
+ *  The slots and the expired list are doubly linked lists of the
+ *  timeouts, so a timeout is removed without a search.
+ *
+ * @version $Revision$
+ */
+public class TimingWheelTimeoutPriorityQueueImpl implements TimeoutPriorityQueue
+{
+   //  Multithreading notes:
+   //
+   //  Modifications of the wheel and of an enqueued TimeoutExtImpl may
+   //  only happen while synchronized on the lock.
+   //  A TimeoutExtImpl is enqueued while its slot is not null. When it is
+   //  taken out of the queue to fire its index field is set to
+   //  TimeoutExtImpl.TIMEOUT and finally to TimeoutExtImpl.DONE, a
+   //  cancelled timeout goes straight to TimeoutExtImpl.DONE. A repeating
+   //  timeout goes from TimeoutExtImpl.TIMEOUT back into the wheel.
+
+   /** The number of bits of a level */
+   private static final int BITS = 6;
+
+   /** The number of slots of a level */
+   private static final int SLOTS = 1 << BITS;
+
+   /** The number of levels covering a long */
+   private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS;
+
+   /** The clock */
+   private final TimeoutClock clock;
+
+   /** The lock object */
+   private Object lock = new Object();
+
+   /** The slots by level */
+   private final Slot[][] wheel = new Slot[LEVELS][SLOTS];
+
+   /** The occupied slots of each level */
+   private final long[] occupied = new long[LEVELS];
+
+   /** The levels with an occupied slot */
+   private int occupiedLevels;
+
+   /** The timeouts that expired */
+   private final Slot expired = new Slot(-1, -1);
+
+   /** The time the wheel has advanced to */
+   private long current;
+
+   /** The number of timeouts */
+   private int size;
+
+   /** Whether the queue is cancelled */
+   private volatile boolean cancelled;
+
+   /**
+    * Create a new TimingWheelTimeoutPriorityQueueImpl.
+    */
+   public TimingWheelTimeoutPriorityQueueImpl()
+   {
+      this(TimeoutClock.getSystemClock());
+   }
+
+   /**
+    * Create a new TimingWheelTimeoutPriorityQueueImpl.
+    *
+    * @param clock the clock
+    */
+   public TimingWheelTimeoutPriorityQueueImpl(TimeoutClock clock)
+   {
+      if (clock == null)
+         throw new IllegalArgumentException("Null clock");
+      this.clock = clock;
+      for (int level = 0; level < LEVELS; ++level)
+      {
+         for (int slot = 0; slot < SLOTS; ++slot)
+            wheel[level][slot] = new Slot(level, slot);
+      }
+      current = clock.currentTimeMillis();
+   }
+
+   public TimeoutExt offer(long time, TimeoutTarget target)
+   {
+      if (cancelled)
+         throw new IllegalStateException("TimeoutPriorityQueue has been cancelled");
+      if (time < 0)
+         throw new IllegalArgumentException("Negative time");
+      if (target == null)
+         throw new IllegalArgumentException("Null timeout target");
+
+      TimeoutExtImpl timeout = new TimeoutExtImpl();
+      timeout.time = time;
+      timeout.target = target;
+      synchronized (lock)
+      {
+         if (cancelled)
+            throw new IllegalStateException("TimeoutPriorityQueue has been cancelled");
+         ++size;
+         add(timeout);
+         // Wake the taker when this is the new first timeout
+         if (timeout.slot == expired ? expired.first == timeout : expired.first == null && timeout.slot == first())
+            lock.notify();
+      }
+      return timeout;
+   }
+
+   public boolean reschedule(TimeoutExt timeout, long time)
+   {
+      if (time < 0)
+         throw new IllegalArgumentException("Negative time");
+      if (timeout instanceof TimeoutExtImpl == false)
+         return false;
+      TimeoutExtImpl timeoutImpl = (TimeoutExtImpl) timeout;
+      synchronized (lock)
+      {
+         if (cancelled || timeoutImpl.index != TimeoutExtImpl.TIMEOUT || timeoutImpl.owner() != this)
+            return false;
+         timeoutImpl.index = 0;
+         timeoutImpl.time = time;
+         ++size;
+         add(timeoutImpl);
+         if (timeoutImpl.slot == expired ? expired.first == timeoutImpl : expired.first == null && timeoutImpl.slot == first())
+            lock.notify();
+         return true;
+      }
+   }
+
+   public TimeoutExt take()
+   {
+      return poll(-1);
+   }
+
+   public TimeoutExt poll()
+   {
+      synchronized (lock)
+      {
+         if (cancelled)
+            return null;
+         advance(clock.currentTimeMillis());
+         TimeoutExtImpl result = expired.first;
+         if (result != null)
+         {
+            unlink(result);
+            --size;
+            result.index = TimeoutExtImpl.TIMEOUT;
+         }
+         return result;
+      }
+   }
+
+   public TimeoutExt poll(long wait)
+   {
+      long endWait = -1;
+      if (wait > 0)
+         endWait = clock.currentTimeMillis() + wait;
+      // Look for work
+      synchronized (lock)
+      {
+         while (cancelled == false && (wait >= 0 || endWait == -1))
+         {
+            long now = clock.currentTimeMillis();
+            advance(now);
+            TimeoutExtImpl result = expired.first;
+            if (result != null)
+            {
+               unlink(result);
+               --size;
+               result.index = TimeoutExtImpl.TIMEOUT;
+               return result;
+            }
+
+            // Wait for the first slot to start, it may hold later timeouts
+            Slot first = first();
+            long waitFor;
+            if (endWait == -1)
+            {
+               waitFor = first == null ? 0 : start(first) - now;
+            }
+            else
+            {
+               if (wait <= 0)
+                  break;
+               waitFor = first == null ? wait : Math.min(wait, start(first) - now);
+            }
+            try
+            {
+               clock.waitFor(lock, waitFor);
+            }
+            catch (InterruptedException ex)
+            {
+            }
+            if (endWait != -1)
+               wait = endWait - clock.currentTimeMillis();
+         }
+      }
+      return null;
+   }
+
+   public TimeoutExt peek()
+   {
+      synchronized (lock)
+      {
+         if (expired.first != null)
+            return expired.first;
+         Slot first = first();
+         if (first == null)
+            return null;
+         // The earliest timeout of the first slot
+         TimeoutExtImpl result = first.first;
+         for (TimeoutExtImpl timeout = result.next; timeout != null; timeout = timeout.next)
+         {
+            if (timeout.time < result.time)
+               result = timeout;
+         }
+         return result;
+      }
+   }
+
+   public boolean remove(TimeoutExt timeout)
+   {
+      TimeoutExtImpl timeoutImpl = (TimeoutExtImpl) timeout;
+      synchronized (lock)
+      {
+         if (timeoutImpl.slot != null)
+         {
+            // Active timeout, remove it.
+            unlink(timeoutImpl);
+            --size;
+            timeoutImpl.index = TimeoutExtImpl.DONE;
+
+            // execution cancelled
+            return true;
+         }
+         else
+         {
+            // has already been executed (DONE) or
+            // is currently executing (TIMEOUT)
+            return false;
+         }
+      }
+   }
+
+   public void clear()
+   {
+      synchronized (lock)
+      {
+         clear(expired);
+         for (int level = 0; level < LEVELS; ++level)
+         {
+            long bits = occupied[level];
+            while (bits != 0)
+            {
+               int slot = Long.numberOfTrailingZeros(bits);
+               bits &= bits - 1;
+               clear(wheel[level][slot]);
+            }
+            occupied[level] = 0;
+         }
+         occupiedLevels = 0;
+         size = 0;
+      }
+   }
+
+   public void cancel()
+   {
+      synchronized (lock)
+      {
+         if (cancelled)
+            return;
+         clear();
+         cancelled = true;
+         lock.notifyAll();
+      }
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * Whether the queue is cancelled
+    *
+    * @return true when cancelled
+    */
+   public boolean isCancelled()
+   {
+      return cancelled;
+   }
+
+   /**
+    * Advance the wheel to a time, moving the timeouts of the slots that
+    * started down the wheel
+    *
+    * @param now the time
+    */
+   private void advance(long now)
+   {
+      while (current < now)
+      {
+         Slot first = first();
+         if (first == null || start(first) > now)
+         {
+            // No slot starts in between, so the wheel stays valid
+            current = now;
+            return;
+         }
+         current = start(first);
+         TimeoutExtImpl timeout = first.first;
+         first.first = null;
+         first.last = null;
+         occupied[first.level] &= ~(1L << first.slot);
+         if (occupied[first.level] == 0)
+            occupiedLevels &= ~(1 << first.level);
+         while (timeout != null)
+         {
+            TimeoutExtImpl next = timeout.next;
+            timeout.slot = null;
+            timeout.prev = null;
+            timeout.next = null;
+            add(timeout);
+            timeout = next;
+         }
+      }
+   }
+
+   /**
+    * Add a timeout to its slot, or to the expired list
+    *
+    * @param timeout the timeout
+    */
+   private void add(TimeoutExtImpl timeout)
+   {
+      long time = timeout.time;
+      Slot slot;
+      if (time <= current)
+      {
+         slot = expired;
+      }
+      else
+      {
+         int level = (63 - Long.numberOfLeadingZeros(time ^ current)) / BITS;
+         int index = (int) (time >>> (level * BITS)) & (SLOTS - 1);
+         slot = wheel[level][index];
+         occupied[level] |= 1L << index;
+         occupiedLevels |= 1 << level;
+      }
+      timeout.slot = slot;
+      timeout.prev = slot.last;
+      if (slot.last == null)
+         slot.first = timeout;
+      else
+         slot.last.next = timeout;
+      slot.last = timeout;
+   }
+
+   /**
+    * Remove a timeout from its slot
+    *
+    * @param timeout the timeout
+    */
+   private void unlink(TimeoutExtImpl timeout)
+   {
+      Slot slot = timeout.slot;
+      if (timeout.prev == null)
+         slot.first = timeout.next;
+      else
+         timeout.prev.next = timeout.next;
+      if (timeout.next == null)
+         slot.last = timeout.prev;
+      else
+         timeout.next.prev = timeout.prev;
+      timeout.slot = null;
+      timeout.prev = null;
+      timeout.next = null;
+      if (slot.first == null && slot != expired)
+      {
+         occupied[slot.level] &= ~(1L << slot.slot);
+         if (occupied[slot.level] == 0)
+            occupiedLevels &= ~(1 << slot.level);
+      }
+   }
+
+   /**
+    * @return the earliest occupied slot of the wheel or null when empty
+    */
+   private Slot first()
+   {
+      if (occupiedLevels == 0)
+         return null;
+      int level = Integer.numberOfTrailingZeros(occupiedLevels);
+      return wheel[level][Long.numberOfTrailingZeros(occupied[level])];
+   }
+
+   /**
+    * Get the start of the time range of a slot
+    *
+    * @param slot the slot
+    * @return the earliest time the slot may hold
+    */
+   private long start(Slot slot)
+   {
+      int shift = slot.level * BITS;
+      long high = shift + BITS >= Long.SIZE ? 0 : current >>> (shift + BITS) << (shift + BITS);
+      return high | ((long) slot.slot << shift);
+   }
+
+   /**
+    * Cleanup the timeouts of a slot
+    *
+    * @param slot the slot
+    */
+   private void clear(Slot slot)
+   {
+      TimeoutExtImpl timeout = slot.first;
+      while (timeout != null)
+      {
+         TimeoutExtImpl next = timeout.next;
+         timeout.slot = null;
+         timeout.prev = null;
+         timeout.next = null;
+         timeout.target = null;
+         timeout.index = TimeoutExtImpl.DONE;
+         timeout = next;
+      }
+      slot.first = null;
+      slot.last = null;
+   }
+
+   /**
+    * A slot of the wheel
+    */
+   private static class Slot
+   {
+      /** The level */
+      final int level;
+
+      /** The index in the level */
+      final int slot;
+
+      /** The first timeout */
+      TimeoutExtImpl first;
+
+      /** The last timeout */
+      TimeoutExtImpl last;
+
+      Slot(int level, int slot)
+      {
+         this.level = level;
+         this.slot = slot;
+      }
+   }
+
+   /**
+    *  Our private Timeout implementation.
+    */
+   private class TimeoutExtImpl implements TimeoutExt
+   {
+      /** Done */
+      static final int DONE = -1;
+
+      /** In timeout */
+      static final int TIMEOUT = -2;
+
+      /** The state, 0 while queued */
+      int index;
+
+      /** The slot while queued */
+      Slot slot;
+
+      /** The previous timeout of the slot */
+      TimeoutExtImpl prev;
+
+      /** The next timeout of the slot */
+      TimeoutExtImpl next;
+
+      /** Time of the timeout */
+      long time;
+
+      /** The timeout target */
+      TimeoutTarget target;
+
+      public long getTime()
+      {
+         return time;
+      }
+
+      public TimeoutTarget getTimeoutTarget()
+      {
+         return target;
+      }
+
+      public void done()
+      {
+         index = DONE;
+      }
+
+      TimingWheelTimeoutPriorityQueueImpl owner()
+      {
+         return TimingWheelTimeoutPriorityQueueImpl.this;
+      }
+
+      public boolean cancel()
+      {
+         return remove(this);
+      }
+   }
+}
@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.util.timeout;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A clock that only advances when told to, so tests of timeouts do not
+ * have to wait for them.
+ * <p>
+ * Threads waiting for this clock are woken when it advances. They also
+ * wake up regularly in real time to check it again, so a thread that is
+ * about to wait when the clock advances does not miss it.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class VirtualTimeoutClock extends TimeoutClock
+{
+   /** The real time in MS between checks of a waiting thread */
+   private static final long CHECK_INTERVAL = 10;
+
+   /** The current time */
+   private volatile long time;
+
+   /** The monitors of the waiting threads */
+   private final Map<Object, Object> monitors = new WeakHashMap<Object, Object>();
+
+   /**
+    * Create a new virtual clock at time 0
+    */
+   public VirtualTimeoutClock()
+   {
+      this(0);
+   }
+
+   /**
+    * Create a new virtual clock
+    *
+    * @param time the initial time in MS
+    */
+   public VirtualTimeoutClock(long time)
+   {
+      if (time < 0)
+         throw new IllegalArgumentException("Negative time");
+      this.time = time;
+   }
+
+   public long currentTimeMillis()
+   {
+      return time;
+   }
+
+   public void waitFor(Object monitor, long millis) throws InterruptedException
+   {
+      synchronized (monitors)
+      {
+         monitors.put(monitor, null);
+      }
+      monitor.wait(CHECK_INTERVAL);
+   }
+
+   /**
+    * Advance the clock and wake the waiting threads
+    *
+    * @param millis the time to advance by in MS
+    */
+   public void advance(long millis)
+   {
+      if (millis < 0)
+         throw new IllegalArgumentException("The clock cannot go back: " + millis);
+      Object[] waiting;
+      synchronized (this)
+      {
+         time += millis;
+      }
+      synchronized (monitors)
+      {
+         waiting = monitors.keySet().toArray();
+      }
+      for (int i = 0; i < waiting.length; ++i)
+      {
+         synchronized (waiting[i])
+         {
+            waiting[i].notifyAll();
+         }
+      }
+   }
+
+   public String toString()
+   {
+      return "VirtualClock[" + time + "]";
+   }
+}
@@ -0,0 +1,270 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.CachePolicy;
+import org.jboss.util.CacheStatistics;
+import org.jboss.util.ConcurrentLRUCachePolicy;
+import org.jboss.util.LRUCachePolicy;
+import org.jboss.util.LoadingCache;
+import org.jboss.util.StatisticsCachePolicy;
+import org.jboss.util.SynchronizedCachePolicy;
+import org.jboss.util.TimedCachePolicy;
+import org.jboss.util.TinyLFUCachePolicy;
+
+/**
+ * Unit tests for the cache statistics.
+ *
+ * @version $Revision$
+ */
+public class CacheStatisticsTestCase extends TestCase
+{
+   public CacheStatisticsTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testLRUCachePolicy() throws Exception
+   {
+      checkCapacityPolicy(new LRUCachePolicy(2, 2));
+   }
+
+   public void testConcurrentLRUCachePolicy() throws Exception
+   {
+      checkCapacityPolicy(new ConcurrentLRUCachePolicy(2));
+   }
+
+   public void testTinyLFUCachePolicy() throws Exception
+   {
+      checkCapacityPolicy(new TinyLFUCachePolicy(2));
+   }
+
+   public void testTimedCachePolicy() throws Exception
+   {
+      TimedCachePolicy cache = new TimedCachePolicy(1, true, 1);
+      cache.create();
+      CacheStatistics statistics = cache.getStatistics();
+      cache.insert("a", "A");
+      cache.insert("b", "B");
+      cache.insert("c", "C");
+      assertEquals("A", cache.get("a"));
+      assertNull(cache.get("x"));
+      cache.remove("c");
+      Thread.sleep(2100);
+      cache.run();
+      assertEquals(3, statistics.getInsertCount());
+      assertEquals(1, statistics.getHitCount());
+      assertEquals(1, statistics.getMissCount());
+      assertEquals(1, statistics.getRemovalCount());
+      assertEquals(2, statistics.getExpiryCount());
+      assertEquals(0, statistics.getEvictionCount());
+      cache.destroy();
+   }
+
+   public void testSynchronizedCachePolicy() throws Exception
+   {
+      LRUCachePolicy lru = new LRUCachePolicy(2, 10);
+      SynchronizedCachePolicy cache = new SynchronizedCachePolicy(lru);
+      assertSame(lru.getStatistics(), cache.getStatistics());
+
+      // Counted by the wrapper when the delegate keeps none
+      SynchronizedCachePolicy plain = new SynchronizedCachePolicy(new PlainCachePolicy(lru));
+      plain.create();
+      plain.insert("a", "A");
+      plain.get("a");
+      plain.peek("a");
+      plain.get("b");
+      plain.remove("a");
+      CacheStatistics statistics = plain.getStatistics();
+      assertEquals(1, statistics.getInsertCount());
+      assertEquals(1, statistics.getHitCount());
+      assertEquals(1, statistics.getMissCount());
+      assertEquals(1, statistics.getRemovalCount());
+   }
+
+   public void testLoadTime() throws Exception
+   {
+      LRUCachePolicy lru = new LRUCachePolicy(2, 10);
+      lru.create();
+      LoadingCache cache = new LoadingCache(lru, new LoadingCache.Loader()
+      {
+         public Object load(Object key) throws Exception
+         {
+            Thread.sleep(10);
+            return key;
+         }
+      });
+      cache.get("a");
+      cache.get("a");
+      cache.get("b");
+      CacheStatistics statistics = lru.getStatistics();
+      assertEquals(2, statistics.getLoadCount());
+      assertTrue(statistics.getMaximumLoadTime() >= 9000);
+      assertEquals(1, statistics.getHitCount());
+      assertEquals(2, statistics.getMissCount());
+      assertEquals(1.0 / 3, statistics.getHitRatio(), 0.0001);
+   }
+
+   public void testMBean() throws Exception
+   {
+      LRUCachePolicy cache = new LRUCachePolicy(2, 10);
+      cache.create();
+      cache.insert("a", "A");
+      cache.get("a");
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("jboss.test:type=CacheStatistics");
+      server.registerMBean(cache.getStatistics(), name);
+      try
+      {
+         assertEquals(new Long(1), server.getAttribute(name, "HitCount"));
+         assertEquals(new Long(1), server.getAttribute(name, "InsertCount"));
+         server.invoke(name, "reset", null, null);
+         assertEquals(new Long(0), server.getAttribute(name, "HitCount"));
+      }
+      finally
+      {
+         server.unregisterMBean(name);
+      }
+   }
+
+   public void testConcurrentCounting() throws Exception
+   {
+      final ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(10);
+      cache.create();
+      cache.insert("a", "A");
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; ++i)
+      {
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               for (int n = 0; n < 10000; ++n)
+                  cache.get("a");
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; ++i)
+         threads[i].join(10000);
+      assertEquals(80000, cache.getStatistics().getHitCount());
+   }
+
+   /**
+    * Insert three objects in a cache of two, get, remove and flush
+    */
+   private void checkCapacityPolicy(StatisticsCachePolicy cache) throws Exception
+   {
+      cache.create();
+      cache.start();
+      CacheStatistics statistics = cache.getStatistics();
+      cache.insert("a", "A");
+      cache.get("a");
+      cache.insert("b", "B");
+      cache.get("b");
+      cache.insert("c", "C");
+      cache.get("x");
+      assertEquals(2, cache.size());
+      assertEquals(3, statistics.getInsertCount());
+      assertEquals(2, statistics.getHitCount());
+      assertEquals(1, statistics.getMissCount());
+      assertEquals(1, statistics.getEvictionCount());
+      assertEquals(0, statistics.getRemovalCount());
+
+      cache.remove(cache.peek("b") != null ? "b" : "c");
+      cache.flush();
+      assertEquals(0, cache.size());
+      assertEquals(1, statistics.getEvictionCount());
+      assertEquals(2, statistics.getRemovalCount());
+      assertEquals(0, statistics.getExpiryCount());
+
+      statistics.reset();
+      assertEquals(0, statistics.getInsertCount());
+      assertEquals(0, statistics.getHitRatio(), 0);
+   }
+
+   /**
+    * A policy that keeps no statistics
+    */
+   private static class PlainCachePolicy implements CachePolicy
+   {
+      private final CachePolicy delegate;
+
+      PlainCachePolicy(CachePolicy delegate)
+      {
+         this.delegate = delegate;
+      }
+
+      public Object get(Object key)
+      {
+         return delegate.get(key);
+      }
+
+      public Object peek(Object key)
+      {
+         return delegate.peek(key);
+      }
+
+      public void insert(Object key, Object object)
+      {
+         delegate.insert(key, object);
+      }
+
+      public void remove(Object key)
+      {
+         delegate.remove(key);
+      }
+
+      public void flush()
+      {
+         delegate.flush();
+      }
+
+      public int size()
+      {
+         return delegate.size();
+      }
+
+      public void create() throws Exception
+      {
+         delegate.create();
+      }
+
+      public void start() throws Exception
+      {
+         delegate.start();
+      }
+
+      public void stop()
+      {
+         delegate.stop();
+      }
+
+      public void destroy()
+      {
+         delegate.destroy();
+      }
+   }
+}
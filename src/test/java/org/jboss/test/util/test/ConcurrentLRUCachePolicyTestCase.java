@@ -0,0 +1,237 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.ConcurrentLRUCachePolicy;
+
+/**
+ * Unit tests for the concurrent LRU cache policy.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentLRUCachePolicyTestCase extends TestCase
+{
+   public ConcurrentLRUCachePolicyTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testLifecycle() throws Exception
+   {
+      ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(10);
+      cache.create();
+      cache.start();
+      cache.insert("a", "A");
+      assertEquals(1, cache.size());
+      assertEquals("A", cache.get("a"));
+      assertEquals("A", cache.peek("a"));
+      assertNull(cache.get("b"));
+      try
+      {
+         cache.insert("a", "A");
+         fail("Expected IllegalStateException");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+      cache.remove("a");
+      assertNull(cache.peek("a"));
+      assertEquals(0, cache.size());
+      cache.insert("a", "A");
+      cache.stop();
+      assertEquals(0, cache.size());
+      cache.insert("a", "A");
+      cache.destroy();
+      assertEquals(0, cache.size());
+   }
+
+   public void testIllegalArguments() throws Exception
+   {
+      try
+      {
+         new ConcurrentLRUCachePolicy(0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(10);
+      cache.create();
+      try
+      {
+         cache.insert(null, "A");
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      try
+      {
+         cache.insert("a", null);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      try
+      {
+         cache.get(null);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+   }
+
+   public void testLeastRecentlyUsedAgedOut() throws Exception
+   {
+      final List<Object> agedOut = new ArrayList<Object>();
+      ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(3)
+      {
+         protected void ageOut(CacheEntry entry)
+         {
+            agedOut.add(entry.getKey());
+            super.ageOut(entry);
+         }
+      };
+      cache.create();
+      cache.insert("a", "A");
+      cache.insert("b", "B");
+      cache.insert("c", "C");
+      // b is now the least recently used, peek does not count
+      cache.get("a");
+      cache.peek("b");
+      cache.insert("d", "D");
+      assertEquals(3, cache.size());
+      assertNull(cache.peek("b"));
+      assertEquals(1, agedOut.size());
+      assertEquals("b", agedOut.get(0));
+
+      cache.get("c");
+      cache.insert("e", "E");
+      assertEquals("a", agedOut.get(1));
+
+      cache.flush();
+      assertEquals(0, cache.size());
+      assertEquals(5, agedOut.size());
+      assertEquals("d", agedOut.get(2));
+      assertEquals("c", agedOut.get(3));
+      assertEquals("e", agedOut.get(4));
+   }
+
+   public void testManyReads() throws Exception
+   {
+      ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(100);
+      cache.create();
+      for (int i = 0; i < 100; ++i)
+         cache.insert(new Integer(i), "X");
+      // More reads than the buffers hold
+      for (int n = 0; n < 10; ++n)
+      {
+         for (int i = 50; i < 100; ++i)
+            cache.get(new Integer(i));
+      }
+      for (int i = 100; i < 150; ++i)
+         cache.insert(new Integer(i), "X");
+      assertEquals(100, cache.size());
+      for (int i = 0; i < 50; ++i)
+         assertNull(cache.peek(new Integer(i)));
+      for (int i = 50; i < 150; ++i)
+         assertNotNull(cache.peek(new Integer(i)));
+   }
+
+   public void testAgeOutKeeps() throws Exception
+   {
+      ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(2)
+      {
+         protected void ageOut(CacheEntry entry)
+         {
+            if ("pinned".equals(entry.getKey()) == false)
+               super.ageOut(entry);
+         }
+      };
+      cache.create();
+      cache.insert("pinned", "P");
+      cache.insert("a", "A");
+      cache.insert("b", "B");
+      assertEquals(3, cache.size());
+      cache.flush();
+      assertEquals(3, cache.size());
+   }
+
+   public void testConcurrentAccess() throws Exception
+   {
+      final int capacity = 64;
+      final ConcurrentLRUCachePolicy cache = new ConcurrentLRUCachePolicy(capacity);
+      cache.create();
+      cache.start();
+      final AtomicInteger misses = new AtomicInteger();
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; ++t)
+      {
+         final int seed = t;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < 20000; ++i)
+                  {
+                     Integer key = new Integer((i * 31 + seed) % 256);
+                     if (cache.get(key) == null)
+                     {
+                        misses.incrementAndGet();
+                        try
+                        {
+                           cache.insert(key, key);
+                        }
+                        catch (IllegalStateException inserted)
+                        {
+                        }
+                     }
+                     if (i % 97 == 0)
+                        cache.remove(key);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failure.set(t);
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (int t = 0; t < threads.length; ++t)
+         threads[t].join(30000);
+      if (failure.get() != null)
+         throw new RuntimeException(failure.get());
+      assertTrue(misses.get() > 0);
+      assertTrue("Size " + cache.size(), cache.size() <= capacity);
+      cache.flush();
+      assertEquals(0, cache.size());
+   }
+}
@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.LRUCachePolicy;
+
+/**
+ * Unit tests for the weight bound of the LRU cache policy.
+ *
+ * @version $Revision$
+ */
+public class LRUCachePolicyWeightTestCase extends TestCase
+{
+   /** Weighs strings by their length */
+   private static final LRUCachePolicy.Weigher LENGTH = new LRUCachePolicy.Weigher()
+   {
+      public long weigh(Object key, Object object)
+      {
+         return ((String) object).length();
+      }
+   };
+
+   public LRUCachePolicyWeightTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testWeight() throws Exception
+   {
+      final List<Object> agedOut = new ArrayList<Object>();
+      LRUCachePolicy cache = new LRUCachePolicy(2, 100, LENGTH, 10)
+      {
+         protected void ageOut(LRUCacheEntry entry)
+         {
+            agedOut.add(entry.m_key);
+            super.ageOut(entry);
+         }
+      };
+      cache.create();
+      assertSame(LENGTH, cache.getWeigher());
+      assertEquals(10, cache.getMaxWeight());
+      cache.insert("a", "aaaa");
+      cache.insert("b", "bbbb");
+      assertEquals(8, cache.getWeight());
+      cache.get("a");
+
+      // b is the least recently used
+      cache.insert("c", "cc");
+      assertEquals(10, cache.getWeight());
+      assertTrue(agedOut.isEmpty());
+      cache.insert("d", "d");
+      assertEquals(1, agedOut.size());
+      assertEquals("b", agedOut.get(0));
+      assertEquals(7, cache.getWeight());
+      assertEquals(3, cache.size());
+
+      cache.remove("a");
+      assertEquals(3, cache.getWeight());
+      assertEquals(1, cache.getStatistics().getEvictionCount());
+
+      // Heavier than the cache, cached alone
+      cache.insert("e", "eeeeeeeeeeee");
+      assertEquals(1, cache.size());
+      assertEquals(12, cache.getWeight());
+      assertNotNull(cache.peek("e"));
+
+      cache.flush();
+      assertEquals(0, cache.getWeight());
+   }
+
+   public void testCountStillBounds() throws Exception
+   {
+      LRUCachePolicy cache = new LRUCachePolicy(2, 3, LENGTH, 1000);
+      cache.create();
+      for (int i = 0; i < 10; ++i)
+         cache.insert(new Integer(i), "x");
+      assertEquals(3, cache.size());
+      assertEquals(3, cache.getWeight());
+   }
+
+   public void testCapacityChanged() throws Exception
+   {
+      final List<Integer> changes = new ArrayList<Integer>();
+      LRUCachePolicy cache = new LRUCachePolicy(2, 5, LENGTH, 4)
+      {
+         public void create()
+         {
+            super.create();
+            // Grow from the minimum capacity
+            m_list.m_capacity = m_minCapacity;
+         }
+
+         protected LRUList createList()
+         {
+            return new LRUList()
+            {
+               protected void capacityChanged(int oldCapacity)
+               {
+                  changes.add(new Integer(oldCapacity));
+               }
+            };
+         }
+      };
+      cache.create();
+      cache.insert("a", "a");
+      cache.insert("b", "b");
+      cache.insert("c", "c");
+      assertEquals(1, changes.size());
+      assertEquals(2, changes.get(0).intValue());
+      // Evicted by weight, not capacity
+      cache.insert("d", "dd");
+      assertEquals(3, cache.size());
+      assertNull(cache.peek("a"));
+      assertEquals(4, cache.getWeight());
+      assertEquals(1, changes.size());
+   }
+
+   public void testIllegalArguments() throws Exception
+   {
+      try
+      {
+         new LRUCachePolicy(2, 10, null, 10);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      try
+      {
+         new LRUCachePolicy(2, 10, LENGTH, 0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      LRUCachePolicy cache = new LRUCachePolicy(2, 10, new LRUCachePolicy.Weigher()
+      {
+         public long weigh(Object key, Object object)
+         {
+            return -1;
+         }
+      }, 10);
+      cache.create();
+      try
+      {
+         cache.insert("a", "A");
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      assertEquals(0, cache.size());
+   }
+
+   public void testNoWeigher() throws Exception
+   {
+      LRUCachePolicy cache = new LRUCachePolicy(2, 3);
+      cache.create();
+      assertNull(cache.getWeigher());
+      assertEquals(Long.MAX_VALUE, cache.getMaxWeight());
+      cache.insert("a", "aaaa");
+      assertEquals(0, cache.getWeight());
+   }
+}
@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.CachePolicy;
+import org.jboss.util.LRUCachePolicy;
+import org.jboss.util.LoadingCache;
+import org.jboss.util.SynchronizedCachePolicy;
+
+/**
+ * Unit tests for the loading cache.
+ *
+ * @version $Revision$
+ */
+public class LoadingCacheTestCase extends TestCase
+{
+   public LoadingCacheTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testLoad() throws Exception
+   {
+      final AtomicInteger loads = new AtomicInteger();
+      LoadingCache cache = new LoadingCache(createPolicy(), new LoadingCache.Loader()
+      {
+         public Object load(Object key)
+         {
+            loads.incrementAndGet();
+            return "none".equals(key) ? null : key + "!";
+         }
+      });
+      assertNull(cache.peek("a"));
+      assertEquals("a!", cache.get("a"));
+      assertEquals("a!", cache.get("a"));
+      assertEquals("a!", cache.peek("a"));
+      assertEquals(1, loads.get());
+      assertNull(cache.get("none"));
+      assertNull(cache.get("none"));
+      assertEquals(3, loads.get());
+      cache.invalidate("a");
+      assertNull(cache.peek("a"));
+      assertEquals("a!", cache.get("a"));
+      assertEquals(4, loads.get());
+      cache.invalidateAll();
+      assertEquals(0, cache.getCachePolicy().size());
+   }
+
+   public void testSingleFlight() throws Exception
+   {
+      final AtomicInteger loads = new AtomicInteger();
+      final CountDownLatch loading = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final LoadingCache cache = new LoadingCache(createPolicy(), new LoadingCache.Loader()
+      {
+         public Object load(Object key) throws Exception
+         {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await();
+            return new Object();
+         }
+      });
+      final Object[] results = new Object[16];
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      Thread[] threads = new Thread[results.length];
+      for (int i = 0; i < threads.length; ++i)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  results[index] = cache.get("key");
+               }
+               catch (Throwable t)
+               {
+                  failure.set(t);
+               }
+            }
+         };
+         threads[i].start();
+      }
+      assertTrue(loading.await(10, TimeUnit.SECONDS));
+      Thread.sleep(50);
+      release.countDown();
+      for (int i = 0; i < threads.length; ++i)
+         threads[i].join(10000);
+      if (failure.get() != null)
+         throw new RuntimeException(failure.get());
+      assertEquals(1, loads.get());
+      for (int i = 0; i < results.length; ++i)
+         assertSame(results[0], results[i]);
+   }
+
+   public void testInvalidateWhileLoading() throws Exception
+   {
+      final AtomicInteger loads = new AtomicInteger();
+      final CountDownLatch loading = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final LoadingCache cache = new LoadingCache(createPolicy(), new LoadingCache.Loader()
+      {
+         public Object load(Object key) throws Exception
+         {
+            if (loads.incrementAndGet() == 1)
+            {
+               loading.countDown();
+               release.await();
+               return "stale";
+            }
+            return "fresh";
+         }
+      });
+      final AtomicReference<Object> result = new AtomicReference<Object>();
+      Thread loader = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               result.set(cache.get("key"));
+            }
+            catch (Throwable t)
+            {
+               result.set(t);
+            }
+         }
+      };
+      loader.start();
+      assertTrue(loading.await(10, TimeUnit.SECONDS));
+      cache.invalidate("key");
+      release.countDown();
+      loader.join(10000);
+      // The caller of the invalidated load gets its result, it is not cached
+      assertEquals("stale", result.get());
+      assertNull(cache.peek("key"));
+      assertEquals("fresh", cache.get("key"));
+      assertEquals(2, loads.get());
+   }
+
+   public void testFailure() throws Exception
+   {
+      final AtomicInteger loads = new AtomicInteger();
+      LoadingCache.Loader loader = new LoadingCache.Loader()
+      {
+         public Object load(Object key) throws Exception
+         {
+            loads.incrementAndGet();
+            throw new IllegalStateException("Failed " + key);
+         }
+      };
+
+      // Not remembered
+      LoadingCache cache = new LoadingCache(createPolicy(), loader);
+      assertFailure(cache, "a");
+      assertFailure(cache, "a");
+      assertEquals(2, loads.get());
+
+      // Remembered for a while
+      loads.set(0);
+      cache = new LoadingCache(createPolicy(), loader, 200);
+      assertFailure(cache, "a");
+      assertFailure(cache, "a");
+      assertEquals(1, loads.get());
+      Thread.sleep(300);
+      assertFailure(cache, "a");
+      assertEquals(2, loads.get());
+      cache.invalidate("a");
+      assertFailure(cache, "a");
+      assertEquals(3, loads.get());
+   }
+
+   public void testRecursiveLoad() throws Exception
+   {
+      final AtomicReference<LoadingCache> self = new AtomicReference<LoadingCache>();
+      final AtomicInteger recursions = new AtomicInteger();
+      LoadingCache cache = new LoadingCache(createPolicy(), new LoadingCache.Loader()
+      {
+         public Object load(Object key) throws Exception
+         {
+            // a gets itself, b gets c which gets b
+            Object next = "a".equals(key) ? "a" : "b".equals(key) ? "c" : "b";
+            try
+            {
+               self.get().get(next);
+            }
+            catch (IllegalStateException expected)
+            {
+               recursions.incrementAndGet();
+            }
+            return key + "!";
+         }
+      });
+      self.set(cache);
+      assertEquals("a!", cache.get("a"));
+      assertEquals(1, recursions.get());
+      assertEquals("b!", cache.get("b"));
+      assertEquals(2, recursions.get());
+      assertEquals("c!", cache.peek("c"));
+   }
+
+   private void assertFailure(LoadingCache cache, Object key) throws Exception
+   {
+      try
+      {
+         cache.get(key);
+         fail("Expected ExecutionException");
+      }
+      catch (ExecutionException expected)
+      {
+         assertTrue(expected.getCause() instanceof IllegalStateException);
+      }
+   }
+
+   private CachePolicy createPolicy() throws Exception
+   {
+      LRUCachePolicy policy = new LRUCachePolicy(2, 100);
+      policy.create();
+      policy.start();
+      return new SynchronizedCachePolicy(policy);
+   }
+}
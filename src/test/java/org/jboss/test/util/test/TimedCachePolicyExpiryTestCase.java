@@ -0,0 +1,181 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.TimedCachePolicy;
+
+/**
+ * Unit tests for the expiration of TimedCachePolicy entries that are not
+ * accessed.
+ *
+ * @version $Revision$
+ */
+public class TimedCachePolicyExpiryTestCase extends TestCase
+{
+   public TimedCachePolicyExpiryTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testThreadSafeExpiry() throws Exception
+   {
+      TimedCachePolicy cache = new TimedCachePolicy(1, true, 1);
+      cache.create();
+      for (int i = 0; i < 1000; ++i)
+         cache.insert(new Integer(i), "X");
+      cache.setDefaultLifetime(3600);
+      cache.insert("long", "L");
+      cache.run();
+      assertEquals(1001, cache.size());
+
+      Thread.sleep(2100);
+      // The timer tick removes them without any access
+      cache.run();
+      assertEquals(1, cache.size());
+      assertEquals("L", cache.peek("long"));
+      cache.destroy();
+   }
+
+   public void testExpiryOnInsert() throws Exception
+   {
+      TimedCachePolicy cache = new TimedCachePolicy(1, false, 1);
+      cache.create();
+      for (int i = 0; i < 100; ++i)
+         cache.insert(new Integer(i), "X");
+      Thread.sleep(2100);
+      // Only updates the time when not thread safe
+      cache.run();
+      assertEquals(100, cache.size());
+      cache.insert("next", "N");
+      assertEquals(1, cache.size());
+      cache.destroy();
+   }
+
+   public void testTimedEntry() throws Exception
+   {
+      TimedCachePolicy cache = new TimedCachePolicy(1, true, 1);
+      cache.create();
+      TestEntry refreshed = new TestEntry();
+      TestEntry expired = new TestEntry();
+      TestEntry removed = new TestEntry();
+      cache.insert("refreshed", refreshed);
+      cache.insert("expired", expired);
+      cache.insert("removed", removed);
+      cache.remove("removed");
+      assertEquals(1, removed.destroyed.get());
+
+      refreshed.current = true;
+      expired.current = false;
+      Thread.sleep(2100);
+      cache.run();
+      assertNotNull(cache.peek("refreshed"));
+      assertNull(cache.peek("expired"));
+      assertEquals(0, refreshed.destroyed.get());
+      assertEquals(1, expired.destroyed.get());
+      assertEquals(1, removed.destroyed.get());
+
+      // Checked again a default lifetime later
+      refreshed.current = false;
+      Thread.sleep(2100);
+      cache.run();
+      assertNull(cache.peek("refreshed"));
+      assertEquals(1, refreshed.destroyed.get());
+      cache.destroy();
+   }
+
+   public void testRefreshOnExpiry() throws Exception
+   {
+      TimedCachePolicy cache = new TimedCachePolicy(1, true, 1);
+      cache.create();
+      TestEntry refreshable = new TestEntry();
+      refreshable.refreshable = true;
+      cache.insert("refreshable", refreshable);
+      refreshable.current = false;
+      Thread.sleep(2100);
+      // Refreshed by the timer tick as a get would
+      cache.run();
+      assertSame(refreshable, cache.peek("refreshable"));
+      assertEquals(1, refreshable.refreshed.get());
+      assertEquals(0, refreshable.destroyed.get());
+
+      refreshable.refreshable = false;
+      Thread.sleep(2100);
+      cache.run();
+      assertNull(cache.peek("refreshable"));
+      assertEquals(1, refreshable.destroyed.get());
+      cache.destroy();
+   }
+
+   public void testFlush() throws Exception
+   {
+      TimedCachePolicy cache = new TimedCachePolicy(1, true, 1);
+      cache.create();
+      TestEntry flushed = new TestEntry();
+      cache.insert("a", flushed);
+      cache.flush();
+      assertEquals(1, flushed.destroyed.get());
+      TestEntry again = new TestEntry();
+      again.current = false;
+      cache.insert("a", again);
+      Thread.sleep(2100);
+      cache.run();
+      assertEquals(0, cache.size());
+      assertEquals(1, flushed.destroyed.get());
+      assertEquals(1, again.destroyed.get());
+      cache.destroy();
+   }
+
+   private static class TestEntry implements TimedCachePolicy.TimedEntry
+   {
+      volatile boolean current = true;
+      volatile boolean refreshable;
+      final AtomicInteger refreshed = new AtomicInteger();
+      final AtomicInteger destroyed = new AtomicInteger();
+
+      public void init(long now)
+      {
+      }
+
+      public boolean isCurrent(long now)
+      {
+         return current;
+      }
+
+      public boolean refresh()
+      {
+         if (refreshable == false)
+            return false;
+         refreshed.incrementAndGet();
+         return true;
+      }
+
+      public void destroy()
+      {
+         destroyed.incrementAndGet();
+      }
+
+      public Object getValue()
+      {
+         return this;
+      }
+   }
+}
@@ -0,0 +1,168 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.CachePolicy;
+import org.jboss.util.LRUCachePolicy;
+import org.jboss.util.TinyLFUCachePolicy;
+
+/**
+ * Unit tests for the TinyLFU cache policy.
+ *
+ * @version $Revision$
+ */
+public class TinyLFUCachePolicyTestCase extends TestCase
+{
+   public TinyLFUCachePolicyTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testLifecycle() throws Exception
+   {
+      CachePolicy cache = (CachePolicy) Class.forName(TinyLFUCachePolicy.class.getName()).newInstance();
+      assertEquals(TinyLFUCachePolicy.DEFAULT_CAPACITY, ((TinyLFUCachePolicy) cache).getMaxCapacity());
+      cache.create();
+      cache.start();
+      cache.insert("a", "A");
+      assertEquals(1, cache.size());
+      assertEquals("A", cache.get("a"));
+      assertEquals("A", cache.peek("a"));
+      assertNull(cache.get("b"));
+      try
+      {
+         cache.insert("a", "A");
+         fail("Expected IllegalStateException");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+      cache.remove("a");
+      assertNull(cache.peek("a"));
+      cache.insert("a", "A");
+      cache.stop();
+      assertEquals(0, cache.size());
+      cache.insert("a", "A");
+      cache.destroy();
+      assertEquals(0, cache.size());
+
+      try
+      {
+         new TinyLFUCachePolicy(0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+   }
+
+   public void testCapacity() throws Exception
+   {
+      TinyLFUCachePolicy cache = new TinyLFUCachePolicy(100);
+      cache.create();
+      for (int i = 0; i < 1000; ++i)
+      {
+         cache.insert(new Integer(i), "X");
+         cache.get(new Integer(i / 2));
+         assertTrue(cache.size() <= 100);
+      }
+      assertEquals(100, cache.size());
+      cache.flush();
+      assertEquals(0, cache.size());
+   }
+
+   public void testFrequency() throws Exception
+   {
+      TinyLFUCachePolicy cache = new TinyLFUCachePolicy(100);
+      cache.create();
+      assertEquals(0, cache.frequency("a"));
+      for (int i = 0; i < 5; ++i)
+         cache.get("a");
+      assertEquals(5, cache.frequency("a"));
+      for (int i = 0; i < 20; ++i)
+         cache.get("a");
+      assertEquals(15, cache.frequency("a"));
+      // Ten uses per cached object age the counters
+      for (int i = 0; i < 1000; ++i)
+         cache.get(new Integer(i));
+      assertTrue(cache.frequency("a") < 15);
+   }
+
+   public void testScanResistance() throws Exception
+   {
+      TinyLFUCachePolicy tinyLFU = new TinyLFUCachePolicy(100);
+      LRUCachePolicy lru = new LRUCachePolicy(2, 100);
+      // The hot key in the window at the start of the scan may be lost
+      int hot = hotAfterScan(tinyLFU);
+      assertTrue("Hot " + hot, hot >= 45);
+      assertEquals(0, hotAfterScan(lru));
+   }
+
+   public void testAgeOutKeeps() throws Exception
+   {
+      TinyLFUCachePolicy cache = new TinyLFUCachePolicy(10)
+      {
+         protected void ageOut(CacheEntry entry)
+         {
+            if ("pinned".equals(entry.getKey()) == false)
+               super.ageOut(entry);
+         }
+      };
+      cache.create();
+      cache.insert("pinned", "P");
+      for (int i = 0; i < 100; ++i)
+         cache.insert(new Integer(i), "X");
+      assertNotNull(cache.peek("pinned"));
+      cache.flush();
+      assertEquals(1, cache.size());
+   }
+
+   /**
+    * Use a hot set of fifty keys, scan a thousand keys once and count the
+    * hot keys still cached
+    */
+   private int hotAfterScan(CachePolicy cache) throws Exception
+   {
+      cache.create();
+      cache.start();
+      for (int n = 0; n < 5; ++n)
+      {
+         for (int i = 0; i < 50; ++i)
+         {
+            String key = "hot" + i;
+            if (cache.get(key) == null)
+               cache.insert(key, key);
+         }
+      }
+      for (int i = 0; i < 1000; ++i)
+      {
+         String key = "scan" + i;
+         if (cache.get(key) == null)
+            cache.insert(key, key);
+      }
+      int hot = 0;
+      for (int i = 0; i < 50; ++i)
+      {
+         if (cache.peek("hot" + i) != null)
+            ++hot;
+      }
+      return hot;
+   }
+}
@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.timeout.Timeout;
+import org.jboss.util.timeout.TimeoutExt;
+import org.jboss.util.timeout.TimeoutTarget;
+import org.jboss.util.timeout.HashedTimeoutPriorityQueueImpl;
+
+/**
+ * Unit tests for the hashed TimeoutPriorityQueue.
+ *
+ * @version $Revision$
+ */
+public class HashedTimeoutPriorityQueueTestCase extends TestCase
+{
+   private static final TimeoutTarget TARGET = new TimeoutTarget()
+   {
+      public void timedOut(Timeout timeout)
+      {
+      }
+   };
+
+   public HashedTimeoutPriorityQueueTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testOrder() throws Exception
+   {
+      HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      long now = System.currentTimeMillis();
+      // Spread over several internal queues
+      queue.offer(now + 200, TARGET);
+      queue.offer(now + 10, TARGET);
+      queue.offer(now + 70, TARGET);
+      queue.offer(0, TARGET);
+      queue.offer(now + 30, TARGET);
+      TimeoutExt far = queue.offer(now + 100000, TARGET);
+      assertEquals(6, queue.size());
+      assertEquals(0, queue.peek().getTime());
+
+      long[] expected = { 0, now + 10, now + 30, now + 70, now + 200 };
+      for (int i = 0; i < expected.length; ++i)
+      {
+         TimeoutExt timeout = queue.take();
+         assertEquals(expected[i], timeout.getTime());
+         assertTrue(timeout.getTime() <= System.currentTimeMillis());
+      }
+      assertEquals(1, queue.size());
+      assertSame(far, queue.peek());
+      assertNull(queue.poll(20));
+      queue.cancel();
+      assertNull(queue.take());
+   }
+
+   public void testRemove() throws Exception
+   {
+      HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      long now = System.currentTimeMillis();
+      TimeoutExt first = queue.offer(now + 20, TARGET);
+      TimeoutExt second = queue.offer(now + 40, TARGET);
+      TimeoutExt third = queue.offer(now + 5000, TARGET);
+      assertTrue(first.cancel());
+      assertFalse(first.cancel());
+      assertTrue(queue.remove(third));
+      assertEquals(1, queue.size());
+      assertSame(second, queue.take());
+      // Cancelling a timeout that fired fails
+      assertFalse(second.cancel());
+      assertEquals(0, queue.size());
+      assertNull(queue.poll());
+   }
+
+   public void testRandom() throws Exception
+   {
+      HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      Random random = new Random(42);
+      long now = System.currentTimeMillis();
+      List<TimeoutExt> cancelled = new ArrayList<TimeoutExt>();
+      int expected = 0;
+      for (int i = 0; i < 5000; ++i)
+      {
+         TimeoutExt timeout = queue.offer(now + random.nextInt(300), TARGET);
+         if (random.nextInt(4) == 0)
+            cancelled.add(timeout);
+         else
+            ++expected;
+         // Far timeouts that never fire
+         queue.offer(now + 3600000 + random.nextInt(1000000), TARGET).cancel();
+      }
+      for (TimeoutExt timeout : cancelled)
+         assertTrue(timeout.cancel());
+      assertEquals(expected, queue.size());
+
+      long last = 0;
+      for (int i = 0; i < expected; ++i)
+      {
+         TimeoutExt timeout = queue.poll(10000);
+         assertNotNull(timeout);
+         assertTrue(timeout.getTime() >= last);
+         assertTrue(timeout.getTime() <= System.currentTimeMillis());
+         last = timeout.getTime();
+      }
+      assertEquals(0, queue.size());
+      assertNull(queue.peek());
+   }
+
+   public void testWakeUp() throws Exception
+   {
+      final HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      final long now = System.currentTimeMillis();
+      queue.offer(now + 60000, TARGET);
+      Thread thread = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               Thread.sleep(50);
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+            // Earlier than the timeout the taker waits for
+            queue.offer(now + 100, TARGET);
+         }
+      };
+      thread.start();
+      TimeoutExt timeout = queue.poll(10000);
+      assertNotNull(timeout);
+      assertEquals(now + 100, timeout.getTime());
+      thread.join();
+   }
+
+   public void testTombstones() throws Exception
+   {
+      HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      long now = System.currentTimeMillis();
+      TimeoutExt live = queue.offer(now + 3600000, TARGET);
+      List<TimeoutExt> timeouts = new ArrayList<TimeoutExt>();
+      for (int i = 0; i < 1000; ++i)
+         timeouts.add(queue.offer(now + 3600000 + i, TARGET));
+      for (TimeoutExt timeout : timeouts)
+         assertTrue(timeout.cancel());
+      // Cancelled timeouts stay until compacted
+      assertEquals(1000, queue.getTombstoneCount());
+      assertEquals(1, queue.size());
+      queue.compact();
+      assertEquals(0, queue.getTombstoneCount());
+      assertEquals(1, queue.size());
+      assertSame(live, queue.peek());
+
+      // Offering compacts once most of the timeouts are tombstones
+      for (int i = 0; i < 3000; ++i)
+         queue.offer(now + 3600000 + i, TARGET).cancel();
+      assertTrue(queue.getTombstoneCount() < 3000);
+      assertEquals(1, queue.size());
+      assertSame(live, queue.peek());
+      assertTrue(live.cancel());
+      assertNull(queue.peek());
+      assertEquals(0, queue.size());
+   }
+
+   public void testCancelRace() throws Exception
+   {
+      final HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      final List<TimeoutExt> timeouts = new ArrayList<TimeoutExt>();
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 2000; ++i)
+         timeouts.add(queue.offer(now + i % 50, TARGET));
+      final int[] cancelled = new int[1];
+      Thread thread = new Thread()
+      {
+         public void run()
+         {
+            for (int i = timeouts.size() - 1; i >= 0; i -= 2)
+            {
+               if (timeouts.get(i).cancel())
+                  ++cancelled[0];
+            }
+         }
+      };
+      thread.start();
+      int fired = 0;
+      while (queue.poll(200) != null)
+         ++fired;
+      thread.join();
+      // Each timeout either fired or was cancelled
+      assertEquals(2000, fired + cancelled[0]);
+      assertEquals(0, queue.size());
+   }
+
+   public void testReschedule() throws Exception
+   {
+      HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      long now = System.currentTimeMillis();
+      TimeoutExt timeout = queue.offer(now, TARGET);
+      // Only a timeout that was taken can be put back
+      assertFalse(queue.reschedule(timeout, now + 10));
+      assertSame(timeout, queue.take());
+      assertTrue(queue.reschedule(timeout, now + 20));
+      assertFalse(queue.reschedule(timeout, now + 30));
+      assertEquals(1, queue.size());
+      assertEquals(now + 20, timeout.getTime());
+      assertSame(timeout, queue.take());
+      assertTrue(timeout.getTime() <= System.currentTimeMillis());
+      assertTrue(queue.reschedule(timeout, now + 100000));
+      assertTrue(timeout.cancel());
+      assertEquals(0, queue.size());
+      assertFalse(queue.reschedule(timeout, now));
+   }
+
+   public void testCancelledQueue() throws Exception
+   {
+      HashedTimeoutPriorityQueueImpl queue = new HashedTimeoutPriorityQueueImpl();
+      TimeoutExt timeout = queue.offer(System.currentTimeMillis() + 1000, TARGET);
+      queue.cancel();
+      assertTrue(queue.isCancelled());
+      assertEquals(0, queue.size());
+      assertFalse(timeout.cancel());
+      try
+      {
+         queue.offer(0, TARGET);
+         fail("Expected IllegalStateException");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+   }
+}
@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.timeout.HashedTimeoutPriorityQueueImpl;
+import org.jboss.util.timeout.Timeout;
+import org.jboss.util.timeout.TimeoutClock;
+import org.jboss.util.timeout.TimeoutExt;
+import org.jboss.util.timeout.TimeoutFactory;
+import org.jboss.util.timeout.TimeoutPriorityQueue;
+import org.jboss.util.timeout.TimeoutPriorityQueueImpl;
+import org.jboss.util.timeout.TimeoutTarget;
+import org.jboss.util.timeout.TimingWheelTimeoutPriorityQueueImpl;
+import org.jboss.util.timeout.VirtualTimeoutClock;
+
+/**
+ * Unit tests for the clocks of the timeouts.
+ *
+ * @version $Revision$
+ */
+public class TimeoutClockTestCase extends TestCase
+{
+   private static final TimeoutTarget TARGET = new TimeoutTarget()
+   {
+      public void timedOut(Timeout timeout)
+      {
+      }
+   };
+
+   public TimeoutClockTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testSystemClock() throws Exception
+   {
+      TimeoutClock clock = TimeoutClock.getSystemClock();
+      long last = clock.currentTimeMillis();
+      assertTrue(Math.abs(last - System.currentTimeMillis()) < 1000);
+      for (int i = 0; i < 1000; ++i)
+      {
+         long now = clock.currentTimeMillis();
+         assertTrue(now >= last);
+         last = now;
+      }
+      long wall = System.currentTimeMillis() + 5000;
+      assertTrue(Math.abs(clock.fromWallClock(wall) - clock.currentTimeMillis() - 5000) < 100);
+      assertEquals(Long.MAX_VALUE, clock.fromWallClock(Long.MAX_VALUE), 1000);
+      assertEquals(0, clock.fromWallClock(0), 1000);
+   }
+
+   public void testVirtualClock() throws Exception
+   {
+      VirtualTimeoutClock clock = new VirtualTimeoutClock(1000);
+      assertEquals(1000, clock.currentTimeMillis());
+      assertEquals(5000, clock.fromWallClock(5000));
+      clock.advance(500);
+      assertEquals(1500, clock.currentTimeMillis());
+      try
+      {
+         clock.advance(-1);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+   }
+
+   public void testTimeoutPriorityQueueImpl() throws Exception
+   {
+      VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      checkQueue(clock, new TimeoutPriorityQueueImpl(clock));
+   }
+
+   public void testHashedTimeoutPriorityQueueImpl() throws Exception
+   {
+      VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      checkQueue(clock, new HashedTimeoutPriorityQueueImpl(clock));
+   }
+
+   public void testTimingWheelTimeoutPriorityQueueImpl() throws Exception
+   {
+      VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      checkQueue(clock, new TimingWheelTimeoutPriorityQueueImpl(clock));
+   }
+
+   public void testFactory() throws Exception
+   {
+      final VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      final CountDownLatch fired = new CountDownLatch(2);
+      BasicThreadPool tp = new BasicThreadPool();
+      TimeoutFactory tf = new TimeoutFactory(tp, 1, clock);
+      assertSame(clock, tf.getClock());
+      try
+      {
+         TimeoutTarget target = new TimeoutTarget()
+         {
+            public void timedOut(Timeout timeout)
+            {
+               fired.countDown();
+            }
+         };
+         // An hour and a day
+         tf.schedule(3600000, target);
+         tf.schedule(86400000, target);
+         Thread.sleep(50);
+         assertEquals(2, fired.getCount());
+         clock.advance(3600000);
+         long end = System.currentTimeMillis() + 10000;
+         while (fired.getCount() > 1 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+         assertEquals(1, fired.getCount());
+         clock.advance(86400000 - 3600000);
+         assertTrue(fired.await(10, TimeUnit.SECONDS));
+         assertEquals(0, tf.getStatistics().getMaximumLateness());
+      }
+      finally
+      {
+         tf.cancel();
+         tp.stop(false);
+      }
+   }
+
+   /**
+    * Check a queue only times out when the virtual clock gets there
+    */
+   private void checkQueue(VirtualTimeoutClock clock, TimeoutPriorityQueue queue) throws Exception
+   {
+      TimeoutExt later = queue.offer(60000, TARGET);
+      TimeoutExt sooner = queue.offer(1000, TARGET);
+      assertNull(queue.poll());
+      clock.advance(999);
+      assertNull(queue.poll());
+      clock.advance(1);
+      assertSame(sooner, queue.poll());
+      assertNull(queue.poll());
+
+      // A taker waiting for the clock is woken when it advances
+      final TimeoutPriorityQueue q = queue;
+      final TimeoutExt[] taken = new TimeoutExt[1];
+      Thread taker = new Thread()
+      {
+         public void run()
+         {
+            taken[0] = q.take();
+         }
+      };
+      taker.start();
+      Thread.sleep(50);
+      assertNull(taken[0]);
+      clock.advance(3600000);
+      taker.join(10000);
+      assertSame(later, taken[0]);
+      queue.cancel();
+   }
+}
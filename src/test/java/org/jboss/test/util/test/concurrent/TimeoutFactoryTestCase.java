@@ -17,16 +17,27 @@
  */
 package org.jboss.test.util.test.concurrent;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
 import org.jboss.util.threadpool.BasicThreadPool;
 import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.ThreadPoolFullException;
 import org.jboss.util.timeout.Timeout;
+import org.jboss.util.timeout.TimeoutExt;
 import org.jboss.util.timeout.TimeoutFactory;
+import org.jboss.util.timeout.TimeoutStatistics;
 import org.jboss.util.timeout.TimeoutTarget;
+import org.jboss.util.timeout.VirtualTimeoutClock;
 
 /**
  * Unit tests for TimeoutFactory class.
@@ -170,6 +181,315 @@ public class TimeoutFactoryTestCase extends TestCase
       assertEquals(times, count.getCount());
    }
 
+   public void testShards() throws Exception
+   {
+      final int times = 1000;
+      count = new CountDownLatch(times);
+      BasicThreadPool tp = new BasicThreadPool();
+      tp.setMaximumPoolSize(20);
+      tp.setBlockingMode(BlockingMode.RUN);
+      TT tt = new TT();
+      TimeoutFactory tf = new TimeoutFactory(tp, 4);
+      assertEquals(4, tf.getShardCount());
+      long at = System.currentTimeMillis() + 100;
+      for (int i = 0; i < times; i++)
+      {
+         tf.schedule(at, (TimeoutTarget)tt);
+      }
+      count.await(10, TimeUnit.SECONDS);
+      assertEquals(0, count.getCount());
+      long dispatched = 0;
+      for (int i = 0; i < tf.getShardCount(); i++)
+      {
+         assertTrue(tf.getDispatchCount(i) > 0);
+         assertTrue(tf.getMaximumLateness(i) >= 0);
+         assertTrue(tf.getAverageLateness(i) <= tf.getMaximumLateness(i));
+         dispatched += tf.getDispatchCount(i);
+      }
+      assertEquals(times, dispatched);
+      tf.cancel();
+      tp.stop(false);
+
+      tf = new TimeoutFactory(tp, 0);
+      assertEquals(Runtime.getRuntime().availableProcessors(), tf.getShardCount());
+      tf.cancel();
+   }
+
+   public void testTimerSlack() throws Exception
+   {
+      final int times = 100;
+      VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      final Set<Long> fired = Collections.synchronizedSet(new TreeSet<Long>());
+      count = new CountDownLatch(times);
+      BasicThreadPool tp = new BasicThreadPool();
+      TimeoutFactory tf = new TimeoutFactory(tp, 1, clock);
+      assertEquals(0, tf.getTimerSlack());
+      tf.setTimerSlack(50);
+      assertEquals(50, tf.getTimerSlack());
+      TimeoutTarget target = new TimeoutTarget()
+      {
+         public void timedOut(Timeout timeout)
+         {
+            fired.add(((TimeoutExt) timeout).getTime());
+            count.countDown();
+         }
+      };
+      for (int i = 1; i <= times; i++)
+         tf.schedule(i, target);
+      // Never early
+      clock.advance(49);
+      Thread.sleep(50);
+      assertEquals(times, count.getCount());
+      clock.advance(51);
+      count.await(10, TimeUnit.SECONDS);
+      assertEquals(0, count.getCount());
+      // Two windows, two wake ups
+      assertEquals("[50, 100]", fired.toString());
+      tf.cancel();
+      tp.stop(false);
+   }
+
+   public void testFixedRate() throws Exception
+   {
+      List<Long> runs = checkRepeating(true);
+      // Each run takes 30ms, the rate stays
+      assertEquals("[100, 200, 300]", runs.toString());
+   }
+
+   public void testFixedDelay() throws Exception
+   {
+      List<Long> runs = checkRepeating(false);
+      // Each run takes 30ms before the delay starts
+      assertEquals("[100, 230, 360]", runs.toString());
+   }
+
+   public void testRepeatingCancelledFromTarget() throws Exception
+   {
+      final VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      final AtomicInteger runs = new AtomicInteger();
+      BasicThreadPool tp = new BasicThreadPool();
+      TimeoutFactory tf = new TimeoutFactory(tp, 1, clock);
+      try
+      {
+         tf.scheduleWithFixedDelay(10, 10, new TimeoutTarget()
+         {
+            public void timedOut(Timeout timeout)
+            {
+               if (runs.incrementAndGet() == 2)
+                  assertTrue(timeout.cancel());
+            }
+         });
+         for (int i = 0; i < 5; ++i)
+         {
+            clock.advance(10);
+            Thread.sleep(30);
+         }
+         assertEquals(2, runs.get());
+         assertEquals(0, tf.getStatistics().getQueueDepth());
+      }
+      finally
+      {
+         tf.cancel();
+         tp.stop(false);
+      }
+   }
+
+   public void testRepeatingRejected() throws Exception
+   {
+      final VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      final AtomicInteger rejections = new AtomicInteger();
+      final AtomicInteger runs = new AtomicInteger();
+      // Rejects the first run
+      BasicThreadPool tp = new BasicThreadPool()
+      {
+         public void run(Runnable runnable)
+         {
+            if (rejections.getAndIncrement() == 0)
+               throw new ThreadPoolFullException("Rejected");
+            super.run(runnable);
+         }
+      };
+      TimeoutFactory tf = new TimeoutFactory(tp, 1, clock);
+      try
+      {
+         Timeout timeout = tf.scheduleAtFixedRate(10, 10, new TimeoutTarget()
+         {
+            public void timedOut(Timeout timeout)
+            {
+               runs.incrementAndGet();
+            }
+         });
+         for (int i = 0; i < 3; ++i)
+         {
+            clock.advance(10);
+            long end = System.currentTimeMillis() + 10000;
+            while (rejections.get() <= i && System.currentTimeMillis() < end)
+               Thread.sleep(5);
+            Thread.sleep(20);
+         }
+         // The rejected run is skipped, the timeout keeps repeating
+         assertEquals(3, rejections.get());
+         assertEquals(2, runs.get());
+         assertEquals(1, tf.getStatistics().getQueueDepth());
+         assertTrue(timeout.cancel());
+         clock.advance(100);
+         Thread.sleep(50);
+         assertEquals(2, runs.get());
+         assertEquals(0, tf.getStatistics().getQueueDepth());
+      }
+      finally
+      {
+         tf.cancel();
+         tp.stop(false);
+      }
+   }
+
+   public void testRepeatingBatchRejected() throws Exception
+   {
+      final VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      final AtomicInteger batches = new AtomicInteger();
+      final AtomicInteger runs = new AtomicInteger();
+      // Fails the first batch
+      BasicThreadPool tp = new BasicThreadPool()
+      {
+         public boolean[] runAll(Collection<? extends Runnable> runnables)
+         {
+            if (batches.getAndIncrement() == 0)
+               throw new IllegalStateException("Failed");
+            return super.runAll(runnables);
+         }
+      };
+      TimeoutFactory tf = new TimeoutFactory(tp, 1, clock);
+      try
+      {
+         TimeoutTarget target = new TimeoutTarget()
+         {
+            public void timedOut(Timeout timeout)
+            {
+               runs.incrementAndGet();
+            }
+         };
+         Timeout first = tf.scheduleAtFixedRate(10, 10, target);
+         Timeout second = tf.scheduleAtFixedRate(10, 10, target);
+         for (int i = 0; i < 2; ++i)
+         {
+            clock.advance(10);
+            long end = System.currentTimeMillis() + 10000;
+            while (batches.get() <= i && System.currentTimeMillis() < end)
+               Thread.sleep(5);
+            Thread.sleep(20);
+         }
+         // The failed batch is skipped, both timeouts keep repeating
+         assertEquals(2, batches.get());
+         assertEquals(2, runs.get());
+         assertEquals(2, tf.getStatistics().getQueueDepth());
+         assertTrue(first.cancel());
+         assertTrue(second.cancel());
+      }
+      finally
+      {
+         tf.cancel();
+         tp.stop(false);
+      }
+   }
+
+   /**
+    * Run a repeating timeout three times on a virtual clock and cancel it
+    *
+    * @return the times of the runs
+    */
+   private List<Long> checkRepeating(boolean fixedRate) throws Exception
+   {
+      final VirtualTimeoutClock clock = new VirtualTimeoutClock();
+      final List<Long> runs = Collections.synchronizedList(new ArrayList<Long>());
+      BasicThreadPool tp = new BasicThreadPool();
+      TimeoutFactory tf = new TimeoutFactory(tp, 1, clock);
+      try
+      {
+         TimeoutTarget target = new TimeoutTarget()
+         {
+            public void timedOut(Timeout timeout)
+            {
+               runs.add(clock.currentTimeMillis());
+               clock.advance(30);
+            }
+         };
+         Timeout timeout;
+         if (fixedRate)
+            timeout = tf.scheduleAtFixedRate(100, 100, target);
+         else
+            timeout = tf.scheduleWithFixedDelay(100, 100, target);
+         for (int i = 1; i <= 3; ++i)
+         {
+            // Up to the next run, the clock is 30ms past the previous one
+            clock.advance(fixedRate && i > 1 ? 70 : 100);
+            long end = System.currentTimeMillis() + 10000;
+            while (runs.size() < i && System.currentTimeMillis() < end)
+               Thread.sleep(5);
+            Thread.sleep(20);
+            assertEquals(i, runs.size());
+         }
+         assertEquals(1, tf.getStatistics().getQueueDepth());
+         assertTrue(timeout.cancel());
+         assertFalse(timeout.cancel());
+         clock.advance(1000);
+         Thread.sleep(50);
+         assertEquals(3, runs.size());
+         assertEquals(0, tf.getStatistics().getQueueDepth());
+         assertEquals(1, tf.getStatistics().getCancelledCount());
+         return runs;
+      }
+      finally
+      {
+         tf.cancel();
+         tp.stop(false);
+      }
+   }
+
+   public void testStatistics() throws Exception
+   {
+      final int times = 100;
+      count = new CountDownLatch(times);
+      BasicThreadPool tp = new BasicThreadPool();
+      tp.setBlockingMode(BlockingMode.RUN);
+      TT tt = new TT();
+      TimeoutFactory tf = new TimeoutFactory(tp, 2);
+      TimeoutStatistics stats = tf.getStatistics();
+      assertFalse(stats.isDetailed());
+      stats.setDetailed(true);
+      long at = System.currentTimeMillis() + 50;
+      for (int i = 0; i < times; i++)
+      {
+         tf.schedule(at, (TimeoutTarget)tt);
+         assertTrue(tf.schedule(at + 100000, (TimeoutTarget)tt).cancel());
+      }
+      Timeout waiting = tf.schedule(at + 100000, (TimeoutTarget)tt);
+      count.await(10, TimeUnit.SECONDS);
+      assertEquals(0, count.getCount());
+      Thread.sleep(50);
+
+      assertEquals(2 * times + 1, stats.getScheduledCount());
+      assertEquals(times, stats.getDispatchCount());
+      assertEquals(1, stats.getQueueDepth());
+      assertEquals(times, stats.getCancelledCount());
+      assertEquals((double) times / (2 * times + 1), stats.getCancellationRatio(), 0.0001);
+      assertEquals(times, stats.getLateness().getCount());
+      assertTrue(stats.getAverageLateness() <= stats.getMaximumLateness());
+      assertTrue(stats.getLatenessPercentile(50) <= stats.getMaximumLateness());
+      assertEquals(times, stats.getHandOffDelay().getCount());
+      assertTrue(stats.getAverageHandOffDelay() <= stats.getMaximumHandOffDelay());
+
+      stats.reset();
+      assertEquals(0, stats.getScheduledCount());
+      assertEquals(0, stats.getDispatchCount());
+      assertEquals(0, stats.getLateness().getCount());
+      assertEquals(0, stats.getCancelledCount());
+      assertTrue(waiting.cancel());
+      assertEquals(1, stats.getCancelledCount());
+      tf.cancel();
+      tp.stop(false);
+   }
+
    class TT implements TimeoutTarget, Runnable
    {
 
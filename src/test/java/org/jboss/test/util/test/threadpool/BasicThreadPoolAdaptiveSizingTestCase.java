@@ -0,0 +1,173 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+
+/**
+ * Tests the adaptive pool sizing of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolAdaptiveSizingTestCase extends TestCase
+{
+   public BasicThreadPoolAdaptiveSizingTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testGrowAndShrink() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(10000);
+      pool.setMaximumPoolSize(2);
+      pool.setAdaptiveMinimumPoolSize(1);
+      pool.setAdaptiveMaximumPoolSize(16);
+      pool.setAdaptiveSampleInterval(100);
+      pool.setAdaptiveTargetQueueWaitTime(5);
+      // The tasks sleep, don't let the load of the test machine get in the way
+      pool.setAdaptiveMaximumCpuLoad(1000);
+      pool.setAdaptiveSizing(true);
+      assertTrue(pool.isAdaptiveSizing());
+      try
+      {
+         int tasks = 1000;
+         final CountDownLatch done = new CountDownLatch(tasks);
+         for (int i = 0; i < tasks; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  sleep(10);
+                  done.countDown();
+               }
+            });
+         }
+         long end = System.currentTimeMillis() + 10000;
+         while (pool.getMaximumPoolSize() <= 2 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+         assertTrue("Did not grow: " + pool.getLastAdaptiveDecision(), pool.getMaximumPoolSize() > 2);
+         assertTrue(pool.getMaximumPoolSize() <= 16);
+         assertTrue(pool.getAdaptiveResizeCount() > 0);
+         String[] decisions = pool.getAdaptiveDecisions();
+         assertTrue(decisions.length > 0);
+         assertTrue(decisions[0], decisions[0].indexOf("grow 2->") >= 0);
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+
+         // Idle, the pool shrinks back to the minimum
+         end = System.currentTimeMillis() + 20000;
+         while (pool.getMaximumPoolSize() > 1 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+         assertEquals(pool.getLastAdaptiveDecision(), 1, pool.getMaximumPoolSize());
+         decisions = pool.getAdaptiveDecisions();
+         assertTrue(decisions[decisions.length - 1].indexOf("shrink") >= 0);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testBounds() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(10);
+      pool.setAdaptiveMinimumPoolSize(2);
+      pool.setAdaptiveMaximumPoolSize(4);
+      pool.setAdaptiveSampleInterval(20);
+      try
+      {
+         pool.setAdaptiveSizing(true);
+         long end = System.currentTimeMillis() + 10000;
+         while (pool.getMaximumPoolSize() > 4 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+         assertTrue(pool.getMaximumPoolSize() <= 4);
+         assertTrue(pool.getMaximumPoolSize() >= 2);
+
+         pool.setAdaptiveSizing(false);
+         assertFalse(pool.isAdaptiveSizing());
+         assertNull(pool.getLastAdaptiveDecision());
+         pool.setMaximumPoolSize(10);
+         Thread.sleep(100);
+         assertEquals(10, pool.getMaximumPoolSize());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testExplicitMaximum() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setAdaptiveMinimumPoolSize(2);
+      pool.setAdaptiveMaximumPoolSize(4);
+      pool.setAdaptiveSampleInterval(20);
+      try
+      {
+         pool.setAdaptiveSizing(true);
+         // The explicit size wins over the controller
+         pool.setMaximumPoolSize(10);
+         assertFalse(pool.isAdaptiveSizing());
+         Thread.sleep(100);
+         assertEquals(10, pool.getMaximumPoolSize());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testInvalidSettings() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         pool.setAdaptiveSampleInterval(0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      try
+      {
+         pool.setAdaptiveMinimumPoolSize(0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+   }
+
+   private static void sleep(long millis)
+   {
+      try
+      {
+         Thread.sleep(millis);
+      }
+      catch (InterruptedException ignored)
+      {
+      }
+   }
+}
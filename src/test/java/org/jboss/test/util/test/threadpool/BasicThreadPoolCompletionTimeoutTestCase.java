@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+
+/**
+ * Tests the task completion timeout monitor of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolCompletionTimeoutTestCase extends TestCase
+{
+   public BasicThreadPoolCompletionTimeoutTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testCompletedTasksAreNotStopped() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(10000);
+      pool.setCompletionTimeoutResolution(10);
+      final int times = 5000;
+      final CountDownLatch done = new CountDownLatch(times);
+      final AtomicInteger interrupted = new AtomicInteger();
+      try
+      {
+         for (int i = 0; i < times; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  done.countDown();
+               }
+            }, 0, 50);
+         }
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         // Let the checks fall due, none of the pool threads may be interrupted
+         Thread.sleep(200);
+         final CountDownLatch probes = new CountDownLatch(4);
+         for (int i = 0; i < 4; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  if (Thread.currentThread().isInterrupted())
+                     interrupted.incrementAndGet();
+                  probes.countDown();
+               }
+            });
+         }
+         assertTrue(probes.await(10, TimeUnit.SECONDS));
+         assertEquals(0, interrupted.get());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testResolution() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setCompletionTimeoutResolution(20);
+      assertEquals(20, pool.getCompletionTimeoutResolution());
+      final CountDownLatch interrupted = new CountDownLatch(1);
+      try
+      {
+         long start = System.currentTimeMillis();
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted.countDown();
+               }
+            }
+         }, 0, 100);
+         assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+         long elapsed = System.currentTimeMillis() - start;
+         assertTrue("Stopped too early: " + elapsed, elapsed >= 100);
+         assertTrue("Stopped too late: " + elapsed, elapsed < 1000);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testInvalidResolution() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         pool.setCompletionTimeoutResolution(0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+   }
+}
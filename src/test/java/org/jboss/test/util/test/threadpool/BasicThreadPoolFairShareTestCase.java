@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.ThreadPoolFullException;
+
+/**
+ * Tests the fair share queue mode of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolFairShareTestCase extends QueueOrderTestBase
+{
+   public BasicThreadPoolFairShareTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testRoundRobin() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      try
+      {
+         occupy(pool);
+         assertEquals(0, submit(pool, "a", 4));
+         assertEquals(0, submit(pool, "b", 2));
+         assertEquals(6, pool.getQueueSize());
+         assertEquals(4, pool.getTenantQueueSize("a"));
+         assertEquals(2, pool.getTenantQueueSize("b"));
+         assertTrue(Arrays.asList(pool.getTenants()).containsAll(Arrays.asList("a", "b")));
+         release.countDown();
+         waitForSize(6);
+         assertEquals("[a1, b1, a2, b2, a3, a4]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testWeight() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      pool.setTenantWeight("a", 2);
+      assertEquals(2, pool.getTenantWeight("a"));
+      assertEquals(1, pool.getTenantWeight("b"));
+      try
+      {
+         occupy(pool);
+         submit(pool, "a", 4);
+         submit(pool, "b", 2);
+         release.countDown();
+         waitForSize(6);
+         assertEquals("[a1, a2, b1, a3, a4, b2]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testTenantLimit() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      pool.setTenantMaximumQueueSize(2);
+      pool.setTenantQueueLimit("b", 3);
+      assertEquals(2, pool.getTenantQueueLimit("a"));
+      assertEquals(3, pool.getTenantQueueLimit("b"));
+      try
+      {
+         occupy(pool);
+         // The noisy tenant is held to its limit, the other still gets in
+         assertEquals(3, submit(pool, "a", 5));
+         assertEquals(1, submit(pool, "b", 4));
+         assertEquals(2, pool.getTenantQueueSize("a"));
+         assertEquals(3, pool.getTenantQueueSize("b"));
+         assertEquals(3, pool.getTenantRejectionCount("a"));
+         assertEquals(1, pool.getTenantRejectionCount("b"));
+         assertEquals(4, pool.getRejectionCount());
+         release.countDown();
+         waitForSize(5);
+         assertEquals("[a1, b1, a2, b2, b3]", order.toString());
+         pool.resetStatistics();
+         assertEquals(0, pool.getTenantRejectionCount("a"));
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testDiscardOldest() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      pool.setBlockingMode(BlockingMode.DISCARD_OLDEST);
+      pool.setTenantMaximumQueueSize(2);
+      try
+      {
+         occupy(pool);
+         submit(pool, "b", 1);
+         // The tenant at its limit loses its own oldest task
+         submit(pool, "a", 4);
+         assertEquals(3, pool.getQueueSize());
+         release.countDown();
+         waitForSize(3);
+         Thread.sleep(50);
+         assertEquals("[b1, a3, a4]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testContextClassLoaderTenant() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      pool.setTenantSource("contextClassLoader");
+      assertEquals("contextClassLoader", pool.getTenantSource());
+      try
+      {
+         pool.setTenantSource("unknown");
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      ClassLoader original = Thread.currentThread().getContextClassLoader();
+      try
+      {
+         occupy(pool);
+         Thread.currentThread().setContextClassLoader(new ClassLoader(original) {});
+         pool.run(new Named("x1"));
+         pool.run(new Named("x2"));
+         Thread.currentThread().setContextClassLoader(new ClassLoader(original) {});
+         pool.run(new Named("y1"));
+         assertEquals(2, pool.getTenants().length);
+         release.countDown();
+         waitForSize(3);
+         assertEquals("[x1, y1, x2]", order.toString());
+      }
+      finally
+      {
+         Thread.currentThread().setContextClassLoader(original);
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testTenantKeptAcrossReset() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      try
+      {
+         occupy(pool);
+         submit(pool, "a", 2);
+         submit(pool, "b", 1);
+         // Recreates the queue from this thread
+         pool.setMaximumQueueSize(2048);
+         assertEquals(3, pool.getQueueSize());
+         assertEquals(2, pool.getTenantQueueSize("a"));
+         assertEquals(1, pool.getTenantQueueSize("b"));
+         assertEquals(0, pool.getTenantQueueSize(Thread.currentThread().getThreadGroup().getName()));
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testIdleTenantEviction() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      pool.setTenantIdleTimeout(50);
+      assertEquals(50, pool.getTenantIdleTimeout());
+      try
+      {
+         submit(pool, "a", 1);
+         waitForSize(1);
+         Thread.sleep(100);
+         // A new tenant makes room by forgetting the idle ones
+         submit(pool, "b", 1);
+         waitForSize(2);
+         List<String> tenants = Arrays.asList(pool.getTenants());
+         assertFalse(tenants.toString(), tenants.contains("a"));
+         assertTrue(tenants.toString(), tenants.contains("b"));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   private BasicThreadPool createPool()
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setPriorityQueue(true);
+      pool.setFairShareQueue(true);
+      assertTrue(pool.isFairShareQueue());
+      assertFalse(pool.isPriorityQueue());
+      assertEquals(1024, pool.getMaximumQueueSize());
+      return pool;
+   }
+
+   /**
+    * Submit tasks from a thread of the tenant's thread group
+    *
+    * @return the number of rejected tasks
+    */
+   private int submit(final BasicThreadPool pool, final String tenant, final int count) throws InterruptedException
+   {
+      final AtomicInteger rejected = new AtomicInteger();
+      Thread thread = new Thread(new ThreadGroup(tenant), new Runnable()
+      {
+         public void run()
+         {
+            for (int i = 1; i <= count; ++i)
+            {
+               try
+               {
+                  pool.run(new Named(tenant + i));
+               }
+               catch (ThreadPoolFullException e)
+               {
+                  rejected.incrementAndGet();
+               }
+            }
+         }
+      });
+      thread.start();
+      thread.join();
+      return rejected.get();
+   }
+}
@@ -0,0 +1,344 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.StartTimeoutException;
+import org.jboss.util.threadpool.TaskFuture;
+import org.jboss.util.threadpool.TaskStoppedException;
+import org.jboss.util.threadpool.ThreadPoolFullException;
+import org.jboss.util.threadpool.ThreadPoolStoppedException;
+
+/**
+ * Tests the future returning submission of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolFutureTestCase extends TestCase
+{
+   public BasicThreadPoolFutureTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testResult() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         TaskFuture<String> future = pool.submit(new Callable<String>()
+         {
+            public String call()
+            {
+               return "result";
+            }
+         });
+         assertEquals("result", future.get(10, TimeUnit.SECONDS));
+         assertTrue(future.isDone());
+         assertFalse(future.isCancelled());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testFailure() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         TaskFuture<String> future = pool.submit(new Callable<String>()
+         {
+            public String call() throws Exception
+            {
+               throw new Exception("expected");
+            }
+         });
+         try
+         {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+         }
+         catch (ExecutionException expected)
+         {
+            assertEquals("expected", expected.getCause().getMessage());
+         }
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testListener() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      final CountDownLatch release = new CountDownLatch(1);
+      try
+      {
+         final TaskFuture<Integer> future = pool.submit(new Callable<Integer>()
+         {
+            public Integer call() throws Exception
+            {
+               release.await();
+               return 42;
+            }
+         });
+         final AtomicReference<Object> seen = new AtomicReference<Object>();
+         final CountDownLatch notified = new CountDownLatch(2);
+         Runnable listener = new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  seen.set(future.get());
+               }
+               catch (Exception e)
+               {
+                  seen.set(e);
+               }
+               notified.countDown();
+            }
+         };
+         future.addListener(listener, null);
+         assertEquals(2, notified.getCount());
+         release.countDown();
+         // Chained on the pool itself once the first future completes
+         final AtomicReference<TaskFuture<Void>> chained = new AtomicReference<TaskFuture<Void>>();
+         final BasicThreadPool executor = pool;
+         future.addListener(new Runnable()
+         {
+            public void run()
+            {
+               chained.set(executor.submit(new Runnable()
+               {
+                  public void run()
+                  {
+                     notified.countDown();
+                  }
+               }));
+            }
+         }, null);
+         assertTrue(notified.await(10, TimeUnit.SECONDS));
+         assertEquals(42, seen.get());
+         assertNull(chained.get().get(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testCompletionTimeout() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setCompletionTimeoutResolution(10);
+      try
+      {
+         TaskFuture<Void> future = pool.submit(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException ignored)
+               {
+               }
+            }
+         }, 0, 100);
+         try
+         {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+         }
+         catch (ExecutionException expected)
+         {
+            assertTrue(expected.getCause() instanceof TaskStoppedException);
+         }
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testStartTimeout() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  release.await();
+               }
+               catch (InterruptedException ignored)
+               {
+               }
+            }
+         });
+         TaskFuture<Void> future = pool.submit(new Runnable()
+         {
+            public void run()
+            {
+            }
+         }, 10, 0);
+         Thread.sleep(50);
+         release.countDown();
+         try
+         {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+         }
+         catch (ExecutionException expected)
+         {
+            assertTrue(expected.getCause() instanceof StartTimeoutException);
+         }
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testRejected() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setMaximumQueueSize(1);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      Runnable hold = new Runnable()
+      {
+         public void run()
+         {
+            started.countDown();
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      };
+      try
+      {
+         pool.run(hold);
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         pool.run(hold);
+         TaskFuture<Void> future = pool.submit(hold);
+         assertTrue(future.isDone());
+         try
+         {
+            future.get();
+            fail("Expected ExecutionException");
+         }
+         catch (ExecutionException expected)
+         {
+            assertTrue(expected.getCause() instanceof ThreadPoolFullException);
+         }
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+      TaskFuture<Void> future = pool.submit(hold);
+      try
+      {
+         future.get();
+         fail("Expected ExecutionException");
+      }
+      catch (ExecutionException expected)
+      {
+         assertTrue(expected.getCause() instanceof ThreadPoolStoppedException);
+      }
+   }
+
+   public void testCancel() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch interrupted = new CountDownLatch(1);
+      try
+      {
+         TaskFuture<Void> future = pool.submit(new Runnable()
+         {
+            public void run()
+            {
+               started.countDown();
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted.countDown();
+               }
+            }
+         });
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         try
+         {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("Expected TimeoutException");
+         }
+         catch (TimeoutException expected)
+         {
+         }
+         assertTrue(future.cancel(true));
+         assertTrue(future.isCancelled());
+         assertFalse(future.cancel(true));
+         assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+         try
+         {
+            future.get();
+            fail("Expected CancellationException");
+         }
+         catch (CancellationException expected)
+         {
+         }
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+}
@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.Task;
+import org.jboss.util.threadpool.ThreadPoolFullException;
+
+/**
+ * Tests the priority queue mode of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolPriorityQueueTestCase extends QueueOrderTestBase
+{
+   public BasicThreadPoolPriorityQueueTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testPriorityOrder() throws Exception
+   {
+      BasicThreadPool pool = createPool(100);
+      try
+      {
+         occupy(pool);
+         pool.runTask(new PriorityTask("low1", 1));
+         pool.runTask(new PriorityTask("norm1", 5));
+         pool.runTask(new PriorityTask("high", 10));
+         pool.runTask(new PriorityTask("norm2", 5));
+         pool.runTask(new PriorityTask("low2", 1));
+         pool.run(new Named("runnable"));
+         assertEquals(6, pool.getQueueSize());
+         release.countDown();
+         waitForSize(6);
+         assertEquals("[high, norm1, norm2, runnable, low1, low2]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testAging() throws Exception
+   {
+      BasicThreadPool pool = createPool(100);
+      pool.setPriorityAgingInterval(10);
+      try
+      {
+         occupy(pool);
+         pool.runTask(new PriorityTask("old", 1));
+         // Waiting 200ms raises the old task by 20 levels
+         Thread.sleep(200);
+         pool.runTask(new PriorityTask("new", 10));
+         release.countDown();
+         waitForSize(2);
+         assertEquals("[old, new]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testDiscardOldest() throws Exception
+   {
+      BasicThreadPool pool = createPool(2);
+      pool.setBlockingMode(BlockingMode.DISCARD_OLDEST);
+      try
+      {
+         occupy(pool);
+         pool.runTask(new PriorityTask("norm", 5));
+         pool.runTask(new PriorityTask("low", 1));
+         // The lowest priority makes room
+         pool.runTask(new PriorityTask("high", 10));
+         assertEquals(2, pool.getQueueSize());
+         release.countDown();
+         waitForSize(2);
+         Thread.sleep(50);
+         assertEquals("[high, norm]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testAbort() throws Exception
+   {
+      BasicThreadPool pool = createPool(1);
+      try
+      {
+         occupy(pool);
+         pool.run(new Named("queued"));
+         try
+         {
+            pool.run(new Named("rejected"));
+            fail("Expected ThreadPoolFullException");
+         }
+         catch (ThreadPoolFullException expected)
+         {
+         }
+         release.countDown();
+         waitForSize(1);
+         assertEquals("[queued]", order.toString());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   private BasicThreadPool createPool(int queueSize)
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setMaximumQueueSize(queueSize);
+      pool.setPriorityQueue(true);
+      assertTrue(pool.isPriorityQueue());
+      assertEquals(queueSize, pool.getMaximumQueueSize());
+      return pool;
+   }
+
+   private class PriorityTask implements Task
+   {
+      private final String name;
+      private final int priority;
+
+      PriorityTask(String name, int priority)
+      {
+         this.name = name;
+         this.priority = priority;
+      }
+
+      public int getWaitType()
+      {
+         return WAIT_NONE;
+      }
+
+      public int getPriority()
+      {
+         return priority;
+      }
+
+      public long getStartTimeout()
+      {
+         return 0;
+      }
+
+      public long getCompletionTimeout()
+      {
+         return 0;
+      }
+
+      public void execute()
+      {
+         order.add(name);
+      }
+
+      public void stop()
+      {
+      }
+
+      public void accepted(long time)
+      {
+      }
+
+      public void rejected(long time, Throwable t)
+      {
+      }
+
+      public void started(long time)
+      {
+      }
+
+      public void completed(long time, Throwable t)
+      {
+      }
+   }
+}
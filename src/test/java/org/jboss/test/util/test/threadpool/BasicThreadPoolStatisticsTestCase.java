@@ -0,0 +1,281 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.Histogram;
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.Task;
+import org.jboss.util.threadpool.ThreadPoolFullException;
+import org.jboss.util.threadpool.ThreadPoolStatistics;
+
+/**
+ * Tests the latency and saturation statistics of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolStatisticsTestCase extends TestCase
+{
+   public BasicThreadPoolStatisticsTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testLatencies() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      final CountDownLatch done = new CountDownLatch(5);
+      try
+      {
+         for (int i = 0; i < 5; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  sleep(20);
+                  done.countDown();
+               }
+            });
+         }
+         assertTrue(done.await(10, TimeUnit.SECONDS));
+         waitForCompleted(pool, 5);
+
+         ThreadPoolStatistics statistics = pool.getStatistics();
+         assertEquals(5, statistics.getQueueWaitTime().getCount());
+         assertEquals(5, statistics.getExecutionTime().getCount());
+         assertTrue(pool.getAverageExecutionTime() >= 15);
+         // The last task waited for the four before it
+         assertTrue(pool.getMaximumQueueWaitTime() >= 60);
+         long total = 0;
+         long[] histogram = pool.getExecutionTimeHistogram();
+         for (int i = 0; i < histogram.length; ++i)
+            total += histogram[i];
+         assertEquals(5, total);
+
+         pool.resetStatistics();
+         assertEquals(0, pool.getCompletedTaskCount());
+         assertEquals(0, statistics.getQueueWaitTime().getCount());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testRejections() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(1);
+      pool.setMaximumPoolSize(1);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      Runnable hold = new Runnable()
+      {
+         public void run()
+         {
+            started.countDown();
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      };
+      try
+      {
+         pool.run(hold);
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         pool.run(hold);
+         try
+         {
+            pool.run(hold);
+            fail("Expected ThreadPoolFullException");
+         }
+         catch (ThreadPoolFullException expected)
+         {
+         }
+         pool.setBlockingMode(BlockingMode.DISCARD);
+         pool.run(hold);
+         pool.run(hold);
+
+         assertEquals(1, pool.getRejectionCount("abort"));
+         assertEquals(2, pool.getRejectionCount("discard"));
+         assertEquals(0, pool.getRejectionCount("run"));
+         assertEquals(3, pool.getRejectionCount());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testTimeouts() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setCompletionTimeoutResolution(10);
+      final CountDownLatch interrupted = new CountDownLatch(1);
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted.countDown();
+               }
+            }
+         }, 0, 100);
+         // Queued behind the first task, it cannot start within 10ms
+         pool.runTask(new TestTask(10));
+         assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+         waitForCompleted(pool, 1);
+         assertEquals(1, pool.getCompletionTimeoutCount());
+         long end = System.currentTimeMillis() + 10000;
+         while (pool.getStartTimeoutCount() == 0 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+         assertEquals(1, pool.getStartTimeoutCount());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testConcurrentRecording() throws Exception
+   {
+      ThreadPoolStatistics statistics = new ThreadPoolStatistics();
+      final Histogram histogram = statistics.getExecutionTime();
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; ++i)
+      {
+         final long nanos = (i + 1) * 1000;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               for (int n = 0; n < 10000; ++n)
+                  histogram.record(nanos);
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; ++i)
+         threads[i].join(10000);
+      assertEquals(80000, histogram.getCount());
+      assertEquals(10000 * 36, histogram.getTotal());
+      assertEquals(8, histogram.getMaximum());
+      long[] buckets = histogram.getBuckets();
+      assertEquals(10000, buckets[1]);
+      assertEquals(20000, buckets[2]);
+      assertEquals(40000, buckets[3]);
+      assertEquals(10000, buckets[4]);
+
+      statistics.reset();
+      assertEquals(0, histogram.getCount());
+      assertEquals(0, histogram.getTotal());
+      assertEquals(0, histogram.getMaximum());
+   }
+
+   private static void waitForCompleted(BasicThreadPool pool, long count) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (pool.getCompletedTaskCount() < count && System.currentTimeMillis() < end)
+         Thread.sleep(10);
+   }
+
+   private static void sleep(long millis)
+   {
+      try
+      {
+         Thread.sleep(millis);
+      }
+      catch (InterruptedException ignored)
+      {
+      }
+   }
+
+   private static class TestTask implements Task
+   {
+      private final long startTimeout;
+
+      TestTask(long startTimeout)
+      {
+         this.startTimeout = startTimeout;
+      }
+
+      public int getWaitType()
+      {
+         return WAIT_NONE;
+      }
+
+      public int getPriority()
+      {
+         return Thread.NORM_PRIORITY;
+      }
+
+      public long getStartTimeout()
+      {
+         return startTimeout;
+      }
+
+      public long getCompletionTimeout()
+      {
+         return 0;
+      }
+
+      public void execute()
+      {
+      }
+
+      public void stop()
+      {
+      }
+
+      public void accepted(long time)
+      {
+      }
+
+      public void rejected(long time, Throwable t)
+      {
+      }
+
+      public void started(long time)
+      {
+      }
+
+      public void completed(long time, Throwable t)
+      {
+      }
+   }
+}
@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.KeyedThreadPool;
+
+/**
+ * Tests the task profiling of BasicThreadPool.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolTaskProfilingTestCase extends TestCase
+{
+   public BasicThreadPoolTaskProfilingTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testDisabled() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         assertFalse(pool.isTaskProfiling());
+         pool.run(new Burner());
+         Thread.sleep(100);
+         assertEquals(0, pool.getTopTasks().length);
+         assertEquals(0, pool.getSlowTasks().length);
+         assertEquals(0, pool.getSlowTaskCount());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testTopTasks() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setTaskProfiling(true);
+      assertTrue(pool.isTaskProfiling());
+      try
+      {
+         for (int i = 0; i < 3; ++i)
+         {
+            pool.run(new Sleeper());
+            pool.run(new Burner());
+         }
+         pool.submit(new Named()).get(10, TimeUnit.SECONDS);
+         // The only thread runs the tasks in order
+         waitForProfile(pool, Named.class);
+
+         String[] top = pool.getTopTasks();
+         assertEquals(3, top.length);
+         assertTrue(top[0], top[0].startsWith(Burner.class.getName() + " count=3 "));
+         String names = top[1] + ',' + top[2];
+         assertTrue(names, names.indexOf(Sleeper.class.getName() + " count=3 ") >= 0);
+         assertTrue(names, names.indexOf(Named.class.getName() + " count=1 ") >= 0);
+
+         pool.setTopTaskCount(1);
+         assertEquals(1, pool.getTopTasks().length);
+
+         pool.resetStatistics();
+         assertEquals(0, pool.getTopTasks().length);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testSlowTasks() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setSlowTaskThreshold(20);
+      pool.setTaskProfiling(true);
+      assertEquals(20, pool.getSlowTaskThreshold());
+      try
+      {
+         pool.run(new Sleeper());
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+            }
+         });
+         pool.run(new Sleeper());
+         long end = System.currentTimeMillis() + 10000;
+         while (pool.getSlowTaskCount() < 2 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+         assertEquals(2, pool.getSlowTaskCount());
+         String[] slow = pool.getSlowTasks();
+         assertEquals(2, slow.length);
+         assertTrue(slow[0], slow[0].indexOf(Sleeper.class.getName() + " took ") > 0);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testWrappedTasks() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setTaskProfiling(true);
+      KeyedThreadPool keyed = new KeyedThreadPool(pool);
+      try
+      {
+         // Completion timeout, keyed and keyed with a completion timeout
+         pool.run(new Burner(), 0, 10000);
+         keyed.run("key", new Burner());
+         keyed.run("key", new Sleeper(), 0, 10000);
+         waitForProfile(pool, Sleeper.class);
+
+         String[] top = pool.getTopTasks();
+         assertEquals(2, top.length);
+         assertTrue(top[0], top[0].startsWith(Burner.class.getName() + " count=2 "));
+         assertTrue(top[1], top[1].startsWith(Sleeper.class.getName() + " count=1 "));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   /**
+    * Wait until the profiler has seen a task class
+    */
+   private void waitForProfile(BasicThreadPool pool, Class<?> type) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (System.currentTimeMillis() < end)
+      {
+         String[] top = pool.getTopTasks();
+         for (int i = 0; i < top.length; ++i)
+         {
+            if (top[i].startsWith(type.getName() + ' '))
+               return;
+         }
+         Thread.sleep(10);
+      }
+   }
+
+   public static class Burner implements Runnable
+   {
+      public static volatile long sink;
+
+      public void run()
+      {
+         long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+         long value = 0;
+         while (System.nanoTime() < end)
+            value += Long.toString(value).hashCode();
+         sink = value;
+      }
+   }
+
+   public static class Sleeper implements Runnable
+   {
+      public void run()
+      {
+         try
+         {
+            Thread.sleep(50);
+         }
+         catch (InterruptedException ignored)
+         {
+         }
+      }
+   }
+
+   public static class Named implements Callable<String>
+   {
+      public String call()
+      {
+         return "named";
+      }
+   }
+}
@@ -0,0 +1,257 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.loading.ClassLoaderSource;
+import org.jboss.util.threadpool.BasicThreadPool;
+
+/**
+ * Tests the virtual thread mode of BasicThreadPool. On a runtime without
+ * virtual threads only the fallback to platform threads is checked.
+ *
+ * @version $Revision$
+ */
+public class BasicThreadPoolVirtualThreadTestCase extends TestCase
+{
+   public BasicThreadPoolVirtualThreadTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testConcurrencyIsCapped() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      if (pool == null)
+         return;
+      pool.setVirtualThreadConcurrency(3);
+      final int times = 30;
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger maxRunning = new AtomicInteger();
+      final AtomicBoolean allVirtual = new AtomicBoolean(true);
+      final CountDownLatch done = new CountDownLatch(times);
+      try
+      {
+         for (int i = 0; i < times; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  int now = running.incrementAndGet();
+                  synchronized (maxRunning)
+                  {
+                     if (now > maxRunning.get())
+                        maxRunning.set(now);
+                  }
+                  if (isVirtual(Thread.currentThread()) == false)
+                     allVirtual.set(false);
+                  try
+                  {
+                     Thread.sleep(20);
+                  }
+                  catch (InterruptedException ignored)
+                  {
+                  }
+                  running.decrementAndGet();
+                  done.countDown();
+               }
+            });
+         }
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue("Expected at most 3 running tasks: " + maxRunning.get(), maxRunning.get() <= 3);
+         assertTrue("Expected virtual threads", allVirtual.get());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testConcurrencyBeyondMaximumPoolSize() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      if (pool == null)
+         return;
+      pool.setMaximumPoolSize(2);
+      final int times = 50;
+      final CountDownLatch started = new CountDownLatch(times);
+      final CountDownLatch release = new CountDownLatch(1);
+      try
+      {
+         for (int i = 0; i < times; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  started.countDown();
+                  try
+                  {
+                     release.await();
+                  }
+                  catch (InterruptedException ignored)
+                  {
+                  }
+               }
+            });
+         }
+         // The blocked tasks do not hold back the others
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         assertEquals(times, pool.getPoolSize());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testCompleteTimeout() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      if (pool == null)
+         return;
+      final CountDownLatch interrupted = new CountDownLatch(1);
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted.countDown();
+               }
+            }
+         }, 0, 200);
+         assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testClassLoaderSource() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      if (pool == null)
+         return;
+      final ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {};
+      pool.setClassLoaderSource(new ClassLoaderSource()
+      {
+         public ClassLoader getClassLoader()
+         {
+            return cl;
+         }
+      });
+      final ClassLoader[] seen = new ClassLoader[1];
+      final CountDownLatch done = new CountDownLatch(1);
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               seen[0] = Thread.currentThread().getContextClassLoader();
+               done.countDown();
+            }
+         });
+         assertTrue(done.await(10, TimeUnit.SECONDS));
+         assertSame(cl, seen[0]);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testStopAndWait() throws Exception
+   {
+      BasicThreadPool pool = createPool();
+      if (pool == null)
+         return;
+      pool.setMaximumPoolSize(2);
+      final AtomicInteger count = new AtomicInteger();
+      for (int i = 0; i < 50; ++i)
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               count.incrementAndGet();
+            }
+         });
+      }
+      pool.stop(false);
+      pool.waitForTasks(10000);
+      assertEquals(50, count.get());
+      assertEquals(0, pool.getPoolSize());
+   }
+
+   /**
+    * @return a pool in virtual thread mode or null when not supported
+    */
+   private BasicThreadPool createPool()
+   {
+      BasicThreadPool pool = new BasicThreadPool("VirtualThreadTest");
+      pool.setUseVirtualThreads(true);
+      if (pool.isUseVirtualThreads() == false)
+      {
+         assertNull("Virtual threads should be supported on this runtime", isVirtualMethod());
+         return null;
+      }
+      return pool;
+   }
+
+   private static Method isVirtualMethod()
+   {
+      try
+      {
+         return Thread.class.getMethod("isVirtual");
+      }
+      catch (NoSuchMethodException e)
+      {
+         return null;
+      }
+   }
+
+   private static boolean isVirtual(Thread thread)
+   {
+      try
+      {
+         return ((Boolean) isVirtualMethod().invoke(thread)).booleanValue();
+      }
+      catch (Exception e)
+      {
+         return false;
+      }
+   }
+}
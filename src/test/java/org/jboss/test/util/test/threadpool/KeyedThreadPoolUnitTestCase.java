@@ -0,0 +1,321 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.KeyedThreadPool;
+import org.jboss.util.threadpool.ThreadPoolFullException;
+
+/**
+ * Tests of the keyed thread pool.
+ *
+ * @see org.jboss.util.threadpool.KeyedThreadPool
+ * @version $Revision$
+ */
+public class KeyedThreadPoolUnitTestCase extends TestCase
+{
+   public KeyedThreadPoolUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testOrderPerKey() throws Exception
+   {
+      BasicThreadPool basic = new BasicThreadPool();
+      basic.setMaximumPoolSize(8);
+      basic.setMaximumQueueSize(10000);
+      KeyedThreadPool pool = new KeyedThreadPool(basic);
+      final int keys = 10;
+      final int perKey = 200;
+      final List<List<Integer>> results = new ArrayList<List<Integer>>();
+      final AtomicInteger[] running = new AtomicInteger[keys];
+      final AtomicInteger overlaps = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(keys * perKey);
+      for (int k = 0; k < keys; ++k)
+      {
+         results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+         running[k] = new AtomicInteger();
+      }
+      try
+      {
+         for (int i = 0; i < perKey; ++i)
+         {
+            for (int k = 0; k < keys; ++k)
+            {
+               final int key = k;
+               final int value = i;
+               pool.run("key" + k, new Runnable()
+               {
+                  public void run()
+                  {
+                     if (running[key].incrementAndGet() != 1)
+                        overlaps.incrementAndGet();
+                     results.get(key).add(value);
+                     running[key].decrementAndGet();
+                     done.countDown();
+                  }
+               });
+            }
+         }
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertEquals(0, overlaps.get());
+         for (int k = 0; k < keys; ++k)
+         {
+            List<Integer> list = results.get(k);
+            assertEquals(perKey, list.size());
+            for (int i = 0; i < perKey; ++i)
+               assertEquals(i, list.get(i).intValue());
+         }
+         waitForNoKeys(pool);
+         assertEquals(0, pool.getActiveKeyCount());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testKeysRunInParallel() throws Exception
+   {
+      KeyedThreadPool pool = new KeyedThreadPool();
+      final CountDownLatch bothStarted = new CountDownLatch(2);
+      final CountDownLatch release = new CountDownLatch(1);
+      Runnable hold = new Runnable()
+      {
+         public void run()
+         {
+            bothStarted.countDown();
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      };
+      try
+      {
+         pool.run("a", hold);
+         pool.run("b", hold);
+         assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testCompleteTimeout() throws Exception
+   {
+      KeyedThreadPool pool = new KeyedThreadPool();
+      final CountDownLatch interrupted = new CountDownLatch(1);
+      final CountDownLatch next = new CountDownLatch(1);
+      try
+      {
+         pool.run("a", new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted.countDown();
+               }
+            }
+         }, 0, 200);
+         pool.run("a", new Runnable()
+         {
+            public void run()
+            {
+               next.countDown();
+            }
+         });
+         assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+         assertTrue(next.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testRejectionDoesNotStallKey() throws Exception
+   {
+      BasicThreadPool basic = new BasicThreadPool();
+      basic.setMaximumPoolSize(1);
+      basic.setMaximumQueueSize(1);
+      KeyedThreadPool pool = new KeyedThreadPool(basic);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch filled = new CountDownLatch(1);
+      final CountDownLatch after = new CountDownLatch(1);
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               started.countDown();
+               try
+               {
+                  release.await();
+               }
+               catch (InterruptedException ignored)
+               {
+               }
+            }
+         });
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               filled.countDown();
+            }
+         });
+         try
+         {
+            pool.run("a", new Runnable()
+            {
+               public void run()
+               {
+               }
+            });
+            fail("Expected ThreadPoolFullException");
+         }
+         catch (ThreadPoolFullException expected)
+         {
+         }
+         assertEquals(0, pool.getActiveKeyCount());
+         release.countDown();
+         assertTrue(filled.await(10, TimeUnit.SECONDS));
+         pool.run("a", new Runnable()
+         {
+            public void run()
+            {
+               after.countDown();
+            }
+         });
+         assertTrue(after.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testDiscardDoesNotStallKey() throws Exception
+   {
+      checkDiscard(BlockingMode.DISCARD);
+   }
+
+   public void testDiscardOldestDoesNotStallKey() throws Exception
+   {
+      checkDiscard(BlockingMode.DISCARD_OLDEST);
+   }
+
+   /**
+    * Submit keyed tasks to a full pool that discards them, the keys must
+    * move on once the pool has room again
+    */
+   private void checkDiscard(BlockingMode mode) throws Exception
+   {
+      BasicThreadPool basic = new BasicThreadPool();
+      basic.setMaximumPoolSize(1);
+      basic.setMaximumQueueSize(1);
+      basic.setBlockingMode(mode);
+      KeyedThreadPool pool = new KeyedThreadPool(basic);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch after = new CountDownLatch(2);
+      Runnable nothing = new Runnable()
+      {
+         public void run()
+         {
+         }
+      };
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               started.countDown();
+               try
+               {
+                  release.await();
+               }
+               catch (InterruptedException ignored)
+               {
+               }
+            }
+         });
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         pool.run(nothing);
+         for (int i = 0; i < 3; ++i)
+         {
+            pool.run("a", nothing);
+            pool.run("b", nothing);
+         }
+         release.countDown();
+         waitForNoKeys(pool);
+         assertEquals(0, pool.getActiveKeyCount());
+
+         // The pool may still be full, do not discard the next tasks
+         basic.setBlockingMode(BlockingMode.RUN);
+         Runnable counted = new Runnable()
+         {
+            public void run()
+            {
+               after.countDown();
+            }
+         };
+         pool.run("a", counted);
+         pool.run("b", counted);
+         assertTrue(after.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   private static void waitForNoKeys(KeyedThreadPool pool) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (pool.getActiveKeyCount() > 0 && System.currentTimeMillis() < end)
+         Thread.sleep(10);
+   }
+}
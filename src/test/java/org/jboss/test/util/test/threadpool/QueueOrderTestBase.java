@@ -0,0 +1,94 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+
+/**
+ * Base class for tests of the order in which a single threaded
+ * BasicThreadPool runs its queued work.
+ *
+ * @version $Revision$
+ */
+abstract class QueueOrderTestBase extends TestCase
+{
+   /** The names of the tasks in the order they ran */
+   protected final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+   /** Releases the task occupying the pool thread */
+   protected CountDownLatch release;
+
+   public QueueOrderTestBase(String name)
+   {
+      super(name);
+   }
+
+   /**
+    * Occupy the only pool thread until released
+    */
+   protected void occupy(BasicThreadPool pool) throws InterruptedException
+   {
+      release = new CountDownLatch(1);
+      final CountDownLatch started = new CountDownLatch(1);
+      pool.run(new Runnable()
+      {
+         public void run()
+         {
+            started.countDown();
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+   }
+
+   protected void waitForSize(int size) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (order.size() < size && System.currentTimeMillis() < end)
+         Thread.sleep(10);
+   }
+
+   protected class Named implements Runnable
+   {
+      private final String name;
+
+      Named(String name)
+      {
+         this.name = name;
+      }
+
+      public void run()
+      {
+         order.add(name);
+      }
+   }
+}
@@ -0,0 +1,400 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BasicThreadPool;
+import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.Task;
+import org.jboss.util.threadpool.ThreadPool;
+import org.jboss.util.threadpool.WorkStealingThreadPool;
+
+/**
+ * Tests the batch submission of the thread pools.
+ *
+ * @version $Revision$
+ */
+public class ThreadPoolBatchUnitTestCase extends TestCase
+{
+   public ThreadPoolBatchUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testRunAllBasic() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(10000);
+      try
+      {
+         runAll(pool, 5000);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testRunAllWorkStealing() throws Exception
+   {
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      pool.setMaximumQueueSize(10000);
+      try
+      {
+         runAll(pool, 5000);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testOverflowAbortBasic() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(3);
+      pool.setMaximumPoolSize(1);
+      try
+      {
+         overflow(pool, BlockingMode.ABORT);
+         assertEquals(2, pool.getRejectionCount("abort"));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testOverflowAbortWorkStealing() throws Exception
+   {
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      pool.setMaximumQueueSize(3);
+      pool.setMaximumPoolSize(1);
+      try
+      {
+         overflow(pool, BlockingMode.ABORT);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testOverflowRunBasic() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(3);
+      pool.setMaximumPoolSize(1);
+      try
+      {
+         overflow(pool, BlockingMode.RUN);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testOverflowDiscardOldestBasic() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.setMaximumQueueSize(3);
+      pool.setMaximumPoolSize(1);
+      try
+      {
+         overflow(pool, BlockingMode.DISCARD_OLDEST);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testRunTasksRejected() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      pool.stop(true);
+      TestTask task = new TestTask();
+      List<Task> tasks = new ArrayList<Task>();
+      tasks.add(task);
+      boolean[] accepted = pool.runTasks(tasks);
+      assertFalse(accepted[0]);
+      assertEquals(1, task.rejected.get());
+      assertEquals(0, task.completed.get());
+   }
+
+   public void testRunTasks() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         List<TestTask> tasks = new ArrayList<TestTask>();
+         for (int i = 0; i < 10; ++i)
+            tasks.add(new TestTask());
+         // Waits for completion, so runs on this thread
+         TestTask complete = new TestTask(Task.WAIT_FOR_COMPLETE);
+         tasks.add(complete);
+         boolean[] accepted = pool.runTasks(tasks);
+         for (int i = 0; i < accepted.length; ++i)
+            assertTrue(accepted[i]);
+         assertEquals(1, complete.completed.get());
+         assertSame(Thread.currentThread(), complete.thread);
+         for (TestTask task : tasks)
+            assertTrue(task.done.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testStopWhileSubmitting() throws Exception
+   {
+      for (int round = 0; round < 20; ++round)
+      {
+         final BasicThreadPool pool = new BasicThreadPool();
+         pool.setMaximumQueueSize(100000);
+         final List<TestTask> submitted = Collections.synchronizedList(new ArrayList<TestTask>());
+         final CountDownLatch submitting = new CountDownLatch(1);
+         Thread submitter = new Thread()
+         {
+            public void run()
+            {
+               while (true)
+               {
+                  List<TestTask> tasks = new ArrayList<TestTask>();
+                  for (int i = 0; i < 20; ++i)
+                     tasks.add(new TestTask());
+                  submitted.addAll(tasks);
+                  boolean[] accepted = pool.runTasks(tasks);
+                  submitting.countDown();
+                  if (accepted[accepted.length - 1] == false)
+                     return;
+               }
+            }
+         };
+         submitter.start();
+         assertTrue(submitting.await(10, TimeUnit.SECONDS));
+         pool.stop(false);
+         submitter.join(10000);
+         pool.waitForTasks(10000);
+         // Every task either ran or was rejected, none is left in the queue
+         synchronized (submitted)
+         {
+            for (TestTask task : submitted)
+               assertEquals(1, task.completed.get() + task.rejected.get());
+         }
+      }
+   }
+
+   public void testNullRunnable() throws Exception
+   {
+      BasicThreadPool pool = new BasicThreadPool();
+      try
+      {
+         List<Runnable> runnables = new ArrayList<Runnable>();
+         runnables.add(null);
+         pool.runAll(runnables);
+         fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   private void runAll(ThreadPool pool, int size) throws Exception
+   {
+      final CountDownLatch done = new CountDownLatch(size);
+      List<Runnable> runnables = new ArrayList<Runnable>();
+      for (int i = 0; i < size; ++i)
+      {
+         runnables.add(new Runnable()
+         {
+            public void run()
+            {
+               done.countDown();
+            }
+         });
+      }
+      boolean[] accepted = pool.runAll(runnables);
+      assertEquals(size, accepted.length);
+      for (int i = 0; i < size; ++i)
+         assertTrue(accepted[i]);
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+   }
+
+   /**
+    * Occupy the only thread, then submit five tasks to a queue of three
+    */
+   private void overflow(ThreadPool pool, BlockingMode mode) throws Exception
+   {
+      if (pool instanceof BasicThreadPool)
+         ((BasicThreadPool) pool).setBlockingMode(mode);
+      else
+         ((WorkStealingThreadPool) pool).setBlockingMode(mode);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      pool.run(new Runnable()
+      {
+         public void run()
+         {
+            started.countDown();
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+      final Thread caller = Thread.currentThread();
+      final AtomicInteger ranByCaller = new AtomicInteger();
+      List<Runnable> runnables = new ArrayList<Runnable>();
+      for (int i = 0; i < 5; ++i)
+      {
+         final int index = i;
+         runnables.add(new Runnable()
+         {
+            public void run()
+            {
+               if (Thread.currentThread() == caller)
+                  ranByCaller.incrementAndGet();
+               ran.add(index);
+            }
+         });
+      }
+      boolean[] accepted = pool.runAll(runnables);
+      release.countDown();
+      if (mode == BlockingMode.ABORT)
+      {
+         assertTrue(accepted[0] && accepted[1] && accepted[2]);
+         assertFalse(accepted[3] || accepted[4]);
+         waitForSize(ran, 3);
+         assertEquals(3, ran.size());
+      }
+      else if (mode == BlockingMode.RUN)
+      {
+         for (int i = 0; i < 5; ++i)
+            assertTrue(accepted[i]);
+         assertEquals(2, ranByCaller.get());
+         waitForSize(ran, 5);
+         assertEquals(5, ran.size());
+      }
+      else if (mode == BlockingMode.DISCARD_OLDEST)
+      {
+         for (int i = 0; i < 5; ++i)
+            assertTrue(accepted[i]);
+         waitForSize(ran, 3);
+         Thread.sleep(100);
+         // The two oldest made room for the rest of the batch
+         assertEquals(3, ran.size());
+         assertFalse(ran.contains(0));
+         assertFalse(ran.contains(1));
+      }
+   }
+
+   private static void waitForSize(List<?> list, int size) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (list.size() < size && System.currentTimeMillis() < end)
+         Thread.sleep(10);
+   }
+
+   private static class TestTask implements Task
+   {
+      final int waitType;
+      final AtomicInteger rejected = new AtomicInteger();
+      final AtomicInteger completed = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(1);
+      volatile Thread thread;
+
+      TestTask()
+      {
+         this(WAIT_NONE);
+      }
+
+      TestTask(int waitType)
+      {
+         this.waitType = waitType;
+      }
+
+      public int getWaitType()
+      {
+         return waitType;
+      }
+
+      public int getPriority()
+      {
+         return Thread.NORM_PRIORITY;
+      }
+
+      public long getStartTimeout()
+      {
+         return 0;
+      }
+
+      public long getCompletionTimeout()
+      {
+         return 0;
+      }
+
+      public void execute()
+      {
+         thread = Thread.currentThread();
+      }
+
+      public void stop()
+      {
+      }
+
+      public void accepted(long time)
+      {
+      }
+
+      public void rejected(long time, Throwable t)
+      {
+         rejected.incrementAndGet();
+      }
+
+      public void started(long time)
+      {
+      }
+
+      public void completed(long time, Throwable t)
+      {
+         completed.incrementAndGet();
+         done.countDown();
+      }
+   }
+}
@@ -0,0 +1,285 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.util.test.threadpool;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.util.threadpool.BlockingMode;
+import org.jboss.util.threadpool.ThreadPoolFullException;
+import org.jboss.util.threadpool.WorkStealingThreadPool;
+
+/**
+ * Tests of the work stealing thread pool.
+ *
+ * @see org.jboss.util.threadpool.WorkStealingThreadPool
+ * @version $Revision$
+ */
+public class WorkStealingThreadPoolUnitTestCase extends TestCase
+{
+   public WorkStealingThreadPoolUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testManyTasks() throws Exception
+   {
+      final int times = 10000;
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      pool.setMaximumQueueSize(times);
+      try
+      {
+         final CountDownLatch latch = new CountDownLatch(times);
+         for (int i = 0; i < times; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  latch.countDown();
+               }
+            });
+         }
+         assertTrue(latch.await(30, TimeUnit.SECONDS));
+         assertEquals(0, pool.getQueueSize());
+         assertTrue(pool.getPoolSize() <= pool.getMaximumPoolSize());
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testNestedTasksAreStolen() throws Exception
+   {
+      final WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      final int children = 40;
+      final CountDownLatch latch = new CountDownLatch(children);
+      final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               for (int i = 0; i < children; ++i)
+               {
+                  pool.run(new Runnable()
+                  {
+                     public void run()
+                     {
+                        threads.add(Thread.currentThread().getName());
+                        try
+                        {
+                           Thread.sleep(20);
+                        }
+                        catch (InterruptedException ignored)
+                        {
+                        }
+                        latch.countDown();
+                     }
+                  });
+               }
+            }
+         });
+         assertTrue(latch.await(30, TimeUnit.SECONDS));
+         assertTrue("Expected tasks to be stolen by other threads: " + threads, threads.size() > 1);
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testMaximumQueue() throws Exception
+   {
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      pool.setMaximumPoolSize(1);
+      pool.setMaximumQueueSize(1);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      try
+      {
+         pool.run(new HoldingRunnable(started, release));
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         pool.run(new HoldingRunnable(null, release));
+         try
+         {
+            pool.run(new HoldingRunnable(null, release));
+            fail("Expected ThreadPoolFullException");
+         }
+         catch (ThreadPoolFullException expected)
+         {
+         }
+
+         pool.setBlockingMode(BlockingMode.RUN);
+         final Thread caller = Thread.currentThread();
+         final AtomicInteger ranInCaller = new AtomicInteger();
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               if (Thread.currentThread() == caller)
+                  ranInCaller.incrementAndGet();
+            }
+         });
+         assertEquals(1, ranInCaller.get());
+      }
+      finally
+      {
+         release.countDown();
+         pool.stop(true);
+      }
+   }
+
+   public void testCompleteTimeout() throws Exception
+   {
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      final CountDownLatch interrupted = new CountDownLatch(1);
+      try
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Thread.sleep(30000);
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted.countDown();
+               }
+            }
+         }, 0, 500);
+         assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   public void testStopAndWait() throws Exception
+   {
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      final AtomicInteger count = new AtomicInteger();
+      for (int i = 0; i < 100; ++i)
+      {
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               count.incrementAndGet();
+            }
+         });
+      }
+      pool.stop(false);
+      pool.waitForTasks(10000);
+      assertEquals(100, count.get());
+      assertEquals(0, pool.getPoolSize());
+   }
+
+   public void testIdleWithoutKeepAlive() throws Exception
+   {
+      WorkStealingThreadPool pool = new WorkStealingThreadPool();
+      pool.setMaximumPoolSize(2);
+      pool.setKeepAliveTime(0);
+      try
+      {
+         final CountDownLatch done = new CountDownLatch(10);
+         for (int i = 0; i < 10; ++i)
+         {
+            pool.run(new Runnable()
+            {
+               public void run()
+               {
+                  done.countDown();
+               }
+            });
+         }
+         assertTrue(done.await(10, TimeUnit.SECONDS));
+
+         // The workers that cannot retire wait for work instead of spinning
+         Set<Thread> workers = new HashSet<Thread>();
+         for (Thread thread : Thread.getAllStackTraces().keySet())
+         {
+            if (thread.getName().startsWith(pool.toString() + "-"))
+               workers.add(thread);
+         }
+         assertFalse(workers.isEmpty());
+         long end = System.currentTimeMillis() + 10000;
+         for (Thread thread : workers)
+         {
+            while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < end)
+               Thread.sleep(10);
+         }
+         for (int i = 0; i < 20; ++i)
+         {
+            for (Thread thread : workers)
+               assertEquals(thread.getName(), Thread.State.WAITING, thread.getState());
+            Thread.sleep(5);
+         }
+
+         final CountDownLatch again = new CountDownLatch(1);
+         pool.run(new Runnable()
+         {
+            public void run()
+            {
+               again.countDown();
+            }
+         });
+         assertTrue(again.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         pool.stop(true);
+      }
+   }
+
+   private static class HoldingRunnable implements Runnable
+   {
+      private final CountDownLatch started;
+      private final CountDownLatch release;
+
+      HoldingRunnable(CountDownLatch started, CountDownLatch release)
+      {
+         this.started = started;
+         this.release = release;
+      }
+
+      public void run()
+      {
+         if (started != null)
+            started.countDown();
+         try
+         {
+            release.await();
+         }
+         catch (InterruptedException ignored)
+         {
+         }
+      }
+   }
+}